@@ -0,0 +1,85 @@
+package net.ultramagnetic.sugarray;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CacheControlのテスト
+ */
+public class CacheControlTest extends TestCase {
+
+    public void testParseDirectives() {
+        CacheControl cacheControl = parse("Cache-Control",
+                "no-cache, no-store, must-revalidate, only-if-cached, max-age=60, "
+                        + "max-stale=10, min-fresh=5, stale-while-revalidate=30");
+        assertTrue(cacheControl.mNoCache);
+        assertTrue(cacheControl.mNoStore);
+        assertTrue(cacheControl.mMustRevalidate);
+        assertTrue(cacheControl.mOnlyIfCached);
+        assertEquals(60, cacheControl.mMaxAge);
+        assertEquals(10, cacheControl.mMaxStale);
+        assertEquals(5, cacheControl.mMinFresh);
+        assertEquals(30, cacheControl.mStaleWhileRevalidate);
+    }
+
+    public void testParseUnspecified() {
+        CacheControl cacheControl = parse("Cache-Control", "public");
+        assertFalse(cacheControl.mNoCache);
+        assertFalse(cacheControl.mNoStore);
+        assertEquals(CacheControl.UNSPECIFIED, cacheControl.mMaxAge);
+        assertEquals(CacheControl.UNSPECIFIED, cacheControl.mMaxStale);
+        assertEquals(CacheControl.UNSPECIFIED, cacheControl.mMinFresh);
+        assertEquals(CacheControl.UNSPECIFIED, cacheControl.mStaleWhileRevalidate);
+    }
+
+    public void testParseQuotedAndCase() {
+        CacheControl cacheControl = parse("cache-control",
+                "private=\"Set-Cookie, X-Token\", Max-Age=\"120\", PROXY-REVALIDATE");
+        assertEquals(120, cacheControl.mMaxAge);
+        assertTrue(cacheControl.mMustRevalidate);
+        assertFalse(cacheControl.mNoCache);
+    }
+
+    public void testMaxStaleWithoutValue() {
+        assertEquals(Integer.MAX_VALUE, parse("Cache-Control", "max-stale").mMaxStale);
+    }
+
+    public void testInvalidSeconds() {
+        assertEquals(CacheControl.UNSPECIFIED, parse("Cache-Control", "max-age=-1").mMaxAge);
+        assertEquals(CacheControl.UNSPECIFIED, parse("Cache-Control", "max-age=1.5").mMaxAge);
+        assertEquals(CacheControl.UNSPECIFIED, parse("Cache-Control", "max-age=").mMaxAge);
+        assertEquals(CacheControl.UNSPECIFIED, parse("Cache-Control", "max-age").mMaxAge);
+    }
+
+    public void testParseSecondsOverflow() {
+        assertEquals(Integer.MAX_VALUE, CacheControl.parseSeconds("2147483648", 0));
+        assertEquals(Integer.MAX_VALUE,
+                CacheControl.parseSeconds("99999999999999999999999", 0));
+        assertEquals(0, CacheControl.parseSeconds("0", -1));
+        assertEquals(-1, CacheControl.parseSeconds("abc", -1));
+        assertEquals(-1, CacheControl.parseSeconds(null, -1));
+    }
+
+    public void testPragma() {
+        assertTrue(parse("Pragma", "no-cache").mNoCache);
+        // Cache-Controlがあれば、Pragmaは使わない
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Pragma", "no-cache");
+        headers.put("Cache-Control", "max-age=60");
+        assertFalse(CacheControl.parse(headers).mNoCache);
+    }
+
+    public void testNoHeaders() {
+        CacheControl cacheControl = CacheControl.parse(null);
+        assertFalse(cacheControl.mNoCache);
+        assertEquals(CacheControl.UNSPECIFIED, cacheControl.mMaxAge);
+    }
+
+    private static CacheControl parse(String name, String value) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(name, value);
+        return CacheControl.parse(headers);
+    }
+}
@@ -0,0 +1,136 @@
+package net.ultramagnetic.sugarray;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CacheEntryの経過時間と鮮度の計算(RFC 7234 4.2)のテスト
+ */
+public class CacheEntryTest extends TestCase {
+
+    /**
+     * リクエストを送信した時刻
+     */
+    private static final long REQUEST_TIME = 1000000000000L;
+    /**
+     * レスポンスを受信した時刻
+     */
+    private static final long RESPONSE_TIME = REQUEST_TIME + 2000;
+
+    public void testCurrentAge() {
+        CacheEntry entry = entry(200, "Date", HttpDate.format(RESPONSE_TIME));
+        // 受信までの2秒と、保存してからの10秒
+        assertEquals(12000, entry.currentAge(RESPONSE_TIME + 10000));
+    }
+
+    public void testCurrentAgeWithAgeHeader() {
+        CacheEntry entry = entry(200, "Date", HttpDate.format(RESPONSE_TIME), "Age", "30");
+        assertEquals(32000, entry.currentAge(RESPONSE_TIME));
+    }
+
+    public void testCurrentAgeWithOldDate() {
+        // 中継したキャッシュが返したDateの方が、Ageと受信までの時間より古い
+        CacheEntry entry = entry(200, "Date", HttpDate.format(RESPONSE_TIME - 60000));
+        assertEquals(60000, entry.currentAge(RESPONSE_TIME));
+    }
+
+    public void testFreshnessLifetimeMaxAge() {
+        CacheEntry entry = entry(200, "Cache-Control", "max-age=60",
+                "Expires", HttpDate.format(RESPONSE_TIME + 3600000));
+        assertEquals(60000, entry.freshnessLifetime(CacheControl.parse(entry.mHeaders)));
+    }
+
+    public void testFreshnessLifetimeExpires() {
+        CacheEntry entry = entry(200, "Date", HttpDate.format(RESPONSE_TIME),
+                "Expires", HttpDate.format(RESPONSE_TIME + 120000));
+        assertEquals(120000, entry.freshnessLifetime(CacheControl.parse(entry.mHeaders)));
+        // 解析できないExpiresは期限切れ
+        entry = entry(200, "Date", HttpDate.format(RESPONSE_TIME), "Expires", "0");
+        assertEquals(0, entry.freshnessLifetime(CacheControl.parse(entry.mHeaders)));
+    }
+
+    public void testFreshnessLifetimeHeuristic() {
+        CacheEntry entry = entry(200, "Date", HttpDate.format(RESPONSE_TIME),
+                "Last-Modified", HttpDate.format(RESPONSE_TIME - 1000000));
+        assertEquals(1000000 * SugarrayConstants.DefaultCacheConfig.DEFAULT_HEURISTIC_PERCENT
+                / 100, entry.freshnessLifetime(CacheControl.parse(entry.mHeaders)));
+        // 推測してよいステータスコードではない
+        entry = entry(404, "Date", HttpDate.format(RESPONSE_TIME),
+                "Last-Modified", HttpDate.format(RESPONSE_TIME - 1000000));
+        assertEquals(0, entry.freshnessLifetime(CacheControl.parse(entry.mHeaders)));
+    }
+
+    public void testIsFresh() {
+        CacheEntry entry = entry(200, "Date", HttpDate.format(RESPONSE_TIME),
+                "Cache-Control", "max-age=60");
+        CacheControl none = CacheControl.parse(null);
+        // 経過時間は受信までの2秒を含む
+        assertTrue(entry.isFresh(none, RESPONSE_TIME + 57000));
+        assertFalse(entry.isFresh(none, RESPONSE_TIME + 58000));
+        assertEquals(RESPONSE_TIME + 58000, entry.expirationTime());
+    }
+
+    public void testIsFreshWithRequestCacheControl() {
+        CacheEntry entry = entry(200, "Date", HttpDate.format(RESPONSE_TIME),
+                "Cache-Control", "max-age=60");
+        long now = RESPONSE_TIME + 28000;
+        assertFalse(entry.isFresh(requestCacheControl("max-age=20"), now));
+        assertTrue(entry.isFresh(requestCacheControl("max-age=40"), now));
+        assertFalse(entry.isFresh(requestCacheControl("min-fresh=40"), now));
+        assertFalse(entry.isFresh(requestCacheControl("no-cache"), now));
+        now = RESPONSE_TIME + 68000;
+        assertFalse(entry.isFresh(requestCacheControl(null), now));
+        assertTrue(entry.isFresh(requestCacheControl("max-stale=20"), now));
+        assertTrue(entry.isFresh(requestCacheControl("max-stale"), now));
+    }
+
+    public void testMustRevalidateIgnoresMaxStale() {
+        CacheEntry entry = entry(200, "Date", HttpDate.format(RESPONSE_TIME),
+                "Cache-Control", "max-age=60, must-revalidate");
+        long now = RESPONSE_TIME + 68000;
+        assertFalse(entry.isFresh(requestCacheControl("max-stale=20"), now));
+        assertFalse(entry.isUsableOffline(requestCacheControl(null)));
+    }
+
+    public void testNoCacheResponse() {
+        CacheEntry entry = entry(200, "Date", HttpDate.format(RESPONSE_TIME),
+                "Cache-Control", "max-age=60, no-cache");
+        assertFalse(entry.isFresh(requestCacheControl(null), RESPONSE_TIME));
+    }
+
+    public void testStaleWhileRevalidate() {
+        CacheEntry entry = entry(200, "Date", HttpDate.format(RESPONSE_TIME),
+                "Cache-Control", "max-age=60, stale-while-revalidate=30");
+        CacheControl none = requestCacheControl(null);
+        assertTrue(entry.isServableWhileRevalidating(none, 0, RESPONSE_TIME + 87000));
+        assertFalse(entry.isServableWhileRevalidating(none, 0, RESPONSE_TIME + 88000));
+        // 呼び出し元が許容する時間の方が長い
+        assertTrue(entry.isServableWhileRevalidating(none, 60, RESPONSE_TIME + 117000));
+    }
+
+    public void testToResponseSetsAge() {
+        CacheEntry entry = entry(200, "Date", HttpDate.format(RESPONSE_TIME), "age", "5");
+        SugarrayResponse response = entry.toResponse(RESPONSE_TIME + 10000, true);
+        assertEquals("17", HttpCache.header(response.mHeaders, "Age"));
+        assertTrue(response.mNotModified);
+    }
+
+    private static CacheControl requestCacheControl(String value) {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (value != null) {
+            headers.put("Cache-Control", value);
+        }
+        return CacheControl.parse(headers);
+    }
+
+    private static CacheEntry entry(int statusCode, String... headerFields) {
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 0; i < headerFields.length; i += 2) {
+            headers.put(headerFields[i], headerFields[i + 1]);
+        }
+        return new CacheEntry("http://example.com/", new HashMap<String, String>(), statusCode,
+                "text/plain", "UTF-8", headers, new byte[]{'a'}, REQUEST_TIME, RESPONSE_TIME);
+    }
+}
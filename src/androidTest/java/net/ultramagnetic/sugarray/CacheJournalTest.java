@@ -0,0 +1,217 @@
+package net.ultramagnetic.sugarray;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * CacheJournalの再生とスナップショットの書き出しのテスト
+ */
+public class CacheJournalTest extends TestCase {
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(System.getProperty("java.io.tmpdir"),
+                "CacheJournalTest" + System.nanoTime());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testEmptyDirectory() {
+        CacheJournal journal = new CacheJournal(mDirectory, 100);
+        LinkedHashMap<String, CacheJournal.Metadata> entries = entries("x");
+        assertTrue(journal.lock());
+        try {
+            assertFalse(journal.load(entries));
+            assertTrue(entries.isEmpty());
+            assertTrue(journal.needsCompaction(0));
+        } finally {
+            journal.unlock();
+        }
+    }
+
+    public void testReplay() {
+        CacheJournal journal = open(100);
+        try {
+            journal.put("a", new CacheJournal.Metadata(10, 1000, true));
+            journal.put("b", new CacheJournal.Metadata(20, 2000, false));
+            journal.put("c", new CacheJournal.Metadata(30, 3000, true));
+            journal.read("a");
+            journal.remove("b");
+        } finally {
+            journal.unlock();
+        }
+
+        LinkedHashMap<String, CacheJournal.Metadata> entries = reload(100);
+        // 最も長く使われていない順
+        assertEquals(Arrays.asList("c", "a"), new ArrayList<String>(entries.keySet()));
+        CacheJournal.Metadata metadata = entries.get("a");
+        assertEquals(10, metadata.mSize);
+        assertEquals(1000, metadata.mExpirationTime);
+        assertTrue(metadata.mHasValidator);
+    }
+
+    public void testCompaction() {
+        CacheJournal journal = open(3);
+        LinkedHashMap<String, CacheJournal.Metadata> entries =
+                new LinkedHashMap<String, CacheJournal.Metadata>();
+        try {
+            for (String key : new String[]{"a", "b", "c"}) {
+                CacheJournal.Metadata metadata = new CacheJournal.Metadata(1, 0, false);
+                entries.put(key, metadata);
+                journal.put(key, metadata);
+            }
+            assertTrue(journal.needsCompaction(entries.size()));
+            assertTrue(journal.compact(entries));
+            assertFalse(journal.needsCompaction(entries.size()));
+        } finally {
+            journal.unlock();
+        }
+        // ジャーナルはヘッダーのみとなる
+        assertEquals(16, new File(mDirectory, "journal").length());
+        assertEquals(Arrays.asList("a", "b", "c"),
+                new ArrayList<String>(reload(3).keySet()));
+    }
+
+    public void testTruncatedRecord() throws Exception {
+        CacheJournal journal = open(100);
+        try {
+            journal.put("a", new CacheJournal.Metadata(10, 0, true));
+        } finally {
+            journal.unlock();
+        }
+        // 書き込み中に終了した、途中までのレコード
+        FileOutputStream out = new FileOutputStream(new File(mDirectory, "journal"), true);
+        try {
+            out.write(new byte[]{0, 0, 0, 32, 1, 0});
+        } finally {
+            out.close();
+        }
+
+        journal = new CacheJournal(mDirectory, 100);
+        LinkedHashMap<String, CacheJournal.Metadata> entries =
+                new LinkedHashMap<String, CacheJournal.Metadata>();
+        journal.lock();
+        try {
+            assertTrue(journal.load(entries));
+            assertEquals(Arrays.asList("a"), new ArrayList<String>(entries.keySet()));
+            // 壊れた末尾の後ろには追記せず、スナップショットから書き直す
+            assertTrue(journal.needsCompaction(entries.size()));
+        } finally {
+            journal.unlock();
+        }
+    }
+
+    public void testBrokenSnapshot() throws Exception {
+        CacheJournal journal = open(100);
+        LinkedHashMap<String, CacheJournal.Metadata> entries = entries("a");
+        try {
+            assertTrue(journal.compact(entries));
+        } finally {
+            journal.unlock();
+        }
+        RandomAccessFile snapshot = new RandomAccessFile(new File(mDirectory, "snapshot"), "rw");
+        try {
+            snapshot.seek(snapshot.length() - 1);
+            snapshot.write(snapshot.read() ^ 0xff);
+        } finally {
+            snapshot.close();
+        }
+
+        journal = new CacheJournal(mDirectory, 100);
+        journal.lock();
+        try {
+            assertFalse(journal.load(entries));
+            assertTrue(entries.isEmpty());
+        } finally {
+            journal.unlock();
+        }
+    }
+
+    public void testSync() {
+        CacheJournal first = open(100);
+        first.unlock();
+        CacheJournal second = new CacheJournal(mDirectory, 100);
+        LinkedHashMap<String, CacheJournal.Metadata> entries =
+                new LinkedHashMap<String, CacheJournal.Metadata>();
+        second.lock();
+        try {
+            assertTrue(second.load(entries));
+        } finally {
+            second.unlock();
+        }
+
+        // 他のプロセスを想定し、別のインスタンスで追記する。追記はロックの後にsyncしてから行う
+        first.lock();
+        try {
+            assertFalse(first.sync(new LinkedHashMap<String, CacheJournal.Metadata>()));
+            first.put("a", new CacheJournal.Metadata(10, 0, false));
+        } finally {
+            first.unlock();
+        }
+        second.lock();
+        try {
+            assertTrue(second.sync(entries));
+            assertEquals(Arrays.asList("a"), new ArrayList<String>(entries.keySet()));
+            assertFalse(second.sync(entries));
+        } finally {
+            second.unlock();
+        }
+    }
+
+    /**
+     * ロックを取得し、空のスナップショットを書き出したジャーナルを返す。
+     */
+    private CacheJournal open(int compactThreshold) {
+        CacheJournal journal = new CacheJournal(mDirectory, compactThreshold);
+        LinkedHashMap<String, CacheJournal.Metadata> entries =
+                new LinkedHashMap<String, CacheJournal.Metadata>();
+        journal.lock();
+        assertFalse(journal.load(entries));
+        assertTrue(journal.compact(entries));
+        return journal;
+    }
+
+    /**
+     * 新しいインスタンスでエントリーの一覧を復元する。
+     */
+    private LinkedHashMap<String, CacheJournal.Metadata> reload(int compactThreshold) {
+        CacheJournal journal = new CacheJournal(mDirectory, compactThreshold);
+        LinkedHashMap<String, CacheJournal.Metadata> entries =
+                new LinkedHashMap<String, CacheJournal.Metadata>();
+        journal.lock();
+        try {
+            assertTrue(journal.load(entries));
+        } finally {
+            journal.unlock();
+        }
+        return entries;
+    }
+
+    private static LinkedHashMap<String, CacheJournal.Metadata> entries(String... keys) {
+        LinkedHashMap<String, CacheJournal.Metadata> entries =
+                new LinkedHashMap<String, CacheJournal.Metadata>();
+        for (String key : keys) {
+            entries.put(key, new CacheJournal.Metadata(1, 0, false));
+        }
+        return entries;
+    }
+}
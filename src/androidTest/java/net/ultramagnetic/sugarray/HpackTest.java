@@ -0,0 +1,147 @@
+package net.ultramagnetic.sugarray;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HpackとHuffmanのテスト。期待値はRFC 7541 Appendix Cの例を使う。
+ */
+public class HpackTest extends TestCase {
+
+    public void testHuffmanEncode() throws Exception {
+        assertEquals("f1e3c2e5f23a6ba0ab90f4ff", encodeHuffman("www.example.com"));
+        assertEquals("a8eb10649cbf", encodeHuffman("no-cache"));
+        assertEquals("25a849e95ba97d7f", encodeHuffman("custom-key"));
+        assertEquals("25a849e95bb8e8b4bf", encodeHuffman("custom-value"));
+        assertEquals(12, Huffman.encodedLength(bytes("www.example.com")));
+    }
+
+    public void testHuffmanDecode() throws Exception {
+        byte[] data = hex("f1e3c2e5f23a6ba0ab90f4ff");
+        assertEquals("www.example.com", new String(Huffman.decode(data, 0, data.length),
+                "ISO-8859-1"));
+        byte[] all = new byte[256];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Huffman.encode(all, out);
+        byte[] encoded = out.toByteArray();
+        byte[] decoded = Huffman.decode(encoded, 0, encoded.length);
+        assertEquals(all.length, decoded.length);
+        for (int i = 0; i < all.length; i++) {
+            assertEquals(all[i], decoded[i]);
+        }
+    }
+
+    public void testHuffmanInvalidPadding() {
+        try {
+            // "0"の5bitの後の余りが1で埋められていない
+            Huffman.decode(new byte[]{0x00}, 0, 1);
+            fail("Invalid padding was accepted.");
+        } catch (IOException e) {
+            // 期待どおり
+        }
+    }
+
+    /**
+     * RFC 7541 C.4.1からC.4.3の一連のリクエストを、同じ復号器で復号する。
+     */
+    public void testDecodeRequestsWithHuffman() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        List<String[]> headers = decoder.decode(hex("828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+        assertHeaders(headers, ":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com");
+
+        headers = decoder.decode(hex("828684be5886a8eb10649cbf"));
+        assertHeaders(headers, ":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com", "cache-control", "no-cache");
+
+        headers = decoder.decode(hex("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+        assertHeaders(headers, ":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value");
+    }
+
+    public void testEncodeDecode() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        List<String[]> headers = new ArrayList<String[]>();
+        headers.add(new String[]{":method", "GET"});
+        headers.add(new String[]{":path", "/sugarray?q=1"});
+        headers.add(new String[]{":authority", "www.example.com"});
+        headers.add(new String[]{"user-agent", "sugarray"});
+        headers.add(new String[]{"x-custom", ""});
+        for (int i = 0; i < 3; i++) {
+            // 2回目以降は動的テーブルを参照する
+            byte[] block = encoder.encode(headers);
+            List<String[]> decoded = decoder.decode(block);
+            assertEquals(headers.size(), decoded.size());
+            for (int j = 0; j < headers.size(); j++) {
+                assertEquals(headers.get(j)[0], decoded.get(j)[0]);
+                assertEquals(headers.get(j)[1], decoded.get(j)[1]);
+            }
+        }
+    }
+
+    public void testTruncatedString() {
+        // 新しい名前のリテラルで、5byteの名前が続かない
+        assertInvalid(hex("400548"));
+    }
+
+    public void testIntegerOverflow() {
+        assertInvalid(hex("ffffffffffffff7f"));
+    }
+
+    public void testInvalidIndex() {
+        assertInvalid(hex("be"));
+    }
+
+    public void testTableSizeOverLimit() {
+        // 動的テーブルの最大サイズを4097に変更する
+        assertInvalid(hex("3fe21f"));
+    }
+
+    private static void assertInvalid(byte[] block) {
+        try {
+            new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(block);
+            fail("Invalid header block was accepted.");
+        } catch (IOException e) {
+            // 期待どおり
+        }
+    }
+
+    private static void assertHeaders(List<String[]> headers, String... expected) {
+        assertEquals(expected.length / 2, headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            assertEquals(expected[i * 2], headers.get(i)[0]);
+            assertEquals(expected[i * 2 + 1], headers.get(i)[1]);
+        }
+    }
+
+    private static String encodeHuffman(String value) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Huffman.encode(bytes(value), out);
+        StringBuilder builder = new StringBuilder();
+        for (byte b : out.toByteArray()) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] bytes(String value) throws Exception {
+        return value.getBytes("ISO-8859-1");
+    }
+
+    private static byte[] hex(String value) {
+        byte[] data = new byte[value.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(value.substring(i * 2, i * 2 + 2), 16);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,40 @@
+package net.ultramagnetic.sugarray;
+
+import junit.framework.TestCase;
+
+/**
+ * HttpDateのテスト。RFC 7231 7.1.1.1の3つの形式を解析する。
+ */
+public class HttpDateTest extends TestCase {
+
+    /**
+     * Sun, 06 Nov 1994 08:49:37 GMT
+     */
+    private static final long TIME = 784111777000L;
+
+    public void testParseImfFixdate() {
+        assertEquals(TIME, HttpDate.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(TIME, HttpDate.parse("  Sun, 06 Nov 1994 08:49:37 GMT "));
+    }
+
+    public void testParseRfc850() {
+        assertEquals(TIME, HttpDate.parse("Sunday, 06-Nov-94 08:49:37 GMT"));
+    }
+
+    public void testParseAsctime() {
+        assertEquals(TIME, HttpDate.parse("Sun Nov  6 08:49:37 1994"));
+    }
+
+    public void testParseInvalid() {
+        assertEquals(-1, HttpDate.parse(null));
+        assertEquals(-1, HttpDate.parse(""));
+        assertEquals(-1, HttpDate.parse("0"));
+        assertEquals(-1, HttpDate.parse("Sun, 06 Nov 1994 08:49:37 GMT garbage"));
+        assertEquals(-1, HttpDate.parse("Sun, 32 Nov 1994 08:49:37 GMT"));
+    }
+
+    public void testFormat() {
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDate.format(TIME));
+        assertEquals(TIME, HttpDate.parse(HttpDate.format(TIME)));
+    }
+}
@@ -0,0 +1,209 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.error.SugarrayError;
+import net.ultramagnetic.sugarray.error.UnexpectedError;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RangeCacheのテスト。通信は範囲を返すだけのハンドラで置き換える。
+ */
+public class RangeCacheTest extends TestCase {
+
+    private static final String URL = "http://example.com/resource";
+
+    private File mDirectory;
+    private RangeCache mRangeCache;
+    private FakeHandler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(System.getProperty("java.io.tmpdir"),
+                "RangeCacheTest" + System.nanoTime());
+        mRangeCache = new RangeCache(mDirectory, 1024 * 1024);
+        mHandler = new FakeHandler(1000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRangeCache.evictAll();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testParseRange() {
+        assertTrue(Arrays.equals(new long[]{0, 99}, RangeCache.parseRange("bytes=0-99")));
+        assertTrue(Arrays.equals(new long[]{500, -1}, RangeCache.parseRange("Bytes= 500-")));
+        assertNull(RangeCache.parseRange("bytes=-500"));
+        assertNull(RangeCache.parseRange("bytes=0-1,5-6"));
+        assertNull(RangeCache.parseRange("bytes=9-1"));
+        assertNull(RangeCache.parseRange("items=0-1"));
+        assertNull(RangeCache.parseRange(null));
+    }
+
+    public void testParseContentRange() {
+        assertTrue(Arrays.equals(new long[]{0, 99, 1000},
+                RangeCache.parseContentRange("bytes 0-99/1000")));
+        assertNull(RangeCache.parseContentRange("bytes 0-99/*"));
+        assertNull(RangeCache.parseContentRange("bytes 0-1000/1000"));
+        assertNull(RangeCache.parseContentRange("bytes */1000"));
+    }
+
+    public void testHit() throws Exception {
+        SugarrayResponse response = perform("bytes=100-199");
+        assertRange(response, 100, 199);
+        assertFalse(response.mNotModified);
+
+        response = perform("bytes=100-199");
+        assertRange(response, 100, 199);
+        assertTrue(response.mNotModified);
+        assertEquals("bytes 100-199/1000", HttpCache.header(response.mHeaders, "Content-Range"));
+        assertEquals(Arrays.asList("bytes=100-199"), mHandler.mRanges);
+        assertEquals(100, mRangeCache.size());
+    }
+
+    public void testFetchOnlyGaps() throws Exception {
+        perform("bytes=100-199");
+        perform("bytes=300-399");
+        mHandler.mRanges.clear();
+        mHandler.mIfRanges.clear();
+
+        SugarrayResponse response = perform("bytes=50-449");
+        assertRange(response, 50, 449);
+        assertFalse(response.mNotModified);
+        assertEquals(Arrays.asList("bytes=50-99", "bytes=200-299", "bytes=400-449"),
+                mHandler.mRanges);
+        assertEquals(Arrays.asList("\"v1\"", "\"v1\"", "\"v1\""), mHandler.mIfRanges);
+        assertEquals(400, mRangeCache.size());
+    }
+
+    public void testOpenEndedRange() throws Exception {
+        perform("bytes=900-949");
+        mHandler.mRanges.clear();
+
+        SugarrayResponse response = perform("bytes=900-");
+        assertRange(response, 900, 999);
+        assertEquals(Arrays.asList("bytes=950-999"), mHandler.mRanges);
+    }
+
+    public void testChangedResource() throws Exception {
+        perform("bytes=0-99");
+        mHandler.mETag = "\"v2\"";
+        mHandler.mRanges.clear();
+
+        // If-Rangeが一致しないため、更新されたリソースの全体が返される
+        SugarrayResponse response = perform("bytes=0-199");
+        assertEquals(200, response.mStatusCode);
+        assertEquals(1000, response.mBody.length);
+        mHandler.mRanges.clear();
+
+        response = perform("bytes=0-199");
+        assertRange(response, 0, 199);
+        assertTrue(response.mNotModified);
+        assertTrue(mHandler.mRanges.isEmpty());
+    }
+
+    public void testRangeTooLarge() throws Exception {
+        mHandler = new FakeHandler(3L * 1024 * 1024 * 1024);
+        perform("bytes=0-9");
+        mHandler.mRanges.clear();
+        try {
+            perform("bytes=0-");
+            fail("Range larger than an array was accepted.");
+        } catch (UnexpectedError e) {
+            // 期待どおり
+        }
+        assertTrue(mHandler.mRanges.isEmpty());
+    }
+
+    public void testEvict() throws Exception {
+        mRangeCache = new RangeCache(mDirectory, 150);
+        perform("bytes=0-99");
+        mHandler.mPath = "/other";
+        perform("bytes=0-99");
+        // 最も長く使われていない最初のリソースを削除する
+        assertEquals(100, mRangeCache.size());
+    }
+
+    private SugarrayResponse perform(String range) throws SugarrayError {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Range", range);
+        RequestOption option = new RequestOption.Bulider()
+                .url(URL + mHandler.mPath)
+                .method(SugarrayConstants.Method.GET)
+                .headers(headers)
+                .rangeCache(mRangeCache)
+                .bulid();
+        assertTrue(RangeCache.isCacheable(option));
+        return mRangeCache.perform(option, mHandler, null);
+    }
+
+    private static void assertRange(SugarrayResponse response, long start, long end) {
+        assertEquals(206, response.mStatusCode);
+        assertEquals(end - start + 1, response.mBody.length);
+        for (int i = 0; i < response.mBody.length; i++) {
+            assertEquals((byte) ((start + i) % 251), response.mBody[i]);
+        }
+    }
+
+    /**
+     * 位置を251で割った余りを内容とするリソースの、Rangeで指定された範囲を返すハンドラ
+     */
+    private static class FakeHandler implements HttpHandler {
+        final long mLength;
+        final List<String> mRanges = new ArrayList<String>();
+        final List<String> mIfRanges = new ArrayList<String>();
+        String mETag = "\"v1\"";
+        String mPath = "";
+
+        FakeHandler(long length) {
+            mLength = length;
+        }
+
+        @Override
+        public SugarrayResponse perform(RequestOption option,
+                                        Sugarray.ProgressUpdateListener progressUpdateListener)
+                throws SugarrayError {
+            String range = HttpCache.header(option.mHeaders, "Range");
+            String ifRange = HttpCache.header(option.mHeaders, "If-Range");
+            mRanges.add(range);
+            if (ifRange != null) {
+                mIfRanges.add(ifRange);
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("ETag", mETag);
+            headers.put("Accept-Ranges", "bytes");
+            long[] spec = RangeCache.parseRange(range);
+            if (ifRange != null && !ifRange.equals(mETag)) {
+                return new SugarrayResponse(200, body(0, mLength - 1), "application/octet-stream",
+                        "UTF-8", headers, false);
+            }
+            long end = spec[1] == -1 || spec[1] >= mLength ? mLength - 1 : spec[1];
+            headers.put("Content-Range", "bytes " + spec[0] + "-" + end + "/" + mLength);
+            return new SugarrayResponse(206, body(spec[0], end), "application/octet-stream",
+                    "UTF-8", headers, false);
+        }
+
+        private static byte[] body(long start, long end) {
+            byte[] body = new byte[(int) (end - start + 1)];
+            for (int i = 0; i < body.length; i++) {
+                body[i] = (byte) ((start + i) % 251);
+            }
+            return body;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.error.SugarrayError;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * SingleFlightのキーと、合流する条件のテスト
+ */
+public class SingleFlightTest extends TestCase {
+
+    private static final String URL = "https://example.com/resource";
+
+    private final HttpHandler mHandler = new HttpRestUrlHandler();
+
+    public void testKeyNotCoalesced() {
+        assertNull(SingleFlight.key(option(SugarrayConstants.Method.POST, null, true), mHandler));
+        assertNull(SingleFlight.key(option(SugarrayConstants.Method.GET, null, false), mHandler));
+        assertNotNull(SingleFlight.key(option(SugarrayConstants.Method.HEAD, null, true),
+                mHandler));
+    }
+
+    public void testKeyHeaders() {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "text/plain");
+        headers.put("X-Token", "a");
+        Map<String, String> reordered = new HashMap<String, String>();
+        reordered.put("x-token", "a");
+        reordered.put("ACCEPT", "text/plain");
+        Map<String, String> different = new HashMap<String, String>();
+        different.put("Accept", "text/plain");
+        different.put("X-Token", "b");
+
+        String key = SingleFlight.key(option(SugarrayConstants.Method.GET, headers, true),
+                mHandler);
+        // フィールド名の大文字と小文字、順序の違いは同じキー
+        assertEquals(key, SingleFlight.key(option(SugarrayConstants.Method.GET, reordered,
+                true), mHandler));
+        assertFalse(key.equals(SingleFlight.key(option(SugarrayConstants.Method.GET, different,
+                true), mHandler)));
+        assertFalse(key.equals(SingleFlight.key(option(SugarrayConstants.Method.HEAD, headers,
+                true), mHandler)));
+    }
+
+    public void testKeyHandlerAndProxy() {
+        RequestOption option = option(SugarrayConstants.Method.GET, null, true);
+        String key = SingleFlight.key(option, mHandler);
+        assertFalse(key.equals(SingleFlight.key(option, new HttpRestClientHandler())));
+        RequestOption proxied = option.toBulider().proxyhost("proxy.example.com").proxyPort(8080)
+                .bulid();
+        assertFalse(key.equals(SingleFlight.key(proxied, mHandler)));
+    }
+
+    public void testKeyIgnoresSSLSocketFactory() throws Exception {
+        RequestOption option = option(SugarrayConstants.Method.GET, null, true);
+        RequestOption custom = option.toBulider().sslSocketFactory(factory()).bulid();
+        // 同じインスタンスかどうかは合流する際に比較する
+        assertEquals(SingleFlight.key(option, mHandler), SingleFlight.key(custom, mHandler));
+    }
+
+    public void testJoinOnlySameSSLSocketFactory() throws Exception {
+        SSLSocketFactory first = factory();
+        SSLSocketFactory second = factory();
+        BlockingHandler handler = new BlockingHandler();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<Future<SugarrayResponse>> results = new ArrayList<Future<SugarrayResponse>>();
+            results.add(submit(executor, handler, first));
+            results.add(submit(executor, handler, second));
+            assertTrue(handler.awaitCalls(2));
+            // 最初の通信と同じSSLSocketFactoryのリクエストは、新たに通信せずに合流する
+            results.add(submit(executor, handler, first));
+            Thread.sleep(200);
+            handler.mRelease.countDown();
+            for (Future<SugarrayResponse> result : results) {
+                assertEquals(200, result.get(5, TimeUnit.SECONDS).mStatusCode);
+            }
+            assertEquals(2, handler.mCalls.get());
+        } finally {
+            handler.mRelease.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static Future<SugarrayResponse> submit(ExecutorService executor,
+                                                   final HttpHandler handler,
+                                                   SSLSocketFactory sslSocketFactory) {
+        final RequestOption option = option(SugarrayConstants.Method.GET, null, true)
+                .toBulider().sslSocketFactory(sslSocketFactory).bulid();
+        return executor.submit(new Callable<SugarrayResponse>() {
+            @Override
+            public SugarrayResponse call() throws Exception {
+                return SingleFlight.perform(SingleFlight.key(option, handler), option, handler,
+                        null);
+            }
+        });
+    }
+
+    private static SSLSocketFactory factory() throws Exception {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, null, null);
+        return sslContext.getSocketFactory();
+    }
+
+    private static RequestOption option(SugarrayConstants.Method method,
+                                        Map<String, String> headers, boolean coalesce) {
+        return new RequestOption.Bulider()
+                .url(URL)
+                .method(method)
+                .headers(headers != null ? headers : new HashMap<String, String>())
+                .coalesce(coalesce)
+                .bulid();
+    }
+
+    /**
+     * 解放されるまで通信を終えないハンドラ
+     */
+    private static class BlockingHandler implements HttpHandler {
+        final AtomicInteger mCalls = new AtomicInteger();
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        @Override
+        public SugarrayResponse perform(RequestOption option,
+                                        Sugarray.ProgressUpdateListener progressUpdateListener)
+                throws SugarrayError {
+            mCalls.incrementAndGet();
+            try {
+                mRelease.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new SugarrayResponse(200, new byte[0], "text/plain", "UTF-8",
+                    new HashMap<String, String>(), false);
+        }
+
+        boolean awaitCalls(int calls) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mCalls.get() < calls) {
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.error.SugarrayError;
+
+/**
+ * ワーカースレッドを占有せずにHTTP通信を行うハンドラのインターフェイス
+ */
+public interface AsyncHttpHandler extends HttpHandler {
+
+    /**
+     * 非同期でのHTTP通信に対応しているかどうか判断する
+     *
+     * @param option
+     * @return 非同期で処理できればtrue
+     */
+    public boolean supports(final RequestOption option);
+
+    /**
+     * 非同期でHTTP通信を行う
+     *
+     * @param option
+     * @param progressUpdateListener
+     * @param callback               通信結果を受け取るコールバック
+     * @return 通信をキャンセルするためのハンドル
+     */
+    public Call performAsync(final RequestOption option,
+                             final Sugarray.ProgressUpdateListener progressUpdateListener,
+                             final Callback callback);
+
+    /**
+     * 非同期のHTTP通信の結果を受け取るコールバック
+     */
+    public static interface Callback {
+        /**
+         * @param response HTTPレスポンス
+         */
+        public void onResponse(SugarrayResponse response);
+
+        /**
+         * @param error エラー情報
+         */
+        public void onError(SugarrayError error);
+    }
+
+    /**
+     * 実行中の非同期のHTTP通信
+     */
+    public static interface Call {
+        /**
+         * 通信をキャンセルする
+         */
+        public void cancel();
+    }
+}
@@ -0,0 +1,104 @@
+package net.ultramagnetic.sugarray;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * サイズ別に再利用するバイト配列のプール
+ * <p>
+ * 最小サイズから最大サイズまで2倍毎のサイズクラスで配列を保持し、返却された配列を次の取得で再利用する。
+ * 保持する合計サイズには上限があり、上限を超えて返却された配列や最大サイズより大きな配列はプールしない。
+ * 返却した配列は以後使用してはならない。
+ */
+final class BufferPool {
+
+    private static final BufferPool INSTANCE = new BufferPool(
+            SugarrayConstants.DefaultBufferPoolConfig.DEFAULT_MIN_BUFFER_SIZE,
+            SugarrayConstants.DefaultBufferPoolConfig.DEFAULT_MAX_BUFFER_SIZE,
+            SugarrayConstants.DefaultBufferPoolConfig.DEFAULT_MAX_POOL_SIZE);
+
+    private final int mMinBufferSize;
+    private final int mMaxBufferSize;
+    private final int mMaxPoolSize;
+    /**
+     * サイズクラス毎の返却された配列
+     */
+    private final List<ArrayDeque<byte[]>> mFreeBuffers = new ArrayList<ArrayDeque<byte[]>>();
+    /**
+     * プールしている配列の合計サイズ
+     */
+    private int mPoolSize;
+
+    BufferPool(int minBufferSize, int maxBufferSize, int maxPoolSize) {
+        if (minBufferSize <= 0 || Integer.bitCount(minBufferSize) != 1) {
+            throw new IllegalArgumentException("minBufferSize must be a power of two.");
+        }
+        mMinBufferSize = minBufferSize;
+        mMaxBufferSize = maxBufferSize;
+        mMaxPoolSize = maxPoolSize;
+        for (int size = minBufferSize; size <= maxBufferSize; size <<= 1) {
+            mFreeBuffers.add(new ArrayDeque<byte[]>());
+        }
+    }
+
+    static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * size以上の長さの配列を取得する。内容は初期化されていない。
+     *
+     * @param size 必要なバイト数
+     * @return 配列
+     */
+    byte[] acquire(int size) {
+        int index = indexOf(size);
+        if (index < 0) {
+            return new byte[size];
+        }
+        synchronized (this) {
+            byte[] buffer = mFreeBuffers.get(index).pollFirst();
+            if (buffer != null) {
+                mPoolSize -= buffer.length;
+                return buffer;
+            }
+        }
+        return new byte[mMinBufferSize << index];
+    }
+
+    /**
+     * 配列をプールに返却する。
+     *
+     * @param buffer acquire()で取得した配列、nullの場合は何もしない
+     */
+    void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int index = indexOf(buffer.length);
+        if (index < 0 || (mMinBufferSize << index) != buffer.length) {
+            return;
+        }
+        synchronized (this) {
+            if (mPoolSize + buffer.length <= mMaxPoolSize) {
+                mFreeBuffers.get(index).addFirst(buffer);
+                mPoolSize += buffer.length;
+            }
+        }
+    }
+
+    /**
+     * size以上で最小のサイズクラスを返す。プールしないサイズの場合は-1を返す。
+     */
+    private int indexOf(int size) {
+        if (size > mMaxBufferSize) {
+            return -1;
+        }
+        int index = 0;
+        while ((mMinBufferSize << index) < size) {
+            index++;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,163 @@
+package net.ultramagnetic.sugarray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Cache-Controlヘッダー(RFC 7234 5.2、RFC 5861)のディレクティブを解析したクラス
+ * <p>
+ * リクエストとレスポンスのどちらのヘッダーも解析する。
+ * Cache-Controlがなく、Pragma: no-cacheが指定されている場合はno-cacheとして扱う。
+ */
+class CacheControl {
+
+    /**
+     * 秒数の指定がないことを表す値
+     */
+    static final int UNSPECIFIED = -1;
+
+    final boolean mNoCache;
+    final boolean mNoStore;
+    final boolean mMustRevalidate;
+    final boolean mOnlyIfCached;
+    final int mMaxAge;
+    /**
+     * max-staleの秒数、値なしで指定された場合はInteger.MAX_VALUE
+     */
+    final int mMaxStale;
+    final int mMinFresh;
+    /**
+     * stale-while-revalidate(RFC 5861)の秒数
+     */
+    final int mStaleWhileRevalidate;
+
+    private CacheControl(boolean noCache, boolean noStore, boolean mustRevalidate,
+                         boolean onlyIfCached, int maxAge, int maxStale, int minFresh,
+                         int staleWhileRevalidate) {
+        mNoCache = noCache;
+        mNoStore = noStore;
+        mMustRevalidate = mustRevalidate;
+        mOnlyIfCached = onlyIfCached;
+        mMaxAge = maxAge;
+        mMaxStale = maxStale;
+        mMinFresh = minFresh;
+        mStaleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * ヘッダーからCache-Controlを解析する。
+     *
+     * @param headers リクエストまたはレスポンスのヘッダー
+     * @return CacheControl
+     */
+    static CacheControl parse(Map<String, String> headers) {
+        boolean noCache = false;
+        boolean noStore = false;
+        boolean mustRevalidate = false;
+        boolean onlyIfCached = false;
+        int maxAge = UNSPECIFIED;
+        int maxStale = UNSPECIFIED;
+        int minFresh = UNSPECIFIED;
+        int staleWhileRevalidate = UNSPECIFIED;
+
+        String value = HttpCache.header(headers, SugarrayConstants.HeaderFields.CACHE_CONTROL);
+        if (value == null) {
+            String pragma = HttpCache.header(headers, SugarrayConstants.HeaderFields.PRAGMA);
+            noCache = pragma != null && pragma.toLowerCase(Locale.US).contains("no-cache");
+            return new CacheControl(noCache, false, false, false, maxAge, maxStale, minFresh,
+                    staleWhileRevalidate);
+        }
+        for (String directive : split(value)) {
+            String name = directive;
+            String argument = null;
+            int equals = directive.indexOf('=');
+            if (equals >= 0) {
+                name = directive.substring(0, equals).trim();
+                argument = unquote(directive.substring(equals + 1).trim());
+            }
+            name = name.toLowerCase(Locale.US);
+            if ("no-cache".equals(name)) {
+                // フィールド名を指定したno-cacheも、対象を区別せずにno-cacheとして扱う
+                noCache = true;
+            } else if ("no-store".equals(name)) {
+                noStore = true;
+            } else if ("must-revalidate".equals(name) || "proxy-revalidate".equals(name)) {
+                mustRevalidate = true;
+            } else if ("only-if-cached".equals(name)) {
+                onlyIfCached = true;
+            } else if ("max-age".equals(name)) {
+                maxAge = parseSeconds(argument, maxAge);
+            } else if ("max-stale".equals(name)) {
+                maxStale = argument == null ? Integer.MAX_VALUE
+                        : parseSeconds(argument, maxStale);
+            } else if ("min-fresh".equals(name)) {
+                minFresh = parseSeconds(argument, minFresh);
+            } else if ("stale-while-revalidate".equals(name)) {
+                staleWhileRevalidate = parseSeconds(argument, staleWhileRevalidate);
+            }
+            // s-maxageは共有キャッシュ向けのため、端末内のキャッシュでは無視する
+        }
+        return new CacheControl(noCache, noStore, mustRevalidate, onlyIfCached, maxAge,
+                maxStale, minFresh, staleWhileRevalidate);
+    }
+
+    /**
+     * 引用符の外側のカンマでディレクティブを分割する。
+     */
+    private static String[] split(String value) {
+        List<String> directives = new ArrayList<String>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                addDirective(directives, value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        addDirective(directives, value.substring(start));
+        return directives.toArray(new String[directives.size()]);
+    }
+
+    private static void addDirective(List<String> directives, String directive) {
+        directive = directive.trim();
+        if (directive.length() > 0) {
+            directives.add(directive);
+        }
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    /**
+     * delta-secondsを解析する。int型を超える値はInteger.MAX_VALUEとして扱う(RFC 7234 1.2.1)。
+     *
+     * @param value        値
+     * @param defaultValue 解析できない場合の値
+     * @return 秒数
+     */
+    static int parseSeconds(String value, int defaultValue) {
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return defaultValue;
+            }
+        }
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) seconds;
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package net.ultramagnetic.sugarray;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HttpCacheとMemoryCacheに保存したレスポンスと、鮮度の計算(RFC 7234 4.2)に必要な情報を持つクラス
+ */
+class CacheEntry {
+
+    /**
+     * 保存形式を識別する値("SGC1")
+     */
+    private static final int MAGIC = 0x53474331;
+
+    final String mUrl;
+    /**
+     * Varyヘッダーに列挙されたリクエストヘッダーの値(フィールド名は小文字、送信していなければ値はnull)
+     */
+    final Map<String, String> mVaryHeaders;
+    final int mStatusCode;
+    final String mContentType;
+    final String mCharset;
+    final Map<String, String> mHeaders;
+    /**
+     * メッセージボディ、メタデータのみを読み込んだ場合はnull
+     */
+    final byte[] mBody;
+    /**
+     * リクエストを送信した時刻
+     */
+    final long mRequestTime;
+    /**
+     * レスポンスを受信した時刻
+     */
+    final long mResponseTime;
+
+    CacheEntry(String url, Map<String, String> varyHeaders, int statusCode, String contentType,
+               String charset, Map<String, String> headers, byte[] body, long requestTime,
+               long responseTime) {
+        mUrl = url;
+        mVaryHeaders = varyHeaders;
+        mStatusCode = statusCode;
+        mContentType = contentType;
+        mCharset = charset;
+        mHeaders = headers;
+        mBody = body;
+        mRequestTime = requestTime;
+        mResponseTime = responseTime;
+    }
+
+    /**
+     * 受信したレスポンスから保存するエントリーを生成する。
+     *
+     * @param option       リクエスト
+     * @param response     受信したレスポンス
+     * @param requestTime  リクエストを送信した時刻
+     * @param responseTime レスポンスを受信した時刻
+     * @return CacheEntry、保存できないレスポンスの場合はnull
+     */
+    static CacheEntry create(RequestOption option, SugarrayResponse response, long requestTime,
+                             long responseTime) {
+        if (!HttpCache.isCacheable(option) || !isStorable(option, response)) {
+            return null;
+        }
+        Map<String, String> varyHeaders = new LinkedHashMap<String, String>();
+        for (String field : varyFields(response.mHeaders)) {
+            if ("*".equals(field)) {
+                return null;
+            }
+            varyHeaders.put(field, HttpCache.requestHeader(option, field));
+        }
+        return new CacheEntry(option.makeUrl(), varyHeaders, response.mStatusCode,
+                response.mContentType, response.mCharset.name(), response.mHeaders,
+                response.mBody, requestTime, responseTime);
+    }
+
+    /**
+     * レスポンスを保存してよいかどうかを判定する(RFC 7234 3)。
+     */
+    private static boolean isStorable(RequestOption option, SugarrayResponse response) {
+        switch (response.mStatusCode) {
+            case 200:
+            case 203:
+            case 204:
+            case 300:
+            case 301:
+                break;
+            default:
+                return false;
+        }
+        return !CacheControl.parse(option.mHeaders).mNoStore
+                && !CacheControl.parse(response.mHeaders).mNoStore;
+    }
+
+    /**
+     * 保存したレスポンスを生成する。Ageヘッダーには現在の経過時間を設定する。
+     *
+     * @param now         現在時刻
+     * @param notModified SugarrayResponse#mNotModifiedの値
+     * @return SugarrayResponse
+     */
+    SugarrayResponse toResponse(long now, boolean notModified) {
+        return toResponse(now, notModified, false);
+    }
+
+    /**
+     * 保存したレスポンスを生成する。Ageヘッダーには現在の経過時間を設定する。
+     *
+     * @param now             現在時刻
+     * @param notModified     SugarrayResponse#mNotModifiedの値
+     * @param offlineFallback SugarrayResponse#mOfflineFallbackの値
+     * @return SugarrayResponse
+     */
+    SugarrayResponse toResponse(long now, boolean notModified, boolean offlineFallback) {
+        Map<String, String> headers = new HashMap<String, String>(mHeaders);
+        HttpCache.removeHeader(headers, SugarrayConstants.HeaderFields.AGE);
+        headers.put(SugarrayConstants.HeaderFields.AGE, String.valueOf(currentAge(now) / 1000));
+        return new SugarrayResponse(mStatusCode, mBody, mContentType, mCharset, headers,
+                notModified, offlineFallback);
+    }
+
+    /**
+     * Varyヘッダーに列挙されたリクエストヘッダーが、保存時のリクエストと一致するかどうかを判定する。
+     *
+     * @param option リクエスト
+     * @return 全て一致すればtrue
+     */
+    boolean matchesVary(RequestOption option) {
+        for (Map.Entry<String, String> vary : mVaryHeaders.entrySet()) {
+            String value = HttpCache.requestHeader(option, vary.getKey());
+            if (value == null ? vary.getValue() != null : !value.equals(vary.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * キャッシュしたレスポンスをそのまま使えるかどうかを判定する。
+     *
+     * @param requestCacheControl リクエストのCache-Control
+     * @param now                 現在時刻
+     * @return 鮮度が残っていればtrue
+     */
+    boolean isFresh(CacheControl requestCacheControl, long now) {
+        CacheControl responseCacheControl = CacheControl.parse(mHeaders);
+        if (responseCacheControl.mNoCache || requestCacheControl.mNoCache) {
+            return false;
+        }
+        long freshnessLifetime = freshnessLifetime(responseCacheControl);
+        if (requestCacheControl.mMaxAge != CacheControl.UNSPECIFIED) {
+            freshnessLifetime = Math.min(freshnessLifetime,
+                    requestCacheControl.mMaxAge * 1000L);
+        }
+        long minFresh = requestCacheControl.mMinFresh != CacheControl.UNSPECIFIED
+                ? requestCacheControl.mMinFresh * 1000L : 0;
+        long maxStale = !responseCacheControl.mMustRevalidate
+                && requestCacheControl.mMaxStale != CacheControl.UNSPECIFIED
+                ? requestCacheControl.mMaxStale * 1000L : 0;
+        return currentAge(now) + minFresh < freshnessLifetime + maxStale;
+    }
+
+    /**
+     * 鮮度がなくなったレスポンスを、バックグラウンドで検証する間に返してよいかどうかを判定する。
+     * レスポンスのstale-while-revalidateと、呼び出し元が許容する経過時間の長い方まで返せる。
+     * 呼び出し元の許容時間は、レスポンスにmust-revalidateが指定されている場合は使わない。
+     *
+     * @param requestCacheControl リクエストのCache-Control
+     * @param maxStale            呼び出し元が許容する鮮度がなくなってからの経過時間(秒)
+     * @param now                 現在時刻
+     * @return 返してよければtrue
+     */
+    boolean isServableWhileRevalidating(CacheControl requestCacheControl, int maxStale,
+                                        long now) {
+        CacheControl responseCacheControl = CacheControl.parse(mHeaders);
+        if (responseCacheControl.mNoCache || requestCacheControl.mNoCache) {
+            return false;
+        }
+        long allowance = responseCacheControl.mStaleWhileRevalidate != CacheControl.UNSPECIFIED
+                ? responseCacheControl.mStaleWhileRevalidate * 1000L : 0;
+        if (!responseCacheControl.mMustRevalidate && maxStale > 0) {
+            allowance = Math.max(allowance, maxStale * 1000L);
+        }
+        return currentAge(now) < freshnessLifetime(responseCacheControl) + allowance;
+    }
+
+    /**
+     * 通信できない場合に、鮮度に関わらず返してよいかどうかを判定する(RFC 7234 4.2.4)。
+     *
+     * @param requestCacheControl リクエストのCache-Control
+     * @return must-revalidateまたはno-cacheが指定されていなければtrue
+     */
+    boolean isUsableOffline(CacheControl requestCacheControl) {
+        CacheControl responseCacheControl = CacheControl.parse(mHeaders);
+        return !responseCacheControl.mMustRevalidate && !responseCacheControl.mNoCache
+                && !requestCacheControl.mNoCache;
+    }
+
+    /**
+     * 鮮度の有効期間(RFC 7234 4.2.1)を計算する。
+     * max-age、ExpiresとDateの差の順に使い、どちらもなければLast-Modifiedから推測する。
+     *
+     * @param cacheControl レスポンスのCache-Control
+     * @return 有効期間(MS)
+     */
+    long freshnessLifetime(CacheControl cacheControl) {
+        if (cacheControl.mMaxAge != CacheControl.UNSPECIFIED) {
+            return cacheControl.mMaxAge * 1000L;
+        }
+        long date = dateValue();
+        String expiresValue = HttpCache.header(mHeaders, SugarrayConstants.HeaderFields.EXPIRES);
+        if (expiresValue != null) {
+            // 解析できないExpires(0など)は期限切れとして扱う
+            long expires = HttpDate.parse(expiresValue);
+            return expires == -1 ? 0 : Math.max(0, expires - date);
+        }
+        long lastModified = HttpDate.parse(HttpCache.header(mHeaders,
+                SugarrayConstants.HeaderFields.LAST_MODIFIED));
+        if (lastModified != -1 && lastModified < date && isHeuristicallyCacheable()) {
+            return (date - lastModified)
+                    * SugarrayConstants.DefaultCacheConfig.DEFAULT_HEURISTIC_PERCENT / 100;
+        }
+        return 0;
+    }
+
+    /**
+     * @return 鮮度がなくなる時刻(1970/01/01からのミリ秒)
+     */
+    long expirationTime() {
+        return mResponseTime + freshnessLifetime(CacheControl.parse(mHeaders))
+                - currentAge(mResponseTime);
+    }
+
+    /**
+     * 現在の経過時間(RFC 7234 4.2.3)を計算する。
+     *
+     * @param now 現在時刻
+     * @return 経過時間(MS)
+     */
+    long currentAge(long now) {
+        long apparentAge = Math.max(0, mResponseTime - dateValue());
+        int ageValue = CacheControl.parseSeconds(HttpCache.header(mHeaders,
+                SugarrayConstants.HeaderFields.AGE), 0);
+        long correctedAgeValue = ageValue * 1000L + (mResponseTime - mRequestTime);
+        long correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
+        long residentTime = Math.max(0, now - mResponseTime);
+        return correctedInitialAge + residentTime;
+    }
+
+    /**
+     * @return Dateヘッダーの時刻、なければ受信した時刻
+     */
+    private long dateValue() {
+        long date = HttpDate.parse(HttpCache.header(mHeaders, SugarrayConstants.HeaderFields.DATE));
+        return date != -1 ? date : mResponseTime;
+    }
+
+    /**
+     * @return 明示的な有効期限がなくても鮮度を推測してよいステータスコード(RFC 7231 6.1)であればtrue
+     */
+    private boolean isHeuristicallyCacheable() {
+        switch (mStatusCode) {
+            case 200:
+            case 203:
+            case 204:
+            case 300:
+            case 301:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * ETagとLast-Modifiedを検証子に指定した条件付きリクエストを生成する。
+     *
+     * @param option リクエスト
+     * @return 条件付きリクエスト、検証子を持っていなければnull
+     */
+    RequestOption conditionalRequest(RequestOption option) {
+        String etag = HttpCache.header(mHeaders, SugarrayConstants.HeaderFields.ETAG);
+        String lastModified = HttpCache.header(mHeaders,
+                SugarrayConstants.HeaderFields.LAST_MODIFIED);
+        if (etag == null && lastModified == null) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<String, String>(option.mHeaders);
+        if (etag != null) {
+            headers.put(SugarrayConstants.HeaderFields.IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            headers.put(SugarrayConstants.HeaderFields.IF_MODIFIED_SINCE, lastModified);
+        }
+        return option.withHeaders(headers);
+    }
+
+    /**
+     * 304のヘッダーでヘッダーを更新した(RFC 7234 4.3.4)、同じメッセージボディを持つエントリーを生成する。
+     *
+     * @param response     304のレスポンス
+     * @param requestTime  リクエストを送信した時刻
+     * @param responseTime レスポンスを受信した時刻
+     * @return CacheEntry
+     */
+    CacheEntry revalidate(SugarrayResponse response, long requestTime, long responseTime) {
+        Map<String, String> headers = new HashMap<String, String>(mHeaders);
+        for (Map.Entry<String, String> header : response.mHeaders.entrySet()) {
+            if (!isContentHeader(header.getKey())) {
+                HttpCache.removeHeader(headers, header.getKey());
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
+        return new CacheEntry(mUrl, mVaryHeaders, mStatusCode, mContentType, mCharset, headers,
+                mBody, requestTime, responseTime);
+    }
+
+    /**
+     * 304で更新せず、保存したメッセージボディに対応する値を使い続けるヘッダーかどうかを判定する。
+     */
+    private static boolean isContentHeader(String name) {
+        return SugarrayConstants.HeaderFields.CONTENT_LENGTH.equalsIgnoreCase(name)
+                || SugarrayConstants.HeaderFields.CONTENT_ENCODING.equalsIgnoreCase(name)
+                || SugarrayConstants.HeaderFields.CONTENT_TYPE.equalsIgnoreCase(name)
+                || SugarrayConstants.HeaderFields.TRANSFER_ENCODING.equalsIgnoreCase(name);
+    }
+
+    /**
+     * ETagまたはLast-Modifiedを持っていればtrueを返す。
+     *
+     * @return 条件付きリクエストで検証できる場合にtrue
+     */
+    boolean hasValidator() {
+        return HttpCache.header(mHeaders, SugarrayConstants.HeaderFields.ETAG) != null
+                || HttpCache.header(mHeaders, SugarrayConstants.HeaderFields.LAST_MODIFIED) != null;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeUTF(mUrl);
+        out.writeInt(mVaryHeaders.size());
+        for (Map.Entry<String, String> vary : mVaryHeaders.entrySet()) {
+            out.writeUTF(vary.getKey());
+            writeNullableUTF(out, vary.getValue());
+        }
+        out.writeInt(mStatusCode);
+        writeNullableUTF(out, mContentType);
+        writeNullableUTF(out, mCharset);
+        out.writeInt(mHeaders.size());
+        for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+            out.writeUTF(header.getKey());
+            writeNullableUTF(out, header.getValue());
+        }
+        out.writeLong(mRequestTime);
+        out.writeLong(mResponseTime);
+        out.writeInt(mBody.length);
+        out.write(mBody);
+    }
+
+    /**
+     * 保存したエントリーを読み込む。
+     *
+     * @param in       入力
+     * @param withBody メッセージボディも読み込む場合はtrue
+     * @return CacheEntry
+     * @throws IOException 読み込めない場合や形式が不正な場合
+     */
+    static CacheEntry readFrom(DataInputStream in, boolean withBody) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Invalid cache entry.");
+        }
+        String url = in.readUTF();
+        int varyCount = in.readInt();
+        Map<String, String> varyHeaders = new LinkedHashMap<String, String>();
+        for (int i = 0; i < varyCount; i++) {
+            varyHeaders.put(in.readUTF(), readNullableUTF(in));
+        }
+        int statusCode = in.readInt();
+        String contentType = readNullableUTF(in);
+        String charset = readNullableUTF(in);
+        int headerCount = in.readInt();
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 0; i < headerCount; i++) {
+            headers.put(in.readUTF(), readNullableUTF(in));
+        }
+        long requestTime = in.readLong();
+        long responseTime = in.readLong();
+        byte[] body = null;
+        if (withBody) {
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid cache entry.");
+            }
+            body = new byte[length];
+            in.readFully(body);
+        }
+        return new CacheEntry(url, varyHeaders, statusCode, contentType, charset, headers, body,
+                requestTime, responseTime);
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Varyヘッダーに列挙されたフィールド名を小文字で返す。
+     *
+     * @param headers レスポンスのヘッダー
+     * @return フィールド名、Varyヘッダーがなければ空の配列
+     */
+    static String[] varyFields(Map<String, String> headers) {
+        String vary = HttpCache.header(headers, SugarrayConstants.HeaderFields.VARY);
+        if (vary == null || vary.trim().length() == 0) {
+            return new String[0];
+        }
+        String[] fields = vary.split(",");
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = fields[i].trim().toLowerCase(Locale.US);
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,645 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.FileUtils;
+import net.ultramagnetic.sugarray.util.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * HttpCacheのエントリーの一覧(キー、サイズ、鮮度、検証手段の有無)を保存するジャーナル
+ * <p>
+ * 変更は追記のみのジャーナルファイルに1件ずつ書き込み、件数が閾値を超えたら一覧全体をスナップショットファイルに書き出してジャーナルを空にする。
+ * 開く際はスナップショットを読み込んでからジャーナルを再生するため、エントリーのファイルを1つずつ調べる必要がない。
+ * ジャーナルの各レコードとスナップショットはCRC32を持ち、書き込み中に終了して壊れた末尾のレコードは読み捨てる。
+ * スナップショットとジャーナルは一時ファイルに書き込んでから置き換え、世代番号が一致しない古いジャーナルは再生しない。
+ * <p>
+ * 同じディレクトリを複数のプロセスで共有できるよう、lockでプロセス内のロックとロックファイルのFileLockを取得してから読み書きする。
+ * ロックを取得する度にsyncで他のプロセスが追記したレコードを再生し、他のプロセスがスナップショットを書き出していれば読み込み直す。
+ * 追記できなかったレコードは保留し、再生した一覧に重ねて適用する。スナップショットは、ロックを取得してから
+ * ディスク上の状態を再生できた場合のみ書き出すため、他のプロセスの変更を失わない。
+ * スレッドセーフではないため、ロックを取得したスレッドのみが使う。
+ */
+class CacheJournal {
+
+    private static final String TAG = CacheJournal.class.getSimpleName();
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String LOCK_FILE = "journal.lock";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int JOURNAL_MAGIC = 0x5347434a;
+    private static final int SNAPSHOT_MAGIC = 0x53474353;
+    private static final int VERSION = 1;
+    /**
+     * ジャーナルのヘッダーの長さ(マジックナンバー、バージョン、世代番号)
+     */
+    private static final int JOURNAL_HEADER_LENGTH = 16;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_READ = 3;
+
+    /**
+     * 1レコードの長さの上限、これを超える長さは壊れたレコードとして扱う
+     */
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    /**
+     * ディレクトリ毎のプロセス内のロック。FileLockはプロセス単位のため、同じプロセスのスレッド間はこのロックで排他する。
+     */
+    private static final Map<String, ReentrantLock> LOCKS = new HashMap<String, ReentrantLock>();
+
+    private final File mDirectory;
+    private final int mCompactThreshold;
+    private final ReentrantLock mLock;
+    private RandomAccessFile mLockFile;
+    private FileLock mFileLock;
+    private DataOutputStream mOut;
+    private long mGeneration;
+    /**
+     * 再生または追記したジャーナルの長さ(byte)
+     */
+    private long mJournalLength;
+    /**
+     * 最後に読み込みまたは追記した時点のジャーナルのファイルサイズ(壊れた末尾を含む)
+     */
+    private long mFileLength;
+    /**
+     * 最後に読み込んだ時点のジャーナルのヘッダーの世代番号、読み込めなければ-1
+     */
+    private long mFileGeneration = -1;
+    /**
+     * 前回のスナップショットから追記したレコード数
+     */
+    private int mRecordCount;
+    /**
+     * 末尾が壊れているか世代番号が古いため、追記せずにスナップショットから書き直す必要がある
+     */
+    private boolean mNeedsRewrite;
+    /**
+     * 一覧に適用したが、ジャーナルに追記できていないレコード
+     */
+    private final List<byte[]> mPending = new ArrayList<byte[]>();
+    /**
+     * 今回のロックを取得してから、ディスク上の状態を一覧に反映できた
+     */
+    private boolean mSynced;
+    /**
+     * 最後にディスク上の状態を一覧に反映した時刻
+     */
+    private long mSyncTime;
+    /**
+     * 最後のloadでスナップショットを読み込めた
+     */
+    private boolean mLoaded;
+
+    /**
+     * @param directory        保存先のディレクトリ
+     * @param compactThreshold スナップショットを書き出すレコード数
+     */
+    CacheJournal(File directory, int compactThreshold) {
+        mDirectory = directory;
+        mCompactThreshold = compactThreshold;
+        String path = directory.getAbsolutePath();
+        synchronized (LOCKS) {
+            ReentrantLock lock = LOCKS.get(path);
+            if (lock == null) {
+                lock = new ReentrantLock();
+                LOCKS.put(path, lock);
+            }
+            mLock = lock;
+        }
+    }
+
+    /**
+     * 同じディレクトリを使う他のスレッドとプロセスを排他するロックを取得する。
+     * ロックファイルを作成できない場合は、プロセス内のロックのみで排他する。
+     *
+     * @return 最も外側のロックであればtrue
+     */
+    boolean lock() {
+        mLock.lock();
+        if (mLock.getHoldCount() > 1) {
+            return false;
+        }
+        mSynced = false;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException(TAG + ": Could not create directory. " + mDirectory);
+            }
+            if (mLockFile == null) {
+                mLockFile = new RandomAccessFile(new File(mDirectory, LOCK_FILE), "rw");
+            }
+            mFileLock = mLockFile.getChannel().lock();
+        } catch (IOException e) {
+            Logger.e(TAG, "Could not lock journal. " + mDirectory, e);
+            FileUtils.closeQuietly(mLockFile);
+            mLockFile = null;
+        }
+        return true;
+    }
+
+    /**
+     * lockで取得したロックを解放する。
+     */
+    void unlock() {
+        try {
+            if (mLock.getHoldCount() == 1 && mFileLock != null) {
+                mFileLock.release();
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Could not unlock journal. " + mDirectory, e);
+        } finally {
+            if (mLock.getHoldCount() == 1) {
+                mFileLock = null;
+            }
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 前回のロックから他のプロセスが書き込んだ変更を一覧に反映する。lockを取得してから呼び出す。
+     * 他のプロセスが書き出したスナップショットを読み込めなかった場合は、一覧を空にしてisLoadedがfalseとなる。
+     * 一覧を変更した場合は、呼び出し元で保留しているレコードをapplyPendingで適用し直す。
+     *
+     * @param entries 反映するエントリーの一覧(最も長く使われていない順)
+     * @return 一覧を変更した場合はtrue
+     */
+    boolean sync(LinkedHashMap<String, Metadata> entries) {
+        long now = System.currentTimeMillis();
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        if (!journal.isFile()) {
+            // まだどのプロセスもスナップショットを書き出していない
+            mSynced = true;
+            mSyncTime = now;
+            return false;
+        }
+        RandomAccessFile in = null;
+        boolean changed = true;
+        try {
+            in = new RandomAccessFile(journal, "r");
+            long length = in.length();
+            long generation = readGeneration(in);
+            if (length == mFileLength && generation == mFileGeneration) {
+                changed = false;
+            } else if (length < mJournalLength || generation != mFileGeneration) {
+                // 他のプロセスがスナップショットを書き出した
+                Logger.d(TAG, "Reload journal. " + mDirectory);
+                FileUtils.closeQuietly(mOut);
+                mOut = null;
+                load(entries);
+            } else {
+                byte[] data = new byte[(int) (length - mJournalLength)];
+                in.seek(mJournalLength);
+                in.readFully(data);
+                mJournalLength += replayRecords(data, entries);
+                mFileLength = length;
+            }
+        } catch (IOException e) {
+            // 他のプロセスの変更を反映できていないため、このロックの間はスナップショットを書き出さない
+            Logger.e(TAG, "Could not read journal. " + journal, e);
+            return false;
+        } finally {
+            FileUtils.closeQuietly(in);
+        }
+        mSynced = true;
+        mSyncTime = now;
+        return changed;
+    }
+
+    /**
+     * ジャーナルに追記できていないレコードを、ディスクから読み込み直した一覧に適用する。
+     *
+     * @param entries 適用するエントリーの一覧(最も長く使われていない順)
+     */
+    void applyPending(LinkedHashMap<String, Metadata> entries) {
+        for (byte[] record : mPending) {
+            try {
+                replay(record, entries);
+            } catch (IOException e) {
+                Logger.e(TAG, "Invalid pending record.", e);
+            }
+        }
+    }
+
+    /**
+     * @return 最後にディスク上の状態を一覧に反映した時刻、これより後に作成されたファイルは他のプロセスが追加した可能性がある
+     */
+    long syncTime() {
+        return mSyncTime;
+    }
+
+    /**
+     * スナップショットを読み込み、ジャーナルを再生してエントリーの一覧を復元する。
+     *
+     * @param entries 復元した一覧を格納するMap(最も長く使われていない順)
+     * @return 復元できればtrue、スナップショットがないか壊れている場合はfalse
+     */
+    boolean load(LinkedHashMap<String, Metadata> entries) {
+        entries.clear();
+        mRecordCount = 0;
+        mJournalLength = 0;
+        mSynced = true;
+        mSyncTime = System.currentTimeMillis();
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        byte[] data = journal.isFile() ? FileUtils.readFileToBytes(journal) : new byte[0];
+        // スナップショットを読み込めなくても、読み込んだ時点のジャーナルを基準に他のプロセスの変更を検知する
+        mFileLength = data.length;
+        mFileGeneration = -1;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readInt() == JOURNAL_MAGIC && in.readInt() == VERSION) {
+                mFileGeneration = in.readLong();
+            }
+        } catch (IOException e) {
+            mFileGeneration = -1;
+        }
+        mLoaded = readSnapshot(entries);
+        if (!mLoaded) {
+            entries.clear();
+            mNeedsRewrite = true;
+            return false;
+        }
+        if (mFileGeneration == -1 || mFileGeneration != mGeneration) {
+            // スナップショットを書き出した直後に終了した古いジャーナル
+            mNeedsRewrite = true;
+            return true;
+        }
+        byte[] records = new byte[data.length - JOURNAL_HEADER_LENGTH];
+        System.arraycopy(data, JOURNAL_HEADER_LENGTH, records, 0, records.length);
+        mJournalLength = JOURNAL_HEADER_LENGTH + replayRecords(records, entries);
+        return true;
+    }
+
+    /**
+     * @return 最後のloadでスナップショットを読み込めた場合はtrue
+     */
+    boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * エントリーの追加をジャーナルに追記する。
+     */
+    void put(String key, Metadata metadata) {
+        append(encode(OP_PUT, key, metadata));
+    }
+
+    /**
+     * エントリーの削除をジャーナルに追記する。
+     */
+    void remove(String key) {
+        append(encode(OP_REMOVE, key, null));
+    }
+
+    /**
+     * エントリーが使われたことをジャーナルに追記する。最も長く使われていない順序の復元に使う。
+     */
+    void read(String key) {
+        append(encode(OP_READ, key, null));
+    }
+
+    /**
+     * @param entryCount 現在のエントリー数
+     * @return スナップショットを書き出すべきであればtrue
+     */
+    boolean needsCompaction(int entryCount) {
+        return mNeedsRewrite || !mPending.isEmpty()
+                || mRecordCount >= Math.max(mCompactThreshold, entryCount);
+    }
+
+    /**
+     * エントリーの一覧をスナップショットに書き出し、ジャーナルを空にする。
+     * 一覧は、このロックの間にsyncでディスク上の状態を反映し、保留しているレコードを適用したものでなければならない。
+     * 反映できていない場合や、反映した後にジャーナルが変更されている場合は書き出さない。
+     *
+     * @param entries エントリーの一覧(最も長く使われていない順)
+     * @return 書き出せればtrue
+     */
+    boolean compact(Map<String, Metadata> entries) {
+        if (!mSynced || isJournalChanged()) {
+            Logger.d(TAG, "Skip compaction of unsynced journal. " + mDirectory);
+            return false;
+        }
+        FileUtils.closeQuietly(mOut);
+        mOut = null;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Logger.e(TAG, "Could not create directory. " + mDirectory);
+            return false;
+        }
+        long generation = mGeneration + 1;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Metadata> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            replaceFile(SNAPSHOT_FILE, bytes.toByteArray());
+
+            bytes = new ByteArrayOutputStream();
+            out = new DataOutputStream(bytes);
+            writeJournalHeader(out, generation);
+            replaceFile(JOURNAL_FILE, bytes.toByteArray());
+        } catch (IOException e) {
+            Logger.e(TAG, "Could not write snapshot. " + mDirectory, e);
+            return false;
+        }
+        mGeneration = generation;
+        mJournalLength = JOURNAL_HEADER_LENGTH;
+        mFileLength = JOURNAL_HEADER_LENGTH;
+        mFileGeneration = generation;
+        mRecordCount = 0;
+        mNeedsRewrite = false;
+        mPending.clear();
+        Logger.d(TAG, "Journal compacted. entries=" + entries.size());
+        return true;
+    }
+
+    private void append(byte[] record) {
+        mPending.add(record);
+        if (mNeedsRewrite || !mSynced) {
+            // 次のスナップショットで一覧全体を書き出す
+            return;
+        }
+        try {
+            if (mOut == null) {
+                mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                        new File(mDirectory, JOURNAL_FILE), true)));
+            }
+            for (byte[] pending : mPending) {
+                writeRecord(mOut, pending);
+            }
+            mOut.flush();
+            for (byte[] pending : mPending) {
+                mRecordCount++;
+                mJournalLength += pending.length + 8;
+                mFileLength += pending.length + 8;
+            }
+            mPending.clear();
+        } catch (IOException e) {
+            // 途中まで書き込んだ可能性があるため、以降は追記せずにスナップショットから書き直す
+            Logger.e(TAG, "Could not append journal.", e);
+            FileUtils.closeQuietly(mOut);
+            mOut = null;
+            mNeedsRewrite = true;
+        }
+    }
+
+    /**
+     * @return syncで反映した後に、ジャーナルのファイルサイズか世代番号が変わっていればtrue
+     */
+    private boolean isJournalChanged() {
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        if (!journal.isFile()) {
+            return mFileLength != 0;
+        }
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(journal, "r");
+            return in.length() != mFileLength || readGeneration(in) != mFileGeneration;
+        } catch (IOException e) {
+            return true;
+        } finally {
+            FileUtils.closeQuietly(in);
+        }
+    }
+
+    private boolean readSnapshot(LinkedHashMap<String, Metadata> entries) {
+        File snapshot = new File(mDirectory, SNAPSHOT_FILE);
+        if (!snapshot.isFile()) {
+            return false;
+        }
+        byte[] data = FileUtils.readFileToBytes(snapshot);
+        if (data.length < 8) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            in.skipBytes(data.length - 8);
+            if (in.readLong() != crc.getValue()) {
+                Logger.e(TAG, "Broken snapshot. " + snapshot);
+                return false;
+            }
+            in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            mGeneration = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                entries.put(key, Metadata.readFrom(in));
+            }
+            return true;
+        } catch (IOException e) {
+            Logger.e(TAG, "Invalid snapshot. " + snapshot, e);
+            return false;
+        }
+    }
+
+    /**
+     * ジャーナルのレコードを順に再生する。途中で終わっているか壊れているレコード以降は読み捨てる。
+     *
+     * @param data    レコードを並べたバイト列
+     * @param entries 反映するエントリーの一覧
+     * @return 再生できたレコードの合計の長さ(byte)
+     */
+    private int replayRecords(byte[] data, LinkedHashMap<String, Metadata> entries) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int length = 0;
+        try {
+            while (length < data.length) {
+                byte[] record = readRecord(in);
+                if (record == null) {
+                    break;
+                }
+                replay(record, entries);
+                mRecordCount++;
+                length += record.length + 8;
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Invalid journal record.", e);
+        }
+        if (length < data.length) {
+            Logger.e(TAG, "Truncated journal record. " + mDirectory);
+            mNeedsRewrite = true;
+        }
+        return length;
+    }
+
+    private static void replay(byte[] record, LinkedHashMap<String, Metadata> entries)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte op = in.readByte();
+        String key = in.readUTF();
+        switch (op) {
+            case OP_PUT:
+                // 最も新しく使われたものとするため、一度削除してから追加する
+                entries.remove(key);
+                entries.put(key, Metadata.readFrom(in));
+                break;
+            case OP_REMOVE:
+                entries.remove(key);
+                break;
+            case OP_READ:
+                Metadata metadata = entries.remove(key);
+                if (metadata != null) {
+                    entries.put(key, metadata);
+                }
+                break;
+            default:
+                throw new IOException(TAG + ": Unknown operation. " + op);
+        }
+    }
+
+    /**
+     * 長さ、内容、CRC32の順にレコードを書き込む。
+     */
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * レコードを読み込む。
+     *
+     * @return レコードの内容、途中で終わっているか壊れている場合はnull
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                return null;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            int expected = in.readInt();
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            return (int) crc.getValue() == expected ? record : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encode(byte op, String key, Metadata metadata) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(op);
+            out.writeUTF(key);
+            if (metadata != null) {
+                metadata.writeTo(out);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(TAG + ": Could not encode record.", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return ジャーナルのヘッダーの世代番号、読み込めなければ-1
+     */
+    private static long readGeneration(RandomAccessFile in) throws IOException {
+        if (in.length() < JOURNAL_HEADER_LENGTH) {
+            return -1;
+        }
+        in.seek(0);
+        if (in.readInt() != JOURNAL_MAGIC || in.readInt() != VERSION) {
+            return -1;
+        }
+        return in.readLong();
+    }
+
+    private static void writeJournalHeader(DataOutputStream out, long generation)
+            throws IOException {
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(generation);
+    }
+
+    /**
+     * 一時ファイルに書き込み、ディスクに同期してから置き換える。
+     */
+    private void replaceFile(String name, byte[] data) throws IOException {
+        File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            FileUtils.closeQuietly(out);
+        }
+        if (!temp.renameTo(new File(mDirectory, name))) {
+            if (!temp.delete()) {
+                Logger.e(TAG, "Could not delete temporary file. " + temp);
+            }
+            throw new IOException(TAG + ": Could not rename. " + name);
+        }
+    }
+
+    /**
+     * ジャーナルに保存するエントリーの情報
+     */
+    static class Metadata {
+        /**
+         * エントリーのファイルサイズ(byte)
+         */
+        final long mSize;
+        /**
+         * 鮮度がなくなる時刻、不明な場合は0
+         */
+        final long mExpirationTime;
+        /**
+         * ETagまたはLast-Modifiedを持っていればtrue
+         */
+        final boolean mHasValidator;
+
+        Metadata(long size, long expirationTime, boolean hasValidator) {
+            mSize = size;
+            mExpirationTime = expirationTime;
+            mHasValidator = hasValidator;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(mSize);
+            out.writeLong(mExpirationTime);
+            out.writeBoolean(mHasValidator);
+        }
+
+        static Metadata readFrom(DataInputStream in) throws IOException {
+            return new Metadata(in.readLong(), in.readLong(), in.readBoolean());
+        }
+    }
+}
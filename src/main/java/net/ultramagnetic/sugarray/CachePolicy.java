@@ -0,0 +1,32 @@
+package net.ultramagnetic.sugarray;
+
+/**
+ * HTTPキャッシュとメモリキャッシュに保存したレスポンスの使い方
+ * <p>
+ * NETWORK_ONLYとCACHE_ONLY以外は、端末がネットワークに接続されていない場合に保存したレスポンスを鮮度に関わらず返し、
+ * そのレスポンスのmOfflineFallbackはtrueとなる。
+ * ただし、must-revalidateまたはno-cacheが指定されたレスポンスは返さない(RFC 7234 4.2.4)。
+ */
+public enum CachePolicy {
+    /**
+     * Cache-Control等のヘッダーに従い、鮮度が残っているレスポンスは通信せずに返す。
+     */
+    STANDARD,
+    /**
+     * 保存したレスポンスを使わずに常に通信する。受信したレスポンスは保存する。
+     */
+    NETWORK_ONLY,
+    /**
+     * 通信せず、保存したレスポンスを鮮度に関わらず返す。保存していなければCacheMissErrorとなる。
+     */
+    CACHE_ONLY,
+    /**
+     * 保存したレスポンスを鮮度に関わらず先に返し、続けて通信して更新する。
+     * 更新したレスポンスが先に返したものと異なれば、CacheRefreshListenerに通知する。
+     */
+    CACHE_THEN_NETWORK,
+    /**
+     * 常に通信し、通信できない場合やサーバーエラーの場合は保存したレスポンスを鮮度に関わらず返す。
+     */
+    NETWORK_ELSE_STALE_CACHE
+}
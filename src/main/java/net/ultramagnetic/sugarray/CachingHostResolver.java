@@ -0,0 +1,201 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.Logger;
+import net.ultramagnetic.sugarray.util.StringUtils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 解決結果をTTL付きでメモリに保持するリゾルバ
+ * <p>
+ * 失敗した結果も短いTTLで保持(ネガティブキャッシュ)し、prefetchで開始した解決が実行中であればその結果を待つ。
+ */
+public class CachingHostResolver implements HostResolver {
+
+    private static final String TAG = CachingHostResolver.class.getSimpleName();
+
+    private static CachingHostResolver sDefault;
+
+    /**
+     * 先読みを実行するスレッド
+     */
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors
+            .newFixedThreadPool(2, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final HostResolver mDelegate;
+    private final long mTtl;
+    private final long mNegativeTtl;
+    /**
+     * ホスト名毎の解決結果(LRU)
+     */
+    private final Map<String, CacheEntry> mCache;
+    /**
+     * 実行中の解決処理
+     */
+    private final Map<String, FutureTask<InetAddress[]>> mInFlight = new LinkedHashMap<String, FutureTask<InetAddress[]>>();
+
+    /**
+     * @param delegate    実際に解決を行うリゾルバ
+     * @param maxEntries  保持する最大件数
+     * @param ttl         解決結果の有効期間(MS)
+     * @param negativeTtl 解決失敗の有効期間(MS)
+     */
+    public CachingHostResolver(HostResolver delegate, final int maxEntries, long ttl,
+                               long negativeTtl) {
+        if (delegate == null) {
+            throw new IllegalArgumentException(TAG + ": delegate is null.");
+        }
+        mDelegate = delegate;
+        mTtl = ttl;
+        mNegativeTtl = negativeTtl;
+        mCache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * デフォルト設定のプロセスで共有するリゾルバを返す。
+     *
+     * @return CachingHostResolverのインスタンス
+     */
+    public static synchronized CachingHostResolver getDefault() {
+        if (sDefault == null) {
+            sDefault = new CachingHostResolver(HostResolver.SYSTEM,
+                    SugarrayConstants.DefaultDnsConfig.DEFAULT_MAX_ENTRIES,
+                    SugarrayConstants.DefaultDnsConfig.DEFAULT_TTL,
+                    SugarrayConstants.DefaultDnsConfig.DEFAULT_NEGATIVE_TTL);
+        }
+        return sDefault;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        if (StringUtils.isEmpty(host)) {
+            throw new UnknownHostException("host is empty.");
+        }
+        FutureTask<InetAddress[]> task;
+        boolean owner = false;
+        synchronized (this) {
+            CacheEntry entry = mCache.get(host);
+            if (entry != null && entry.mExpires > System.currentTimeMillis()) {
+                if (entry.mAddresses == null) {
+                    throw new UnknownHostException(host + " (cached)");
+                }
+                return entry.mAddresses;
+            }
+            task = mInFlight.get(host);
+            if (task == null) {
+                task = createTask(host);
+                mInFlight.put(host, task);
+                owner = true;
+            }
+        }
+        if (owner) {
+            task.run();
+        }
+        return await(host, task);
+    }
+
+    @Override
+    public void prefetch(final String host) {
+        if (StringUtils.isEmpty(host)) {
+            return;
+        }
+        FutureTask<InetAddress[]> task;
+        synchronized (this) {
+            CacheEntry entry = mCache.get(host);
+            if ((entry != null && entry.mExpires > System.currentTimeMillis())
+                    || mInFlight.containsKey(host)) {
+                return;
+            }
+            task = createTask(host);
+            mInFlight.put(host, task);
+        }
+        PREFETCH_EXECUTOR.execute(task);
+    }
+
+    /**
+     * 保持している解決結果を全て破棄する。ネットワークが切り替わった際などに利用する。
+     */
+    public synchronized void clear() {
+        mCache.clear();
+    }
+
+    private FutureTask<InetAddress[]> createTask(final String host) {
+        return new FutureTask<InetAddress[]>(new Callable<InetAddress[]>() {
+            @Override
+            public InetAddress[] call() throws UnknownHostException {
+                try {
+                    InetAddress[] addresses = mDelegate.resolve(host);
+                    store(host, addresses, mTtl);
+                    return addresses;
+                } catch (UnknownHostException e) {
+                    store(host, null, mNegativeTtl);
+                    throw e;
+                } finally {
+                    // リゾルバが想定外の例外を投げた場合も、以降の解決が終わった処理を参照し続けないよう取り除く
+                    finish(host);
+                }
+            }
+        });
+    }
+
+    private synchronized void store(String host, InetAddress[] addresses, long ttl) {
+        mCache.put(host, new CacheEntry(addresses, System.currentTimeMillis() + ttl));
+    }
+
+    private synchronized void finish(String host) {
+        mInFlight.remove(host);
+    }
+
+    private static InetAddress[] await(String host, FutureTask<InetAddress[]> task)
+            throws UnknownHostException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host + " (interrupted)");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) e.getCause();
+            }
+            Logger.e(TAG, "Resolve error: " + host, e.getCause());
+            throw new UnknownHostException(host);
+        }
+    }
+
+    /**
+     * 解決結果と有効期限
+     */
+    private static class CacheEntry {
+        /**
+         * 解決結果、解決に失敗した場合はnull
+         */
+        final InetAddress[] mAddresses;
+        final long mExpires;
+
+        CacheEntry(InetAddress[] addresses, long expires) {
+            mAddresses = addresses;
+            mExpires = expires;
+        }
+    }
+}
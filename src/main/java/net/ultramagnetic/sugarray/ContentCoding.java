@@ -0,0 +1,28 @@
+package net.ultramagnetic.sugarray;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * レスポンスのメッセージボディのコンテンツコーディング(Content-Encoding)を復号するインターフェイス
+ * <p>
+ * ContentCodingsに登録したコーディングはAccept-Encodingヘッダーで自動的にサーバーへ通知される。
+ */
+public interface ContentCoding {
+
+    /**
+     * Content-EncodingおよびAccept-Encodingヘッダーで使うコーディング名を返す
+     *
+     * @return コーディング名(gzip、deflateなど)
+     */
+    public String name();
+
+    /**
+     * 受信しながら復号するストリームを返す。返したストリームを閉じると元のストリームも閉じる。
+     *
+     * @param in 符号化されたメッセージボディ
+     * @return 復号したメッセージボディを読み出すストリーム
+     * @throws IOException 復号を開始できない場合
+     */
+    public InputStream decode(InputStream in) throws IOException;
+}
@@ -0,0 +1,408 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.StringUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * レスポンスを復号するコンテンツコーディングの登録先
+ * <p>
+ * 登録したコーディングをAccept-Encodingヘッダーの値として通知し、Content-Encodingに列挙された
+ * コーディングを適用された順と逆順に、受信しながら復号する。
+ * gzip、deflate、identityは最初から登録されており、gzipとdeflateはプールしたInflaterを使い回す。
+ */
+public class ContentCodings {
+
+    private static final String TAG = ContentCodings.class.getSimpleName();
+
+    /**
+     * 符号化しないことを表すコーディング
+     */
+    public static final String IDENTITY = "identity";
+
+    /**
+     * gzip形式(RFC 1952)のコーディング
+     */
+    public static final ContentCoding GZIP = new ContentCoding() {
+        @Override
+        public String name() {
+            return "gzip";
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            return new InflatingInputStream(in, true);
+        }
+    };
+
+    /**
+     * deflate形式(zlib形式、RFC 1950)のコーディング。zlibのヘッダーを持たない生のdeflateデータも受け付ける。
+     */
+    public static final ContentCoding DEFLATE = new ContentCoding() {
+        @Override
+        public String name() {
+            return "deflate";
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            return new InflatingInputStream(in, false);
+        }
+    };
+
+    private static ContentCodings sInstance;
+
+    /**
+     * コーディング名毎のコーディング(登録順)
+     */
+    private final Map<String, ContentCoding> mCodings = new LinkedHashMap<String, ContentCoding>();
+    /**
+     * Accept-Encodingヘッダーの値
+     */
+    private String mAcceptEncoding;
+
+    private ContentCodings() {
+        register(GZIP);
+        register(DEFLATE);
+    }
+
+    public static synchronized ContentCodings getInstance() {
+        if (sInstance == null) {
+            sInstance = new ContentCodings();
+        }
+        return sInstance;
+    }
+
+    /**
+     * コーディングを登録する。同じ名前のコーディングが登録されていれば置き換える。
+     *
+     * @param contentCoding コーディング
+     */
+    public synchronized void register(ContentCoding contentCoding) {
+        if (contentCoding == null) {
+            throw new IllegalArgumentException(TAG + ": contentCoding is null.");
+        }
+        if (StringUtils.isEmpty(contentCoding.name())
+                || IDENTITY.equalsIgnoreCase(contentCoding.name())) {
+            throw new IllegalArgumentException(TAG + ": invalid coding name. "
+                    + contentCoding.name());
+        }
+        mCodings.put(contentCoding.name().toLowerCase(Locale.US), contentCoding);
+        mAcceptEncoding = null;
+    }
+
+    /**
+     * コーディングの登録を解除する。解除したコーディングはAccept-Encodingで通知されなくなる。
+     *
+     * @param name コーディング名
+     */
+    public synchronized void unregister(String name) {
+        if (name != null && mCodings.remove(name.toLowerCase(Locale.US)) != null) {
+            mAcceptEncoding = null;
+        }
+    }
+
+    /**
+     * 登録されたコーディングを返す。
+     *
+     * @param name コーディング名
+     * @return コーディング、登録されていなければnull
+     */
+    public synchronized ContentCoding get(String name) {
+        return name == null ? null : mCodings.get(name.toLowerCase(Locale.US));
+    }
+
+    /**
+     * 登録されたコーディングを列挙したAccept-Encodingヘッダーの値を返す。
+     *
+     * @return Accept-Encodingヘッダーの値
+     */
+    public synchronized String acceptEncoding() {
+        if (mAcceptEncoding == null) {
+            StringBuilder builder = new StringBuilder();
+            for (String name : mCodings.keySet()) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(name);
+            }
+            mAcceptEncoding = builder.length() > 0 ? builder.toString() : IDENTITY;
+        }
+        return mAcceptEncoding;
+    }
+
+    /**
+     * Content-Encodingヘッダーの値が符号化を表すかどうかを判定する。
+     *
+     * @param contentEncoding Content-Encodingヘッダーの値
+     * @return identity以外のコーディングが含まれていればtrue
+     */
+    static boolean isEncoded(String contentEncoding) {
+        return !parse(contentEncoding).isEmpty();
+    }
+
+    /**
+     * Content-Encodingヘッダーに列挙されたコーディングを逆順に適用し、受信しながら復号するストリームを返す。
+     *
+     * @param in              符号化されたメッセージボディ
+     * @param contentEncoding Content-Encodingヘッダーの値、nullの場合はそのまま返す
+     * @return 復号したメッセージボディを読み出すストリーム
+     * @throws IOException 登録されていないコーディングが含まれている場合
+     */
+    InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        List<String> names = parse(contentEncoding);
+        for (int i = names.size() - 1; i >= 0; i--) {
+            ContentCoding coding = get(names.get(i));
+            if (coding == null) {
+                throw new IOException("Unsupported content coding: " + names.get(i));
+            }
+            in = coding.decode(in);
+        }
+        return in;
+    }
+
+    /**
+     * Content-Encodingヘッダーの値をidentityを除いたコーディング名のリストに変換する。
+     */
+    private static List<String> parse(String contentEncoding) {
+        List<String> names = new ArrayList<String>();
+        if (StringUtils.isEmpty(contentEncoding)) {
+            return names;
+        }
+        for (String name : contentEncoding.split(",")) {
+            name = name.trim().toLowerCase(Locale.US);
+            if (name.length() > 0 && !IDENTITY.equals(name)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * プールしたInflaterでgzip形式またはdeflate形式のデータを受信しながら復号するストリーム。
+     * gzipの場合はヘッダーを読み飛ばし、トレイラーのCRC32と長さを検証する。
+     */
+    private static class InflatingInputStream extends InputStream {
+        private static final int GZIP_MAGIC = 0x8b1f;
+        private static final int FHCRC = 2;
+        private static final int FEXTRA = 4;
+        private static final int FNAME = 8;
+        private static final int FCOMMENT = 16;
+
+        private final InputStream mIn;
+        private final boolean mGzip;
+        private final byte[] mBuffer;
+        private final CRC32 mCrc;
+        private Inflater mInflater;
+        private boolean mNowrap;
+        private int mPosition;
+        private int mLength;
+        private boolean mStarted;
+        private boolean mEof;
+        private boolean mClosed;
+
+        InflatingInputStream(InputStream in, boolean gzip) {
+            mIn = in;
+            mGzip = gzip;
+            mBuffer = BufferPool.getInstance().acquire(
+                    SugarrayConstants.DefaultContentCodingConfig.DEFAULT_BUFFER_SIZE);
+            mCrc = gzip ? new CRC32() : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mClosed) {
+                throw new IOException("Stream closed.");
+            }
+            if (!mStarted) {
+                start();
+            }
+            if (mEof) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                int length;
+                try {
+                    length = mInflater.inflate(b, off, len);
+                } catch (DataFormatException e) {
+                    throw new ZipException(e.getMessage());
+                }
+                if (length > 0) {
+                    if (mCrc != null) {
+                        mCrc.update(b, off, length);
+                    }
+                    return length;
+                }
+                if (mInflater.finished()) {
+                    // 読み込み済みでInflaterが使わなかったデータはトレイラー以降のデータ
+                    mPosition = mLength - mInflater.getRemaining();
+                    if (mGzip) {
+                        readTrailer();
+                    }
+                    mEof = true;
+                    return -1;
+                }
+                if (mInflater.needsDictionary()) {
+                    throw new ZipException("Preset dictionary is not supported.");
+                }
+                if (mInflater.needsInput()) {
+                    if (mPosition == mLength && fill() == -1) {
+                        throw new EOFException("Unexpected end of compressed stream.");
+                    }
+                    mInflater.setInput(mBuffer, mPosition, mLength - mPosition);
+                    mPosition = mLength;
+                }
+            }
+        }
+
+        /**
+         * ヘッダーを読み、形式に合ったInflaterを取得する。
+         */
+        private void start() throws IOException {
+            mStarted = true;
+            // 204などで符号化されたメッセージボディが空の場合は空として扱う
+            if (!ensure(1)) {
+                mEof = true;
+                return;
+            }
+            if (mGzip) {
+                readGzipHeader();
+                mNowrap = true;
+            } else {
+                // zlibのヘッダー(CMF、FLG)でなければ生のdeflateデータとして扱う
+                mNowrap = !ensure(2) || (mBuffer[mPosition] & 0x0f) != 8
+                        || (((mBuffer[mPosition] & 0xff) << 8)
+                        | (mBuffer[mPosition + 1] & 0xff)) % 31 != 0;
+            }
+            mInflater = InflaterPool.getInstance().acquire(mNowrap);
+        }
+
+        private void readGzipHeader() throws IOException {
+            if (readUShort() != GZIP_MAGIC) {
+                throw new ZipException("Not in GZIP format.");
+            }
+            if (readUByte() != 8) {
+                throw new ZipException("Unsupported compression method.");
+            }
+            int flags = readUByte();
+            // 更新日時(4)、追加フラグ(1)、OS(1)
+            skipBytes(6);
+            if ((flags & FEXTRA) == FEXTRA) {
+                skipBytes(readUShort());
+            }
+            if ((flags & FNAME) == FNAME) {
+                while (readUByte() != 0) {
+                    ;
+                }
+            }
+            if ((flags & FCOMMENT) == FCOMMENT) {
+                while (readUByte() != 0) {
+                    ;
+                }
+            }
+            if ((flags & FHCRC) == FHCRC) {
+                skipBytes(2);
+            }
+        }
+
+        private void readTrailer() throws IOException {
+            long crc = readUInt();
+            long size = readUInt();
+            if (crc != mCrc.getValue()) {
+                throw new ZipException("Corrupt GZIP trailer.");
+            }
+            if (size != (mInflater.getBytesWritten() & 0xffffffffL)) {
+                throw new ZipException("Corrupt GZIP trailer.");
+            }
+        }
+
+        private long readUInt() throws IOException {
+            return readUShort() | ((long) readUShort() << 16);
+        }
+
+        private int readUShort() throws IOException {
+            return readUByte() | (readUByte() << 8);
+        }
+
+        private int readUByte() throws IOException {
+            if (!ensure(1)) {
+                throw new EOFException("Unexpected end of GZIP header or trailer.");
+            }
+            return mBuffer[mPosition++] & 0xff;
+        }
+
+        private void skipBytes(int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                readUByte();
+            }
+        }
+
+        /**
+         * バッファにnバイト以上の未読データがある状態にする。
+         *
+         * @return ストリームの終端に達してnバイトに満たない場合はfalse
+         */
+        private boolean ensure(int n) throws IOException {
+            while (mLength - mPosition < n) {
+                if (mPosition > 0) {
+                    System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLength - mPosition);
+                    mLength -= mPosition;
+                    mPosition = 0;
+                }
+                int readBytes = mIn.read(mBuffer, mLength, mBuffer.length - mLength);
+                if (readBytes == -1) {
+                    return false;
+                }
+                mLength += readBytes;
+            }
+            return true;
+        }
+
+        /**
+         * バッファの未読データを使い切った後に、次のデータを読み込む。
+         *
+         * @return 読み込んだバイト数、終端に達した場合は-1
+         */
+        private int fill() throws IOException {
+            mPosition = 0;
+            mLength = 0;
+            int readBytes = mIn.read(mBuffer);
+            if (readBytes > 0) {
+                mLength = readBytes;
+            }
+            return readBytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            InflaterPool.getInstance().release(mInflater, mNowrap);
+            mInflater = null;
+            BufferPool.getInstance().release(mBuffer);
+            mIn.close();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package net.ultramagnetic.sugarray;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * ホスト名をIPアドレスに解決するリゾルバのインターフェイス
+ */
+public interface HostResolver {
+
+    /**
+     * ホスト名を解決する
+     *
+     * @param host ホスト名
+     * @return IPアドレスの配列
+     * @throws UnknownHostException 解決できなかった場合
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException;
+
+    /**
+     * 後で利用するホスト名の解決をバックグラウンドで開始する
+     *
+     * @param host ホスト名
+     */
+    public void prefetch(String host);
+
+    /**
+     * キャッシュを持たずにプラットフォームのリゾルバを利用する実装
+     */
+    public static final HostResolver SYSTEM = new HostResolver() {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+
+        @Override
+        public void prefetch(String host) {
+        }
+    };
+}
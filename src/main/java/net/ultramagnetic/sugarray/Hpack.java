@@ -0,0 +1,330 @@
+package net.ultramagnetic.sugarray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * HTTP/2のヘッダー圧縮(HPACK, RFC 7541)
+ */
+final class Hpack {
+
+    private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+    /**
+     * 動的テーブルのデフォルトの最大サイズ
+     */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /**
+     * 静的テーブル(RFC 7541 Appendix A)、インデックスは1から始まる
+     */
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"},
+            {":path", "/"}, {":path", "/index.html"}, {":scheme", "http"},
+            {":scheme", "https"}, {":status", "200"}, {":status", "204"},
+            {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""},
+            {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""},
+            {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""},
+            {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""},
+            {"content-type", ""}, {"cookie", ""}, {"date", ""}, {"etag", ""},
+            {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+            {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""},
+            {"if-range", ""}, {"if-unmodified-since", ""},
+            {"last-modified", ""}, {"link", ""}, {"location", ""},
+            {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""},
+            {"refresh", ""}, {"retry-after", ""}, {"server", ""},
+            {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""},
+            {"via", ""}, {"www-authenticate", ""}};
+
+    private Hpack() {
+        ;
+    }
+
+    /**
+     * 動的テーブル。先頭が最も新しいエントリ。
+     */
+    private static class DynamicTable {
+        private final LinkedList<String[]> mEntries = new LinkedList<String[]>();
+        private int mSize;
+        private int mMaxSize;
+
+        DynamicTable(int maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        String[] get(int index) {
+            return mEntries.get(index);
+        }
+
+        int length() {
+            return mEntries.size();
+        }
+
+        void add(String name, String value) {
+            int size = entrySize(name, value);
+            if (size > mMaxSize) {
+                mEntries.clear();
+                mSize = 0;
+                return;
+            }
+            mEntries.addFirst(new String[]{name, value});
+            mSize += size;
+            evict();
+        }
+
+        void setMaxSize(int maxSize) {
+            mMaxSize = maxSize;
+            evict();
+        }
+
+        private void evict() {
+            while (mSize > mMaxSize) {
+                String[] entry = mEntries.removeLast();
+                mSize -= entrySize(entry[0], entry[1]);
+            }
+        }
+
+        private static int entrySize(String name, String value) {
+            return name.length() + value.length() + 32;
+        }
+    }
+
+    /**
+     * ヘッダーブロックの符号化器。HTTP/2コネクション毎に1つ生成する。
+     */
+    static class Encoder {
+        private final DynamicTable mTable = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private int mPendingTableSize = -1;
+
+        /**
+         * 相手側が通知した動的テーブルの最大サイズを反映する。
+         *
+         * @param maxSize
+         */
+        void setMaxTableSize(int maxSize) {
+            int size = Math.min(maxSize, DEFAULT_TABLE_SIZE);
+            if (size != mTable.mMaxSize) {
+                mTable.setMaxSize(size);
+                mPendingTableSize = size;
+            }
+        }
+
+        /**
+         * ヘッダーのリストを符号化する。
+         *
+         * @param headers 名前(小文字)と値の組のリスト
+         * @return ヘッダーブロック
+         */
+        byte[] encode(List<String[]> headers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (mPendingTableSize >= 0) {
+                writeInt(out, 0x20, 5, mPendingTableSize);
+                mPendingTableSize = -1;
+            }
+            for (String[] header : headers) {
+                String name = header[0];
+                String value = header[1];
+                int nameIndex = 0;
+                int index = 0;
+                for (int i = 0; i < STATIC_TABLE.length && index == 0; i++) {
+                    if (STATIC_TABLE[i][0].equals(name)) {
+                        if (nameIndex == 0) {
+                            nameIndex = i + 1;
+                        }
+                        if (STATIC_TABLE[i][1].equals(value)) {
+                            index = i + 1;
+                        }
+                    }
+                }
+                for (int i = 0; i < mTable.length() && index == 0; i++) {
+                    String[] entry = mTable.get(i);
+                    if (entry[0].equals(name)) {
+                        if (nameIndex == 0) {
+                            nameIndex = STATIC_TABLE.length + i + 1;
+                        }
+                        if (entry[1].equals(value)) {
+                            index = STATIC_TABLE.length + i + 1;
+                        }
+                    }
+                }
+                if (index != 0) {
+                    writeInt(out, 0x80, 7, index);
+                } else if (isSensitive(name)) {
+                    // 認証情報は中継者にもインデックスさせない
+                    writeInt(out, 0x10, 4, nameIndex);
+                    if (nameIndex == 0) {
+                        writeString(out, name);
+                    }
+                    writeString(out, value);
+                } else {
+                    writeInt(out, 0x40, 6, nameIndex);
+                    if (nameIndex == 0) {
+                        writeString(out, name);
+                    }
+                    writeString(out, value);
+                    mTable.add(name, value);
+                }
+            }
+            return out.toByteArray();
+        }
+
+        private static boolean isSensitive(String name) {
+            return "authorization".equals(name) || "cookie".equals(name)
+                    || "proxy-authorization".equals(name);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String value) {
+            byte[] data = value.getBytes(ASCII);
+            int huffmanLength = Huffman.encodedLength(data);
+            if (huffmanLength < data.length) {
+                writeInt(out, 0x80, 7, huffmanLength);
+                Huffman.encode(data, out);
+            } else {
+                writeInt(out, 0x00, 7, data.length);
+                out.write(data, 0, data.length);
+            }
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int mask,
+                                     int prefixBits, int value) {
+            int max = (1 << prefixBits) - 1;
+            if (value < max) {
+                out.write(mask | value);
+                return;
+            }
+            out.write(mask | max);
+            value -= max;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    /**
+     * ヘッダーブロックの復号器。HTTP/2コネクション毎に1つ生成する。
+     */
+    static class Decoder {
+        private final DynamicTable mTable = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private final int mMaxTableSize;
+        private byte[] mData;
+        private int mPosition;
+        private int mLimit;
+
+        Decoder(int maxTableSize) {
+            mMaxTableSize = maxTableSize;
+        }
+
+        /**
+         * ヘッダーブロックを復号する。
+         *
+         * @param data
+         * @return 名前と値の組のリスト
+         * @throws IOException 不正なヘッダーブロックの場合
+         */
+        List<String[]> decode(byte[] data) throws IOException {
+            mData = data;
+            mPosition = 0;
+            mLimit = data.length;
+            List<String[]> headers = new ArrayList<String[]>();
+            while (mPosition < mLimit) {
+                int b = mData[mPosition] & 0xff;
+                if ((b & 0x80) != 0) {
+                    headers.add(lookup(readInt(7)));
+                } else if ((b & 0x40) != 0) {
+                    String[] header = readLiteral(6);
+                    mTable.add(header[0], header[1]);
+                    headers.add(header);
+                } else if ((b & 0x20) != 0) {
+                    int size = readInt(5);
+                    if (size > mMaxTableSize) {
+                        throw new ProtocolException("Invalid dynamic table size: " + size);
+                    }
+                    mTable.setMaxSize(size);
+                } else {
+                    headers.add(readLiteral(4));
+                }
+            }
+            mData = null;
+            return headers;
+        }
+
+        private String[] readLiteral(int prefixBits) throws IOException {
+            int nameIndex = readInt(prefixBits);
+            String name = nameIndex == 0 ? readString() : lookup(nameIndex)[0];
+            return new String[]{name, readString()};
+        }
+
+        private String[] lookup(int index) throws IOException {
+            if (index <= 0) {
+                throw new ProtocolException("Invalid header index: " + index);
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (dynamicIndex >= mTable.length()) {
+                throw new ProtocolException("Invalid header index: " + index);
+            }
+            return mTable.get(dynamicIndex);
+        }
+
+        private String readString() throws IOException {
+            if (mPosition >= mLimit) {
+                throw new ProtocolException("Truncated header block.");
+            }
+            boolean huffman = (mData[mPosition] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > mLimit - mPosition) {
+                throw new ProtocolException("Invalid string length: " + length);
+            }
+            String value;
+            if (huffman) {
+                value = new String(Huffman.decode(mData, mPosition, length), ASCII);
+            } else {
+                value = new String(mData, mPosition, length, ASCII);
+            }
+            mPosition += length;
+            return value;
+        }
+
+        private int readInt(int prefixBits) throws IOException {
+            if (mPosition >= mLimit) {
+                throw new ProtocolException("Truncated header block.");
+            }
+            int max = (1 << prefixBits) - 1;
+            int value = mData[mPosition++] & max;
+            if (value < max) {
+                return value;
+            }
+            int shift = 0;
+            while (true) {
+                if (mPosition >= mLimit || shift > 28) {
+                    throw new ProtocolException("Invalid integer encoding.");
+                }
+                int b = mData[mPosition++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if (value < 0) {
+                    throw new ProtocolException("Invalid integer encoding.");
+                }
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+    }
+}
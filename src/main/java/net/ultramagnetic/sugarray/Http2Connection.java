@@ -0,0 +1,955 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 1つのソケット上で複数のストリームを多重化するHTTP/2(RFC 7540)のコネクション
+ * <p>
+ * フレームの受信は専用のスレッドで行い、送信はリクエストを行うスレッドがロックを取得して行う。
+ */
+class Http2Connection implements Runnable {
+
+    private static final String TAG = Http2Connection.class.getSimpleName();
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+            .getBytes(Charset.forName("ISO-8859-1"));
+
+    static final int TYPE_DATA = 0x0;
+    static final int TYPE_HEADERS = 0x1;
+    static final int TYPE_PRIORITY = 0x2;
+    static final int TYPE_RST_STREAM = 0x3;
+    static final int TYPE_SETTINGS = 0x4;
+    static final int TYPE_PUSH_PROMISE = 0x5;
+    static final int TYPE_PING = 0x6;
+    static final int TYPE_GOAWAY = 0x7;
+    static final int TYPE_WINDOW_UPDATE = 0x8;
+    static final int TYPE_CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    static final int ERROR_NO_ERROR = 0x0;
+    static final int ERROR_PROTOCOL_ERROR = 0x1;
+    static final int ERROR_INTERNAL_ERROR = 0x2;
+    static final int ERROR_FLOW_CONTROL_ERROR = 0x3;
+    static final int ERROR_FRAME_SIZE_ERROR = 0x6;
+    static final int ERROR_REFUSED_STREAM = 0x7;
+    static final int ERROR_CANCEL = 0x8;
+    static final int ERROR_COMPRESSION_ERROR = 0x9;
+
+    /**
+     * フロー制御ウィンドウの初期値
+     */
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    /**
+     * 受信側として確保するウィンドウサイズ
+     */
+    private static final int RECEIVE_WINDOW_SIZE = 1024 * 1024 * 16;
+    /**
+     * フレームのペイロードの初期最大サイズ
+     */
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    /**
+     * SETTINGS_MAX_FRAME_SIZEに指定できる最大値
+     */
+    private static final int MAX_FRAME_SIZE_LIMIT = 16777215;
+    /**
+     * ストリームがない状態が続いた場合にコネクションを閉じるまでの時間(MS)
+     * <p>
+     * 受信スレッドの読み込みのタイムアウトで判定するため、実際に閉じるまでには最大でこの2倍の時間がかかる。
+     */
+    private static final long IDLE_TIMEOUT = SugarrayConstants.DefaultConnectionPoolConfig.DEFAULT_IDLE_TIMEOUT;
+    /**
+     * 送信ウィンドウを待つ間に、ストリームの終了を確認し直す間隔(MS)
+     */
+    private static final long WINDOW_WAIT_INTERVAL = 1000;
+
+    /**
+     * コネクションを再利用する単位(スキーム、ホスト、ポート)
+     */
+    final String mRouteKey;
+
+    private final Socket mSocket;
+    private final DataInputStream mIn;
+    private final OutputStream mOut;
+    private final Hpack.Encoder mEncoder = new Hpack.Encoder();
+    private final Hpack.Decoder mDecoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Map<Integer, Http2Stream> mStreams = new HashMap<Integer, Http2Stream>();
+    private final Object mWriteLock = new Object();
+
+    private int mNextStreamId = 1;
+    private volatile int mPeerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int mPeerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int mPeerMaxConcurrentStreams = Integer.MAX_VALUE;
+    /**
+     * コネクション全体の送信ウィンドウ
+     */
+    private long mSendWindow = DEFAULT_WINDOW_SIZE;
+    /**
+     * コネクション全体で受信し、まだWINDOW_UPDATEで返していないバイト数
+     */
+    private int mUnacknowledgedBytes;
+    /**
+     * 最後のストリームが終わった時刻
+     */
+    private long mIdleSince = System.currentTimeMillis();
+    private boolean mShutdown;
+    private IOException mFailure;
+
+    private Http2Connection(String routeKey, Socket socket) throws IOException {
+        mRouteKey = routeKey;
+        mSocket = socket;
+        mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+                DEFAULT_MAX_FRAME_SIZE + 9));
+        mOut = new BufferedOutputStream(socket.getOutputStream(), DEFAULT_MAX_FRAME_SIZE + 9);
+        socket.setSoTimeout((int) IDLE_TIMEOUT);
+    }
+
+    /**
+     * HTTP/2のコネクションを確立する。
+     *
+     * @param routeKey         コネクションを再利用する単位
+     * @param host             接続先のホスト名
+     * @param port             接続先のポート番号
+     * @param sslSocketFactory HTTPSの場合はSSLSocketFactory、h2cの場合はnull
+     * @param hostResolver     ホスト名のリゾルバ
+     * @param timeout          タイムアウト時間(MS)
+     * @return Http2Connection
+     * @throws Http2UnsupportedException ALPNでh2がネゴシエーションされなかった場合
+     * @throws IOException
+     */
+    static Http2Connection connect(String routeKey, String host, int port,
+                                   SSLSocketFactory sslSocketFactory,
+                                   HostResolver hostResolver, int timeout)
+            throws IOException {
+        Socket socket = connectSocket(host, port, hostResolver, timeout);
+        try {
+            if (sslSocketFactory != null) {
+                SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket,
+                        host, port, true);
+                socket = sslSocket;
+                if (!setApplicationProtocols(sslSocket, new String[]{"h2", "http/1.1"})) {
+                    throw new Http2UnsupportedException("ALPN is not available.");
+                }
+                sslSocket.startHandshake();
+                if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host,
+                        sslSocket.getSession())) {
+                    throw new SSLPeerUnverifiedException("Hostname " + host
+                            + " not verified.");
+                }
+                String protocol = getApplicationProtocol(sslSocket);
+                if (!"h2".equals(protocol)) {
+                    throw new Http2UnsupportedException("Server selected " + protocol
+                            + " instead of h2.");
+                }
+            }
+            Http2Connection connection = new Http2Connection(routeKey, socket);
+            connection.start();
+            return connection;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ce) {
+                Logger.e(TAG, "Socket close error.", ce);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 解決したアドレスに順に接続を試みる。
+     */
+    private static Socket connectSocket(String host, int port, HostResolver hostResolver,
+                                        int timeout) throws IOException {
+        InetAddress[] addresses = hostResolver.resolve(host);
+        IOException lastError = null;
+        for (InetAddress address : addresses) {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(address, port), timeout);
+                return socket;
+            } catch (IOException e) {
+                Logger.d(TAG, "Connect failed: " + address + ":" + port);
+                lastError = e;
+                try {
+                    socket.close();
+                } catch (IOException ce) {
+                    Logger.e(TAG, "Socket close error.", ce);
+                }
+            }
+        }
+        throw lastError != null ? lastError : new UnknownHostException(host);
+    }
+
+    /**
+     * コネクションのプリフェイスと初期設定を送信し、受信スレッドを開始する。
+     *
+     * @throws IOException
+     */
+    private void start() throws IOException {
+        synchronized (mWriteLock) {
+            mOut.write(PREFACE);
+            byte[] settings = new byte[12];
+            putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+            putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW_SIZE);
+            writeFrame(TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+            writeWindowUpdate(0, RECEIVE_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+            mOut.flush();
+        }
+        Thread reader = new Thread(this, TAG + " " + mRouteKey);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * 新しいストリームを開いてリクエストを送信する。
+     *
+     * @param headers       疑似ヘッダーを含むリクエストヘッダー
+     * @param body          メッセージボディ、なければnull
+     * @param contentLength メッセージボディのバイト数
+     * @param listener
+     * @return Http2Stream
+     * @throws IOException
+     */
+    Http2Stream newStream(List<String[]> headers, InputStream body, long contentLength,
+                          Sugarray.ProgressUpdateListener listener) throws IOException {
+        Http2Stream stream;
+        boolean hasBody = body != null && contentLength > 0;
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                if (mShutdown) {
+                    throw new RefusedStreamException("Connection is shutdown.");
+                }
+                stream = new Http2Stream(this, mNextStreamId, mPeerInitialWindowSize);
+                mNextStreamId += 2;
+                mStreams.put(stream.mId, stream);
+            }
+            byte[] block = mEncoder.encode(headers);
+            int length = Math.min(block.length, mPeerMaxFrameSize);
+            int flags = (hasBody ? 0 : FLAG_END_STREAM)
+                    | (length == block.length ? FLAG_END_HEADERS : 0);
+            writeFrame(TYPE_HEADERS, flags, stream.mId, block, 0, length);
+            for (int offset = length; offset < block.length; offset += length) {
+                length = Math.min(block.length - offset, mPeerMaxFrameSize);
+                writeFrame(TYPE_CONTINUATION, offset + length == block.length ? FLAG_END_HEADERS
+                        : 0, stream.mId, block, offset, length);
+            }
+            mOut.flush();
+        }
+        if (hasBody) {
+            writeData(stream, body, contentLength, listener);
+        }
+        return stream;
+    }
+
+    /**
+     * フロー制御に従ってメッセージボディを送信する。ボディは送信できる分だけ読み出す。
+     */
+    private void writeData(Http2Stream stream, InputStream body, long contentLength,
+                           Sugarray.ProgressUpdateListener listener) throws IOException {
+        byte[] buffer = BufferPool.getInstance().acquire(DEFAULT_MAX_FRAME_SIZE);
+        long offset = 0;
+        try {
+            while (offset < contentLength) {
+                int length;
+                synchronized (this) {
+                    // GOAWAYを受信した後も、サーバーが処理するストリームのボディは送信する
+                    while (!stream.isClosed()
+                            && (mSendWindow <= 0 || stream.mSendWindow <= 0)) {
+                        try {
+                            wait(WINDOW_WAIT_INTERVAL);
+                        } catch (InterruptedException e) {
+                            resetStream(stream, ERROR_CANCEL);
+                            throw new InterruptedIOException(
+                                    "Interrupted while waiting for window.");
+                        }
+                    }
+                    if (stream.isClosed()) {
+                        IOException cause = stream.getFailure();
+                        if (cause instanceof RefusedStreamException) {
+                            throw cause;
+                        }
+                        throw failure("Stream closed while sending body.");
+                    }
+                    length = (int) Math.min(Math.min(mSendWindow, stream.mSendWindow),
+                            Math.min(contentLength - offset,
+                                    Math.min(mPeerMaxFrameSize, DEFAULT_MAX_FRAME_SIZE)));
+                    mSendWindow -= length;
+                    stream.mSendWindow -= length;
+                }
+                readFully(body, buffer, length);
+                synchronized (mWriteLock) {
+                    writeFrame(TYPE_DATA, offset + length == contentLength ? FLAG_END_STREAM : 0,
+                            stream.mId, buffer, 0, length);
+                    mOut.flush();
+                }
+                offset += length;
+                listener.onProgressUpdate(contentLength, offset);
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(buffer, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("Request body is shorter than its content length.");
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * ストリームをリセットする。
+     *
+     * @param stream
+     * @param errorCode
+     */
+    void resetStream(Http2Stream stream, int errorCode) {
+        try {
+            synchronized (mWriteLock) {
+                byte[] payload = new byte[4];
+                putInt(payload, 0, errorCode);
+                writeFrame(TYPE_RST_STREAM, 0, stream.mId, payload, 0, payload.length);
+                mOut.flush();
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "RST_STREAM write error.", e);
+        }
+        // 最後のストリームであればコネクションを閉じることがあるため、RST_STREAMを送信してから取り除く
+        removeStream(stream.mId);
+    }
+
+    /**
+     * 受信したデータ分のコネクションのウィンドウを返却する。
+     * ストリームのウィンドウはアプリケーションが読み込んだ時点で返却する(streamConsumed)。
+     *
+     * @param length
+     */
+    private void received(int length) throws IOException {
+        int increment;
+        synchronized (this) {
+            mUnacknowledgedBytes += length;
+            if (mUnacknowledgedBytes < RECEIVE_WINDOW_SIZE / 2) {
+                return;
+            }
+            increment = mUnacknowledgedBytes;
+            mUnacknowledgedBytes = 0;
+        }
+        synchronized (mWriteLock) {
+            writeWindowUpdate(0, increment);
+            mOut.flush();
+        }
+    }
+
+    /**
+     * アプリケーションが読み込んだデータ分のストリームのウィンドウを返却する。
+     *
+     * @param stream
+     * @param length
+     */
+    void streamConsumed(Http2Stream stream, int length) {
+        int increment = stream.consumed(length, RECEIVE_WINDOW_SIZE);
+        if (increment == 0 || stream.isClosed()) {
+            return;
+        }
+        try {
+            synchronized (mWriteLock) {
+                writeWindowUpdate(stream.mId, increment);
+                mOut.flush();
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "WINDOW_UPDATE write error.", e);
+        }
+    }
+
+    /**
+     * 新しいストリームを開けるかどうか判断する。
+     *
+     * @return 開ければtrue
+     */
+    synchronized boolean isUsable() {
+        return !mShutdown && mStreams.size() < mPeerMaxConcurrentStreams
+                && mNextStreamId > 0;
+    }
+
+    void removeStream(int streamId) {
+        boolean close;
+        synchronized (this) {
+            if (mStreams.remove(streamId) == null) {
+                return;
+            }
+            // ウィンドウを待っている送信スレッドにストリームの終了を知らせる
+            notifyAll();
+            if (!mStreams.isEmpty()) {
+                return;
+            }
+            mIdleSince = System.currentTimeMillis();
+            close = mShutdown;
+        }
+        if (close) {
+            // GOAWAYを受信した、または新しいストリームを開かなくなった後で最後のストリームが終わった
+            closeSocket();
+        }
+    }
+
+    /**
+     * 新しいストリームを開かないようにし、実行中のストリームが終わった時点でコネクションを閉じる。
+     */
+    void goAway() {
+        boolean close;
+        synchronized (this) {
+            mShutdown = true;
+            close = mStreams.isEmpty();
+            notifyAll();
+        }
+        if (close) {
+            closeSocket();
+        }
+    }
+
+    /**
+     * コネクションを閉じる。
+     */
+    void close() {
+        shutdown(new IOException("Connection closed."));
+        closeSocket();
+    }
+
+    /**
+     * ストリームがない状態がIDLE_TIMEOUTを超えて続いていればコネクションを閉じる。
+     *
+     * @return 閉じた場合はtrue
+     */
+    private boolean closeIfIdle() {
+        synchronized (this) {
+            if (mShutdown || !mStreams.isEmpty()
+                    || System.currentTimeMillis() - mIdleSince < IDLE_TIMEOUT) {
+                return false;
+            }
+            mShutdown = true;
+            mFailure = new IOException("Idle connection closed.");
+        }
+        Logger.d(TAG, "Idle connection closed: " + mRouteKey);
+        writeGoAway(ERROR_NO_ERROR);
+        closeSocket();
+        return true;
+    }
+
+    /**
+     * GOAWAYを送信する。サーバーからのストリームは受け付けないため、最後のストリームIDは常に0とする。
+     *
+     * @param errorCode
+     */
+    private void writeGoAway(int errorCode) {
+        try {
+            synchronized (mWriteLock) {
+                byte[] payload = new byte[8];
+                putInt(payload, 0, 0);
+                putInt(payload, 4, errorCode);
+                writeFrame(TYPE_GOAWAY, 0, 0, payload, 0, payload.length);
+                mOut.flush();
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "GOAWAY write error.", e);
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            Logger.e(TAG, "Socket close error.", e);
+        }
+    }
+
+    /**
+     * フレームの一部を読み込む。
+     * <p>
+     * 読み込みのタイムアウトは、フレームの先頭ではアイドル状態の判定に使い、フレームの途中では無視して読み込みを続ける。
+     *
+     * @param buffer
+     * @param length     読み込むバイト数
+     * @param frameStart フレームの先頭を読み込む場合はtrue
+     * @return アイドル状態のためコネクションを閉じた場合はfalse
+     * @throws IOException
+     */
+    private boolean readFrame(byte[] buffer, int length, boolean frameStart)
+            throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read;
+            try {
+                read = mIn.read(buffer, offset, length - offset);
+            } catch (SocketTimeoutException e) {
+                if (frameStart && offset == 0 && closeIfIdle()) {
+                    return false;
+                }
+                continue;
+            }
+            if (read < 0) {
+                throw new EOFException("Connection closed by peer.");
+            }
+            offset += read;
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        byte[] header = new byte[9];
+        ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+        int headerStreamId = 0;
+        boolean headerEndStream = false;
+        try {
+            while (true) {
+                if (!readFrame(header, header.length, true)) {
+                    return;
+                }
+                int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8)
+                        | (header[2] & 0xff);
+                int type = header[3] & 0xff;
+                int flags = header[4] & 0xff;
+                int streamId = getInt(header, 5) & 0x7fffffff;
+                if (length > DEFAULT_MAX_FRAME_SIZE) {
+                    throw new ConnectionErrorException(ERROR_FRAME_SIZE_ERROR,
+                            "Frame too large: " + length);
+                }
+                checkLength(type, flags, length);
+                byte[] payload = new byte[length];
+                readFrame(payload, length, false);
+                if (headerStreamId != 0 && type != TYPE_CONTINUATION) {
+                    throw new ProtocolException("Expected CONTINUATION frame.");
+                }
+                switch (type) {
+                    case TYPE_DATA: {
+                        Http2Stream stream = getStream(streamId);
+                        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+                        int padding = offset == 1 ? payload[0] & 0xff : 0;
+                        checkPadding(offset, padding, length);
+                        if (stream != null) {
+                            stream.onData(payload, offset, length - offset - padding,
+                                    (flags & FLAG_END_STREAM) != 0);
+                            if (offset + padding > 0) {
+                                // パディングはアプリケーションに渡らないため、受信時点で返却する
+                                streamConsumed(stream, offset + padding);
+                            }
+                        }
+                        received(length);
+                        break;
+                    }
+                    case TYPE_HEADERS: {
+                        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+                        int padding = offset == 1 ? payload[0] & 0xff : 0;
+                        if ((flags & FLAG_PRIORITY) != 0) {
+                            offset += 5;
+                        }
+                        checkPadding(offset, padding, length);
+                        headerBlock.reset();
+                        headerBlock.write(payload, offset, length - offset - padding);
+                        headerEndStream = (flags & FLAG_END_STREAM) != 0;
+                        if ((flags & FLAG_END_HEADERS) != 0) {
+                            onHeaders(streamId, headerBlock.toByteArray(), headerEndStream);
+                        } else {
+                            headerStreamId = streamId;
+                        }
+                        break;
+                    }
+                    case TYPE_CONTINUATION:
+                        if (streamId != headerStreamId) {
+                            throw new ProtocolException("Unexpected CONTINUATION frame.");
+                        }
+                        headerBlock.write(payload, 0, length);
+                        if ((flags & FLAG_END_HEADERS) != 0) {
+                            headerStreamId = 0;
+                            onHeaders(streamId, headerBlock.toByteArray(), headerEndStream);
+                        }
+                        break;
+                    case TYPE_RST_STREAM: {
+                        Http2Stream stream = getStream(streamId);
+                        if (stream != null) {
+                            // 送信スレッドが失敗の原因を参照できるよう、取り除く前にストリームを閉じる
+                            stream.onReset(getInt(payload, 0));
+                            removeStream(streamId);
+                        }
+                        break;
+                    }
+                    case TYPE_SETTINGS:
+                        if ((flags & FLAG_ACK) == 0) {
+                            onSettings(payload);
+                        }
+                        break;
+                    case TYPE_PING:
+                        if ((flags & FLAG_ACK) == 0) {
+                            synchronized (mWriteLock) {
+                                writeFrame(TYPE_PING, FLAG_ACK, 0, payload, 0, length);
+                                mOut.flush();
+                            }
+                        }
+                        break;
+                    case TYPE_GOAWAY:
+                        onGoAway(getInt(payload, 0) & 0x7fffffff, getInt(payload, 4));
+                        break;
+                    case TYPE_WINDOW_UPDATE:
+                        onWindowUpdate(streamId, getInt(payload, 0) & 0x7fffffff);
+                        break;
+                    case TYPE_PUSH_PROMISE:
+                        throw new ProtocolException("PUSH_PROMISE received while push is disabled.");
+                    default:
+                        // PRIORITYと未知のフレームは無視する
+                        break;
+                }
+            }
+        } catch (ProtocolException e) {
+            // 不正なフレームを受信した場合は、エラーコードをGOAWAYで通知してから閉じる
+            Logger.e(TAG, "HTTP/2 protocol error: " + mRouteKey, e);
+            writeGoAway(e instanceof ConnectionErrorException
+                    ? ((ConnectionErrorException) e).mErrorCode : ERROR_PROTOCOL_ERROR);
+            shutdown(e);
+            closeSocket();
+        } catch (IOException e) {
+            boolean closed;
+            synchronized (this) {
+                closed = mShutdown && mStreams.isEmpty();
+            }
+            if (!closed && !(e instanceof EOFException)) {
+                Logger.e(TAG, "HTTP/2 connection error: " + mRouteKey, e);
+            }
+            shutdown(e);
+            closeSocket();
+        } catch (RuntimeException e) {
+            // 受信スレッドが終わるとストリームが応答を待ち続けるため、想定外の例外でもコネクションを閉じる
+            Logger.e(TAG, "HTTP/2 connection error: " + mRouteKey, e);
+            writeGoAway(ERROR_INTERNAL_ERROR);
+            shutdown(new IOException("HTTP/2 connection error.", e));
+            closeSocket();
+        }
+    }
+
+    /**
+     * フレームの種類毎に決まっているペイロードの長さを検証する。
+     */
+    private static void checkLength(int type, int flags, int length) throws IOException {
+        boolean valid;
+        switch (type) {
+            case TYPE_DATA:
+            case TYPE_HEADERS:
+                valid = (flags & FLAG_PADDED) == 0 || length >= 1;
+                break;
+            case TYPE_PRIORITY:
+                valid = length == 5;
+                break;
+            case TYPE_RST_STREAM:
+            case TYPE_WINDOW_UPDATE:
+                valid = length == 4;
+                break;
+            case TYPE_SETTINGS:
+                valid = (flags & FLAG_ACK) != 0 ? length == 0 : length % 6 == 0;
+                break;
+            case TYPE_PING:
+                valid = length == 8;
+                break;
+            case TYPE_GOAWAY:
+                valid = length >= 8;
+                break;
+            default:
+                valid = true;
+                break;
+        }
+        if (!valid) {
+            throw new ConnectionErrorException(ERROR_FRAME_SIZE_ERROR, "Invalid frame length: "
+                    + length + ", type=" + type);
+        }
+    }
+
+    /**
+     * パディングと優先度を除いた部分が負の長さにならないことを検証する。
+     *
+     * @param offset  パディング長と優先度のバイト数
+     * @param padding
+     * @param length  ペイロードの長さ
+     */
+    private static void checkPadding(int offset, int padding, int length) throws IOException {
+        if (offset + padding > length) {
+            throw new ProtocolException("Invalid padding: " + padding + ", length=" + length);
+        }
+    }
+
+    private void onHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        // 動的テーブルを同期させるため、未知のストリームのヘッダーブロックも復号する
+        List<String[]> headers;
+        try {
+            headers = mDecoder.decode(block);
+        } catch (IOException e) {
+            throw new ConnectionErrorException(ERROR_COMPRESSION_ERROR,
+                    "Invalid header block: " + e.getMessage());
+        }
+        Http2Stream stream = getStream(streamId);
+        if (stream != null) {
+            stream.onHeaders(headers, endStream);
+        }
+    }
+
+    private void onSettings(byte[] payload) throws IOException {
+        for (int offset = 0; offset + 6 <= payload.length; offset += 6) {
+            int id = ((payload[offset] & 0xff) << 8) | (payload[offset + 1] & 0xff);
+            int value = getInt(payload, offset + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (mWriteLock) {
+                        mEncoder.setMaxTableSize(value);
+                    }
+                    break;
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    synchronized (this) {
+                        mPeerMaxConcurrentStreams = value;
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new ConnectionErrorException(ERROR_FLOW_CONTROL_ERROR,
+                                "Invalid initial window size: " + (value & 0xffffffffL));
+                    }
+                    synchronized (this) {
+                        int delta = value - mPeerInitialWindowSize;
+                        mPeerInitialWindowSize = value;
+                        for (Http2Stream stream : mStreams.values()) {
+                            stream.mSendWindow += delta;
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT) {
+                        throw new ProtocolException("Invalid max frame size: "
+                                + (value & 0xffffffffL));
+                    }
+                    synchronized (mWriteLock) {
+                        mPeerMaxFrameSize = value;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        synchronized (mWriteLock) {
+            writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+            mOut.flush();
+        }
+    }
+
+    private void onGoAway(int lastStreamId, int errorCode) {
+        Logger.d(TAG, "GOAWAY received. lastStreamId=" + lastStreamId + ", errorCode="
+                + errorCode);
+        List<Http2Stream> refused = new ArrayList<Http2Stream>();
+        boolean close;
+        synchronized (this) {
+            mShutdown = true;
+            for (Http2Stream stream : mStreams.values()) {
+                if (stream.mId > lastStreamId) {
+                    refused.add(stream);
+                }
+            }
+            for (Http2Stream stream : refused) {
+                mStreams.remove(stream.mId);
+            }
+            close = mStreams.isEmpty();
+            notifyAll();
+        }
+        for (Http2Stream stream : refused) {
+            stream.onFailure(new RefusedStreamException("Stream refused by GOAWAY."));
+        }
+        if (close) {
+            // 処理中のストリームがなければ、残りのストリームの終了を待たずに閉じる
+            closeSocket();
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int increment) throws IOException {
+        if (increment == 0) {
+            throw new ProtocolException("WINDOW_UPDATE with zero increment.");
+        }
+        synchronized (this) {
+            if (streamId == 0) {
+                mSendWindow += increment;
+            } else {
+                Http2Stream stream = mStreams.get(streamId);
+                if (stream != null) {
+                    stream.mSendWindow += increment;
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private synchronized Http2Stream getStream(int streamId) {
+        return mStreams.get(streamId);
+    }
+
+    /**
+     * コネクションを終了し、待機中の全てのストリームを失敗させる。
+     *
+     * @param cause
+     */
+    private void shutdown(IOException cause) {
+        List<Http2Stream> streams;
+        synchronized (this) {
+            mShutdown = true;
+            if (mFailure == null) {
+                mFailure = cause;
+            }
+            streams = new ArrayList<Http2Stream>(mStreams.values());
+            mStreams.clear();
+            notifyAll();
+        }
+        for (Http2Stream stream : streams) {
+            stream.onFailure(cause);
+        }
+    }
+
+    private synchronized IOException failure(String message) {
+        return mFailure != null ? new IOException(message, mFailure) : new IOException(message);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, payload.length);
+    }
+
+    /**
+     * フレームを書き込む。mWriteLockを取得した状態で呼び出すこと。
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] payload,
+                            int offset, int length) throws IOException {
+        byte[] header = new byte[9];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId & 0x7fffffff);
+        mOut.write(header);
+        mOut.write(payload, offset, length);
+    }
+
+    private static void putSetting(byte[] buffer, int offset, int id, int value) {
+        buffer[offset] = (byte) (id >>> 8);
+        buffer[offset + 1] = (byte) id;
+        putInt(buffer, offset + 2, value);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    /**
+     * ALPNで提案するプロトコルを設定する。ALPNのAPIがないプラットフォームではfalseを返す。
+     */
+    private static boolean setApplicationProtocols(SSLSocket socket, String[] protocols) {
+        try {
+            SSLParameters parameters = socket.getSSLParameters();
+            Method method = SSLParameters.class.getMethod("setApplicationProtocols",
+                    String[].class);
+            method.invoke(parameters, (Object) protocols);
+            socket.setSSLParameters(parameters);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * ALPNでネゴシエーションされたプロトコルを返す。
+     */
+    private static String getApplicationProtocol(SSLSocket socket) {
+        try {
+            Method method = SSLSocket.class.getMethod("getApplicationProtocol");
+            return (String) method.invoke(socket);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 接続エラーとしてGOAWAYで通知するエラーコードを持つ例外
+     */
+    @SuppressWarnings("serial")
+    static class ConnectionErrorException extends ProtocolException {
+        final int mErrorCode;
+
+        ConnectionErrorException(int errorCode, String message) {
+            super(message);
+            mErrorCode = errorCode;
+        }
+    }
+
+    /**
+     * サーバーが処理していないストリームであり、再送できることを表す例外
+     */
+    @SuppressWarnings("serial")
+    static class RefusedStreamException extends IOException {
+        RefusedStreamException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * サーバーがHTTP/2に対応していないことを表す例外
+     */
+    @SuppressWarnings("serial")
+    static class Http2UnsupportedException extends IOException {
+        Http2UnsupportedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.FileUtils;
+import net.ultramagnetic.sugarray.util.Logger;
+import net.ultramagnetic.sugarray.util.StringUtils;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * HTTP/2でREST処理を実装したハンドラ
+ * <p>
+ * 同じホストへのリクエストは1つのコネクション上のストリームとして多重化される。
+ * HTTPSではALPNでh2をネゴシエーションし、HTTPでは事前知識(h2c prior knowledge)を指定した場合のみHTTP/2を使う。
+ * サーバーがh2に対応していない場合やプロキシ経由の場合はフォールバック先のハンドラで処理する。
+ */
+public class Http2Handler extends HttpRestHandler {
+
+    private static final String TAG = Http2Handler.class.getSimpleName();
+
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    /**
+     * HTTP/2で送信してはならないコネクション固有のヘッダー
+     */
+    private static final Set<String> CONNECTION_SPECIFIC_HEADERS = new HashSet<String>(
+            Arrays.asList("host", "connection", "keep-alive", "proxy-connection",
+                    "transfer-encoding", "upgrade"));
+
+    /**
+     * ルート毎のHTTP/2コネクション
+     */
+    private static final ConcurrentHashMap<Route, Http2Connection> sConnections = new ConcurrentHashMap<Route, Http2Connection>();
+    /**
+     * ルート毎のコネクション確立時のロック
+     */
+    private static final ConcurrentHashMap<Route, Object> sConnectLocks = new ConcurrentHashMap<Route, Object>();
+    /**
+     * h2をネゴシエーションできなかったルート
+     */
+    private static final Set<Route> sHttp1Routes = Collections
+            .synchronizedSet(new HashSet<Route>());
+
+    /**
+     * HTTP/2で処理できないリクエストのフォールバック先
+     */
+    private final HttpRestHandler mFallbackHandler;
+    /**
+     * HTTPの場合にアップグレードせずHTTP/2で接続する(h2c prior knowledge)
+     */
+    private final boolean mPriorKnowledge;
+
+    public Http2Handler() {
+        this(new HttpRestUrlHandler(), false);
+    }
+
+    public Http2Handler(HttpRestHandler fallbackHandler, boolean priorKnowledge) {
+        super();
+        if (fallbackHandler == null) {
+            throw new IllegalArgumentException(TAG + ": fallbackHandler is null.");
+        }
+        mFallbackHandler = fallbackHandler;
+        mPriorKnowledge = priorKnowledge;
+    }
+
+    @Override
+    protected HttpResponse execute(RequestOption option,
+                                   Sugarray.ProgressUpdateListener progressUpdateListener) throws IOException {
+        if (option == null) {
+            throw new IllegalArgumentException(TAG + ": option is null.");
+        }
+        if (progressUpdateListener == null) {
+            progressUpdateListener = new Sugarray.ProgressUpdateListener() {
+                @Override
+                public void onProgressUpdate(long totalBytes, long progressBytes) {
+                    Logger.i(TAG, "Total: " + totalBytes + "byte, Progress: "
+                            + progressBytes + "byte");
+                }
+            };
+        }
+        URL url = new URL(option.makeUrl());
+        boolean secure = Protocol.HTTPS.value().equals(url.getProtocol());
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        SSLSocketFactory sslSocketFactory = null;
+        if (secure) {
+            sslSocketFactory = TlsSessionManager.getInstance().wrap(option.mSSLSocketFactory);
+        }
+        Route route = new Route(url.getProtocol() + "://" + url.getHost() + ":" + port,
+                sslSocketFactory);
+        boolean viaProxy = StringUtils.isNotEmpty(option.mProxyhost)
+                && (0 <= option.mProxyPort && option.mProxyPort <= 65535);
+        // 長さの分からないメッセージボディはHTTP/1.1のチャンク形式で送信する
+        if (viaProxy || (!secure && !mPriorKnowledge) || sHttp1Routes.contains(route)
+                || UploadStrategy.select(option) == UploadStrategy.CHUNKED) {
+            return mFallbackHandler.execute(option, progressUpdateListener);
+        }
+        List<String[]> headers = createRequestHeaders(option, url, port);
+        long contentLength = hasRequestBody(option) ? option.contentLength() : 0;
+        boolean retried = false;
+        while (true) {
+            Http2Connection connection;
+            try {
+                connection = getConnection(route, url.getHost(), port,
+                        option.mHostResolver, option.mTimeout);
+            } catch (Http2Connection.Http2UnsupportedException e) {
+                Logger.d(TAG, "Fall back to HTTP/1.1: " + route + " " + e.getMessage());
+                sHttp1Routes.add(route);
+                return mFallbackHandler.execute(option, progressUpdateListener);
+            }
+            InputStream body = contentLength > 0 ? option.openBody() : null;
+            try {
+                Http2Stream stream = connection.newStream(headers, body, contentLength,
+                        progressUpdateListener);
+                stream.awaitHeaders(option.mTimeout);
+                return createHttpResponse(stream, option.mTimeout);
+            } catch (Http2Connection.RefusedStreamException e) {
+                // サーバーが処理していないストリームは再送できる。
+                // RST_STREAMで拒否された場合は同じコネクションを使い続け、
+                // GOAWAYで拒否された場合は新しいコネクションを確立する
+                if (retried) {
+                    throw e;
+                }
+                retried = true;
+            } finally {
+                FileUtils.closeQuietly(body);
+            }
+        }
+    }
+
+    /**
+     * ルートのHTTP/2コネクションを取得する。なければ確立する。
+     */
+    private static Http2Connection getConnection(Route route, String host, int port,
+                                                 HostResolver hostResolver, int timeout)
+            throws IOException {
+        Http2Connection connection = sConnections.get(route);
+        if (connection != null && connection.isUsable()) {
+            return connection;
+        }
+        while (true) {
+            Object lock = new Object();
+            Object current = sConnectLocks.putIfAbsent(route, lock);
+            if (current != null) {
+                lock = current;
+            }
+            synchronized (lock) {
+                if (sConnectLocks.get(route) != lock) {
+                    // 待っている間に確立が終わり、ロックが取り除かれた
+                    continue;
+                }
+                try {
+                    connection = sConnections.get(route);
+                    if (connection != null && connection.isUsable()) {
+                        return connection;
+                    }
+                    if (connection != null) {
+                        sConnections.remove(route, connection);
+                        connection.goAway();
+                    }
+                    connection = Http2Connection.connect(route.toString(), host, port,
+                            route.mSSLSocketFactory, hostResolver, timeout);
+                    sConnections.put(route, connection);
+                    return connection;
+                } finally {
+                    // 接続したルートのロックを残し続けない
+                    sConnectLocks.remove(route, lock);
+                }
+            }
+        }
+    }
+
+    /**
+     * HTTP/2コネクションを共有できるルート
+     * <p>
+     * 同じホストでも異なるSSLSocketFactoryで確立したコネクションは共有しない。
+     * SSLSocketFactoryはequalsを実装していないことがあるため同一インスタンスかどうかで比較する。
+     */
+    private static final class Route {
+
+        private final String mKey;
+        private final SSLSocketFactory mSSLSocketFactory;
+
+        Route(String key, SSLSocketFactory sslSocketFactory) {
+            mKey = key;
+            mSSLSocketFactory = sslSocketFactory;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Route)) {
+                return false;
+            }
+            Route route = (Route) o;
+            return mKey.equals(route.mKey) && mSSLSocketFactory == route.mSSLSocketFactory;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mKey.hashCode() + System.identityHashCode(mSSLSocketFactory);
+        }
+
+        @Override
+        public String toString() {
+            return mKey;
+        }
+    }
+
+    /**
+     * 疑似ヘッダーを含むリクエストヘッダーを生成する。
+     */
+    private static List<String[]> createRequestHeaders(RequestOption option, URL url,
+                                                       int port) {
+        List<String[]> headers = new ArrayList<String[]>();
+        String path = url.getFile();
+        headers.add(new String[]{":method", option.mMethod.name()});
+        headers.add(new String[]{":scheme", url.getProtocol()});
+        headers.add(new String[]{":authority", url.getPort() != -1 ? url.getHost() + ":"
+                + port : url.getHost()});
+        headers.add(new String[]{":path", path.length() == 0 ? "/" : path});
+        boolean hasContentLength = false;
+        for (Map.Entry<String, String> header : option.mHeaders.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.US);
+            if (CONNECTION_SPECIFIC_HEADERS.contains(name) || header.getValue() == null) {
+                continue;
+            }
+            hasContentLength |= "content-length".equals(name);
+            headers.add(new String[]{name, header.getValue()});
+            Logger.d(TAG, "" + name + ": " + header.getValue());
+        }
+        if (hasRequestBody(option) && !hasContentLength
+                && UploadStrategy.select(option) == UploadStrategy.FIXED_LENGTH) {
+            headers.add(new String[]{"content-length", String.valueOf(option.contentLength())});
+        }
+        if (option.contentEncoding() != null) {
+            headers.add(new String[]{"content-encoding", option.contentEncoding()});
+        }
+        String acceptEncoding = option.acceptEncoding();
+        if (acceptEncoding != null) {
+            headers.add(new String[]{"accept-encoding", acceptEncoding});
+        }
+        return headers;
+    }
+
+    /**
+     * 受信したストリームからHttpResponseを生成する。メッセージボディは受信しながら読み込む。
+     */
+    private static HttpResponse createHttpResponse(Http2Stream stream, int timeout)
+            throws IOException {
+        List<String[]> headers = stream.getHeaders();
+        if (headers == null) {
+            throw new ProtocolException("Stream " + stream.mId + " ended without headers.");
+        }
+        int statusCode;
+        try {
+            statusCode = Integer.parseInt(Http2Stream.find(headers, ":status"));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid :status header.");
+        }
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HTTP_2,
+                statusCode, ""));
+        for (String[] header : headers) {
+            if (!header[0].startsWith(":")) {
+                response.addHeader(header[0], header[1]);
+            }
+        }
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(stream.getBody(timeout));
+        entity.setContentLength(parseContentLength(Http2Stream.find(headers, "content-length")));
+        entity.setContentEncoding(Http2Stream.find(headers, "content-encoding"));
+        entity.setContentType(Http2Stream.find(headers, "content-type"));
+        response.setEntity(entity);
+        return response;
+    }
+
+    private static long parseContentLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean hasRequestBody(RequestOption option) {
+        return option.hasBody() && option.contentLength() > 0;
+    }
+}
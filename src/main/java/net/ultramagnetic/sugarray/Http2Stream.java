@@ -0,0 +1,297 @@
+package net.ultramagnetic.sugarray;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * HTTP/2コネクション上の1つのストリーム(1組のリクエストとレスポンス)
+ * <p>
+ * 受信したメッセージボディはアプリケーションが読み込むまで保持し、読み込んだ分だけストリームのウィンドウを返却する。
+ * そのため保持するデータ量は受信ウィンドウのサイズを超えない。
+ */
+class Http2Stream {
+
+    /**
+     * ストリームID
+     */
+    final int mId;
+    /**
+     * 送信ウィンドウ。Http2Connectionのロックを取得して操作する。
+     */
+    long mSendWindow;
+
+    private final Http2Connection mConnection;
+    /**
+     * 受信済みでアプリケーションが読み込んでいないデータ
+     */
+    private final LinkedList<byte[]> mChunks = new LinkedList<byte[]>();
+    private int mChunkOffset;
+    private List<String[]> mHeaders;
+    private boolean mComplete;
+    /**
+     * 失敗の原因。Http2Connectionのロック内からも参照するためvolatileとする。
+     */
+    private volatile IOException mFailure;
+    private int mUnacknowledgedBytes;
+    private long mLastActivity = System.currentTimeMillis();
+    /**
+     * 完了または失敗していればtrue。Http2Connectionのロック内からも参照するためvolatileとする。
+     * <p>
+     * Http2Connectionのロックを取得した状態でストリームのロックを取得しないこと。
+     * 逆順(ストリーム→コネクション)も避けるため、コネクションからの取り除きはストリームのロックの外で行う。
+     */
+    private volatile boolean mClosed;
+
+    Http2Stream(Http2Connection connection, int id, int sendWindow) {
+        mConnection = connection;
+        mId = id;
+        mSendWindow = sendWindow;
+    }
+
+    void onHeaders(List<String[]> headers, boolean endStream) {
+        synchronized (this) {
+            mLastActivity = System.currentTimeMillis();
+            String status = find(headers, ":status");
+            if (mHeaders == null && status != null && !status.startsWith("1")) {
+                mHeaders = headers;
+            }
+            if (endStream) {
+                complete();
+            }
+            notifyAll();
+        }
+        if (endStream) {
+            mConnection.removeStream(mId);
+        }
+    }
+
+    void onData(byte[] data, int offset, int length, boolean endStream) {
+        synchronized (this) {
+            mLastActivity = System.currentTimeMillis();
+            if (length > 0) {
+                byte[] chunk = new byte[length];
+                System.arraycopy(data, offset, chunk, 0, length);
+                mChunks.add(chunk);
+            }
+            if (endStream) {
+                complete();
+            }
+            notifyAll();
+        }
+        if (endStream) {
+            mConnection.removeStream(mId);
+        }
+    }
+
+    /**
+     * アプリケーションが読み込んだデータ分のウィンドウを計上する。
+     *
+     * @param length
+     * @param windowSize 受信ウィンドウのサイズ
+     * @return WINDOW_UPDATEで返却するバイト数、返却しない場合は0
+     */
+    synchronized int consumed(int length, int windowSize) {
+        mUnacknowledgedBytes += length;
+        if (mUnacknowledgedBytes < windowSize / 2) {
+            return 0;
+        }
+        int increment = mUnacknowledgedBytes;
+        mUnacknowledgedBytes = 0;
+        return increment;
+    }
+
+    void onReset(int errorCode) {
+        if (errorCode == Http2Connection.ERROR_REFUSED_STREAM) {
+            // サーバーが処理する前に拒否したストリームは再送できる
+            onFailure(new Http2Connection.RefusedStreamException("Stream " + mId
+                    + " refused by peer."));
+        } else {
+            onFailure(new IOException("Stream " + mId + " reset by peer. errorCode="
+                    + errorCode));
+        }
+    }
+
+    synchronized void onFailure(IOException cause) {
+        if (!mComplete && mFailure == null) {
+            mFailure = cause;
+            mClosed = true;
+            notifyAll();
+        }
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    IOException getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * レスポンスヘッダーの受信を待つ。
+     *
+     * @param timeout 無通信状態を許容する時間(MS)
+     * @throws IOException 失敗した場合、またはタイムアウトした場合
+     */
+    void awaitHeaders(int timeout) throws IOException {
+        IOException error = null;
+        synchronized (this) {
+            try {
+                while (mHeaders == null && !mComplete && mFailure == null) {
+                    long remaining = remaining(timeout);
+                    if (remaining <= 0) {
+                        error = new SocketTimeoutException("No response for " + timeout
+                                + "ms on stream " + mId + ".");
+                        break;
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException("Interrupted while waiting for response.");
+            }
+            if (error == null && mFailure != null) {
+                throw mFailure;
+            }
+        }
+        if (error != null) {
+            cancel();
+            throw error;
+        }
+    }
+
+    synchronized List<String[]> getHeaders() {
+        return mHeaders;
+    }
+
+    /**
+     * メッセージボディを受信しながら読み込むストリームを返す。
+     * 最後まで読み込まずに閉じた場合はストリームをキャンセルする。
+     *
+     * @param timeout 無通信状態を許容する時間(MS)
+     * @return InputStream
+     */
+    InputStream getBody(final int timeout) {
+        return new InputStream() {
+            private boolean mEof;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int length = readChunk(b, off, len, timeout);
+                if (length == -1) {
+                    mEof = true;
+                } else {
+                    mConnection.streamConsumed(Http2Stream.this, length);
+                }
+                return length;
+            }
+
+            @Override
+            public int available() {
+                synchronized (Http2Stream.this) {
+                    return mChunks.isEmpty() ? 0 : mChunks.getFirst().length - mChunkOffset;
+                }
+            }
+
+            @Override
+            public void close() {
+                if (!mEof) {
+                    cancel();
+                }
+            }
+        };
+    }
+
+    private int readChunk(byte[] b, int off, int len, int timeout) throws IOException {
+        IOException error = null;
+        synchronized (this) {
+            try {
+                while (mChunks.isEmpty() && !mComplete && mFailure == null) {
+                    long remaining = remaining(timeout);
+                    if (remaining <= 0) {
+                        error = new SocketTimeoutException("No data for " + timeout
+                                + "ms on stream " + mId + ".");
+                        break;
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException("Interrupted while reading body.");
+            }
+            if (error == null) {
+                if (mChunks.isEmpty()) {
+                    if (mFailure != null) {
+                        throw mFailure;
+                    }
+                    return -1;
+                }
+                byte[] chunk = mChunks.getFirst();
+                int length = Math.min(len, chunk.length - mChunkOffset);
+                System.arraycopy(chunk, mChunkOffset, b, off, length);
+                mChunkOffset += length;
+                if (mChunkOffset == chunk.length) {
+                    mChunks.removeFirst();
+                    mChunkOffset = 0;
+                }
+                return length;
+            }
+        }
+        cancel();
+        throw error;
+    }
+
+    /**
+     * 最後に受信してからタイムアウトするまでの残り時間を返す。
+     * HttpURLConnectionと同じく、0以下のタイムアウトは無制限とする。
+     *
+     * @param timeout 無通信状態を許容する時間(MS)
+     * @return 残り時間(MS)
+     */
+    private long remaining(int timeout) {
+        if (timeout <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return mLastActivity + timeout - System.currentTimeMillis();
+    }
+
+    /**
+     * 受信を中断し、サーバーにストリームのキャンセルを通知する。
+     */
+    private void cancel() {
+        boolean reset;
+        synchronized (this) {
+            reset = !mComplete;
+            mChunks.clear();
+            onFailure(new IOException("Stream " + mId + " cancelled."));
+        }
+        if (reset) {
+            mConnection.resetStream(this, Http2Connection.ERROR_CANCEL);
+        }
+    }
+
+    private void complete() {
+        mComplete = true;
+        mClosed = true;
+    }
+
+    static String find(List<String[]> headers, String name) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+}
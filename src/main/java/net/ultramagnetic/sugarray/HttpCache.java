@@ -0,0 +1,644 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.FileUtils;
+import net.ultramagnetic.sugarray.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * GETリクエストのレスポンスをディスクに保存するHTTPキャッシュ(RFC 7234)
+ * <p>
+ * Cache-Control、Expires、Varyヘッダーと、Last-Modifiedからの鮮度の推測に従い、
+ * 鮮度が残っているレスポンスは通信せずに返す。鮮度がなくなったレスポンスはETagとLast-Modifiedで条件付きリクエストを送信し、
+ * 304が返されれば保存したメッセージボディを再利用する。
+ * 1つのURLにつき1ファイルで保存し、合計サイズが上限を超えた場合は最も長く使われていないものから削除する。
+ * エントリーの一覧はCacheJournalに記録し、開く際にエントリーのファイルを1つずつ調べずに復元する。
+ * 一覧とファイルはCacheJournalのロックを取得してから変更するため、同じディレクトリを複数のプロセスで共有できる。
+ * 他のプロセスが保存したレスポンスも、次にロックを取得した際に一覧に反映して返す。
+ * メモリに読み込んだレスポンスのみを保存し、ファイルへのダウンロードやストリームで受信するレスポンスは対象外とする。
+ */
+public class HttpCache {
+
+    private static final String TAG = HttpCache.class.getSimpleName();
+
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * 書き込み中に終了したとみなす一時ファイルの経過時間
+     */
+    private static final long TEMP_FILE_EXPIRATION = 60 * 1000;
+
+    /**
+     * エントリーの一覧を先読みするスレッド
+     */
+    private static final ExecutorService PRELOAD_EXECUTOR = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    /**
+     * キー毎のエントリーの情報(最も長く使われていない順)
+     */
+    private final LinkedHashMap<String, CacheJournal.Metadata> mEntries =
+            new LinkedHashMap<String, CacheJournal.Metadata>(16, 0.75f, true);
+    private final CacheJournal mJournal;
+    private long mSize;
+    private volatile boolean mInitialized;
+
+    /**
+     * @param directory 保存先のディレクトリ
+     */
+    public HttpCache(File directory) {
+        this(directory, SugarrayConstants.DefaultCacheConfig.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param directory 保存先のディレクトリ
+     * @param maxSize   保存するレスポンスの合計サイズの上限(byte)
+     */
+    public HttpCache(File directory, long maxSize) {
+        if (directory == null) {
+            throw new IllegalArgumentException(TAG + ": directory is null.");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException(TAG + ": maxSize is minus. " + maxSize);
+        }
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mJournal = new CacheJournal(directory,
+                SugarrayConstants.DefaultCacheConfig.DEFAULT_JOURNAL_COMPACT_THRESHOLD);
+    }
+
+    /**
+     * @return 保存先のディレクトリ
+     */
+    public File directory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return 合計サイズの上限(byte)
+     */
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * エントリーの一覧をバックグラウンドのスレッドで読み込む。
+     * 読み込みが終わる前にキャッシュを使った場合は、そのスレッドで読み込みの完了を待つ。
+     */
+    public void preload() {
+        if (mInitialized) {
+            return;
+        }
+        PRELOAD_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                lock();
+                unlock();
+            }
+        });
+    }
+
+    /**
+     * @return 保存しているレスポンスの合計サイズ(byte)
+     */
+    public long size() {
+        lock();
+        try {
+            return mSize;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 指定したURLのレスポンスを削除する。
+     *
+     * @param url クエリパラメーターを含むURL
+     */
+    public void remove(String url) {
+        if (url != null) {
+            removeEntry(key(url));
+        }
+    }
+
+    /**
+     * 保存している全てのレスポンスを削除する。
+     */
+    public void evictAll() {
+        lock();
+        try {
+            for (String key : new ArrayList<String>(mEntries.keySet())) {
+                removeEntry(key);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 保存したレスポンスを探し、鮮度が残っていればそのレスポンスを、
+     * 鮮度がなくETagまたはLast-Modifiedを持っていれば条件付きリクエストを返す。
+     * 通信できない場合に返せるよう、鮮度に関わらず保存したレスポンスも返す。
+     *
+     * @param option リクエスト
+     * @param now    現在時刻
+     * @return Lookup
+     */
+    Lookup lookup(RequestOption option, long now) {
+        if (!isCacheable(option) || hasConditions(option)) {
+            return new Lookup(option, option, null, null, null);
+        }
+        String url = option.makeUrl();
+        CacheEntry entry = read(key(url), true);
+        if (entry == null || !url.equals(entry.mUrl) || !entry.matchesVary(option)) {
+            return new Lookup(option, option, null, null, null);
+        }
+        if (entry.isFresh(CacheControl.parse(option.mHeaders), now)) {
+            Logger.d(TAG, "Cache hit. " + url);
+            return new Lookup(option, option, entry, entry.toResponse(now, true), null);
+        }
+        SugarrayResponse staleResponse = option.mStaleWhileRevalidate
+                && entry.isServableWhileRevalidating(CacheControl.parse(option.mHeaders),
+                option.mMaxStale, now) ? entry.toResponse(now, true) : null;
+        RequestOption request = entry.conditionalRequest(option);
+        if (request == null) {
+            return new Lookup(option, option, entry, null, staleResponse);
+        }
+        Logger.d(TAG, "Revalidate cache. " + url);
+        return new Lookup(option, request, entry, null, staleResponse);
+    }
+
+    /**
+     * 受信したレスポンスを保存できれば保存する。
+     * 条件付きリクエストに304が返された場合は、保存したレスポンスのヘッダーを更新し、保存したメッセージボディを持つレスポンスを返す。
+     * 安全でないメソッド(POST、PUT、DELETE)が成功した場合は、そのURLのレスポンスを削除する(RFC 7234 4.4)。
+     *
+     * @param lookup       送信前に取得したLookup
+     * @param response     受信したレスポンス
+     * @param requestTime  リクエストを送信した時刻
+     * @param responseTime レスポンスを受信した時刻
+     * @return 呼び出し元に返すレスポンス
+     */
+    SugarrayResponse put(Lookup lookup, SugarrayResponse response, long requestTime,
+                         long responseTime) {
+        RequestOption option = lookup.mOption;
+        String url = option.makeUrl();
+        if (option.mMethod != SugarrayConstants.Method.GET
+                && option.mMethod != SugarrayConstants.Method.HEAD) {
+            if (response.mStatusCode < 400) {
+                remove(url);
+            }
+            return response;
+        }
+        if (response.mStatusCode == 304 && lookup.mEntry != null) {
+            return revalidated(lookup, response, requestTime, responseTime);
+        }
+        CacheEntry entry = CacheEntry.create(option, response, requestTime, responseTime);
+        if (entry == null) {
+            return response;
+        }
+        if (!entry.hasValidator()
+                && entry.freshnessLifetime(CacheControl.parse(response.mHeaders)) <= 0) {
+            // 鮮度も検証手段もないレスポンスは再利用できない
+            return response;
+        }
+        write(key(url), entry);
+        return response;
+    }
+
+    /**
+     * 304のヘッダーで保存したレスポンスのヘッダーを更新し(RFC 7234 4.3.4)、保存したメッセージボディを持つレスポンスを返す。
+     */
+    private SugarrayResponse revalidated(Lookup lookup, SugarrayResponse response,
+                                         long requestTime, long responseTime) {
+        CacheEntry stored = lookup.mEntry;
+        CacheEntry entry = stored.revalidate(response, requestTime, responseTime);
+        String key = key(stored.mUrl);
+        if (CacheControl.parse(lookup.mOption.mHeaders).mNoStore
+                || CacheControl.parse(entry.mHeaders).mNoStore) {
+            removeEntry(key);
+        } else {
+            write(key, entry);
+        }
+        Logger.d(TAG, "Cache revalidated. " + stored.mUrl);
+        return entry.toResponse(responseTime, true);
+    }
+
+    /**
+     * キャッシュを使えるリクエストかどうかを判定する。
+     *
+     * @param option リクエスト
+     * @return Rangeヘッダーを持たない、メモリに読み込むGETリクエストであればtrue
+     */
+    static boolean isCacheable(RequestOption option) {
+        // 保存した200のレスポンスを、Rangeリクエストのレスポンスとして返さない
+        return option.mMethod == SugarrayConstants.Method.GET && option.mDownloadFile == null
+                && option.mBodyStreamListener == null
+                && header(option.mHeaders, SugarrayConstants.HeaderFields.RANGE) == null;
+    }
+
+    /**
+     * 呼び出し元が条件付きリクエストを指定したかどうかを判定する。その場合はキャッシュを使わずサーバーに判断させる。
+     *
+     * @param option リクエスト
+     * @return If-None-MatchまたはIf-Modified-Sinceが指定されていればtrue
+     */
+    static boolean hasConditions(RequestOption option) {
+        return header(option.mHeaders, SugarrayConstants.HeaderFields.IF_NONE_MATCH) != null
+                || header(option.mHeaders, SugarrayConstants.HeaderFields.IF_MODIFIED_SINCE) != null;
+    }
+
+    /**
+     * エントリーのファイルを読み込む。読み込めなければ壊れたエントリーとして削除する。
+     *
+     * @param key      キー
+     * @param withBody メッセージボディも読み込む場合はtrue
+     * @return CacheEntry、なければnull
+     */
+    private CacheEntry read(String key, boolean withBody) {
+        lock();
+        try {
+            if (mEntries.get(key) == null) {
+                return null;
+            }
+            // 再起動後も使われた順序を復元できるよう、ジャーナルに記録する
+            mJournal.read(key);
+            compactIfNeeded();
+        } finally {
+            unlock();
+        }
+        File file = entryFile(key);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return CacheEntry.readFrom(in, withBody);
+        } catch (FileNotFoundException e) {
+            lock();
+            try {
+                // 別のスレッドが削除した場合を除き、外部で削除されたファイルを一覧からも削除する
+                if (!file.exists()) {
+                    removeEntry(key);
+                }
+            } finally {
+                unlock();
+            }
+            return null;
+        } catch (IOException e) {
+            Logger.e(TAG, "Invalid cache entry. " + file, e);
+            removeEntry(key);
+            return null;
+        } finally {
+            FileUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * エントリーを一時ファイルに書き込んでから置き換え、上限を超えた分を削除する。
+     */
+    private void write(String key, CacheEntry entry) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Logger.e(TAG, "Could not create directory. " + mDirectory);
+            return;
+        }
+        File temp = null;
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            // 他のプロセスと同じキーを同時に書き込んでも衝突しない名前にする
+            temp = File.createTempFile(key + ".", TEMP_SUFFIX, mDirectory);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            entry.writeTo(out);
+            out.close();
+            out = null;
+            written = true;
+        } catch (IOException e) {
+            Logger.e(TAG, "Could not write cache entry. " + entry.mUrl, e);
+        } finally {
+            FileUtils.closeQuietly(out);
+            if (!written && temp != null && temp.exists() && !temp.delete()) {
+                Logger.e(TAG, "Could not delete temporary file. " + temp);
+            }
+        }
+        if (!written) {
+            return;
+        }
+        lock();
+        try {
+            File file = entryFile(key);
+            if (!temp.renameTo(file)) {
+                Logger.e(TAG, "Could not rename cache entry. " + file);
+                if (!temp.delete()) {
+                    Logger.e(TAG, "Could not delete temporary file. " + temp);
+                }
+                return;
+            }
+            CacheJournal.Metadata metadata = new CacheJournal.Metadata(file.length(),
+                    entry.expirationTime(), entry.hasValidator());
+            CacheJournal.Metadata previous = mEntries.put(key, metadata);
+            mSize += metadata.mSize - (previous != null ? previous.mSize : 0);
+            mJournal.put(key, metadata);
+            trimToSize();
+            compactIfNeeded();
+        } finally {
+            unlock();
+        }
+    }
+
+    private void removeEntry(String key) {
+        lock();
+        try {
+            CacheJournal.Metadata metadata = mEntries.remove(key);
+            if (metadata != null) {
+                mSize -= metadata.mSize;
+                // 削除したファイルを一覧に残さないよう、ファイルより先にジャーナルに記録する
+                mJournal.remove(key);
+            }
+            File file = entryFile(key);
+            if (file.exists() && !file.delete()) {
+                Logger.e(TAG, "Could not delete cache entry. " + file);
+            }
+            compactIfNeeded();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 他のスレッドとプロセスを排他するロックを取得し、初回はエントリーの一覧を読み込み、
+     * 以降は他のプロセスが書き込んだ変更を一覧に反映する。
+     */
+    private void lock() {
+        if (!mJournal.lock()) {
+            return;
+        }
+        if (!mInitialized) {
+            initialize();
+        } else if (mJournal.sync(mEntries)) {
+            if (!mJournal.isLoaded()) {
+                // 他のプロセスが書き出したスナップショットを読み込めなければ、ディレクトリから一覧を作成し直す
+                scanDirectory();
+            }
+            // ジャーナルに追記できていない自分の変更を、読み込み直した一覧に重ねる
+            mJournal.applyPending(mEntries);
+            applyEntries();
+        }
+    }
+
+    private void unlock() {
+        mJournal.unlock();
+    }
+
+    /**
+     * 合計サイズが上限以下になるまで、最も長く使われていないエントリーから削除する。
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, CacheJournal.Metadata>> iterator = mEntries.entrySet()
+                .iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            Map.Entry<String, CacheJournal.Metadata> eldest = iterator.next();
+            iterator.remove();
+            mSize -= eldest.getValue().mSize;
+            mJournal.remove(eldest.getKey());
+            File file = entryFile(eldest.getKey());
+            Logger.d(TAG, "Evict cache entry. " + file);
+            if (file.exists() && !file.delete()) {
+                Logger.e(TAG, "Could not delete cache entry. " + file);
+            }
+        }
+    }
+
+    /**
+     * 初回のアクセス時に、ジャーナルからエントリーの一覧を読み込む。
+     */
+    private void initialize() {
+        mInitialized = true;
+        if (!mJournal.load(mEntries)) {
+            // ジャーナルがなければ、保存先のディレクトリから一度だけ一覧を作成する
+            scanDirectory();
+        }
+        applyEntries();
+    }
+
+    /**
+     * 読み込んだ一覧から合計サイズを計算し、上限を超えた分を削除する。
+     */
+    private void applyEntries() {
+        mSize = 0;
+        for (CacheJournal.Metadata metadata : mEntries.values()) {
+            mSize += metadata.mSize;
+        }
+        trimToSize();
+        compactIfNeeded();
+    }
+
+    /**
+     * 保存先のディレクトリのエントリーのファイルを、更新日時を使われた時刻として一覧に追加する。
+     */
+    private void scanDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> entryFiles = new ArrayList<File>();
+        for (File file : files) {
+            // 書き込み中に終了した一時ファイルは、スナップショットを書き出した後に削除する
+            if (file.getName().endsWith(ENTRY_SUFFIX)) {
+                entryFiles.add(file);
+            }
+        }
+        File[] sorted = entryFiles.toArray(new File[entryFiles.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : sorted) {
+            String name = file.getName();
+            // 鮮度と検証手段は、エントリーを読み込むまで分からない
+            mEntries.put(name.substring(0, name.length() - ENTRY_SUFFIX.length()),
+                    new CacheJournal.Metadata(file.length(), 0, false));
+        }
+    }
+
+    /**
+     * ジャーナルが大きくなっていればスナップショットに書き出し、一覧にないファイルを削除する。
+     * スナップショットはsyncでディスク上の状態を反映した一覧からのみ書き出される。
+     */
+    private void compactIfNeeded() {
+        if (mJournal.needsCompaction(mEntries.size()) && mJournal.compact(mEntries)) {
+            deleteOrphans();
+        }
+    }
+
+    /**
+     * ジャーナルに記録する前に終了したエントリーのファイルと、書き込み中に終了した一時ファイルを削除する。
+     * 一覧にないエントリーのファイルは、最後にディスク上の状態を反映した時刻より十分に古いもののみ削除し、
+     * 反映した後に他のプロセスが追加したファイルは削除しない。
+     */
+    private void deleteOrphans() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long expiration = System.currentTimeMillis() - TEMP_FILE_EXPIRATION;
+        // ファイルシステムの更新日時の精度を考慮し、書き込み中の一時ファイルと同じ猶予を設ける
+        long syncExpiration = mJournal.syncTime() - TEMP_FILE_EXPIRATION;
+        for (File file : files) {
+            String name = file.getName();
+            boolean orphan = false;
+            if (name.endsWith(ENTRY_SUFFIX)) {
+                orphan = file.lastModified() < syncExpiration && !mEntries.containsKey(
+                        name.substring(0, name.length() - ENTRY_SUFFIX.length()));
+            } else if (name.endsWith(TEMP_SUFFIX)) {
+                orphan = file.lastModified() < expiration;
+            }
+            if (orphan && !file.delete()) {
+                Logger.e(TAG, "Could not delete orphan file. " + file);
+            }
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(mDirectory, key + ENTRY_SUFFIX);
+    }
+
+    /**
+     * URLからファイル名に使うキーを生成する。
+     *
+     * @param url URL
+     * @return URLのMD5の16進数表記
+     */
+    static String key(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(TAG + ": MD5 is not supported.", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(TAG + ": UTF-8 is not supported.", e);
+        }
+    }
+
+    /**
+     * リクエストで送信するヘッダーの値を返す。Accept-Encodingは指定がなければ自動的に付与する値を返す。
+     *
+     * @param option リクエスト
+     * @param name   フィールド名(大文字と小文字を区別しない)
+     * @return 値、送信しなければnull
+     */
+    static String requestHeader(RequestOption option, String name) {
+        String value = header(option.mHeaders, name);
+        if (value == null
+                && SugarrayConstants.HeaderFields.ACCEPT_ENCODING.equalsIgnoreCase(name)) {
+            return option.acceptEncoding();
+        }
+        return value;
+    }
+
+    /**
+     * 大文字と小文字を区別せずにヘッダーの値を返す。
+     *
+     * @param headers ヘッダー
+     * @param name    フィールド名
+     * @return 値、なければnull
+     */
+    static String header(Map<String, String> headers, String name) {
+        if (headers == null || name == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 大文字と小文字を区別せずにヘッダーを削除する。
+     *
+     * @param headers ヘッダー
+     * @param name    フィールド名
+     */
+    static void removeHeader(Map<String, String> headers, String name) {
+        Iterator<String> iterator = headers.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (name.equalsIgnoreCase(iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 送信前にキャッシュを探した結果
+     */
+    static class Lookup {
+        /**
+         * 呼び出し元が指定したリクエスト
+         */
+        final RequestOption mOption;
+        /**
+         * 送信するリクエスト、保存したレスポンスを検証する場合は条件付きリクエスト
+         */
+        final RequestOption mRequest;
+        /**
+         * 保存したレスポンス(鮮度に関わらない)、なければnull
+         */
+        final CacheEntry mEntry;
+        /**
+         * 通信せずに返すレスポンス、通信が必要な場合はnull
+         */
+        final SugarrayResponse mCachedResponse;
+        /**
+         * stale-while-revalidateで先に返す鮮度がなくなったレスポンス、なければnull
+         */
+        final SugarrayResponse mStaleResponse;
+
+        Lookup(RequestOption option, RequestOption request, CacheEntry entry,
+               SugarrayResponse cachedResponse, SugarrayResponse staleResponse) {
+            mOption = option;
+            mRequest = request;
+            mEntry = entry;
+            mCachedResponse = cachedResponse;
+            mStaleResponse = staleResponse;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.Logger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.SingleClientConnManager;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HttpRestClientHandlerの全インスタンスで共有する、Keep-Aliveコネクションのプール
+ */
+public class HttpClientConnectionPool {
+
+    private static final String TAG = HttpClientConnectionPool.class.getSimpleName();
+
+    /**
+     * 設定の変更で置き換えたプールのコネクションが返却されたか確認する間隔(MS)
+     */
+    private static final long RETIRE_CHECK_INTERVAL = 1000;
+
+    /**
+     * プロセスで唯一のインスタンス
+     */
+    private static HttpClientConnectionPool sInstance;
+
+    /**
+     * プールとプールを使わないリクエストで共有するパラメーター
+     */
+    private final HttpParams mParams;
+    /**
+     * プールとプールを使わないリクエストで共有するスキーム
+     */
+    private final SchemeRegistry mSchemeRegistry;
+    /**
+     * スレッドセーフなコネクションマネージャー
+     */
+    private final ThreadSafeClientConnManager mConnManager;
+    /**
+     * コネクションマネージャーを共有するHTTPクライアント
+     */
+    private final DefaultHttpClient mClient;
+    /**
+     * アイドル状態のコネクションを破棄するスレッド
+     */
+    private final ScheduledExecutorService mEvictor;
+    /**
+     * ルート毎の最大コネクション数
+     */
+    private final int mMaxPerRoute;
+    /**
+     * 全体の最大コネクション数
+     */
+    private final int mMaxTotal;
+    /**
+     * アイドル状態のコネクションを保持する時間(MS)
+     */
+    private final long mIdleTimeout;
+    /**
+     * プールを利用したリクエスト数
+     */
+    private final AtomicLong mRequestCount = new AtomicLong();
+    /**
+     * アイドル状態のコネクションの破棄を実行した回数
+     */
+    private final AtomicLong mEvictionRunCount = new AtomicLong();
+    /**
+     * 実行中のリクエスト数
+     */
+    private int mActiveRequests;
+    /**
+     * 置き換えられた後、全てのコネクションが返却されて閉じた場合はtrue
+     */
+    private boolean mRetired;
+
+    private HttpClientConnectionPool(int maxTotal, int maxPerRoute, long idleTimeout) {
+        mMaxTotal = maxTotal;
+        mMaxPerRoute = maxPerRoute;
+        mIdleTimeout = idleTimeout;
+
+        HttpParams params = new BasicHttpParams();
+        mParams = params;
+        ConnManagerParams.setMaxTotalConnections(params, maxTotal);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxPerRoute));
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", new ResolvingSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", new ResolvingSocketFactory.Secure(), 443));
+        mSchemeRegistry = schemeRegistry;
+
+        mConnManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+        mClient = new DefaultHttpClient(mConnManager, params);
+        mClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0,
+                false));
+
+        mEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mEvictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * デフォルト設定でプールを取得する。
+     *
+     * @return HttpClientConnectionPoolのインスタンス
+     */
+    public static synchronized HttpClientConnectionPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new HttpClientConnectionPool(
+                    SugarrayConstants.DefaultConnectionPoolConfig.DEFAULT_MAX_TOTAL,
+                    SugarrayConstants.DefaultConnectionPoolConfig.DEFAULT_MAX_PER_ROUTE,
+                    SugarrayConstants.DefaultConnectionPoolConfig.DEFAULT_IDLE_TIMEOUT);
+        }
+        return sInstance;
+    }
+
+    /**
+     * プールの設定を変更する。次回以降のリクエストから新しい設定のプールが使われる。
+     * 既存のプールは、利用中のコネクションが全て返却された時点で閉じられる。
+     *
+     * @param maxTotal    全体の最大コネクション数
+     * @param maxPerRoute ルート毎の最大コネクション数
+     * @param idleTimeout アイドル状態のコネクションを保持する時間(MS)
+     */
+    public static synchronized void configure(int maxTotal, int maxPerRoute, long idleTimeout) {
+        if (maxTotal <= 0 || maxPerRoute <= 0 || idleTimeout <= 0) {
+            throw new IllegalArgumentException("maxTotal, maxPerRoute and idleTimeout must be positive.");
+        }
+        HttpClientConnectionPool previous = sInstance;
+        sInstance = new HttpClientConnectionPool(maxTotal, maxPerRoute, idleTimeout);
+        if (previous != null) {
+            previous.retire();
+        }
+    }
+
+    /**
+     * プールのコネクションでリクエストを実行する。
+     * 設定の変更で置き換えられて閉じたプールであれば、現在のプールで実行する。
+     *
+     * @param request
+     * @return HttpResponse
+     * @throws IOException
+     */
+    HttpResponse execute(HttpUriRequest request) throws IOException {
+        boolean retired;
+        synchronized (this) {
+            retired = mRetired;
+            if (!retired) {
+                mActiveRequests++;
+            }
+        }
+        if (retired) {
+            return getInstance().execute(request);
+        }
+        mRequestCount.incrementAndGet();
+        try {
+            return mClient.execute(request);
+        } finally {
+            synchronized (this) {
+                mActiveRequests--;
+            }
+        }
+    }
+
+    /**
+     * プールを使わずにリクエストを実行する。コネクションはレスポンスを読み終えた時点で閉じる。
+     * <p>
+     * プールはHttpRouteでコネクションを共有し、リクエスト毎に指定されたSSLSocketFactoryを区別しない。
+     * そのためSSLSocketFactoryを指定したHTTPSのリクエストは、他のリクエストとコネクションを共有しないようこちらで実行する。
+     *
+     * @param request
+     * @return HttpResponse
+     * @throws IOException
+     */
+    HttpResponse executeUnpooled(HttpUriRequest request) throws IOException {
+        DefaultHttpClient client = new DefaultHttpClient(new SingleClientConnManager(mParams,
+                mSchemeRegistry), mParams);
+        client.setReuseStrategy(new NoConnectionReuseStrategy());
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        return client.execute(request);
+    }
+
+    /**
+     * 置き換えられたプールを、実行中のリクエストがなくなり全てのコネクションが返却された時点で閉じる。
+     */
+    private void retire() {
+        mEvictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                // 返却されたコネクションは再利用されないため、アイドル時間を待たずに閉じる
+                mConnManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+                synchronized (HttpClientConnectionPool.this) {
+                    // レスポンスを読み込み中のコネクションもプール内のコネクション数に含まれる
+                    if (mActiveRequests > 0 || mConnManager.getConnectionsInPool() > 0) {
+                        return;
+                    }
+                    mRetired = true;
+                }
+                shutdown();
+            }
+        }, 0, RETIRE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 期限切れ、またはアイドル時間を超えたコネクションを破棄する。
+     */
+    public void evictIdleConnections() {
+        mConnManager.closeExpiredConnections();
+        mConnManager.closeIdleConnections(mIdleTimeout, TimeUnit.MILLISECONDS);
+        mEvictionRunCount.incrementAndGet();
+    }
+
+    /**
+     * プール内の全てのコネクションを閉じる。
+     */
+    public void shutdown() {
+        mEvictor.shutdownNow();
+        mConnManager.shutdown();
+        Logger.d(TAG, "Connection pool shutdown. " + getStats());
+    }
+
+    /**
+     * 対象ホストのプール内のコネクション数を返す。
+     *
+     * @param host   ホスト名
+     * @param port   ポート番号
+     * @param secure HTTPSであればtrue
+     * @return コネクション数
+     */
+    public int getConnectionsInPool(String host, int port, boolean secure) {
+        HttpHost target = new HttpHost(host, port, secure ? Protocol.HTTPS.value()
+                : Protocol.HTTP.value());
+        return mConnManager.getConnectionsInPool(new HttpRoute(target, null, secure));
+    }
+
+    /**
+     * プールの統計情報を返す。
+     *
+     * @return Stats
+     */
+    public Stats getStats() {
+        return new Stats(mConnManager.getConnectionsInPool(), mMaxTotal,
+                mMaxPerRoute, mRequestCount.get(), mEvictionRunCount.get());
+    }
+
+    /**
+     * コネクションプールの統計情報
+     */
+    public static class Stats {
+        /**
+         * プール内のコネクション数(利用中を含む)
+         */
+        public final int mConnectionsInPool;
+        /**
+         * 全体の最大コネクション数
+         */
+        public final int mMaxTotal;
+        /**
+         * ルート毎の最大コネクション数
+         */
+        public final int mMaxPerRoute;
+        /**
+         * プールを利用したリクエスト数
+         */
+        public final long mRequestCount;
+        /**
+         * アイドル状態のコネクションの破棄を実行した回数(破棄したコネクション数ではない)
+         */
+        public final long mEvictionRunCount;
+
+        Stats(int connectionsInPool, int maxTotal, int maxPerRoute,
+              long requestCount, long evictionRunCount) {
+            mConnectionsInPool = connectionsInPool;
+            mMaxTotal = maxTotal;
+            mMaxPerRoute = maxPerRoute;
+            mRequestCount = requestCount;
+            mEvictionRunCount = evictionRunCount;
+        }
+
+        @Override
+        public String toString() {
+            return "connections=" + mConnectionsInPool + "/" + mMaxTotal
+                    + ", maxPerRoute=" + mMaxPerRoute + ", requests="
+                    + mRequestCount + ", evictionRuns=" + mEvictionRunCount;
+        }
+    }
+}
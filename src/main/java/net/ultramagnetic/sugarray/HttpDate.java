@@ -0,0 +1,74 @@
+package net.ultramagnetic.sugarray;
+
+import java.text.DateFormat;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * HTTPヘッダーの日時(HTTP-date、RFC 7231)を変換するユーティリティクラス
+ * <p>
+ * 送信時はIMF-fixdate形式を使い、受信時は廃止されたRFC 850形式とasctime形式も受け付ける。
+ * SimpleDateFormatはスレッドセーフではないため、スレッド毎に保持する。
+ */
+class HttpDate {
+
+    private static final String[] PATTERNS = {
+            // IMF-fixdate
+            "EEE, dd MMM yyyy HH:mm:ss zzz",
+            // RFC 850
+            "EEEE, dd-MMM-yy HH:mm:ss zzz",
+            // asctime
+            "EEE MMM d HH:mm:ss yyyy"
+    };
+
+    private static final ThreadLocal<DateFormat[]> FORMATS = new ThreadLocal<DateFormat[]>() {
+        @Override
+        protected DateFormat[] initialValue() {
+            DateFormat[] formats = new DateFormat[PATTERNS.length];
+            for (int i = 0; i < PATTERNS.length; i++) {
+                formats[i] = new SimpleDateFormat(PATTERNS[i], Locale.US);
+                formats[i].setTimeZone(TimeZone.getTimeZone("GMT"));
+                formats[i].setLenient(false);
+            }
+            return formats;
+        }
+    };
+
+    private HttpDate() {
+        ;
+    }
+
+    /**
+     * HTTP-dateを解析する。
+     *
+     * @param value ヘッダーの値
+     * @return 1970/01/01からのミリ秒、解析できない場合は-1
+     */
+    static long parse(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        for (DateFormat format : FORMATS.get()) {
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(value, position);
+            if (date != null && position.getIndex() == value.length()) {
+                return date.getTime();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * IMF-fixdate形式に変換する。
+     *
+     * @param time 1970/01/01からのミリ秒
+     * @return ヘッダーの値
+     */
+    static String format(long time) {
+        return FORMATS.get()[0].format(new Date(time));
+    }
+}
@@ -0,0 +1,192 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.error.SugarrayError;
+import net.ultramagnetic.sugarray.error.UnexpectedError;
+import net.ultramagnetic.sugarray.util.Logger;
+import net.ultramagnetic.sugarray.util.StringUtils;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * java.nioのSocketChannelとSelectorでREST処理を実装したハンドラ
+ * <p>
+ * 全ての通信は単一のイベントループスレッドで多重化されるため、通信中にワーカースレッドを占有しない。
+ * 対応していないリクエスト(プロキシ経由のHTTPS、SSLSocketFactoryのみが指定されたHTTPS、
+ * ファイルへのダウンロード、メッセージボディのストリーム処理、チャンク形式やマルチパートの送信)は
+ * フォールバック先のハンドラで処理する。
+ */
+public class HttpNioHandler implements AsyncHttpHandler {
+
+    private static final String TAG = HttpNioHandler.class.getSimpleName();
+
+    /**
+     * ホスト名を解決するスレッド。解決に時間がかかっても呼び出し元とイベントループを止めない。
+     */
+    private static final ExecutorService RESOLVE_EXECUTOR = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * HTTPSで利用するSSLContext(nullの場合はデフォルト)
+     */
+    private final SSLContext mSSLContext;
+    /**
+     * 非同期で処理できないリクエストのフォールバック先
+     */
+    private final HttpHandler mFallbackHandler;
+
+    public HttpNioHandler() {
+        this(null);
+    }
+
+    public HttpNioHandler(SSLContext sslContext) {
+        this(sslContext, new HttpRestUrlHandler());
+    }
+
+    public HttpNioHandler(SSLContext sslContext, HttpHandler fallbackHandler) {
+        if (fallbackHandler == null) {
+            throw new IllegalArgumentException(TAG + ": fallbackHandler is null.");
+        }
+        mSSLContext = sslContext;
+        mFallbackHandler = fallbackHandler;
+    }
+
+    @Override
+    public boolean supports(RequestOption option) {
+        boolean secure = Protocol.HTTPS.value().equalsIgnoreCase(protocolOf(option));
+        if (secure && hasProxy(option)) {
+            return false;
+        }
+        // ファイルへの書き込みやリスナーの処理でイベントループを止めないよう、ワーカースレッドで処理する
+        if (option.mDownloadFile != null || option.mBodyStreamListener != null) {
+            return false;
+        }
+        // チャンク形式での送信と、複数のストリームを順に読み出すマルチパートの送信はHttpURLConnectionに任せる
+        if (UploadStrategy.select(option) == UploadStrategy.CHUNKED
+                || option.mMultipartBody != null) {
+            return false;
+        }
+        // SSLSocketFactoryからはSSLEngineを生成できないため、SSLContextが指定されていなければ対応しない
+        return !(secure && option.mSSLSocketFactory != null && mSSLContext == null);
+    }
+
+    @Override
+    public SugarrayResponse perform(RequestOption option,
+                                    Sugarray.ProgressUpdateListener progressUpdateListener)
+            throws SugarrayError {
+        if (option == null) {
+            throw new IllegalArgumentException(TAG + ": option is null.");
+        }
+        if (!supports(option)) {
+            return mFallbackHandler.perform(option, progressUpdateListener);
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        final SugarrayResponse[] response = new SugarrayResponse[1];
+        final SugarrayError[] error = new SugarrayError[1];
+        Call call = performAsync(option, progressUpdateListener, new Callback() {
+            @Override
+            public void onResponse(SugarrayResponse r) {
+                response[0] = r;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(SugarrayError e) {
+                error[0] = e;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            call.cancel();
+            throw new UnexpectedError("Interrupted.", e);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return response[0];
+    }
+
+    @Override
+    public Call performAsync(RequestOption option,
+                             Sugarray.ProgressUpdateListener progressUpdateListener,
+                             Callback callback) {
+        if (option == null) {
+            throw new IllegalArgumentException(TAG + ": option is null.");
+        }
+        if (callback == null) {
+            throw new IllegalArgumentException(TAG + ": callback is null.");
+        }
+        if (progressUpdateListener == null) {
+            progressUpdateListener = new Sugarray.ProgressUpdateListener() {
+                @Override
+                public void onProgressUpdate(long totalBytes, long progressBytes) {
+                    Logger.i(TAG, "Total: " + totalBytes + "byte, Progress: "
+                            + progressBytes + "byte");
+                }
+            };
+        }
+        try {
+            URL url = new URL(option.makeUrl());
+            boolean secure = Protocol.HTTPS.value().equalsIgnoreCase(url.getProtocol());
+            boolean viaProxy = hasProxy(option);
+            String host = viaProxy ? option.mProxyhost : url.getHost();
+            int port = viaProxy ? option.mProxyPort
+                    : (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+            final NioHttpExchange exchange = new NioHttpExchange(NioEventLoop.getInstance(),
+                    option, progressUpdateListener, callback, url, host, port, viaProxy,
+                    secure ? getSSLContext() : null);
+            RESOLVE_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    exchange.resolve();
+                }
+            });
+            return exchange;
+        } catch (MalformedURLException e) {
+            callback.onError(new UnexpectedError("Bad URL. " + option.mUrl, e));
+        } catch (IOException e) {
+            callback.onError(new UnexpectedError("io error.", e));
+        } catch (NoSuchAlgorithmException e) {
+            callback.onError(new UnexpectedError("SSLContext is not available.", e));
+        }
+        return new Call() {
+            @Override
+            public void cancel() {
+            }
+        };
+    }
+
+    private SSLContext getSSLContext() throws NoSuchAlgorithmException {
+        return mSSLContext != null ? mSSLContext : SSLContext.getDefault();
+    }
+
+    private static String protocolOf(RequestOption option) {
+        try {
+            return new URL(option.mUrl).getProtocol();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasProxy(RequestOption option) {
+        return StringUtils.isNotEmpty(option.mProxyhost)
+                && (0 <= option.mProxyPort && option.mProxyPort <= 65535);
+    }
+}
@@ -9,17 +9,17 @@ import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.conn.params.ConnRoutePNames;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.HttpEntityWrapper;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
@@ -27,13 +27,12 @@ import org.apache.http.params.HttpParams;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.URL;
 import java.util.Iterator;
 
-import javax.net.ssl.SSLSocketFactory;
-
 /**
  * DefaultHttpClientでREST処理を実装したハンドラ
+ * <p>
+ * コネクションは{@link HttpClientConnectionPool}で全インスタンスと共有される。
  */
 public class HttpRestClientHandler extends HttpRestHandler {
 
@@ -61,13 +60,19 @@ public class HttpRestClientHandler extends HttpRestHandler {
         }
         HttpUriRequest httpRequest = createHttpRequest(option,
                 progressUpdateListener);
-        DefaultHttpClient client = new DefaultHttpClient();
-        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0,
-                false));
-        HttpParams httpParams = client.getParams();
+        HttpParams httpParams = httpRequest.getParams();
         HttpConnectionParams.setSoTimeout(httpParams, option.mTimeout);
         HttpConnectionParams.setConnectionTimeout(httpParams, option.mTimeout);
-        return client.execute(httpRequest);
+        ConnManagerParams.setTimeout(httpParams, option.mTimeout);
+        httpParams.setParameter(ResolvingSocketFactory.HOST_RESOLVER, option.mHostResolver);
+        if (option.mSSLSocketFactory != null && Protocol.HTTPS.value()
+                .equalsIgnoreCase(httpRequest.getURI().getScheme())) {
+            // プールのコネクションは確立したSSLSocketFactoryを区別せずに再利用されるため、プールを使わない
+            httpParams.setParameter(ResolvingSocketFactory.SSL_SOCKET_FACTORY,
+                    option.mSSLSocketFactory);
+            return HttpClientConnectionPool.getInstance().executeUnpooled(httpRequest);
+        }
+        return HttpClientConnectionPool.getInstance().execute(httpRequest);
     }
 
     /**
@@ -81,28 +86,7 @@ public class HttpRestClientHandler extends HttpRestHandler {
             final RequestOption option,
             final Sugarray.ProgressUpdateListener progressUpdateListener)
             throws IOException {
-        StringBuilder queryBuilder = new StringBuilder();
-        Iterator<String> queryIterator = option.mQuery.keySet().iterator();
-        while (queryIterator.hasNext()) {
-            String key = queryIterator.next();
-            String value = option.mQuery.get(key);
-            queryBuilder.append(key + "=" + value);
-            if (queryIterator.hasNext()) {
-                queryBuilder.append("&");
-            }
-        }
-        String makeUrl = option.mUrl;
-        if (!queryBuilder.toString().isEmpty()) {
-            makeUrl += "?" + queryBuilder.toString();
-        }
-        makeUrl = StringUtils.encodeURL(makeUrl);
-        URL url = new URL(makeUrl);
-        SSLSocketFactory sslSocketFactor = option.mSSLSocketFactory;
-        if ("https".equals(url.getProtocol()) && sslSocketFactor != null) {
-            SchemeRegistry schReg = new SchemeRegistry();
-            schReg.register(new Scheme("https",
-                    (SocketFactory) option.mSSLSocketFactory, 443));
-        }
+        String makeUrl = option.makeUrl();
         HttpUriRequest httpUriRequest = null;
         switch (option.mMethod) {
             case GET:
@@ -111,15 +95,18 @@ public class HttpRestClientHandler extends HttpRestHandler {
             case DELETE:
                 httpUriRequest = new HttpDelete(makeUrl);
                 break;
+            case HEAD:
+                httpUriRequest = new HttpHead(makeUrl);
+                break;
             case POST:
                 httpUriRequest = new HttpPost(makeUrl);
                 ((HttpPost) httpUriRequest).setEntity(new CountingHttpEntity(
-                        new ByteArrayEntity(option.mBody), progressUpdateListener));
+                        createEntity(option), progressUpdateListener));
                 break;
             case PUT:
                 httpUriRequest = new HttpPut(makeUrl);
                 ((HttpPut) httpUriRequest).setEntity(new CountingHttpEntity(
-                        new ByteArrayEntity(option.mBody), progressUpdateListener));
+                        createEntity(option), progressUpdateListener));
                 break;
             default:
                 throw new IllegalStateException("Unknown request method.");
@@ -131,6 +118,15 @@ public class HttpRestClientHandler extends HttpRestHandler {
             Header h = new BasicHeader(key, value);
             httpUriRequest.addHeader(h);
         }
+        if (option.contentEncoding() != null) {
+            httpUriRequest.addHeader(SugarrayConstants.HeaderFields.CONTENT_ENCODING,
+                    option.contentEncoding());
+        }
+        String acceptEncoding = option.acceptEncoding();
+        if (acceptEncoding != null) {
+            httpUriRequest.addHeader(SugarrayConstants.HeaderFields.ACCEPT_ENCODING,
+                    acceptEncoding);
+        }
         if (StringUtils.isNotEmpty(option.mProxyhost)
                 && (0 <= option.mProxyPort && option.mProxyPort <= 65535)) {
             httpUriRequest.getParams().setParameter(
@@ -140,6 +136,28 @@ public class HttpRestClientHandler extends HttpRestHandler {
         return httpUriRequest;
     }
 
+    /**
+     * メッセージボディのHttpEntityを生成する。ファイルはFileEntityでストリームとして送信する。
+     *
+     * @param option
+     * @return
+     */
+    private static HttpEntity createEntity(RequestOption option) throws IOException {
+        AbstractHttpEntity entity;
+        String contentType = option.mHeaders.get(SugarrayConstants.HeaderFields.CONTENT_TYPE);
+        if (option.mMultipartBody != null || (option.mFile != null && option.mCompressed)) {
+            // マルチパートや読み出しながら圧縮するファイルは、ストリームとして送信する
+            entity = new InputStreamEntity(option.openBody(), option.contentLength());
+            entity.setContentType(contentType);
+        } else if (option.mFile != null) {
+            entity = new FileEntity(option.mFile, contentType);
+        } else {
+            entity = new ByteArrayEntity(option.encodedBody());
+        }
+        entity.setChunked(UploadStrategy.select(option) == UploadStrategy.CHUNKED);
+        return entity;
+    }
+
     /**
      * 進捗状況を取得するためにカスタムしたHttpEntity。
      */
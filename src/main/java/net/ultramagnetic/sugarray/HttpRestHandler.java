@@ -1,12 +1,12 @@
 package net.ultramagnetic.sugarray;
 
 import android.annotation.SuppressLint;
-import android.text.TextUtils;
 
 import net.ultramagnetic.sugarray.error.ClientError;
 import net.ultramagnetic.sugarray.error.ServerError;
 import net.ultramagnetic.sugarray.error.SugarrayError;
 import net.ultramagnetic.sugarray.error.UnexpectedError;
+import net.ultramagnetic.sugarray.util.FileUtils;
 import net.ultramagnetic.sugarray.util.Logger;
 import net.ultramagnetic.sugarray.util.StringUtils;
 
@@ -16,18 +16,25 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionReleaseTrigger;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
 
 /**
  * Http通信のロジック部分を抽象化したREST処理を行うハンドラ
@@ -37,6 +44,11 @@ abstract class HttpRestHandler implements HttpHandler {
 
     private static final String TAG = HttpRestHandler.class.getSimpleName();
 
+    /**
+     * メッセージボディを読み込む際のバッファサイズ
+     */
+    private static final int DOWNLOAD_BUFFER_SIZE = 1024 * 16;
+
     public HttpRestHandler() {
     }
 
@@ -48,25 +60,38 @@ abstract class HttpRestHandler implements HttpHandler {
             throw new IllegalArgumentException(TAG + ": option is null.");
         }
         int currentRetry = 0;
+        boolean rangeRetried = false;
         while (true) {
+            RequestOption request = option.isResumableDownload() ? ResumableDownload
+                    .prepare(option) : option;
             try {
-                HttpResponse httpResponse = execute(option,
+                HttpResponse httpResponse = execute(request,
+                        progressUpdateListener);
+                return createSugarrayResponse(httpResponse, request,
                         progressUpdateListener);
-                return createSugarrayResponse(httpResponse);
-            } catch (MalformedURLException e) {
-                throw new UnexpectedError("Bad URL. " + option.mUrl, e);
-            } catch (ProtocolException e) {
-                throw new UnexpectedError("Invalid protocol.", e);
-            } catch (FileNotFoundException e) {
-                throw new UnexpectedError("File not found.", e);
-            } catch (SocketTimeoutException e) {
-                throw new UnexpectedError("Socket timeout.", e);
-            } catch (ConnectTimeoutException e) {
-                throw new UnexpectedError("Connect timeout.", e);
             } catch (IOException e) {
-                e.printStackTrace();
-                throw new UnexpectedError("io error.", e);
+                // 再開可能なダウンロードは受信済みの位置から続きを要求できるため、通信エラーもリトライする
+                if (option.isResumableDownload() && !(e instanceof MalformedURLException)
+                        && !(e instanceof FileNotFoundException)
+                        && currentRetry < option.mRetryMax) {
+                    Logger.d(TAG, "Retry download: " + e.getMessage());
+                    try {
+                        Thread.sleep(option.mRetryInterval);
+                    } catch (InterruptedException ie) {
+                        throw toUnexpectedError(e, option);
+                    }
+                    currentRetry++;
+                    continue;
+                }
+                throw toUnexpectedError(e, option);
             } catch (SugarrayError e) {
+                if (e instanceof ClientError && option.isResumableDownload() && !rangeRetried
+                        && e.mResponse.mStatusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                    // 途中までのファイルが不正なため、破棄して先頭から受信し直す
+                    ResumableDownload.discard(option.mDownloadFile);
+                    rangeRetried = true;
+                    continue;
+                }
                 if (e instanceof ServerError && currentRetry < option.mRetryMax) {
                     try {
                         Thread.sleep(option.mRetryInterval);
@@ -81,21 +106,65 @@ abstract class HttpRestHandler implements HttpHandler {
         }
     }
 
+    /**
+     * 通信時の例外をUnexpectedErrorに変換する。
+     *
+     * @param e
+     * @param option
+     * @return UnexpectedError
+     */
+    private static UnexpectedError toUnexpectedError(IOException e, RequestOption option) {
+        if (e instanceof MalformedURLException) {
+            return new UnexpectedError("Bad URL. " + option.mUrl, e);
+        } else if (e instanceof ProtocolException) {
+            return new UnexpectedError("Invalid protocol.", e);
+        } else if (e instanceof FileNotFoundException) {
+            return new UnexpectedError("File not found.", e);
+        } else if (e instanceof SocketTimeoutException) {
+            return new UnexpectedError("Socket timeout.", e);
+        } else if (e instanceof ConnectTimeoutException) {
+            return new UnexpectedError("Connect timeout.", e);
+        }
+        e.printStackTrace();
+        return new UnexpectedError("io error.", e);
+    }
+
+    /**
+     * HttpResponseをパッケージ定義のレスポンス形式に変換する。
+     *
+     * @param httpResponse
+     * @return SugarrayResponse
+     * @throws net.ultramagnetic.sugarray.error.SugarrayError
+     * @throws java.io.IOException
+     */
+    static SugarrayResponse createSugarrayResponse(HttpResponse httpResponse)
+            throws SugarrayError, IOException {
+        return createSugarrayResponse(httpResponse, null, null);
+    }
+
     /**
      * HttpResponseをパッケージ定義のレスポンス形式に変換する。
+     * 保存先のファイルが指定されていれば、成功したレスポンスのメッセージボディをファイルに書き込む。
+     * BodyStreamListenerが指定されていれば、成功したレスポンスのメッセージボディを受信しながらリスナーに渡す。
      *
      * @param httpResponse
+     * @param option                 リクエストの設定、nullの場合はメッセージボディをメモリに読み込む
+     * @param progressUpdateListener ファイルへの書き込みの進行状況のリスナー
      * @return SugarrayResponse
      * @throws net.ultramagnetic.sugarray.error.SugarrayError
      * @throws java.io.IOException
      */
-    private SugarrayResponse createSugarrayResponse(HttpResponse httpResponse)
+    static SugarrayResponse createSugarrayResponse(HttpResponse httpResponse,
+                                                   RequestOption option,
+                                                   Sugarray.ProgressUpdateListener progressUpdateListener)
             throws SugarrayError, IOException {
 
+        ProgressDispatcher.responseStarted(progressUpdateListener);
         StatusLine statusLine = httpResponse.getStatusLine();
         int statusCode = statusLine.getStatusCode();
 
-        Header contentTypeHeader = httpResponse.getEntity().getContentType();
+        HttpEntity entity = httpResponse.getEntity();
+        Header contentTypeHeader = entity == null ? null : entity.getContentType();
         String contentType = contentTypeHeader == null ? null
                 : contentTypeHeader.getValue();
 
@@ -119,14 +188,48 @@ abstract class HttpRestHandler implements HttpHandler {
         Map<String, String> responseHeaders = convertHeaders(httpResponse
                 .getAllHeaders());
 
-        if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
-            // TODO Cache取得処理を追加する
-        }
-
-        byte[] responseContents = entityToBytes(httpResponse.getEntity());
+        // 304はメッセージボディを持たない。HttpCacheが送信した条件付きリクエストであれば、保存したメッセージボディをHttpCacheが補う
+        boolean notModified = statusCode == HttpStatus.SC_NOT_MODIFIED;
 
-        SugarrayResponse response = new SugarrayResponse(statusCode,
-                responseContents, contentType, charset, responseHeaders, false);
+        SugarrayResponse response;
+        if (option != null && option.isResumableDownload()
+                && statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE
+                && ResumableDownload.completeIfSatisfied(httpResponse, option)) {
+            // 前回の時点で全て受信済みだったため、成功として扱う
+            statusCode = HttpStatus.SC_OK;
+            response = new SugarrayResponse(statusCode, option.mDownloadFile,
+                    contentType, charset, responseHeaders, notModified);
+        } else if (entity == null
+                || (option != null && option.mMethod == SugarrayConstants.Method.HEAD)) {
+            // HEADのレスポンスはContent-Lengthがあってもメッセージボディを持たない
+            if (entity != null) {
+                entity.consumeContent();
+            }
+            response = new SugarrayResponse(statusCode, new byte[0],
+                    contentType, charset, responseHeaders, notModified);
+        } else if (option != null && option.mDownloadFile != null
+                && HttpStatus.SC_OK <= statusCode
+                && statusCode < HttpStatus.SC_MULTIPLE_CHOICES) {
+            if (option.isResumableDownload()) {
+                ResumableDownload.receive(httpResponse, option, progressUpdateListener);
+            } else {
+                entityToFile(entity, option.mDownloadFile, 0, true,
+                        progressUpdateListener);
+            }
+            response = new SugarrayResponse(statusCode, option.mDownloadFile,
+                    contentType, charset, responseHeaders, notModified);
+        } else if (option != null && option.mBodyStreamListener != null
+                && HttpStatus.SC_OK <= statusCode
+                && statusCode < HttpStatus.SC_MULTIPLE_CHOICES) {
+            response = new SugarrayResponse(statusCode, new byte[0],
+                    contentType, charset, responseHeaders, notModified);
+            entityToListener(entity, response,
+                    option.mBodyStreamListener, progressUpdateListener);
+        } else {
+            byte[] responseContents = entityToBytes(entity, progressUpdateListener);
+            response = new SugarrayResponse(statusCode, responseContents,
+                    contentType, charset, responseHeaders, notModified);
+        }
 
         if (HttpStatus.SC_BAD_REQUEST <= statusCode
                 && statusCode < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
@@ -140,37 +243,48 @@ abstract class HttpRestHandler implements HttpHandler {
     }
 
     /**
-     * HttpEntityをバイナリに変換する
+     * HttpEntityをバイナリに変換する。
+     * Content-Lengthが分かっていればその長さの配列に直接読み込み、分からなければプールした配列に読み込んでから1度だけコピーする。
      *
      * @param entity
+     * @param progressUpdateListener 受信の進行状況のリスナー、nullの場合は通知しない
      * @return バイナリ
      * @throws java.io.IOException
      */
-    private static byte[] entityToBytes(HttpEntity entity) throws IOException {
-        ByteArrayOutputStream bytes = null;
-        BufferedInputStream bis = null;
-        byte[] buffer = new byte[1024];
+    private static byte[] entityToBytes(HttpEntity entity,
+                                        Sugarray.ProgressUpdateListener progressUpdateListener)
+            throws IOException {
+        InputStream in = null;
+        PooledByteArrayOutputStream bytes = null;
+        BufferPool pool = BufferPool.getInstance();
+        byte[] buffer = null;
         try {
-            InputStream in = null;
-            if (isGZipHttpResponse(entity)) {
-                in = new GZIPInputStream(entity.getContent());
-            } else {
-                in = entity.getContent();
-            }
+            // 復号後の長さは分からない
+            long contentLength = isEncoded(entity) ? -1 : entity.getContentLength();
+            in = decodeContent(entity);
             if (in == null) {
                 return new byte[0];
             }
-            int contentLength = (int) entity.getContentLength();
-            if (contentLength == -1) {
-                bytes = new ByteArrayOutputStream();
-                bis = new BufferedInputStream(in);
-            } else {
-                bytes = new ByteArrayOutputStream(contentLength);
-                bis = new BufferedInputStream(in, contentLength);
+            if (progressUpdateListener != null) {
+                in = new ProgressInputStream(in, contentLength, progressUpdateListener);
             }
-
+            if (0 <= contentLength && contentLength
+                    <= SugarrayConstants.DefaultBufferPoolConfig.DEFAULT_MAX_PRESIZED_BODY) {
+                byte[] body = new byte[(int) contentLength];
+                int offset = 0;
+                while (offset < body.length) {
+                    int len = in.read(body, offset, body.length - offset);
+                    if (len < 0) {
+                        return Arrays.copyOf(body, offset);
+                    }
+                    offset += len;
+                }
+                return body;
+            }
+            bytes = new PooledByteArrayOutputStream(pool);
+            buffer = pool.acquire(DOWNLOAD_BUFFER_SIZE);
             while (true) {
-                int len = bis.read(buffer);
+                int len = in.read(buffer);
                 if (len < 0) {
                     break;
                 }
@@ -187,19 +301,10 @@ abstract class HttpRestHandler implements HttpHandler {
             Logger.e(TAG, "The stream could not be created.", e);
             throw e;
         } finally {
-            if (bis != null) {
-                try {
-                    bis.close();
-                } catch (IOException e) {
-                    Logger.e(TAG, "BufferedInputStream close error.", e);
-                }
-            }
+            FileUtils.closeQuietly(in);
+            pool.release(buffer);
             if (bytes != null) {
-                try {
-                    bytes.close();
-                } catch (IOException e) {
-                    Logger.e(TAG, "ByteArrayOutputStream close error.", e);
-                }
+                bytes.release();
             }
             if (entity != null) {
                 try {
@@ -212,18 +317,192 @@ abstract class HttpRestHandler implements HttpHandler {
     }
 
     /**
-     * GZIPが有効かどうか判断する
+     * HttpEntityをファイルに書き込む。固定長のバッファを使い回すため、メモリ使用量はサイズによらない。
+     *
+     * @param entity
+     * @param file                   保存先のファイル
+     * @param offset                 受信済みのバイト数、0より大きい場合はファイルの末尾に追記する
+     * @param deleteOnFailure        書き込みに失敗した場合に途中まで書き込んだファイルを削除する
+     * @param progressUpdateListener 進行状況のリスナー、nullの場合は通知しない
+     * @throws java.io.IOException
+     */
+    static void entityToFile(HttpEntity entity, File file, long offset,
+                             boolean deleteOnFailure,
+                             Sugarray.ProgressUpdateListener progressUpdateListener)
+            throws IOException {
+        ReadableByteChannel source = null;
+        FileChannel target = null;
+        ByteBuffer buffer = null;
+        boolean completed = false;
+        try {
+            target = new FileOutputStream(file, offset > 0).getChannel();
+            long totalBytes = isEncoded(entity) || entity.getContentLength() < 0 ? -1
+                    : offset + entity.getContentLength();
+            InputStream in = decodeContent(entity);
+            if (in != null) {
+                source = Channels.newChannel(in);
+                buffer = ByteBuffer.wrap(BufferPool.getInstance().acquire(DOWNLOAD_BUFFER_SIZE));
+                long writtenBytes = offset;
+                while (source.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        writtenBytes += target.write(buffer);
+                    }
+                    buffer.clear();
+                    if (progressUpdateListener != null) {
+                        progressUpdateListener.onProgressUpdate(totalBytes, writtenBytes);
+                    }
+                }
+                // コネクションが切断されてもEOFとして扱われる場合があるため、Content-Lengthと照合する
+                if (totalBytes >= 0 && writtenBytes != totalBytes) {
+                    throw new IOException("Unexpected end of stream: " + writtenBytes + "/"
+                            + totalBytes + "byte");
+                }
+            }
+            completed = true;
+        } finally {
+            FileUtils.closeQuietly(source);
+            FileUtils.closeQuietly(target);
+            if (buffer != null) {
+                BufferPool.getInstance().release(buffer.array());
+            }
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                Logger.e(TAG, "Consume content error.", e);
+            }
+            if (!completed && deleteOnFailure && file.exists() && !file.delete()) {
+                Logger.e(TAG, "Could not delete incomplete file: " + file);
+            }
+        }
+    }
+
+    /**
+     * HttpEntityを受信しながらリスナーに渡す。リスナーから戻った時点でストリームを閉じ、コネクションを解放する。
+     * リスナーが例外を投げた場合は残りのメッセージボディを読み捨てずにコネクションを切断する。
      *
-     * @param response
+     * @param entity
+     * @param response               メッセージボディを含まないレスポンス
+     * @param bodyStreamListener
+     * @param progressUpdateListener リスナーが読み出した量の進行状況のリスナー、nullの場合は通知しない
+     * @throws java.io.IOException
+     */
+    private static void entityToListener(HttpEntity entity, SugarrayResponse response,
+                                         Sugarray.BodyStreamListener bodyStreamListener,
+                                         Sugarray.ProgressUpdateListener progressUpdateListener)
+            throws IOException {
+        InputStream in = null;
+        boolean completed = false;
+        try {
+            in = decodeContent(entity);
+            if (in != null && progressUpdateListener != null) {
+                in = new ProgressInputStream(in, isEncoded(entity) ? -1
+                        : entity.getContentLength(), progressUpdateListener);
+            }
+            bodyStreamListener.onBodyStream(response, in != null ? in
+                    : new ByteArrayInputStream(new byte[0]));
+            completed = true;
+        } finally {
+            if (!completed) {
+                abortConnection(entity);
+            }
+            FileUtils.closeQuietly(in);
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                Logger.e(TAG, "Consume content error.", e);
+            }
+        }
+    }
+
+    /**
+     * コネクションを再利用せずに切断する。閉じる際に残りのメッセージボディを最後まで読み捨てないようにする。
+     *
+     * @param entity
+     */
+    private static void abortConnection(HttpEntity entity) {
+        if (!(entity instanceof ConnectionReleaseTrigger)) {
+            return;
+        }
+        try {
+            ((ConnectionReleaseTrigger) entity).abortConnection();
+        } catch (IOException e) {
+            Logger.e(TAG, "Abort connection error.", e);
+        }
+    }
+
+    /**
+     * Content-Encodingでメッセージボディが符号化されているかどうか判断する
+     *
+     * @param entity
      * @return
      */
-    private static boolean isGZipHttpResponse(HttpEntity entity) {
+    private static boolean isEncoded(HttpEntity entity) {
         Header header = entity.getContentEncoding();
-        if (header == null)
-            return false;
+        return header != null && ContentCodings.isEncoded(header.getValue());
+    }
+
+    /**
+     * Content-Encodingに列挙されたコーディングを、受信しながら復号するストリームを返す。
+     *
+     * @param entity
+     * @return 復号したメッセージボディのストリーム、メッセージボディがなければnull
+     * @throws java.io.IOException 対応していないコーディングの場合
+     */
+    private static InputStream decodeContent(HttpEntity entity) throws IOException {
+        InputStream in = entity.getContent();
+        Header header = entity.getContentEncoding();
+        if (in == null || header == null) {
+            return in;
+        }
+        return ContentCodings.getInstance().decode(in, header.getValue());
+    }
+
+    /**
+     * 読み出したバイト数を進行状況のリスナーに通知するストリーム
+     */
+    static class ProgressInputStream extends FilterInputStream {
 
-        String value = header.getValue();
-        return (!TextUtils.isEmpty(value) && value.contains("gzip"));
+        private final long mTotalBytes;
+        private final Sugarray.ProgressUpdateListener mListener;
+        private long mProgressBytes;
+
+        ProgressInputStream(InputStream in, long totalBytes,
+                            Sugarray.ProgressUpdateListener listener) {
+            super(in);
+            mTotalBytes = totalBytes;
+            mListener = listener;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                mProgressBytes++;
+                mListener.onProgressUpdate(mTotalBytes, mProgressBytes);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int readBytes = in.read(b, off, len);
+            if (readBytes > 0) {
+                mProgressBytes += readBytes;
+                mListener.onProgressUpdate(mTotalBytes, mProgressBytes);
+            }
+            return readBytes;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            if (skipped > 0) {
+                mProgressBytes += skipped;
+                mListener.onProgressUpdate(mTotalBytes, mProgressBytes);
+            }
+            return skipped;
+        }
     }
 
     /**
@@ -1,6 +1,7 @@
 package net.ultramagnetic.sugarray;
 
 
+import net.ultramagnetic.sugarray.util.FileUtils;
 import net.ultramagnetic.sugarray.util.Logger;
 import net.ultramagnetic.sugarray.util.StringUtils;
 
@@ -9,15 +10,15 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.StatusLine;
+import org.apache.http.conn.ConnectionReleaseTrigger;
 import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.BasicStatusLine;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
@@ -59,22 +60,8 @@ public class HttpRestUrlHandler extends HttpRestHandler {
         HttpURLConnection conn = null;
         try {
             conn = createHttpURLConnection(option);
-            if ((option.mMethod == SugarrayConstants.Method.POST || option.mMethod == SugarrayConstants.Method.PUT)
-                    && option.mBody != null) {
-                DataOutputStream out = new DataOutputStream(
-                        conn.getOutputStream());
-                byte buf[] = new byte[1024];
-                long totalBytes = option.mBody.length;
-                long sentBytes = 0;
-                int readBytes;
-                Logger.d(TAG, new String(option.mBody, "UTF-8"));
-                InputStream in = new ByteArrayInputStream(option.mBody);
-                while ((readBytes = in.read(buf)) != -1) {
-                    out.write(buf, 0, readBytes);
-                    sentBytes += readBytes;
-                    progressUpdateListener.onProgressUpdate(totalBytes,
-                            sentBytes);
-                }
+            if (option.hasBody()) {
+                writeBody(conn, option, progressUpdateListener);
             }
             int responseCode = conn.getResponseCode();
             if (responseCode == -1) {
@@ -119,14 +106,14 @@ public class HttpRestUrlHandler extends HttpRestHandler {
     }
 
     /**
-     * HttpEntityを生成する
+     * HttpEntityを生成する。途中で受信をやめる場合は、abortConnection()でコネクションを切断できる。
      *
      * @param connection
      * @return
      */
     private static HttpEntity createEntityFromConnection(
             final HttpURLConnection connection) {
-        BasicHttpEntity entity = new BasicHttpEntity();
+        BasicHttpEntity entity = new ConnectionEntity(connection);
         InputStream inputStream;
         try {
             inputStream = connection.getInputStream();
@@ -140,6 +127,40 @@ public class HttpRestUrlHandler extends HttpRestHandler {
         return entity;
     }
 
+    /**
+     * メッセージボディをストリームで送信する。ファイルの場合も全体をメモリに読み込まない。
+     *
+     * @param conn
+     * @param option
+     * @param progressUpdateListener
+     * @throws IOException
+     */
+    private static void writeBody(HttpURLConnection conn, RequestOption option,
+                                  Sugarray.ProgressUpdateListener progressUpdateListener)
+            throws IOException {
+        if (option.mFile == null && option.mMultipartBody == null) {
+            Logger.d(TAG, new String(option.mBody, "UTF-8"));
+        }
+        long totalBytes = option.contentLength();
+        long sentBytes = 0;
+        InputStream in = option.openBody();
+        OutputStream out = null;
+        byte buf[] = BufferPool.getInstance().acquire(1024 * 8);
+        try {
+            out = conn.getOutputStream();
+            int readBytes;
+            while ((readBytes = in.read(buf)) != -1) {
+                out.write(buf, 0, readBytes);
+                sentBytes += readBytes;
+                progressUpdateListener.onProgressUpdate(totalBytes, sentBytes);
+            }
+        } finally {
+            FileUtils.closeQuietly(in);
+            FileUtils.closeQuietly(out);
+            BufferPool.getInstance().release(buf);
+        }
+    }
+
     /**
      * HttpURLConnectionを生成する
      *
@@ -149,21 +170,7 @@ public class HttpRestUrlHandler extends HttpRestHandler {
      */
     private static HttpURLConnection createHttpURLConnection(
             final RequestOption option) throws IOException {
-        StringBuilder queryBuilder = new StringBuilder();
-        Iterator<String> queryIterator = option.mQuery.keySet().iterator();
-        while (queryIterator.hasNext()) {
-            String key = queryIterator.next();
-            String value = option.mQuery.get(key);
-            queryBuilder.append(key + "=" + value);
-            if (queryIterator.hasNext()) {
-                queryBuilder.append("&");
-            }
-        }
-        String makeUrl = option.mUrl;
-        if (!queryBuilder.toString().isEmpty()) {
-            makeUrl += "?" + queryBuilder.toString();
-        }
-        makeUrl = StringUtils.encodeURL(makeUrl);
+        String makeUrl = option.makeUrl();
         URL url = new URL(makeUrl);
         SugarrayConstants.Method method = option.mMethod;
         Map<String, String> headers = option.mHeaders;
@@ -182,19 +189,27 @@ public class HttpRestUrlHandler extends HttpRestHandler {
         }
         conn.setDoInput(true);
         conn.setUseCaches(false);
-        conn.setChunkedStreamingMode(0);
         conn.setReadTimeout(timeout);
         conn.setConnectTimeout(timeout);
         conn.setRequestMethod(method.name());
-        if (method == SugarrayConstants.Method.GET || method == SugarrayConstants.Method.DELETE) {
-            // TODO Java6でコンパイルするとDeleteメソッドで呼び出した際にエラーとなるため退避
-            // if (method == Method.GET || method == Method.DELETE) {
-            conn.setDoOutput(false);
-        } else {
-            conn.setDoOutput(true);
+        switch (UploadStrategy.select(option)) {
+            case FIXED_LENGTH:
+                // 長さが分かっているボディはバッファリングせずに固定長で送信する
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode((int) option.contentLength());
+                break;
+            case CHUNKED:
+                conn.setDoOutput(true);
+                conn.setChunkedStreamingMode(
+                        SugarrayConstants.DefaultUploadConfig.DEFAULT_CHUNK_SIZE);
+                break;
+            default:
+                conn.setDoOutput(false);
+                break;
         }
         if ("https".equals(url.getProtocol()) && sslSocketFactor != null) {
-            ((HttpsURLConnection) conn).setSSLSocketFactory(sslSocketFactor);
+            ((HttpsURLConnection) conn).setSSLSocketFactory(TlsSessionManager
+                    .getInstance().wrap(sslSocketFactor));
         }
         Iterator<String> iterator = headers.keySet().iterator();
         while (iterator.hasNext()) {
@@ -204,8 +219,42 @@ public class HttpRestUrlHandler extends HttpRestHandler {
             Logger.d(TAG, "" + key + ": "
                     + value);
         }
+        if (option.contentEncoding() != null) {
+            conn.setRequestProperty(SugarrayConstants.HeaderFields.CONTENT_ENCODING,
+                    option.contentEncoding());
+        }
+        // 指定するとHttpURLConnectionによる透過的なgzipの復号が無効になり、ContentCodingsで復号する
+        String acceptEncoding = option.acceptEncoding();
+        if (acceptEncoding != null) {
+            conn.setRequestProperty(SugarrayConstants.HeaderFields.ACCEPT_ENCODING,
+                    acceptEncoding);
+        }
         Logger.d(TAG, "url: "
                 + makeUrl);
         return conn;
     }
+
+    /**
+     * HttpURLConnectionのメッセージボディ。切断する場合は残りを読み捨てずにコネクションを閉じる。
+     */
+    private static class ConnectionEntity extends BasicHttpEntity implements
+            ConnectionReleaseTrigger {
+        private final HttpURLConnection mConnection;
+
+        ConnectionEntity(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void releaseConnection() throws IOException {
+            if (isStreaming()) {
+                FileUtils.closeQuietly(getContent());
+            }
+        }
+
+        @Override
+        public void abortConnection() throws IOException {
+            mConnection.disconnect();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package net.ultramagnetic.sugarray;
+
+import java.util.ArrayDeque;
+import java.util.zip.Inflater;
+
+/**
+ * レスポンスの復号に使うInflaterを再利用するプール
+ * <p>
+ * Inflaterはzlibのネイティブメモリを確保するため、レスポンス毎に生成せずreset()して使い回す。
+ * zlib形式(deflate)と生のdeflate形式(gzip)でInflaterの種類が異なるため、別々に保持する。
+ */
+class InflaterPool {
+
+    private static final InflaterPool INSTANCE = new InflaterPool(
+            SugarrayConstants.DefaultContentCodingConfig.DEFAULT_MAX_POOLED_INFLATERS);
+
+    private final int mMaxPooled;
+    /**
+     * zlibのヘッダーを持つInflater
+     */
+    private final ArrayDeque<Inflater> mZlibInflaters = new ArrayDeque<Inflater>();
+    /**
+     * zlibのヘッダーを持たない(nowrap)Inflater
+     */
+    private final ArrayDeque<Inflater> mRawInflaters = new ArrayDeque<Inflater>();
+
+    /**
+     * @param maxPooled 種類毎に保持するInflaterの最大数
+     */
+    InflaterPool(int maxPooled) {
+        mMaxPooled = maxPooled;
+    }
+
+    static InflaterPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Inflaterを取得する。プールが空であれば生成する。
+     *
+     * @param nowrap zlibのヘッダーを持たない生のdeflate形式を復号する場合はtrue
+     * @return Inflater
+     */
+    synchronized Inflater acquire(boolean nowrap) {
+        Inflater inflater = (nowrap ? mRawInflaters : mZlibInflaters).poll();
+        return inflater != null ? inflater : new Inflater(nowrap);
+    }
+
+    /**
+     * 使い終わったInflaterを返却する。プールが一杯であればネイティブメモリを解放する。
+     *
+     * @param inflater acquireで取得したInflater
+     * @param nowrap   acquireに指定した値
+     */
+    void release(Inflater inflater, boolean nowrap) {
+        if (inflater == null) {
+            return;
+        }
+        inflater.reset();
+        synchronized (this) {
+            ArrayDeque<Inflater> pool = nowrap ? mRawInflaters : mZlibInflaters;
+            if (pool.size() < mMaxPooled) {
+                pool.push(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+}
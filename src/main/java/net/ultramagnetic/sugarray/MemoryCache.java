@@ -0,0 +1,422 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.Logger;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GETリクエストのレスポンスをメモリに保持するキャッシュ
+ * <p>
+ * HttpCacheの前段で使い、鮮度が残っているレスポンスはワーカースレッドを経由せずに返す。
+ * メソッド、クエリパラメーターを含むURL、指定したリクエストヘッダーの値をキーとし、
+ * メッセージボディの合計サイズが上限を超えた場合は最も長く使われていないものから削除する。
+ * キーのハッシュ値で分割した区画毎にロックするため、複数のワーカースレッドから同時に使っても競合しにくい。
+ * 合計サイズと使われた順序は全ての区画で共有し、上限を超えた場合は区画に関わらず最も長く使われていないものから削除する。
+ */
+public class MemoryCache {
+
+    private static final String TAG = MemoryCache.class.getSimpleName();
+
+    private final long mMaxSize;
+    private final String[] mKeyHeaders;
+    private final Stripe[] mStripes;
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+    /**
+     * 保持しているメッセージボディの合計サイズ(byte)
+     */
+    private final AtomicLong mSize = new AtomicLong();
+    /**
+     * 使われた順序を表す、全ての区画で共有する連番
+     */
+    private final AtomicLong mClock = new AtomicLong();
+    /**
+     * 区画を跨いで削除する処理を1つずつ行うためのロック
+     */
+    private final Object mEvictionLock = new Object();
+
+    public MemoryCache() {
+        this(SugarrayConstants.DefaultMemoryCacheConfig.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize 保持するメッセージボディの合計サイズの上限(byte)
+     */
+    public MemoryCache(long maxSize) {
+        this(maxSize, SugarrayConstants.DefaultMemoryCacheConfig.DEFAULT_KEY_HEADERS);
+    }
+
+    /**
+     * @param maxSize    保持するメッセージボディの合計サイズの上限(byte)
+     * @param keyHeaders キーに含めるリクエストヘッダーのフィールド名
+     */
+    public MemoryCache(long maxSize, String... keyHeaders) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException(TAG + ": maxSize is minus. " + maxSize);
+        }
+        if (keyHeaders == null) {
+            throw new IllegalArgumentException(TAG + ": keyHeaders is null.");
+        }
+        mMaxSize = maxSize;
+        mKeyHeaders = new String[keyHeaders.length];
+        for (int i = 0; i < keyHeaders.length; i++) {
+            mKeyHeaders[i] = keyHeaders[i].toLowerCase(Locale.US);
+        }
+        int stripes = SugarrayConstants.DefaultMemoryCacheConfig.DEFAULT_STRIPES;
+        mStripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @return メッセージボディの合計サイズの上限(byte)
+     */
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return 保持しているメッセージボディの合計サイズ(byte)
+     */
+    public long size() {
+        return mSize.get();
+    }
+
+    /**
+     * @return 鮮度が残っているレスポンスを返した回数
+     */
+    public long hitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return レスポンスを返せなかった回数
+     */
+    public long missCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return 上限を超えたために削除したレスポンスの数
+     */
+    public long evictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * 指定したURLのレスポンスを全て削除する。
+     *
+     * @param url クエリパラメーターを含むURL
+     */
+    public void remove(String url) {
+        if (url == null) {
+            return;
+        }
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                Iterator<Node> iterator = stripe.mEntries.values().iterator();
+                while (iterator.hasNext()) {
+                    Node node = iterator.next();
+                    if (url.equals(node.mEntry.mUrl)) {
+                        iterator.remove();
+                        mSize.addAndGet(-node.mEntry.mBody.length);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 保持している全てのレスポンスを削除する。
+     */
+    public void evictAll() {
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                for (Node node : stripe.mEntries.values()) {
+                    mSize.addAndGet(-node.mEntry.mBody.length);
+                }
+                stripe.mEntries.clear();
+            }
+        }
+    }
+
+    /**
+     * 鮮度が残っているレスポンスを返す。
+     *
+     * @param option リクエスト
+     * @param now    現在時刻
+     * @return 保持したレスポンス、なければnull
+     */
+    SugarrayResponse get(RequestOption option, long now) {
+        if (!HttpCache.isCacheable(option) || HttpCache.hasConditions(option)) {
+            return null;
+        }
+        CacheEntry entry = entry(key(option));
+        if (entry == null || !entry.matchesVary(option)
+                || !entry.isFresh(CacheControl.parse(option.mHeaders), now)) {
+            if (!option.mStaleWhileRevalidate) {
+                // stale-while-revalidateの場合は続けて呼び出すgetStaleで数える
+                mMissCount.incrementAndGet();
+            }
+            return null;
+        }
+        mHitCount.incrementAndGet();
+        Logger.d(TAG, "Memory cache hit. " + entry.mUrl);
+        return entry.toResponse(now, true);
+    }
+
+    /**
+     * 鮮度はなくなったが、stale-while-revalidateで検証する間に返してよいレスポンスを返す。
+     *
+     * @param option リクエスト
+     * @param now    現在時刻
+     * @return 保持したレスポンス、なければnull
+     */
+    SugarrayResponse getStale(RequestOption option, long now) {
+        if (!HttpCache.isCacheable(option) || HttpCache.hasConditions(option)) {
+            return null;
+        }
+        CacheEntry entry = entry(key(option));
+        if (entry == null || !entry.matchesVary(option)
+                || !entry.isServableWhileRevalidating(CacheControl.parse(option.mHeaders),
+                option.mMaxStale, now)) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        mHitCount.incrementAndGet();
+        Logger.d(TAG, "Memory cache stale hit. " + entry.mUrl);
+        return entry.toResponse(now, true);
+    }
+
+    /**
+     * 保持したレスポンスを鮮度に関わらず返す。
+     *
+     * @param option          リクエスト
+     * @param now             現在時刻
+     * @param offlineFallback 通信できなかったために返す場合はtrue、must-revalidateまたはno-cacheが指定されたレスポンスは返さない
+     * @return 保持したレスポンス、なければnull
+     */
+    SugarrayResponse getStored(RequestOption option, long now, boolean offlineFallback) {
+        if (!HttpCache.isCacheable(option) || HttpCache.hasConditions(option)) {
+            return null;
+        }
+        CacheEntry entry = entry(key(option));
+        if (entry == null || !entry.matchesVary(option) || (offlineFallback
+                && !entry.isUsableOffline(CacheControl.parse(option.mHeaders)))) {
+            if (!offlineFallback) {
+                mMissCount.incrementAndGet();
+            }
+            return null;
+        }
+        // 通信できなかった場合に返すものは、通信の代わりにはならないためヒット数に数えない
+        if (!offlineFallback) {
+            mHitCount.incrementAndGet();
+        }
+        Logger.d(TAG, "Memory cache stored hit. " + entry.mUrl);
+        return entry.toResponse(now, true, offlineFallback);
+    }
+
+    /**
+     * 保持したレスポンスのETagとLast-Modifiedを検証子に指定した条件付きリクエストを返す。
+     *
+     * @param option リクエスト
+     * @return 条件付きリクエスト、検証できるレスポンスを保持していなければoption
+     */
+    RequestOption conditionalRequest(RequestOption option) {
+        if (!HttpCache.isCacheable(option) || HttpCache.hasConditions(option)) {
+            return option;
+        }
+        String key = key(option);
+        Stripe stripe = stripe(key);
+        Node node;
+        synchronized (stripe) {
+            node = stripe.mEntries.get(key);
+        }
+        RequestOption request = node != null && node.mEntry.matchesVary(option)
+                ? node.mEntry.conditionalRequest(option) : null;
+        return request != null ? request : option;
+    }
+
+    /**
+     * conditionalRequest()で生成した条件付きリクエストに304が返された場合は、保持したレスポンスのヘッダーを更新し、
+     * 保持したメッセージボディを持つレスポンスを返す。
+     *
+     * @param option       条件を付ける前のリクエスト
+     * @param response     受信したレスポンス
+     * @param requestTime  リクエストを送信した時刻
+     * @param responseTime レスポンスを受信した時刻
+     * @return 呼び出し元に返すレスポンス
+     */
+    SugarrayResponse revalidated(RequestOption option, SugarrayResponse response,
+                                 long requestTime, long responseTime) {
+        if (response.mStatusCode != 304 || !HttpCache.isCacheable(option)
+                || HttpCache.hasConditions(option)) {
+            return response;
+        }
+        String key = key(option);
+        Stripe stripe = stripe(key);
+        CacheEntry entry;
+        synchronized (stripe) {
+            Node node = stripe.mEntries.get(key);
+            if (node == null || !node.mEntry.matchesVary(option)) {
+                return response;
+            }
+            entry = node.mEntry.revalidate(response, requestTime, responseTime);
+            if (CacheControl.parse(option.mHeaders).mNoStore
+                    || CacheControl.parse(entry.mHeaders).mNoStore) {
+                stripe.mEntries.remove(key);
+                mSize.addAndGet(-node.mEntry.mBody.length);
+            } else {
+                // メッセージボディは変わらないため、合計サイズは変わらない
+                stripe.mEntries.put(key, new Node(entry, mClock.incrementAndGet()));
+            }
+        }
+        Logger.d(TAG, "Memory cache revalidated. " + entry.mUrl);
+        return entry.toResponse(responseTime, true);
+    }
+
+    /**
+     * 鮮度のあるレスポンスであれば保持する。
+     * 安全でないメソッド(POST、PUT、DELETE)が成功した場合は、そのURLのレスポンスを削除する。
+     *
+     * @param option       リクエスト
+     * @param response     呼び出し元に返すレスポンス
+     * @param requestTime  リクエストを送信した時刻
+     * @param responseTime レスポンスを受信した時刻
+     */
+    void put(RequestOption option, SugarrayResponse response, long requestTime,
+             long responseTime) {
+        if (option.mMethod != SugarrayConstants.Method.GET
+                && option.mMethod != SugarrayConstants.Method.HEAD) {
+            if (response.mStatusCode < 400) {
+                remove(option.makeUrl());
+            }
+            return;
+        }
+        CacheEntry entry = CacheEntry.create(option, response, requestTime, responseTime);
+        if (entry == null
+                || entry.freshnessLifetime(CacheControl.parse(entry.mHeaders)) <= 0) {
+            return;
+        }
+        String key = key(option);
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            Node previous;
+            if (entry.mBody.length > mMaxSize) {
+                previous = stripe.mEntries.remove(key);
+            } else {
+                previous = stripe.mEntries.put(key, new Node(entry, mClock.incrementAndGet()));
+                mSize.addAndGet(entry.mBody.length);
+            }
+            if (previous != null) {
+                mSize.addAndGet(-previous.mEntry.mBody.length);
+            }
+        }
+        trimToSize();
+    }
+
+    /**
+     * 保持しているエントリーを返し、使われた順序を更新する。
+     */
+    private CacheEntry entry(String key) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            Node node = stripe.mEntries.get(key);
+            if (node == null) {
+                return null;
+            }
+            node.mLastAccess = mClock.incrementAndGet();
+            return node.mEntry;
+        }
+    }
+
+    /**
+     * 合計サイズが上限以下になるまで、全ての区画の中で最も長く使われていないエントリーから削除する。
+     * 各区画のエントリーは使われた順に並んでいるため、区画毎の先頭を比べればよい。
+     */
+    private void trimToSize() {
+        synchronized (mEvictionLock) {
+            while (mSize.get() > mMaxSize) {
+                Stripe eldestStripe = null;
+                long eldestAccess = Long.MAX_VALUE;
+                for (Stripe stripe : mStripes) {
+                    synchronized (stripe) {
+                        Iterator<Node> iterator = stripe.mEntries.values().iterator();
+                        if (iterator.hasNext()) {
+                            long lastAccess = iterator.next().mLastAccess;
+                            if (lastAccess < eldestAccess) {
+                                eldestStripe = stripe;
+                                eldestAccess = lastAccess;
+                            }
+                        }
+                    }
+                }
+                if (eldestStripe == null) {
+                    return;
+                }
+                synchronized (eldestStripe) {
+                    // 比べている間に使われた場合は削除せずに選び直す
+                    Iterator<Node> iterator = eldestStripe.mEntries.values().iterator();
+                    if (iterator.hasNext()) {
+                        Node eldest = iterator.next();
+                        if (eldest.mLastAccess == eldestAccess) {
+                            iterator.remove();
+                            mSize.addAndGet(-eldest.mEntry.mBody.length);
+                            mEvictionCount.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * メソッド、URL、キーに含めるリクエストヘッダーの値からキーを生成する。
+     */
+    private String key(RequestOption option) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(option.mMethod.name()).append(' ').append(option.makeUrl());
+        for (String name : mKeyHeaders) {
+            String value = HttpCache.header(option.mHeaders, name);
+            if (value != null) {
+                builder.append('\n').append(name).append(':').append(value);
+            }
+        }
+        return builder.toString();
+    }
+
+    private Stripe stripe(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return mStripes[(hash & 0x7fffffff) % mStripes.length];
+    }
+
+    /**
+     * 1つのロックで保護する区画
+     */
+    private static class Stripe {
+        /**
+         * キー毎のエントリー(最も長く使われていない順)
+         */
+        final LinkedHashMap<String, Node> mEntries = new LinkedHashMap<String, Node>(
+                16, 0.75f, true);
+    }
+
+    /**
+     * エントリーと、最後に使われた順番
+     */
+    private static class Node {
+        final CacheEntry mEntry;
+        long mLastAccess;
+
+        Node(CacheEntry entry, long lastAccess) {
+            mEntry = entry;
+            mLastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.FileUtils;
+import net.ultramagnetic.sugarray.util.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * multipart/form-data形式のメッセージボディ
+ * <p>
+ * 各パートは送信時に順番にストリームで読み出すため、ファイルの内容はメモリに読み込まない。
+ * 全てのパートの長さが分かっているため、Content-Lengthを指定して固定長で送信できる。
+ */
+public class MultipartBody {
+
+    private static final String TAG = MultipartBody.class.getSimpleName();
+
+    private static final String CRLF = "\r\n";
+    private static final String DASHES = "--";
+    private static final String BOUNDARY_CHARS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    final String mBoundary;
+    final List<Part> mParts;
+
+    private MultipartBody(Bulider bulider) {
+        mBoundary = bulider.mBoundary != null ? bulider.mBoundary : createBoundary();
+        mParts = Collections.unmodifiableList(new ArrayList<Part>(bulider.mParts));
+    }
+
+    /**
+     * Content-Typeヘッダーの値を返す。
+     *
+     * @return バウンダリを含むContent-Typeヘッダーの値
+     */
+    public String contentType() {
+        return SugarrayConstants.ContentType.MULTIPART.value() + "; boundary=" + mBoundary;
+    }
+
+    /**
+     * メッセージボディ全体のバイト数を返す。ファイルのパートは呼び出した時点のファイルサイズで計算する。
+     *
+     * @return バイト数
+     */
+    public long contentLength() {
+        long length = 0;
+        for (Part part : mParts) {
+            length += part.mHeader.length + part.bodyLength() + CRLF.length();
+        }
+        return length + closeDelimiter().length;
+    }
+
+    /**
+     * パートを順番に読み出すストリームを開く。ファイルはそのパートに達した時点で開く。
+     *
+     * @return InputStream
+     */
+    InputStream openStream() {
+        return new PartsInputStream();
+    }
+
+    private byte[] closeDelimiter() {
+        return toBytes(DASHES + mBoundary + DASHES + CRLF);
+    }
+
+    private static String createBoundary() {
+        Random random = new Random();
+        StringBuilder builder = new StringBuilder("SugarrayBoundary");
+        for (int i = 0; i < 16; i++) {
+            builder.append(BOUNDARY_CHARS.charAt(random.nextInt(BOUNDARY_CHARS.length())));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] toBytes(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(TAG + ": UTF-8 is not supported.", e);
+        }
+    }
+
+    /**
+     * ヘッダーのパラメーターに使えない引用符と改行をパーセントエンコードする。
+     */
+    private static String escape(String value) {
+        return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    /**
+     * 1つのパート。ヘッダーと、メモリ上のデータまたはファイルの内容を持つ。
+     */
+    static class Part {
+        final byte[] mHeader;
+        final byte[] mData;
+        final File mFile;
+
+        Part(String boundary, String name, String fileName, String contentType, byte[] data,
+             File file) {
+            StringBuilder header = new StringBuilder();
+            header.append(DASHES).append(boundary).append(CRLF);
+            header.append("Content-Disposition: form-data; name=\"").append(escape(name))
+                    .append("\"");
+            if (fileName != null) {
+                header.append("; filename=\"").append(escape(fileName)).append("\"");
+            }
+            header.append(CRLF);
+            if (contentType != null) {
+                header.append(SugarrayConstants.HeaderFields.CONTENT_TYPE).append(": ")
+                        .append(contentType).append(CRLF);
+            }
+            header.append(CRLF);
+            mHeader = toBytes(header.toString());
+            mData = data;
+            mFile = file;
+        }
+
+        long bodyLength() {
+            return mFile != null ? mFile.length() : mData.length;
+        }
+
+        InputStream openBody() throws IOException {
+            return mFile != null ? new FileInputStream(mFile) : new ByteArrayInputStream(mData);
+        }
+    }
+
+    /**
+     * 各パートのヘッダー、内容、改行と終端のバウンダリを順番に読み出すストリーム
+     */
+    private class PartsInputStream extends InputStream {
+        /**
+         * 次に読み出す要素の位置(パート毎にヘッダー、内容、改行の3要素、最後に終端のバウンダリ)
+         */
+        private int mIndex;
+        private InputStream mCurrent;
+        private boolean mClosed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mClosed) {
+                throw new IOException("Stream closed.");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (mCurrent == null) {
+                    mCurrent = next();
+                    if (mCurrent == null) {
+                        return -1;
+                    }
+                }
+                int readBytes = mCurrent.read(b, off, len);
+                if (readBytes != -1) {
+                    return readBytes;
+                }
+                FileUtils.closeQuietly(mCurrent);
+                mCurrent = null;
+            }
+        }
+
+        private InputStream next() throws IOException {
+            int partIndex = mIndex / 3;
+            if (partIndex > mParts.size()) {
+                return null;
+            }
+            int element = mIndex % 3;
+            mIndex = partIndex == mParts.size() ? (partIndex + 1) * 3 : mIndex + 1;
+            if (partIndex == mParts.size()) {
+                return new ByteArrayInputStream(closeDelimiter());
+            }
+            Part part = mParts.get(partIndex);
+            switch (element) {
+                case 0:
+                    return new ByteArrayInputStream(part.mHeader);
+                case 1:
+                    return part.openBody();
+                default:
+                    return new ByteArrayInputStream(toBytes(CRLF));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mClosed = true;
+            FileUtils.closeQuietly(mCurrent);
+            mCurrent = null;
+        }
+    }
+
+    public static class Bulider {
+        private String mBoundary;
+        private final List<Part> mParts = new ArrayList<Part>();
+
+        /**
+         * バウンダリを指定する。指定しなければランダムに生成する。
+         *
+         * @param boundary バウンダリ
+         * @return Bulider
+         */
+        public Bulider boundary(String boundary) {
+            if (StringUtils.isEmpty(boundary)) {
+                throw new IllegalArgumentException(TAG + ": boundary is empty.");
+            }
+            if (!mParts.isEmpty()) {
+                throw new IllegalStateException(TAG + ": boundary must be set before parts.");
+            }
+            mBoundary = boundary;
+            return this;
+        }
+
+        /**
+         * テキストのフィールドを追加する。値はUTF-8で送信する。
+         *
+         * @param name  フィールド名
+         * @param value 値
+         * @return Bulider
+         */
+        public Bulider addField(String name, String value) {
+            if (value == null) {
+                throw new IllegalArgumentException(TAG + ": value is null.");
+            }
+            return addPart(name, null, null, toBytes(value), null);
+        }
+
+        /**
+         * バイナリのパートを追加する。
+         *
+         * @param name        フィールド名
+         * @param fileName    ファイル名、nullの場合は指定しない
+         * @param contentType コンテンツタイプ、nullの場合は指定しない
+         * @param data        パートの内容
+         * @return Bulider
+         */
+        public Bulider addPart(String name, String fileName, String contentType, byte[] data) {
+            if (data == null) {
+                throw new IllegalArgumentException(TAG + ": data is null.");
+            }
+            return addPart(name, fileName, contentType, data, null);
+        }
+
+        /**
+         * ファイルのパートを追加する。コンテンツタイプはファイル名から推測する。
+         *
+         * @param name フィールド名
+         * @param file ファイル
+         * @return Bulider
+         */
+        public Bulider addFile(String name, File file) {
+            if (file == null) {
+                throw new IllegalArgumentException(TAG + ": file is null.");
+            }
+            String contentType = URLConnection.guessContentTypeFromName(file.getName());
+            return addFile(name, file, contentType != null ? contentType
+                    : "application/octet-stream");
+        }
+
+        /**
+         * ファイルのパートを追加する。ファイルは送信時にストリームで読み出す。
+         *
+         * @param name        フィールド名
+         * @param file        ファイル
+         * @param contentType コンテンツタイプ
+         * @return Bulider
+         */
+        public Bulider addFile(String name, File file, String contentType) {
+            if (FileUtils.isNotFile(file)) {
+                throw new IllegalArgumentException(TAG + ": file is not readable. " + file);
+            }
+            return addPart(name, file.getName(), contentType, null, file);
+        }
+
+        private Bulider addPart(String name, String fileName, String contentType, byte[] data,
+                                File file) {
+            if (StringUtils.isEmpty(name)) {
+                throw new IllegalArgumentException(TAG + ": name is empty.");
+            }
+            if (mBoundary == null) {
+                mBoundary = createBoundary();
+            }
+            mParts.add(new Part(mBoundary, name, fileName, contentType, data, file));
+            return this;
+        }
+
+        public MultipartBody bulid() {
+            return new MultipartBody(this);
+        }
+    }
+}
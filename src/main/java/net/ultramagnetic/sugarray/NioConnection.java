@@ -0,0 +1,424 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * ノンブロッキングのソケットチャネルと、HTTPSの場合はSSLEngineをまとめたコネクション
+ * <p>
+ * NioEventLoopのスレッドからのみ操作される。
+ */
+class NioConnection {
+
+    private static final String TAG = NioConnection.class.getSimpleName();
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * コネクションを再利用する単位(スキーム、ホスト、ポート)
+     */
+    final String mRouteKey;
+    /**
+     * 接続先のホスト名
+     */
+    final String mHost;
+    /**
+     * HTTPSの場合に利用したSSLContext。異なるSSLContextの通信ではコネクションを再利用しない。
+     */
+    final SSLContext mSSLContext;
+    /**
+     * アイドル状態になった時刻
+     */
+    long mIdleSince;
+    /**
+     * 再利用されたコネクションであればtrue
+     */
+    boolean mReused;
+    /**
+     * 現在このコネクションを利用している通信
+     */
+    NioHttpExchange mExchange;
+
+    private final SocketChannel mChannel;
+    private final SelectionKey mKey;
+    private final SSLEngine mEngine;
+    private ByteBuffer mNetIn;
+    private ByteBuffer mNetOut;
+    private ByteBuffer mAppIn;
+    private boolean mConnected;
+    private boolean mHandshakeDone;
+
+    private NioConnection(String routeKey, String host, SSLContext sslContext,
+                          SocketChannel channel, SelectionKey key, SSLEngine engine) {
+        mRouteKey = routeKey;
+        mHost = host;
+        mSSLContext = sslContext;
+        mChannel = channel;
+        mKey = key;
+        mEngine = engine;
+        if (engine != null) {
+            int packetSize = engine.getSession().getPacketBufferSize();
+            mNetIn = ByteBuffer.allocate(packetSize);
+            mNetOut = ByteBuffer.allocate(packetSize);
+            mNetOut.flip();
+            mAppIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        }
+    }
+
+    /**
+     * 接続を開始する。
+     *
+     * @param loop       イベントループ
+     * @param routeKey   コネクションを再利用する単位
+     * @param address    接続先のアドレス
+     * @param host       接続先のホスト名
+     * @param port       接続先のポート番号
+     * @param sslContext HTTPSの場合はSSLContext、HTTPの場合はnull
+     * @return NioConnection
+     * @throws IOException
+     */
+    static NioConnection open(NioEventLoop loop, String routeKey,
+                              InetSocketAddress address, String host, int port,
+                              SSLContext sslContext) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SSLEngine engine = null;
+            if (sslContext != null) {
+                engine = sslContext.createSSLEngine(host, port);
+                engine.setUseClientMode(true);
+            }
+            boolean connected = channel.connect(address);
+            SelectionKey key = channel.register(loop.selector(),
+                    connected ? 0 : SelectionKey.OP_CONNECT);
+            NioConnection connection = new NioConnection(routeKey, host, sslContext,
+                    channel, key, engine);
+            connection.mConnected = connected;
+            key.attach(connection);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 接続を完了させる。
+     *
+     * @return 接続が完了していればtrue
+     * @throws IOException
+     */
+    boolean finishConnect() throws IOException {
+        if (!mConnected) {
+            mConnected = mChannel.finishConnect();
+        }
+        return mConnected;
+    }
+
+    /**
+     * TLSのハンドシェイクを進める。
+     *
+     * @return ハンドシェイクが完了していればtrue
+     * @throws IOException
+     */
+    boolean handshake() throws IOException {
+        if (mEngine == null || mHandshakeDone) {
+            return true;
+        }
+        if (mEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            mEngine.beginHandshake();
+        }
+        while (true) {
+            if (!flush()) {
+                return false;
+            }
+            switch (mEngine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                    if (!unwrap()) {
+                        return false;
+                    }
+                    break;
+                default:
+                    mHandshakeDone = true;
+                    verifyHostname();
+                    TlsSessionManager.getInstance().onHandshakeCompleted(mEngine.getSession());
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * 受信したアプリケーションデータを読み込む。
+     *
+     * @param dst
+     * @return 読み込んだバイト数、データがなければ0、ストリームの終端であれば-1
+     * @throws IOException
+     */
+    int read(ByteBuffer dst) throws IOException {
+        if (mEngine == null) {
+            return mChannel.read(dst);
+        }
+        // ハンドシェイク後のメッセージへの応答が残っていれば先に送信する
+        flush();
+        while (mAppIn.position() == 0) {
+            if (mNetIn == null) {
+                return -1;
+            }
+            if (!unwrap()) {
+                return mNetIn == null ? -1 : 0;
+            }
+        }
+        mAppIn.flip();
+        int length = Math.min(mAppIn.remaining(), dst.remaining());
+        int limit = mAppIn.limit();
+        mAppIn.limit(mAppIn.position() + length);
+        dst.put(mAppIn);
+        mAppIn.limit(limit);
+        mAppIn.compact();
+        return length;
+    }
+
+    /**
+     * アプリケーションデータを送信する。
+     *
+     * @param src
+     * @return 全て送信できればtrue、ソケットが書き込み可能になるのを待つ必要があればfalse
+     * @throws IOException
+     */
+    boolean write(ByteBuffer src) throws IOException {
+        if (mEngine == null) {
+            mChannel.write(src);
+            return !src.hasRemaining();
+        }
+        while (true) {
+            if (!flush()) {
+                return false;
+            }
+            if (!src.hasRemaining()) {
+                return true;
+            }
+            wrap(src);
+        }
+    }
+
+    /**
+     * ファイルの内容をカーネル内で直接ソケットに送信する。HTTPSのコネクションでは利用できない。
+     *
+     * @param file     送信するファイル
+     * @param position 送信を開始するファイル内の位置
+     * @param count    送信する最大バイト数
+     * @return 送信したバイト数、ソケットが書き込み可能になるのを待つ必要があれば0
+     * @throws IOException
+     */
+    long transferFrom(FileChannel file, long position, long count) throws IOException {
+        if (mEngine != null) {
+            throw new IllegalStateException(TAG + ": transferFrom is not available on TLS.");
+        }
+        return file.transferTo(position, count, mChannel);
+    }
+
+    /**
+     * TLSのコネクションであればtrueを返す。
+     *
+     * @return TLSのコネクションであればtrue
+     */
+    boolean isSecure() {
+        return mEngine != null;
+    }
+
+    /**
+     * 暗号化済みで未送信のデータがあればtrueを返す。
+     *
+     * @return 未送信のデータがあればtrue
+     */
+    boolean hasPendingWrite() {
+        return mNetOut != null && mNetOut.hasRemaining();
+    }
+
+    /**
+     * 監視するイベントを設定する。
+     *
+     * @param ops SelectionKeyのイベント
+     */
+    void interest(int ops) {
+        if (mKey.isValid()) {
+            mKey.interestOps(ops);
+        }
+    }
+
+    /**
+     * Selectorでイベントを検知した際に呼び出される。
+     */
+    void onSelected() {
+        if (mExchange != null) {
+            mExchange.onSelected();
+            return;
+        }
+        // アイドル中に読み込み可能となるのはサーバーから切断された場合のみ
+        Logger.d(TAG, "Idle connection closed by peer: " + mRouteKey);
+        close();
+    }
+
+    /**
+     * アイドル状態に移行する。
+     */
+    void idle() {
+        mExchange = null;
+        mIdleSince = System.currentTimeMillis();
+        interest(SelectionKey.OP_READ);
+    }
+
+    boolean isOpen() {
+        return mChannel.isOpen() && mKey.isValid();
+    }
+
+    /**
+     * コネクションを閉じる。
+     */
+    void close() {
+        mKey.cancel();
+        if (mEngine != null) {
+            mEngine.closeOutbound();
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Logger.e(TAG, "SocketChannel close error.", e);
+        }
+    }
+
+    /**
+     * 暗号化済みのデータを送信する。
+     *
+     * @return 全て送信できればtrue
+     * @throws IOException
+     */
+    private boolean flush() throws IOException {
+        while (mNetOut.hasRemaining()) {
+            if (mChannel.write(mNetOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * データを暗号化する。未送信のデータが残っていれば、その後ろに追加する。
+     *
+     * @param src
+     * @throws IOException
+     */
+    private void wrap(ByteBuffer src) throws IOException {
+        mNetOut.compact();
+        while (true) {
+            SSLEngineResult result = mEngine.wrap(src, mNetOut);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    ByteBuffer netOut = ByteBuffer.allocate(mNetOut.capacity() * 2);
+                    mNetOut.flip();
+                    netOut.put(mNetOut);
+                    mNetOut = netOut;
+                    continue;
+                case CLOSED:
+                    throw new SSLException("SSLEngine closed.");
+                default:
+                    mNetOut.flip();
+                    return;
+            }
+        }
+    }
+
+    /**
+     * 受信済みのデータを復号する。不足していればソケットから読み込む。
+     *
+     * @return 復号できればtrue、ソケットが読み込み可能になるのを待つ必要があればfalse
+     * @throws IOException
+     */
+    private boolean unwrap() throws IOException {
+        while (true) {
+            mNetIn.flip();
+            SSLEngineResult result = mEngine.unwrap(mNetIn, mAppIn);
+            mNetIn.compact();
+            switch (result.getStatus()) {
+                case OK:
+                    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    }
+                    if (mHandshakeDone
+                            && mEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        // ハンドシェイク後のメッセージ(鍵の更新など)に応答する
+                        wrap(EMPTY);
+                        flush();
+                    }
+                    return true;
+                case BUFFER_OVERFLOW:
+                    ByteBuffer appIn = ByteBuffer.allocate(mAppIn.capacity() * 2);
+                    mAppIn.flip();
+                    appIn.put(mAppIn);
+                    mAppIn = appIn;
+                    continue;
+                case BUFFER_UNDERFLOW:
+                    if (!mNetIn.hasRemaining()) {
+                        ByteBuffer netIn = ByteBuffer.allocate(mNetIn.capacity() * 2);
+                        mNetIn.flip();
+                        netIn.put(mNetIn);
+                        mNetIn = netIn;
+                    }
+                    int length = mChannel.read(mNetIn);
+                    if (length < 0) {
+                        if (mHandshakeDone) {
+                            mNetIn = null;
+                            return false;
+                        }
+                        throw new EOFException("Connection closed during handshake.");
+                    }
+                    if (length == 0) {
+                        return false;
+                    }
+                    continue;
+                default:
+                    if (!mHandshakeDone) {
+                        throw new SSLException("SSLEngine closed during handshake.");
+                    }
+                    mNetIn = null;
+                    return false;
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void verifyHostname() throws SSLPeerUnverifiedException {
+        if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(mHost,
+                mEngine.getSession())) {
+            throw new SSLPeerUnverifiedException("Hostname " + mHost
+                    + " not verified.");
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * 単一のスレッドでSelectorを回し、複数のHTTP通信を多重化するイベントループ
+ * <p>
+ * 登録されたチャネルとアイドル状態のコネクションはこのスレッドからのみ操作される。
+ */
+class NioEventLoop implements Runnable {
+
+    private static final String TAG = NioEventLoop.class.getSimpleName();
+
+    /**
+     * Selectorの最大待ち時間(MS)
+     */
+    private static final long MAX_SELECT_TIMEOUT = 1000;
+    /**
+     * アイドル状態のコネクションを保持する時間(MS)
+     */
+    private static final long IDLE_TIMEOUT = SugarrayConstants.DefaultConnectionPoolConfig.DEFAULT_IDLE_TIMEOUT;
+    /**
+     * ルート毎に保持するアイドル状態のコネクションの最大数
+     */
+    private static final int MAX_IDLE_PER_ROUTE = SugarrayConstants.DefaultConnectionPoolConfig.DEFAULT_MAX_PER_ROUTE;
+
+    private static NioEventLoop sInstance;
+
+    private final Selector mSelector;
+    private final Thread mThread;
+    /**
+     * 他のスレッドから投入されたタスク
+     */
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+    /**
+     * 遅延実行するタスク
+     */
+    private final PriorityQueue<ScheduledTask> mScheduledTasks = new PriorityQueue<ScheduledTask>();
+    /**
+     * 実行中の通信
+     */
+    private final Set<NioHttpExchange> mExchanges = new HashSet<NioHttpExchange>();
+    /**
+     * ルート毎のアイドル状態のコネクション
+     */
+    private final Map<String, ArrayDeque<NioConnection>> mIdleConnections = new HashMap<String, ArrayDeque<NioConnection>>();
+
+    private long mScheduledSequence;
+
+    private NioEventLoop() throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(this, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * プロセスで共有するイベントループを返す。
+     *
+     * @return NioEventLoopのインスタンス
+     * @throws IOException Selectorを開けなかった場合
+     */
+    static synchronized NioEventLoop getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new NioEventLoop();
+        }
+        return sInstance;
+    }
+
+    Selector selector() {
+        return mSelector;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * イベントループのスレッドでタスクを実行する。
+     *
+     * @param task
+     */
+    void execute(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    /**
+     * イベントループのスレッドで遅延してタスクを実行する。イベントループのスレッドからのみ呼び出すこと。
+     *
+     * @param task
+     * @param delay 遅延時間(MS)
+     */
+    void schedule(Runnable task, long delay) {
+        mScheduledTasks.add(new ScheduledTask(task, System.currentTimeMillis()
+                + delay, mScheduledSequence++));
+    }
+
+    void addExchange(NioHttpExchange exchange) {
+        mExchanges.add(exchange);
+    }
+
+    void removeExchange(NioHttpExchange exchange) {
+        mExchanges.remove(exchange);
+    }
+
+    /**
+     * アイドル状態のコネクションを取り出す。
+     * <p>
+     * SSLContextはequalsを実装していないため、同一インスタンスで確立したコネクションのみを再利用する。
+     *
+     * @param routeKey
+     * @param sslContext HTTPSの場合はSSLContext、HTTPの場合はnull
+     * @return 再利用できるコネクション、なければnull
+     */
+    NioConnection lease(String routeKey, SSLContext sslContext) {
+        ArrayDeque<NioConnection> idle = mIdleConnections.get(routeKey);
+        if (idle == null) {
+            return null;
+        }
+        Iterator<NioConnection> connections = idle.descendingIterator();
+        while (connections.hasNext()) {
+            NioConnection connection = connections.next();
+            if (!connection.isOpen()) {
+                connections.remove();
+            } else if (connection.mSSLContext == sslContext) {
+                connections.remove();
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 使い終わったコネクションをアイドル状態で保持する。
+     *
+     * @param connection
+     */
+    void release(NioConnection connection) {
+        ArrayDeque<NioConnection> idle = mIdleConnections.get(connection.mRouteKey);
+        if (idle == null) {
+            idle = new ArrayDeque<NioConnection>();
+            mIdleConnections.put(connection.mRouteKey, idle);
+        }
+        if (idle.size() >= MAX_IDLE_PER_ROUTE) {
+            connection.close();
+            return;
+        }
+        connection.idle();
+        idle.addLast(connection);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                runTasks();
+                mSelector.select(nextSelectTimeout());
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid()) {
+                        connection.onSelected();
+                    }
+                }
+                checkTimeouts();
+            } catch (Throwable tr) {
+                Logger.e(TAG, "Unexpected error in event loop.", tr);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            task.run();
+        }
+        long now = System.currentTimeMillis();
+        while (!mScheduledTasks.isEmpty() && mScheduledTasks.peek().mTime <= now) {
+            mScheduledTasks.poll().mTask.run();
+        }
+    }
+
+    private long nextSelectTimeout() {
+        long timeout = MAX_SELECT_TIMEOUT;
+        if (!mScheduledTasks.isEmpty()) {
+            long delay = mScheduledTasks.peek().mTime - System.currentTimeMillis();
+            timeout = Math.max(1, Math.min(timeout, delay));
+        }
+        return timeout;
+    }
+
+    private void checkTimeouts() {
+        long now = System.currentTimeMillis();
+        if (!mExchanges.isEmpty()) {
+            List<NioHttpExchange> expired = new ArrayList<NioHttpExchange>();
+            for (NioHttpExchange exchange : mExchanges) {
+                if (exchange.isExpired(now)) {
+                    expired.add(exchange);
+                }
+            }
+            for (NioHttpExchange exchange : expired) {
+                exchange.timeout();
+            }
+        }
+        Iterator<ArrayDeque<NioConnection>> routes = mIdleConnections.values().iterator();
+        while (routes.hasNext()) {
+            ArrayDeque<NioConnection> idle = routes.next();
+            Iterator<NioConnection> connections = idle.iterator();
+            while (connections.hasNext()) {
+                NioConnection connection = connections.next();
+                if (!connection.isOpen() || now - connection.mIdleSince > IDLE_TIMEOUT) {
+                    connection.close();
+                    connections.remove();
+                }
+            }
+            if (idle.isEmpty()) {
+                routes.remove();
+            }
+        }
+    }
+
+    /**
+     * 遅延実行するタスク
+     */
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        final Runnable mTask;
+        final long mTime;
+        final long mSequence;
+
+        ScheduledTask(Runnable task, long time, long sequence) {
+            mTask = task;
+            mTime = time;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask another) {
+            if (mTime != another.mTime) {
+                return mTime < another.mTime ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1
+                    : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,742 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.error.ServerError;
+import net.ultramagnetic.sugarray.error.SugarrayError;
+import net.ultramagnetic.sugarray.error.UnexpectedError;
+import net.ultramagnetic.sugarray.util.FileUtils;
+import net.ultramagnetic.sugarray.util.Logger;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * NioEventLoop上で1件のHTTP/1.1のリクエストとレスポンスをやり取りする状態機械
+ */
+class NioHttpExchange implements AsyncHttpHandler.Call {
+
+    private static final String TAG = NioHttpExchange.class.getSimpleName();
+
+    private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+    private static final int READ_BUFFER_SIZE = 1024 * 8;
+    /**
+     * HTTPSでファイルを送信する際に読み出す単位
+     */
+    private static final int BODY_BUFFER_SIZE = 1024 * 16;
+
+    /**
+     * 通信の進行状態
+     */
+    private enum State {
+        CONNECTING, HANDSHAKING, WRITING, READING, DONE
+    }
+
+    /**
+     * レスポンスの解析状態
+     */
+    private enum ParseState {
+        STATUS_LINE, HEADERS, BODY_FIXED, CHUNK_SIZE, CHUNK_DATA, CHUNK_CRLF, TRAILERS, BODY_UNTIL_CLOSE, DONE
+    }
+
+    private final NioEventLoop mLoop;
+    private final RequestOption mOption;
+    private final Sugarray.ProgressUpdateListener mProgressUpdateListener;
+    private final AsyncHttpHandler.Callback mCallback;
+    /**
+     * 接続するホスト名とポート番号(プロキシ経由の場合はプロキシ)
+     */
+    private final String mConnectHost;
+    private final int mConnectPort;
+    private final String mHost;
+    private final int mPort;
+    private final SSLContext mSSLContext;
+    private final String mRouteKey;
+    private final byte[] mHead;
+
+    private State mState;
+    /**
+     * 接続先のIPアドレス。接続できなかった場合は次のアドレスを試す。
+     */
+    private InetAddress[] mAddresses;
+    private int mAddressIndex;
+    private NioConnection mConnection;
+    private ByteBuffer mHeadBuffer;
+    private ByteBuffer mBodyBuffer;
+    /**
+     * ファイルを送信する場合のチャネル
+     */
+    private FileChannel mBodyChannel;
+    private long mBodyLength;
+    private long mBodySent;
+    private long mDeadline;
+    private int mCurrentRetry;
+    /**
+     * 再送を待っている場合はtrue
+     */
+    private boolean mRetryScheduled;
+    private boolean mCancelled;
+
+    private ParseState mParseState;
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteArrayOutputStream mLine = new ByteArrayOutputStream();
+    private ProtocolVersion mProtocolVersion;
+    private int mStatusCode;
+    private String mReasonPhrase;
+    private final List<String[]> mResponseHeaders = new ArrayList<String[]>();
+    private long mRemaining;
+    /**
+     * レスポンスのContent-Length(分からない場合は-1)
+     */
+    private long mResponseLength;
+    private PooledByteArrayOutputStream mResponseBody;
+    private boolean mKeepAlive;
+    private boolean mReceivedAny;
+
+    NioHttpExchange(NioEventLoop loop, RequestOption option,
+                    Sugarray.ProgressUpdateListener progressUpdateListener,
+                    AsyncHttpHandler.Callback callback, URL url,
+                    String connectHost, int connectPort, boolean viaProxy,
+                    SSLContext sslContext) {
+        mLoop = loop;
+        mOption = option;
+        mProgressUpdateListener = progressUpdateListener;
+        mCallback = callback;
+        mConnectHost = connectHost;
+        mConnectPort = connectPort;
+        mHost = url.getHost();
+        mPort = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        mSSLContext = sslContext;
+        mRouteKey = url.getProtocol() + "://" + mHost + ":" + mPort
+                + (viaProxy ? "@" + connectHost + ":" + connectPort : "");
+        mHead = createRequestHead(option, url, viaProxy);
+    }
+
+    /**
+     * 接続先のホスト名を解決し、イベントループで通信を開始する。
+     * 解決を待つ間イベントループを止めないよう、イベントループ以外のスレッドから呼び出すこと。
+     */
+    void resolve() {
+        InetAddress[] addresses = null;
+        IOException error = null;
+        try {
+            addresses = mOption.mHostResolver.resolve(mConnectHost);
+            if (addresses == null || addresses.length == 0) {
+                error = new UnknownHostException(mConnectHost);
+            }
+        } catch (UnknownHostException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException("Failed to resolve " + mConnectHost, e);
+        }
+        final InetAddress[] resolved = addresses;
+        final IOException failure = error;
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (failure != null) {
+                    fail(failure);
+                    return;
+                }
+                mAddresses = resolved;
+                start();
+            }
+        });
+    }
+
+    /**
+     * 通信を開始する。イベントループのスレッドから呼び出すこと。
+     */
+    void start() {
+        mRetryScheduled = false;
+        if (mCancelled) {
+            return;
+        }
+        mLoop.addExchange(this);
+        try {
+            reset();
+            mConnection = mLoop.lease(mRouteKey, mSSLContext);
+            if (mConnection != null) {
+                mConnection.mReused = true;
+                mState = State.WRITING;
+            } else {
+                mState = State.CONNECTING;
+                mConnection = NioConnection.open(mLoop, mRouteKey,
+                        new InetSocketAddress(mAddresses[mAddressIndex], mConnectPort),
+                        mHost, mPort, mSSLContext);
+            }
+            mConnection.mExchange = this;
+            advance();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCancelled = true;
+                closeBody();
+                releaseResponseBody();
+                // 再送を待っている間も結果は通知していない
+                if (mState != State.DONE || mRetryScheduled) {
+                    mState = State.DONE;
+                    mRetryScheduled = false;
+                    mLoop.removeExchange(NioHttpExchange.this);
+                    if (mConnection != null) {
+                        mConnection.close();
+                        mConnection = null;
+                    }
+                    mCallback.onError(new UnexpectedError("Cancelled."));
+                }
+            }
+        });
+    }
+
+    /**
+     * コネクションでイベントを検知した際に呼び出される。
+     */
+    void onSelected() {
+        try {
+            advance();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * 無通信状態がタイムアウトを超えていればtrueを返す。HttpURLConnectionと同じく、0以下のタイムアウトは無制限とする。
+     *
+     * @param now
+     * @return タイムアウトしていればtrue
+     */
+    boolean isExpired(long now) {
+        return mOption.mTimeout > 0 && mState != State.DONE && now > mDeadline;
+    }
+
+    void timeout() {
+        fail(new SocketTimeoutException("No activity for " + mOption.mTimeout
+                + "ms: " + mOption.mUrl));
+    }
+
+    private void reset() throws IOException {
+        mDeadline = System.currentTimeMillis() + mOption.mTimeout;
+        mHeadBuffer = ByteBuffer.wrap(mHead);
+        closeBody();
+        mBodySent = 0;
+        mBodyLength = hasRequestBody() ? mOption.contentLength() : 0;
+        if (hasRequestBody() && mOption.mFile != null) {
+            mBodyChannel = new FileInputStream(mOption.mFile).getChannel();
+            mBodyBuffer = ByteBuffer.wrap(BufferPool.getInstance().acquire(BODY_BUFFER_SIZE));
+            mBodyBuffer.flip();
+        } else {
+            mBodyBuffer = hasRequestBody() ? ByteBuffer.wrap(mOption.encodedBody()) : null;
+        }
+        mParseState = ParseState.STATUS_LINE;
+        mReadBuffer.clear();
+        mLine.reset();
+        mResponseHeaders.clear();
+        releaseResponseBody();
+        mReceivedAny = false;
+    }
+
+    private void advance() throws IOException {
+        while (true) {
+            switch (mState) {
+                case CONNECTING:
+                    if (!mConnection.finishConnect()) {
+                        mConnection.interest(SelectionKey.OP_CONNECT);
+                        return;
+                    }
+                    mState = State.HANDSHAKING;
+                    break;
+                case HANDSHAKING:
+                    if (!mConnection.handshake()) {
+                        mConnection.interest(mConnection.hasPendingWrite() ? SelectionKey.OP_WRITE
+                                : SelectionKey.OP_READ);
+                        return;
+                    }
+                    mState = State.WRITING;
+                    break;
+                case WRITING:
+                    if (!writeRequest()) {
+                        mConnection.interest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    mState = State.READING;
+                    break;
+                case READING:
+                    if (!readResponse()) {
+                        // ハンドシェイク後のメッセージへの応答が送信しきれていなければ書き込みも待つ
+                        mConnection.interest(mConnection.hasPendingWrite()
+                                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                                : SelectionKey.OP_READ);
+                        return;
+                    }
+                    complete();
+                    return;
+                default:
+                    return;
+            }
+        }
+    }
+
+    /**
+     * リクエストを送信する。
+     *
+     * @return 全て送信できればtrue
+     * @throws IOException
+     */
+    private boolean writeRequest() throws IOException {
+        if (mHeadBuffer.hasRemaining() && !write(mHeadBuffer)) {
+            return false;
+        }
+        while (mBodySent < mBodyLength) {
+            long before = mBodySent;
+            boolean written;
+            if (mBodyChannel != null && !mConnection.isSecure()) {
+                // 平文であればファイルからソケットへカーネル内で直接コピーする
+                long length = mConnection.transferFrom(mBodyChannel, mBodySent,
+                        mBodyLength - mBodySent);
+                if (length == 0 && mBodyChannel.size() <= mBodySent) {
+                    throw new EOFException("File truncated: " + mOption.mFile);
+                }
+                mBodySent += length;
+                written = length > 0;
+            } else {
+                if (mBodyChannel != null && !mBodyBuffer.hasRemaining()) {
+                    mBodyBuffer.clear();
+                    if (mBodyChannel.read(mBodyBuffer, mBodySent) < 0) {
+                        throw new EOFException("File truncated: " + mOption.mFile);
+                    }
+                    mBodyBuffer.flip();
+                }
+                int position = mBodyBuffer.position();
+                written = mConnection.write(mBodyBuffer);
+                mBodySent += mBodyBuffer.position() - position;
+            }
+            if (mBodySent != before) {
+                mDeadline = System.currentTimeMillis() + mOption.mTimeout;
+                mProgressUpdateListener.onProgressUpdate(mBodyLength, mBodySent);
+            }
+            if (!written) {
+                return false;
+            }
+        }
+        closeBody();
+        return true;
+    }
+
+    private void closeBody() {
+        if (mBodyChannel != null) {
+            FileUtils.closeQuietly(mBodyChannel);
+            mBodyChannel = null;
+            BufferPool.getInstance().release(mBodyBuffer.array());
+            mBodyBuffer = null;
+        }
+    }
+
+    private void releaseResponseBody() {
+        if (mResponseBody != null) {
+            mResponseBody.release();
+            mResponseBody = null;
+        }
+    }
+
+    private boolean write(ByteBuffer src) throws IOException {
+        int before = src.position();
+        boolean written = mConnection.write(src);
+        if (src.position() != before) {
+            mDeadline = System.currentTimeMillis() + mOption.mTimeout;
+        }
+        return written;
+    }
+
+    /**
+     * レスポンスを受信する。
+     *
+     * @return 全て受信できればtrue
+     * @throws IOException
+     */
+    private boolean readResponse() throws IOException {
+        while (true) {
+            int length = mConnection.read(mReadBuffer);
+            if (length == 0) {
+                return false;
+            }
+            if (length < 0) {
+                if (mParseState == ParseState.BODY_UNTIL_CLOSE) {
+                    mParseState = ParseState.DONE;
+                    return true;
+                }
+                if (!mReceivedAny && mConnection.mReused) {
+                    throw new StaleConnectionException();
+                }
+                throw new EOFException("Unexpected end of stream: " + mOption.mUrl);
+            }
+            mReceivedAny = true;
+            mDeadline = System.currentTimeMillis() + mOption.mTimeout;
+            mReadBuffer.flip();
+            parse(mReadBuffer);
+            mReadBuffer.compact();
+            if (mParseState == ParseState.DONE) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 受信したデータを解析する。
+     *
+     * @param buffer
+     * @throws IOException
+     */
+    private void parse(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && mParseState != ParseState.DONE) {
+            switch (mParseState) {
+                case STATUS_LINE:
+                    String statusLine = readLine(buffer);
+                    if (statusLine != null) {
+                        parseStatusLine(statusLine);
+                        mParseState = ParseState.HEADERS;
+                    }
+                    break;
+                case HEADERS:
+                    String headerLine = readLine(buffer);
+                    if (headerLine == null) {
+                        break;
+                    }
+                    if (headerLine.length() > 0) {
+                        int index = headerLine.indexOf(':');
+                        if (index > 0) {
+                            mResponseHeaders.add(new String[]{
+                                    headerLine.substring(0, index).trim(),
+                                    headerLine.substring(index + 1).trim()});
+                        }
+                        break;
+                    }
+                    onHeadersComplete();
+                    break;
+                case BODY_FIXED:
+                    mRemaining -= readBody(buffer, mRemaining);
+                    if (mRemaining == 0) {
+                        mParseState = ParseState.DONE;
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    String sizeLine = readLine(buffer);
+                    if (sizeLine == null) {
+                        break;
+                    }
+                    int extension = sizeLine.indexOf(';');
+                    try {
+                        mRemaining = Long.parseLong((extension != -1 ? sizeLine.substring(0,
+                                extension) : sizeLine).trim(), 16);
+                    } catch (NumberFormatException e) {
+                        throw new ProtocolException("Invalid chunk size: " + sizeLine);
+                    }
+                    if (mRemaining < 0) {
+                        throw new ProtocolException("Invalid chunk size: " + sizeLine);
+                    }
+                    mParseState = mRemaining == 0 ? ParseState.TRAILERS
+                            : ParseState.CHUNK_DATA;
+                    break;
+                case CHUNK_DATA:
+                    mRemaining -= readBody(buffer, mRemaining);
+                    if (mRemaining == 0) {
+                        mParseState = ParseState.CHUNK_CRLF;
+                    }
+                    break;
+                case CHUNK_CRLF:
+                    if (readLine(buffer) != null) {
+                        mParseState = ParseState.CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILERS:
+                    String trailer = readLine(buffer);
+                    if (trailer != null && trailer.length() == 0) {
+                        mParseState = ParseState.DONE;
+                    }
+                    break;
+                case BODY_UNTIL_CLOSE:
+                    readBody(buffer, Long.MAX_VALUE);
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    private void parseStatusLine(String statusLine) throws ProtocolException {
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new ProtocolException("Invalid status line: " + statusLine);
+        }
+        try {
+            String[] version = parts[0].substring("HTTP/".length()).split("\\.");
+            mProtocolVersion = new ProtocolVersion("HTTP", Integer.parseInt(version[0]),
+                    version.length > 1 ? Integer.parseInt(version[1]) : 0);
+            mStatusCode = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid status line: " + statusLine);
+        }
+        mReasonPhrase = parts.length > 2 ? parts[2] : "";
+    }
+
+    private void onHeadersComplete() throws ProtocolException {
+        if (HttpStatus.SC_CONTINUE <= mStatusCode && mStatusCode < HttpStatus.SC_OK) {
+            // 1xxは最終的なレスポンスではないので読み飛ばす
+            mResponseHeaders.clear();
+            mParseState = ParseState.STATUS_LINE;
+            return;
+        }
+        String connection = findHeader(SugarrayConstants.HeaderFields.CONNECTION);
+        mKeepAlive = mProtocolVersion.greaterEquals(new ProtocolVersion("HTTP", 1, 1)) ? !"close"
+                .equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+        releaseResponseBody();
+        mResponseBody = new PooledByteArrayOutputStream();
+        mResponseLength = -1;
+        ProgressDispatcher.responseStarted(mProgressUpdateListener);
+        String transferEncoding = findHeader("Transfer-Encoding");
+        String contentLength = findHeader(SugarrayConstants.HeaderFields.CONTENT_LENGTH);
+        if (mStatusCode == HttpStatus.SC_NO_CONTENT
+                || mStatusCode == HttpStatus.SC_NOT_MODIFIED
+                || mOption.mMethod == SugarrayConstants.Method.HEAD) {
+            mParseState = ParseState.DONE;
+        } else if (transferEncoding != null
+                && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+            mParseState = ParseState.CHUNK_SIZE;
+        } else if (contentLength != null) {
+            // イベントループのスレッドで例外を投げると通信が終わらないため、不正な値はプロトコルエラーとする
+            try {
+                mRemaining = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            if (mRemaining < 0) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            mResponseLength = mRemaining;
+            mParseState = mRemaining == 0 ? ParseState.DONE : ParseState.BODY_FIXED;
+        } else {
+            mKeepAlive = false;
+            mParseState = ParseState.BODY_UNTIL_CLOSE;
+        }
+    }
+
+    private long readBody(ByteBuffer buffer, long max) {
+        int length = (int) Math.min(buffer.remaining(), max);
+        mResponseBody.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        if (length > 0) {
+            mProgressUpdateListener.onProgressUpdate(mResponseLength, mResponseBody.size());
+        }
+        return length;
+    }
+
+    /**
+     * CRLFまでの1行を読み込む。
+     *
+     * @param buffer
+     * @return 1行分の文字列、まだ行末に達していなければnull
+     */
+    private String readLine(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                byte[] line = mLine.toByteArray();
+                mLine.reset();
+                int length = line.length > 0 && line[line.length - 1] == '\r' ? line.length - 1
+                        : line.length;
+                return new String(line, 0, length, ASCII);
+            }
+            mLine.write(b);
+        }
+        return null;
+    }
+
+    private String findHeader(String name) {
+        for (String[] header : mResponseHeaders) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * レスポンスの受信完了後にコネクションを返却し、結果を通知する。
+     */
+    private void complete() {
+        mState = State.DONE;
+        mLoop.removeExchange(this);
+        NioConnection connection = mConnection;
+        mConnection = null;
+        connection.mExchange = null;
+        if (mKeepAlive) {
+            mLoop.release(connection);
+        } else {
+            connection.close();
+        }
+
+        BasicHttpResponse httpResponse = new BasicHttpResponse(new BasicStatusLine(
+                mProtocolVersion, mStatusCode, mReasonPhrase));
+        for (String[] header : mResponseHeaders) {
+            httpResponse.addHeader(header[0], header[1]);
+        }
+        // 受信したデータはコピーせずに読み出し、レスポンスの生成後にプールへ返却する
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(mResponseBody.toInputStream());
+        entity.setContentLength(mResponseBody.size());
+        entity.setContentEncoding(findHeader("Content-Encoding"));
+        entity.setContentType(findHeader(SugarrayConstants.HeaderFields.CONTENT_TYPE));
+        httpResponse.setEntity(entity);
+        Logger.d(TAG, "URL: " + mOption.mUrl + "\n" + "Method: "
+                + mOption.mMethod.name() + "\n" + "Response status line: "
+                + mStatusCode + " " + mReasonPhrase);
+        try {
+            mCallback.onResponse(HttpRestHandler.createSugarrayResponse(httpResponse));
+        } catch (SugarrayError e) {
+            if (e instanceof ServerError && mCurrentRetry < mOption.mRetryMax) {
+                mCurrentRetry++;
+                mRetryScheduled = true;
+                mLoop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        start();
+                    }
+                }, mOption.mRetryInterval);
+                return;
+            }
+            mCallback.onError(e);
+        } catch (IOException e) {
+            mCallback.onError(new UnexpectedError("io error.", e));
+        } finally {
+            releaseResponseBody();
+        }
+    }
+
+    /**
+     * 通信を失敗として終了する。再利用したコネクションが切断されていた場合は新しいコネクションでやり直す。
+     *
+     * @param e
+     */
+    private void fail(IOException e) {
+        if (mState == State.DONE) {
+            return;
+        }
+        mLoop.removeExchange(this);
+        closeBody();
+        releaseResponseBody();
+        if (mConnection != null) {
+            mConnection.close();
+            mConnection = null;
+        }
+        if (e instanceof StaleConnectionException) {
+            Logger.d(TAG, "Pooled connection was closed by peer. Retry: " + mRouteKey);
+            start();
+            return;
+        }
+        if (mState == State.CONNECTING && mAddressIndex + 1 < mAddresses.length) {
+            Logger.d(TAG, "Connect to " + mAddresses[mAddressIndex] + " failed. Try next address: "
+                    + e.getMessage());
+            mAddressIndex++;
+            start();
+            return;
+        }
+        mState = State.DONE;
+        if (e instanceof ProtocolException) {
+            mCallback.onError(new UnexpectedError("Invalid protocol.", e));
+        } else if (e instanceof SocketTimeoutException) {
+            mCallback.onError(new UnexpectedError("Socket timeout.", e));
+        } else {
+            mCallback.onError(new UnexpectedError("io error.", e));
+        }
+    }
+
+    private boolean hasRequestBody() {
+        return mOption.hasBody();
+    }
+
+    /**
+     * リクエストラインとヘッダーを生成する。
+     *
+     * @param option
+     * @param url
+     * @param viaProxy プロキシ経由であればtrue
+     * @return リクエストラインとヘッダーのバイト列
+     */
+    private byte[] createRequestHead(RequestOption option, URL url, boolean viaProxy) {
+        StringBuilder head = new StringBuilder();
+        String target = viaProxy ? url.toString() : url.getFile();
+        if (target.length() == 0) {
+            target = "/";
+        }
+        head.append(option.mMethod.name()).append(' ').append(target)
+                .append(" HTTP/1.1\r\n");
+        boolean hasHost = false;
+        boolean hasContentLength = false;
+        for (Map.Entry<String, String> header : option.mHeaders.entrySet()) {
+            hasHost |= SugarrayConstants.HeaderFields.HOST.equalsIgnoreCase(header.getKey());
+            hasContentLength |= SugarrayConstants.HeaderFields.CONTENT_LENGTH
+                    .equalsIgnoreCase(header.getKey());
+            head.append(header.getKey()).append(": ").append(header.getValue())
+                    .append("\r\n");
+            Logger.d(TAG, "" + header.getKey() + ": " + header.getValue());
+        }
+        if (!hasHost) {
+            head.append(SugarrayConstants.HeaderFields.HOST).append(": ")
+                    .append(url.getHost()).append("\r\n");
+        }
+        if (hasRequestBody() && !hasContentLength) {
+            head.append(SugarrayConstants.HeaderFields.CONTENT_LENGTH)
+                    .append(": ").append(option.contentLength()).append("\r\n");
+        }
+        if (option.contentEncoding() != null) {
+            head.append(SugarrayConstants.HeaderFields.CONTENT_ENCODING).append(": ")
+                    .append(option.contentEncoding()).append("\r\n");
+        }
+        String acceptEncoding = option.acceptEncoding();
+        if (acceptEncoding != null) {
+            head.append(SugarrayConstants.HeaderFields.ACCEPT_ENCODING).append(": ")
+                    .append(acceptEncoding).append("\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(ASCII);
+    }
+
+    /**
+     * 再利用したコネクションがサーバーから切断されていたことを表す例外
+     */
+    @SuppressWarnings("serial")
+    private static class StaleConnectionException extends IOException {
+        StaleConnectionException() {
+            super("Stale pooled connection.");
+        }
+    }
+}
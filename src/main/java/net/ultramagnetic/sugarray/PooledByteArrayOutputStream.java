@@ -0,0 +1,138 @@
+package net.ultramagnetic.sugarray;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BufferPoolから取得した固定長の配列を連結してデータを保持するOutputStream
+ * <p>
+ * ByteArrayOutputStreamと異なり容量を拡張する際にコピーせず、保持したデータはコピーせずにInputStreamで読み出せる。
+ * 使い終わったらrelease()で配列をプールに返却する。
+ */
+final class PooledByteArrayOutputStream extends OutputStream {
+
+    private static final int SEGMENT_SIZE = 1024 * 16;
+
+    private final BufferPool mPool;
+    private final List<byte[]> mSegments = new ArrayList<byte[]>();
+    private int mSize;
+
+    PooledByteArrayOutputStream() {
+        this(BufferPool.getInstance());
+    }
+
+    PooledByteArrayOutputStream(BufferPool pool) {
+        mPool = pool;
+    }
+
+    @Override
+    public void write(int b) {
+        int offset = mSize % SEGMENT_SIZE;
+        if (offset == 0 && mSize / SEGMENT_SIZE == mSegments.size()) {
+            mSegments.add(mPool.acquire(SEGMENT_SIZE));
+        }
+        mSegments.get(mSize / SEGMENT_SIZE)[offset] = (byte) b;
+        mSize++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            int offset = mSize % SEGMENT_SIZE;
+            if (offset == 0 && mSize / SEGMENT_SIZE == mSegments.size()) {
+                mSegments.add(mPool.acquire(SEGMENT_SIZE));
+            }
+            int length = Math.min(len, SEGMENT_SIZE - offset);
+            System.arraycopy(b, off, mSegments.get(mSize / SEGMENT_SIZE), offset, length);
+            mSize += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    /**
+     * 保持しているバイト数を返す。
+     *
+     * @return バイト数
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * 保持しているデータをちょうどの長さの配列にコピーする。
+     *
+     * @return 配列
+     */
+    byte[] toByteArray() {
+        byte[] bytes = new byte[mSize];
+        int offset = 0;
+        for (byte[] segment : mSegments) {
+            int length = Math.min(SEGMENT_SIZE, mSize - offset);
+            if (length <= 0) {
+                break;
+            }
+            System.arraycopy(segment, 0, bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    /**
+     * 保持しているデータをコピーせずに読み出すInputStreamを返す。読み終わるまでrelease()してはならない。
+     *
+     * @return InputStream
+     */
+    InputStream toInputStream() {
+        final int size = mSize;
+        return new InputStream() {
+            private int mPosition;
+
+            @Override
+            public int read() {
+                if (mPosition >= size) {
+                    return -1;
+                }
+                int b = mSegments.get(mPosition / SEGMENT_SIZE)[mPosition % SEGMENT_SIZE] & 0xff;
+                mPosition++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (mPosition >= size) {
+                    return -1;
+                }
+                int offset = mPosition % SEGMENT_SIZE;
+                int length = Math.min(Math.min(len, SEGMENT_SIZE - offset), size - mPosition);
+                System.arraycopy(mSegments.get(mPosition / SEGMENT_SIZE), offset, b, off, length);
+                mPosition += length;
+                return length;
+            }
+
+            @Override
+            public int available() {
+                return size - mPosition;
+            }
+        };
+    }
+
+    /**
+     * 配列をプールに返却し、保持しているデータを破棄する。
+     */
+    void release() {
+        for (byte[] segment : mSegments) {
+            mPool.release(segment);
+        }
+        mSegments.clear();
+        mSize = 0;
+    }
+}
@@ -0,0 +1,196 @@
+package net.ultramagnetic.sugarray;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 送信と受信の進行状況をまとめて、間引いてからリスナーに通知するディスパッチャー
+ * <p>
+ * 前回の通知から指定したバイト数と時間の両方を経過した場合と、全て処理し終えた場合のみ通知する。
+ * 通知はExecutorで実行し、Executorの実行が追いつかない間に届いた進行状況は最新の値だけを通知する。
+ * 通知用のRunnableは使い回すため、進行状況毎にオブジェクトを生成しない。
+ * 送信と受信のメッセージボディの長さが同じ場合も区別できるよう、ハンドラは受信を始める際にresponseStarted()を呼び出す。
+ */
+class ProgressDispatcher implements Sugarray.ProgressUpdateListener, ProgressPhaseListener {
+
+    private final Sugarray.ProgressUpdateListener mListener;
+    /**
+     * 通知を実行するExecutor(nullの場合は通信中のスレッドで通知する)
+     */
+    private final Executor mExecutor;
+    private final long mMinBytes;
+    private final long mMinInterval;
+    private final Runnable mDeliverTask = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * 最後に受け取った進行状況
+     */
+    private long mLatestTotalBytes = Long.MIN_VALUE;
+    private long mLatestProgressBytes;
+    /**
+     * 最後に通知を決めた進行状況と時刻
+     */
+    private long mReportedTotalBytes = Long.MIN_VALUE;
+    private long mReportedProgressBytes;
+    private long mReportedTime;
+    /**
+     * 受信を始めたため、次の進行状況から数え直す
+     */
+    private boolean mResponseStarted;
+    /**
+     * 通知待ちの進行状況
+     */
+    private long mPendingTotalBytes;
+    private long mPendingProgressBytes;
+    private boolean mPending;
+    /**
+     * 通知用のRunnableをExecutorに投入済み
+     */
+    private boolean mScheduled;
+
+    /**
+     * @param listener    通知先のリスナー
+     * @param executor    通知を実行するExecutor、nullの場合は通信中のスレッドで通知する
+     * @param minBytes    通知する最小のバイト数の差
+     * @param minInterval 通知する最小の間隔(MS)
+     */
+    ProgressDispatcher(Sugarray.ProgressUpdateListener listener, Executor executor,
+                       long minBytes, long minInterval) {
+        if (listener == null) {
+            throw new IllegalArgumentException("ProgressUpdateListener is null.");
+        }
+        mListener = listener;
+        mExecutor = executor;
+        mMinBytes = minBytes;
+        mMinInterval = minInterval;
+    }
+
+    /**
+     * 送信から受信に移ったことを、対応していればリスナーに通知する。
+     *
+     * @param listener 進行状況のリスナー、nullの場合は何もしない
+     */
+    static void responseStarted(Sugarray.ProgressUpdateListener listener) {
+        if (listener instanceof ProgressPhaseListener) {
+            ((ProgressPhaseListener) listener).onResponseStarted();
+        }
+    }
+
+    @Override
+    public void onProgressUpdate(long totalBytes, long progressBytes) {
+        synchronized (this) {
+            // 受信に移った場合やリトライで送信し直す場合など、対象のメッセージボディが変わった
+            boolean newBody = mResponseStarted || totalBytes != mReportedTotalBytes
+                    || progressBytes < mLatestProgressBytes;
+            mLatestTotalBytes = totalBytes;
+            mLatestProgressBytes = progressBytes;
+            if (newBody) {
+                mResponseStarted = false;
+                mReportedTotalBytes = totalBytes;
+                mReportedProgressBytes = 0;
+            }
+            boolean completed = totalBytes >= 0 && progressBytes >= totalBytes;
+            if (!completed) {
+                if (progressBytes - mReportedProgressBytes < mMinBytes) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                if (now - mReportedTime < mMinInterval) {
+                    return;
+                }
+                mReportedTime = now;
+            } else {
+                mReportedTime = System.currentTimeMillis();
+            }
+            mReportedProgressBytes = progressBytes;
+            if (!post(totalBytes, progressBytes)) {
+                return;
+            }
+        }
+        dispatch();
+    }
+
+    @Override
+    public synchronized void onResponseStarted() {
+        mResponseStarted = true;
+    }
+
+    /**
+     * 間引かれて通知されていない最新の進行状況があれば通知する。通信の完了時に呼び出す。
+     */
+    void flush() {
+        synchronized (this) {
+            if (mLatestTotalBytes == Long.MIN_VALUE
+                    || (mLatestProgressBytes == mReportedProgressBytes
+                    && mLatestTotalBytes == mReportedTotalBytes)) {
+                return;
+            }
+            mReportedTotalBytes = mLatestTotalBytes;
+            mReportedProgressBytes = mLatestProgressBytes;
+            if (!post(mLatestTotalBytes, mLatestProgressBytes)) {
+                return;
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * 通知待ちの進行状況を更新する。
+     *
+     * @return 通知用のRunnableを新たに実行する必要があればtrue
+     */
+    private boolean post(long totalBytes, long progressBytes) {
+        mPendingTotalBytes = totalBytes;
+        mPendingProgressBytes = progressBytes;
+        mPending = true;
+        if (mScheduled) {
+            return false;
+        }
+        mScheduled = true;
+        return true;
+    }
+
+    private void dispatch() {
+        if (mExecutor != null) {
+            try {
+                mExecutor.execute(mDeliverTask);
+                return;
+            } catch (RejectedExecutionException e) {
+                // 投入できなかった場合は、以降の通知が止まらないよう通信中のスレッドで通知する
+            }
+        }
+        mDeliverTask.run();
+    }
+
+    /**
+     * 通知待ちの進行状況がなくなるまで、リスナーに通知する。
+     */
+    private void deliver() {
+        while (true) {
+            long totalBytes;
+            long progressBytes;
+            synchronized (this) {
+                if (!mPending) {
+                    mScheduled = false;
+                    return;
+                }
+                totalBytes = mPendingTotalBytes;
+                progressBytes = mPendingProgressBytes;
+                mPending = false;
+            }
+            try {
+                mListener.onProgressUpdate(totalBytes, progressBytes);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    mScheduled = false;
+                }
+                throw e;
+            }
+        }
+    }
+}
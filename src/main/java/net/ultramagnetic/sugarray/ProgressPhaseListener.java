@@ -0,0 +1,15 @@
+package net.ultramagnetic.sugarray;
+
+/**
+ * 送信から受信に移ったことを受け取るリスナーのインターフェイス
+ * <p>
+ * ProgressUpdateListenerは送信と受信の進行状況を同じメソッドで受け取るため、
+ * メッセージボディの長さが同じ場合でも区別できるよう、ハンドラが受信を始める際に通知する。
+ */
+interface ProgressPhaseListener {
+
+    /**
+     * レスポンスの受信を始めた。以降の進行状況は受信したメッセージボディのもの。
+     */
+    void onResponseStarted();
+}
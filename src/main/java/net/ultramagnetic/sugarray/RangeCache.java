@@ -0,0 +1,670 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.error.SugarrayError;
+import net.ultramagnetic.sugarray.error.UnexpectedError;
+import net.ultramagnetic.sugarray.util.FileUtils;
+import net.ultramagnetic.sugarray.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rangeリクエストで受信した部分的なレスポンスを、リソース毎のバイト範囲の集合としてディスクに保存するキャッシュ
+ * <p>
+ * URLと検証子(強いETagまたはLast-Modified)毎に、受信した範囲をその位置に書き込んだデータファイルと、
+ * 保存済みの範囲の一覧を持つインデックスファイルで保存する。隣接または重なる範囲は1つにまとめる。
+ * Rangeリクエストは保存済みの範囲で満たせる部分を再利用し、足りない範囲のみをIf-Range付きで受信する。
+ * サーバーが200を返した場合はリソースが更新されたとみなし、保存済みの範囲を破棄する。
+ * 合計サイズが上限を超えた場合は、最も長く使われていないリソースから削除する。
+ */
+public class RangeCache {
+
+    private static final String TAG = RangeCache.class.getSimpleName();
+
+    private static final String INDEX_SUFFIX = ".range";
+    private static final String DATA_SUFFIX = ".data";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x53475243;
+    /**
+     * メモリに読み込めるレスポンスボディの最大サイズ(VMが確保できる配列の上限)
+     */
+    private static final long MAX_BODY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    /**
+     * キー毎のリソースの保存済みのサイズ(最も長く使われていない順)
+     */
+    private final LinkedHashMap<String, Long> mResources = new LinkedHashMap<String, Long>(16,
+            0.75f, true);
+    private long mSize;
+    private boolean mInitialized;
+
+    /**
+     * @param directory 保存先のディレクトリ
+     */
+    public RangeCache(File directory) {
+        this(directory, SugarrayConstants.DefaultRangeCacheConfig.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param directory 保存先のディレクトリ
+     * @param maxSize   保存する範囲の合計サイズの上限(byte)
+     */
+    public RangeCache(File directory, long maxSize) {
+        if (directory == null) {
+            throw new IllegalArgumentException(TAG + ": directory is null.");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException(TAG + ": maxSize is minus. " + maxSize);
+        }
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return 保存先のディレクトリ
+     */
+    public File directory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return 合計サイズの上限(byte)
+     */
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return 保存している範囲の合計サイズ(byte)
+     */
+    public synchronized long size() {
+        initialize();
+        return mSize;
+    }
+
+    /**
+     * 指定したURLの保存済みの範囲を全て削除する。
+     *
+     * @param url クエリパラメーターを含むURL
+     */
+    public synchronized void remove(String url) {
+        if (url != null) {
+            initialize();
+            removeResource(HttpCache.key(url));
+        }
+    }
+
+    /**
+     * 保存している全てのリソースを削除する。
+     */
+    public synchronized void evictAll() {
+        initialize();
+        for (String key : new ArrayList<String>(mResources.keySet())) {
+            removeResource(key);
+        }
+    }
+
+    /**
+     * キャッシュを使えるリクエストかどうかを判定する。
+     *
+     * @param option リクエスト
+     * @return 1つの範囲を指定したRangeヘッダーを持ち、メモリに読み込むGETリクエストであればtrue
+     */
+    static boolean isCacheable(RequestOption option) {
+        return option.mMethod == SugarrayConstants.Method.GET && option.mDownloadFile == null
+                && option.mBodyStreamListener == null
+                && parseRange(HttpCache.header(option.mHeaders,
+                SugarrayConstants.HeaderFields.RANGE)) != null;
+    }
+
+    /**
+     * Rangeリクエストを保存済みの範囲と、足りない範囲の通信で満たす。
+     *
+     * @param option                 Rangeヘッダーを持つリクエスト
+     * @param httpHandler            足りない範囲の通信を行うハンドラ
+     * @param progressUpdateListener 進行状況のリスナー
+     * @return 206のレスポンス、サーバーが範囲に応じなかった場合はサーバーのレスポンス
+     * @throws SugarrayError
+     */
+    SugarrayResponse perform(RequestOption option, HttpHandler httpHandler,
+                             Sugarray.ProgressUpdateListener progressUpdateListener)
+            throws SugarrayError {
+        long[] range = parseRange(HttpCache.header(option.mHeaders,
+                SugarrayConstants.HeaderFields.RANGE));
+        String url = option.makeUrl();
+        String key = HttpCache.key(url);
+        Resource resource;
+        synchronized (this) {
+            initialize();
+            resource = readResource(key, url);
+        }
+        if (resource == null || range[0] >= resource.mLength) {
+            return fetch(option, key, url, range[0], range[1], null, httpHandler,
+                    progressUpdateListener);
+        }
+        long end = range[1] == -1 || range[1] >= resource.mLength ? resource.mLength - 1
+                : range[1];
+        if (end - range[0] + 1 > MAX_BODY_SIZE) {
+            // 終端を省略した範囲はリソースの残り全体になるため、配列に収まらなければ足りない範囲も受信しない
+            throw new UnexpectedError("Range is too large to read into memory. "
+                    + range[0] + "-" + end + ": " + url);
+        }
+        List<long[]> gaps = resource.gaps(range[0], end);
+        for (long[] gap : gaps) {
+            SugarrayResponse response = fetch(option, key, url, gap[0], gap[1],
+                    resource.mValidator, httpHandler, progressUpdateListener);
+            if (response.mStatusCode != 206) {
+                // If-Rangeが一致せず、更新されたリソースの全体が返された
+                return response;
+            }
+        }
+        SugarrayResponse response = read(key, url, range[0], end, gaps.isEmpty());
+        if (response == null) {
+            // 受信している間に他のスレッドが削除した
+            return fetch(option, key, url, range[0], range[1], null, httpHandler,
+                    progressUpdateListener);
+        }
+        return response;
+    }
+
+    /**
+     * 無圧縮で範囲を受信し、保存できれば保存する。
+     *
+     * @param validator If-Rangeに指定する検証子、指定しなければnull
+     */
+    private SugarrayResponse fetch(RequestOption option, String key, String url, long start,
+                                   long end, String validator, HttpHandler httpHandler,
+                                   Sugarray.ProgressUpdateListener progressUpdateListener)
+            throws SugarrayError {
+        Map<String, String> headers = new HashMap<String, String>(option.mHeaders);
+        HttpCache.removeHeader(headers, SugarrayConstants.HeaderFields.RANGE);
+        HttpCache.removeHeader(headers, SugarrayConstants.HeaderFields.ACCEPT_ENCODING);
+        headers.put(SugarrayConstants.HeaderFields.RANGE,
+                "bytes=" + start + "-" + (end != -1 ? String.valueOf(end) : ""));
+        // 圧縮されるとバイト範囲が意味を持たなくなるため、無圧縮で受信する
+        headers.put(SugarrayConstants.HeaderFields.ACCEPT_ENCODING, "identity");
+        if (validator != null) {
+            headers.put(SugarrayConstants.HeaderFields.IF_RANGE, validator);
+        }
+        Logger.d(TAG, "Fetch range " + start + "-" + end + ": " + url);
+        SugarrayResponse response = httpHandler.perform(option.withHeaders(headers),
+                progressUpdateListener);
+        store(key, url, response);
+        return response;
+    }
+
+    /**
+     * 206または200のレスポンスを、検証子を持ち無圧縮であれば保存する。
+     */
+    private void store(String key, String url, SugarrayResponse response) {
+        String validator = validator(response.mHeaders);
+        String contentEncoding = HttpCache.header(response.mHeaders,
+                SugarrayConstants.HeaderFields.CONTENT_ENCODING);
+        if (validator == null || response.mBody.length == 0
+                || (contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding))
+                || CacheControl.parse(response.mHeaders).mNoStore) {
+            return;
+        }
+        long start;
+        long length;
+        if (response.mStatusCode == 206) {
+            long[] contentRange = parseContentRange(HttpCache.header(response.mHeaders,
+                    SugarrayConstants.HeaderFields.CONTENT_RANGE));
+            if (contentRange == null
+                    || contentRange[1] - contentRange[0] + 1 != response.mBody.length) {
+                return;
+            }
+            start = contentRange[0];
+            length = contentRange[2];
+        } else if (response.mStatusCode == 200) {
+            start = 0;
+            length = response.mBody.length;
+        } else {
+            return;
+        }
+        synchronized (this) {
+            initialize();
+            Resource resource = readResource(key, url);
+            if (resource == null || !resource.mValidator.equals(validator)
+                    || resource.mLength != length) {
+                // 異なる版の範囲を混在させない
+                removeResource(key);
+                resource = new Resource(url, validator, response.mContentType,
+                        response.mCharset.name(), length);
+            }
+            if (!writeData(key, start, response.mBody)) {
+                return;
+            }
+            resource.add(start, start + response.mBody.length - 1);
+            if (!writeResource(key, resource)) {
+                removeResource(key);
+                return;
+            }
+            Long previous = mResources.put(key, resource.storedBytes());
+            mSize += resource.storedBytes() - (previous != null ? previous : 0);
+            trimToSize();
+        }
+    }
+
+    /**
+     * 保存済みの範囲から206のレスポンスを生成する。
+     *
+     * @param notModified 全て保存済みの範囲から生成する場合はtrue
+     * @return SugarrayResponse、範囲が保存されていなければnull
+     */
+    private synchronized SugarrayResponse read(String key, String url, long start, long end,
+                                               boolean notModified) {
+        Resource resource = readResource(key, url);
+        if (resource == null || !resource.gaps(start, end).isEmpty()) {
+            return null;
+        }
+        byte[] body = new byte[(int) (end - start + 1)];
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(dataFile(key), "r");
+            file.seek(start);
+            file.readFully(body);
+        } catch (IOException e) {
+            Logger.e(TAG, "Could not read range. " + url, e);
+            removeResource(key);
+            return null;
+        } finally {
+            FileUtils.closeQuietly(file);
+        }
+        mResources.get(key);
+        // 再起動後も使われた順序を復元できるよう、更新日時を使われた時刻とする
+        if (!indexFile(key).setLastModified(System.currentTimeMillis())) {
+            Logger.d(TAG, "Could not update last modified. " + key);
+        }
+        Logger.d(TAG, "Range cache hit " + start + "-" + end + ": " + url);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(SugarrayConstants.HeaderFields.CONTENT_RANGE,
+                "bytes " + start + "-" + end + "/" + resource.mLength);
+        headers.put(SugarrayConstants.HeaderFields.CONTENT_LENGTH, String.valueOf(body.length));
+        headers.put(SugarrayConstants.HeaderFields.ACCEPT_RANGES, "bytes");
+        headers.put(resource.mValidator.startsWith("\"") || resource.mValidator.startsWith("W/")
+                ? SugarrayConstants.HeaderFields.ETAG
+                : SugarrayConstants.HeaderFields.LAST_MODIFIED, resource.mValidator);
+        if (resource.mContentType != null) {
+            headers.put(SugarrayConstants.HeaderFields.CONTENT_TYPE, resource.mContentType);
+        }
+        return new SugarrayResponse(206, body, resource.mContentType, resource.mCharset, headers,
+                notModified);
+    }
+
+    private boolean writeData(String key, long position, byte[] body) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Logger.e(TAG, "Could not create directory. " + mDirectory);
+            return false;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(dataFile(key), "rw");
+            file.seek(position);
+            file.write(body);
+            return true;
+        } catch (IOException e) {
+            Logger.e(TAG, "Could not write range. " + key, e);
+            return false;
+        } finally {
+            FileUtils.closeQuietly(file);
+        }
+    }
+
+    /**
+     * インデックスファイルを読み込む。URLが異なる、または壊れている場合はnullを返す。
+     */
+    private Resource readResource(String key, String url) {
+        if (!mResources.containsKey(key)) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                    indexFile(key))));
+            Resource resource = Resource.readFrom(in);
+            return url.equals(resource.mUrl) ? resource : null;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Logger.e(TAG, "Invalid range index. " + key, e);
+            removeResource(key);
+            return null;
+        } finally {
+            FileUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * インデックスファイルを一時ファイルに書き込んでから置き換える。
+     */
+    private boolean writeResource(String key, Resource resource) {
+        File temp = new File(mDirectory, key + INDEX_SUFFIX + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            resource.writeTo(out);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            Logger.e(TAG, "Could not write range index. " + resource.mUrl, e);
+            return false;
+        } finally {
+            FileUtils.closeQuietly(out);
+        }
+        if (!temp.renameTo(indexFile(key))) {
+            Logger.e(TAG, "Could not rename range index. " + key);
+            if (!temp.delete()) {
+                Logger.e(TAG, "Could not delete temporary file. " + temp);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void removeResource(String key) {
+        Long size = mResources.remove(key);
+        if (size != null) {
+            mSize -= size;
+        }
+        // インデックスを先に削除し、データファイルだけが残っても使われないようにする
+        deleteFile(indexFile(key));
+        deleteFile(dataFile(key));
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Logger.e(TAG, "Could not delete range cache file. " + file);
+        }
+    }
+
+    /**
+     * 合計サイズが上限以下になるまで、最も長く使われていないリソースから削除する。
+     */
+    private void trimToSize() {
+        Iterator<String> iterator = mResources.keySet().iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            String eldest = iterator.next();
+            Logger.d(TAG, "Evict range cache. " + eldest);
+            removeResource(eldest);
+            iterator = mResources.keySet().iterator();
+        }
+    }
+
+    /**
+     * 初回のアクセス時に、保存先のディレクトリからリソースの一覧を読み込む。
+     * リソースの数は少ないため、インデックスファイルを更新日時の順に読み込む。
+     */
+    private void initialize() {
+        if (mInitialized) {
+            return;
+        }
+        mInitialized = true;
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> indexFiles = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(INDEX_SUFFIX)) {
+                indexFiles.add(file);
+            }
+        }
+        File[] sorted = indexFiles.toArray(new File[indexFiles.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : sorted) {
+            String name = file.getName();
+            String key = name.substring(0, name.length() - INDEX_SUFFIX.length());
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                long storedBytes = Resource.readFrom(in).storedBytes();
+                mResources.put(key, storedBytes);
+                mSize += storedBytes;
+            } catch (IOException e) {
+                Logger.e(TAG, "Invalid range index. " + file, e);
+                FileUtils.closeQuietly(in);
+                in = null;
+                removeResource(key);
+            } finally {
+                FileUtils.closeQuietly(in);
+            }
+        }
+        trimToSize();
+    }
+
+    private File indexFile(String key) {
+        return new File(mDirectory, key + INDEX_SUFFIX);
+    }
+
+    private File dataFile(String key) {
+        return new File(mDirectory, key + DATA_SUFFIX);
+    }
+
+    /**
+     * If-Rangeに使える検証子を返す。If-Rangeには強いETagのみ利用できるため、弱いETagの場合はLast-Modifiedを使う。
+     *
+     * @param headers レスポンスのヘッダー
+     * @return 検証子、なければnull
+     */
+    private static String validator(Map<String, String> headers) {
+        String etag = HttpCache.header(headers, SugarrayConstants.HeaderFields.ETAG);
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return HttpCache.header(headers, SugarrayConstants.HeaderFields.LAST_MODIFIED);
+    }
+
+    /**
+     * 1つの範囲を指定したRangeヘッダー("bytes=開始-終了"または"bytes=開始-")を解析する。
+     * 末尾からの長さの指定と複数の範囲の指定には対応しない。
+     *
+     * @param value Rangeヘッダーの値
+     * @return 開始と終了の位置、終了の指定がなければ終了は-1、解析できなければnull
+     */
+    static long[] parseRange(String value) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6) || value.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = value.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash <= 0) {
+            return null;
+        }
+        try {
+            long start = Long.parseLong(spec.substring(0, dash).trim());
+            String endValue = spec.substring(dash + 1).trim();
+            long end = endValue.length() == 0 ? -1 : Long.parseLong(endValue);
+            if (start < 0 || (end != -1 && end < start)) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Content-Rangeヘッダー("bytes 開始-終了/全体の長さ")を解析する。
+     *
+     * @param value Content-Rangeヘッダーの値
+     * @return 開始、終了の位置と全体の長さ、全体の長さが不明または解析できなければnull
+     */
+    static long[] parseContentRange(String value) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        if (!value.regionMatches(true, 0, "bytes ", 0, 6)) {
+            return null;
+        }
+        String spec = value.substring(6).trim();
+        int dash = spec.indexOf('-');
+        int slash = spec.indexOf('/');
+        if (dash <= 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long start = Long.parseLong(spec.substring(0, dash).trim());
+            long end = Long.parseLong(spec.substring(dash + 1, slash).trim());
+            long length = Long.parseLong(spec.substring(slash + 1).trim());
+            if (start < 0 || end < start || end >= length) {
+                return null;
+            }
+            return new long[]{start, end, length};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 1つのリソースについて保存済みの範囲の一覧
+     */
+    static class Resource {
+        final String mUrl;
+        final String mValidator;
+        final String mContentType;
+        final String mCharset;
+        /**
+         * リソース全体の長さ(byte)
+         */
+        final long mLength;
+        /**
+         * 保存済みの範囲(開始と終了の位置)、開始位置の順に並び、隣接または重なる範囲はまとめる
+         */
+        final List<long[]> mSegments = new ArrayList<long[]>();
+
+        Resource(String url, String validator, String contentType, String charset,
+                 long length) {
+            mUrl = url;
+            mValidator = validator;
+            mContentType = contentType;
+            mCharset = charset;
+            mLength = length;
+        }
+
+        /**
+         * 範囲を追加し、隣接または重なる範囲とまとめる。
+         */
+        void add(long start, long end) {
+            List<long[]> merged = new ArrayList<long[]>();
+            for (long[] segment : mSegments) {
+                if (segment[1] + 1 < start || end + 1 < segment[0]) {
+                    merged.add(segment);
+                } else {
+                    start = Math.min(start, segment[0]);
+                    end = Math.max(end, segment[1]);
+                }
+            }
+            int index = 0;
+            while (index < merged.size() && merged.get(index)[0] < start) {
+                index++;
+            }
+            merged.add(index, new long[]{start, end});
+            mSegments.clear();
+            mSegments.addAll(merged);
+        }
+
+        /**
+         * @return 指定した範囲のうち、保存されていない範囲の一覧
+         */
+        List<long[]> gaps(long start, long end) {
+            List<long[]> gaps = new ArrayList<long[]>();
+            long position = start;
+            for (long[] segment : mSegments) {
+                if (segment[1] < position) {
+                    continue;
+                }
+                if (segment[0] > end) {
+                    break;
+                }
+                if (segment[0] > position) {
+                    gaps.add(new long[]{position, segment[0] - 1});
+                }
+                position = segment[1] + 1;
+                if (position > end) {
+                    break;
+                }
+            }
+            if (position <= end) {
+                gaps.add(new long[]{position, end});
+            }
+            return gaps;
+        }
+
+        /**
+         * @return 保存済みの範囲の合計の長さ(byte)
+         */
+        long storedBytes() {
+            long bytes = 0;
+            for (long[] segment : mSegments) {
+                bytes += segment[1] - segment[0] + 1;
+            }
+            return bytes;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeUTF(mUrl);
+            out.writeUTF(mValidator);
+            out.writeBoolean(mContentType != null);
+            if (mContentType != null) {
+                out.writeUTF(mContentType);
+            }
+            out.writeUTF(mCharset);
+            out.writeLong(mLength);
+            out.writeInt(mSegments.size());
+            for (long[] segment : mSegments) {
+                out.writeLong(segment[0]);
+                out.writeLong(segment[1]);
+            }
+        }
+
+        static Resource readFrom(DataInputStream in) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(TAG + ": Invalid magic number.");
+            }
+            String url = in.readUTF();
+            String validator = in.readUTF();
+            String contentType = in.readBoolean() ? in.readUTF() : null;
+            String charset = in.readUTF();
+            Resource resource = new Resource(url, validator, contentType, charset,
+                    in.readLong());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                resource.mSegments.add(new long[]{in.readLong(), in.readLong()});
+            }
+            return resource;
+        }
+    }
+}
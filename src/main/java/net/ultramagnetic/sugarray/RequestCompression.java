@@ -0,0 +1,230 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * リクエストのメッセージボディをgzipまたはdeflateで圧縮する処理
+ * <p>
+ * メモリ上のボディは送信前に圧縮して固定長で送信し、ファイルは読み出しながら圧縮してチャンク形式で送信する。
+ * 閾値より小さいボディや、既に圧縮されている形式(PNG、JPEG、GIFなど)のボディは圧縮しない。
+ */
+class RequestCompression {
+
+    private static final String TAG = RequestCompression.class.getSimpleName();
+
+    /**
+     * gzipのヘッダー(圧縮方式deflate、フラグなし、更新日時なし、OS不明)
+     */
+    private static final byte[] GZIP_HEADER = {
+            (byte) 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private RequestCompression() {
+        ;
+    }
+
+    /**
+     * メッセージボディを圧縮して送信するかどうかを判定する。
+     *
+     * @param option           リクエスト(メソッドのみ参照する)
+     * @param headers          リクエストヘッダー
+     * @param contentEncoding  圧縮方式、nullの場合は圧縮しない
+     * @param threshold        圧縮するメッセージボディの最小バイト数
+     * @param contentLength    圧縮前のメッセージボディのバイト数
+     * @return 圧縮する場合にtrue
+     */
+    static boolean isApplicable(RequestOption option, Map<String, String> headers,
+                                SugarrayConstants.ContentEncoding contentEncoding,
+                                int threshold, long contentLength) {
+        if (contentEncoding == null || !option.hasBody() || contentLength < threshold) {
+            return false;
+        }
+        // 呼び出し元が既にエンコードしたボディは二重に圧縮しない
+        if (findHeader(headers, SugarrayConstants.HeaderFields.CONTENT_ENCODING) != null) {
+            return false;
+        }
+        return !isCompressedType(findHeader(headers,
+                SugarrayConstants.HeaderFields.CONTENT_TYPE));
+    }
+
+    /**
+     * メモリ上のメッセージボディを圧縮する。
+     *
+     * @param body            圧縮前のメッセージボディ
+     * @param contentEncoding 圧縮方式
+     * @return 圧縮後のメッセージボディ
+     */
+    static byte[] compress(byte[] body, SugarrayConstants.ContentEncoding contentEncoding) {
+        InputStream in = compress(new ByteArrayInputStream(body), contentEncoding);
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream();
+        byte[] buf = BufferPool.getInstance().acquire(
+                SugarrayConstants.DefaultCompressionConfig.DEFAULT_BUFFER_SIZE);
+        try {
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            // ByteArrayInputStreamからの読み込みでは発生しない
+            throw new IllegalStateException(TAG + ": could not compress body.", e);
+        } finally {
+            FileUtils.closeQuietly(in);
+            BufferPool.getInstance().release(buf);
+            out.release();
+        }
+    }
+
+    /**
+     * 読み出しながら圧縮するストリームを返す。閉じると元のストリームも閉じる。
+     *
+     * @param in              圧縮前のメッセージボディ
+     * @param contentEncoding 圧縮方式
+     * @return 圧縮後のメッセージボディを読み出すストリーム
+     */
+    static InputStream compress(InputStream in,
+                                SugarrayConstants.ContentEncoding contentEncoding) {
+        return new CompressingInputStream(in,
+                contentEncoding == SugarrayConstants.ContentEncoding.GZIP);
+    }
+
+    private static boolean isCompressedType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int paramIndex = contentType.indexOf(';');
+        String mimeType = (paramIndex < 0 ? contentType : contentType.substring(0, paramIndex))
+                .trim().toLowerCase(Locale.US);
+        SugarrayConstants.ContentType type = SugarrayConstants.ContentType.fromString(mimeType);
+        if (type == SugarrayConstants.ContentType.PNG || type == SugarrayConstants.ContentType.JPG
+                || type == SugarrayConstants.ContentType.GIF) {
+            return true;
+        }
+        return mimeType.startsWith("video/") || mimeType.startsWith("audio/")
+                || mimeType.equals("image/webp") || mimeType.equals("application/zip")
+                || mimeType.equals("application/gzip") || mimeType.equals("application/x-gzip");
+    }
+
+    /**
+     * ヘッダー名の大文字と小文字を区別せずに値を返す。
+     */
+    private static String findHeader(Map<String, String> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 元のストリームから読み出したデータをDeflaterで圧縮して返すストリーム。
+     * gzipの場合はヘッダーとCRC32、圧縮前のサイズのトレイラーを前後に付与する。
+     */
+    private static class CompressingInputStream extends InputStream {
+        private final InputStream mIn;
+        private final Deflater mDeflater;
+        private final CRC32 mCrc;
+        private final byte[] mInput;
+        private ByteBuffer mPending;
+        private long mInputBytes;
+        private boolean mTrailerWritten;
+        private boolean mClosed;
+
+        CompressingInputStream(InputStream in, boolean gzip) {
+            mIn = in;
+            // gzipはzlibのヘッダーを持たない生のdeflateデータを格納する
+            mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+            mCrc = gzip ? new CRC32() : null;
+            mInput = BufferPool.getInstance().acquire(
+                    SugarrayConstants.DefaultCompressionConfig.DEFAULT_BUFFER_SIZE);
+            mPending = gzip ? ByteBuffer.wrap(GZIP_HEADER) : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mClosed) {
+                throw new IOException("Stream closed.");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (mPending != null && mPending.hasRemaining()) {
+                    int length = Math.min(len, mPending.remaining());
+                    mPending.get(b, off, length);
+                    return length;
+                }
+                if (mDeflater.finished()) {
+                    if (mCrc != null && !mTrailerWritten) {
+                        mTrailerWritten = true;
+                        mPending = trailer();
+                        continue;
+                    }
+                    return -1;
+                }
+                int length = mDeflater.deflate(b, off, len);
+                if (length > 0) {
+                    return length;
+                }
+                if (mDeflater.needsInput()) {
+                    int readBytes = mIn.read(mInput);
+                    if (readBytes == -1) {
+                        mDeflater.finish();
+                    } else if (readBytes > 0) {
+                        if (mCrc != null) {
+                            mCrc.update(mInput, 0, readBytes);
+                        }
+                        mInputBytes += readBytes;
+                        mDeflater.setInput(mInput, 0, readBytes);
+                    }
+                }
+            }
+        }
+
+        private ByteBuffer trailer() {
+            ByteBuffer trailer = ByteBuffer.allocate(8);
+            writeIntLE(trailer, mCrc.getValue());
+            writeIntLE(trailer, mInputBytes);
+            trailer.flip();
+            return trailer;
+        }
+
+        private static void writeIntLE(ByteBuffer buffer, long value) {
+            buffer.put((byte) value);
+            buffer.put((byte) (value >> 8));
+            buffer.put((byte) (value >> 16));
+            buffer.put((byte) (value >> 24));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            // Deflaterのネイティブメモリを解放する
+            mDeflater.end();
+            BufferPool.getInstance().release(mInput);
+            mIn.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package net.ultramagnetic.sugarray;
+
+/**
+ * 1回のHTTPリクエストの計測結果
+ */
+public class RequestMetrics {
+    /**
+     * リクエストしたURL(クエリパラメーターを含む)
+     */
+    public final String mUrl;
+    /**
+     * メソッド
+     */
+    public final SugarrayConstants.Method mMethod;
+    /**
+     * メッセージボディの送信方法
+     */
+    public final UploadStrategy mUploadStrategy;
+    /**
+     * 送信したメッセージボディのバイト数、長さが分からない場合は-1
+     */
+    public final long mRequestBodyBytes;
+    /**
+     * ステータスコード、レスポンスを受信できなかった場合は-1
+     */
+    public final int mStatusCode;
+    /**
+     * リクエストの開始からレスポンスの処理が終わるまでの時間(MS)
+     */
+    public final long mElapsedMillis;
+
+    RequestMetrics(String url, SugarrayConstants.Method method,
+                   UploadStrategy uploadStrategy, long requestBodyBytes, int statusCode,
+                   long elapsedMillis) {
+        mUrl = url;
+        mMethod = method;
+        mUploadStrategy = uploadStrategy;
+        mRequestBodyBytes = requestBodyBytes;
+        mStatusCode = statusCode;
+        mElapsedMillis = elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return mMethod + " " + mUrl + " " + mStatusCode + " upload=" + mUploadStrategy + "("
+                + mRequestBodyBytes + "byte) " + mElapsedMillis + "ms";
+    }
+}
@@ -1,8 +1,16 @@
 package net.ultramagnetic.sugarray;
 
+import net.ultramagnetic.sugarray.util.StringUtils;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -16,12 +24,43 @@ public class RequestOption {
     final Map<String, String> mQuery;
     final byte[] mBody;
     final File mFile;
+    final MultipartBody mMultipartBody;
+    final File mDownloadFile;
+    final Sugarray.BodyStreamListener mBodyStreamListener;
+    final boolean mResumable;
+    final int mSegments;
+    final Sugarray.RequestMetricsListener mRequestMetricsListener;
+    final Executor mProgressExecutor;
+    final long mProgressMinBytes;
+    final long mProgressInterval;
+    final SugarrayConstants.ContentEncoding mContentEncoding;
+    final int mCompressionThreshold;
+    final HttpCache mHttpCache;
+    final MemoryCache mMemoryCache;
+    final RangeCache mRangeCache;
+    final boolean mStaleWhileRevalidate;
+    final int mMaxStale;
+    final Sugarray.CacheRefreshListener mCacheRefreshListener;
+    final CachePolicy mCachePolicy;
+    /**
+     * 同時に実行される同一のGETリクエストを1つの通信にまとめる
+     */
+    final boolean mCoalesce;
     final String mProxyhost;
     final int mProxyPort;
     final SSLSocketFactory mSSLSocketFactory;
     final int mRetryMax;
     final int mRetryInterval;
     final int mTimeout;
+    final HostResolver mHostResolver;
+    /**
+     * メッセージボディを圧縮して送信する
+     */
+    final boolean mCompressed;
+    /**
+     * 送信するメモリ上のメッセージボディ(圧縮する場合は圧縮後)
+     */
+    private final EncodedBody mEncodedBody;
 
     private RequestOption(Bulider bulider) {
         if (bulider.mUrl == null) {
@@ -37,12 +76,35 @@ public class RequestOption {
         }
         mBody = bulider.mBody;
         mFile = bulider.mFile;
+        mMultipartBody = bulider.mMultipartBody;
+        mDownloadFile = bulider.mDownloadFile;
+        mBodyStreamListener = bulider.mBodyStreamListener;
+        mResumable = bulider.mResumable;
+        mSegments = bulider.mSegments;
+        mRequestMetricsListener = bulider.mRequestMetricsListener;
+        mProgressExecutor = bulider.mProgressExecutor;
+        mProgressMinBytes = bulider.mProgressMinBytes;
+        mProgressInterval = bulider.mProgressInterval;
+        mContentEncoding = bulider.mContentEncoding;
+        mCompressionThreshold = bulider.mCompressionThreshold;
+        mHttpCache = bulider.mHttpCache;
+        mMemoryCache = bulider.mMemoryCache;
+        mRangeCache = bulider.mRangeCache;
+        mStaleWhileRevalidate = bulider.mStaleWhileRevalidate;
+        mMaxStale = bulider.mMaxStale;
+        mCacheRefreshListener = bulider.mCacheRefreshListener;
+        mCachePolicy = bulider.mCachePolicy != null ? bulider.mCachePolicy : CachePolicy.STANDARD;
+        mCoalesce = bulider.mCoalesce;
         mProxyhost = bulider.mProxyhost;
         mProxyPort = bulider.mProxyPort;
         mSSLSocketFactory = bulider.mSSLSocketFactory;
         mRetryMax = bulider.mRetryMax;
         mRetryInterval = bulider.mRetryInterval;
         mTimeout = bulider.mTimeout;
+        if (bulider.mHostResolver == null) {
+            bulider.mHostResolver = HostResolver.SYSTEM;
+        }
+        mHostResolver = bulider.mHostResolver;
         if (bulider.mHeaders == null) {
             bulider.mHeaders = new HashMap<String, String>();
         }
@@ -51,6 +113,180 @@ public class RequestOption {
             bulider.mQuery = new HashMap<String, String>();
         }
         mQuery = bulider.mQuery;
+        // マルチパートは画像などの圧縮済みのパートを含むことが多いため圧縮しない
+        mCompressed = mMultipartBody == null && RequestCompression.isApplicable(this, mHeaders,
+                mContentEncoding, mCompressionThreshold,
+                mFile != null ? mFile.length() : mBody.length);
+        // ヘッダーのみを差し替えたリクエストでは、圧縮した結果を引き継ぐ
+        SugarrayConstants.ContentEncoding bodyEncoding = mCompressed && mFile == null
+                ? mContentEncoding : null;
+        EncodedBody encodedBody = bulider.mEncodedBody;
+        mEncodedBody = encodedBody != null && encodedBody.matches(mBody, bodyEncoding)
+                ? encodedBody : new EncodedBody(mBody, bodyEncoding);
+    }
+
+    /**
+     * メッセージボディを送信するメソッドであればtrueを返す。
+     *
+     * @return POSTまたはPUTの場合にtrue
+     */
+    boolean hasBody() {
+        return mMethod == SugarrayConstants.Method.POST || mMethod == SugarrayConstants.Method.PUT;
+    }
+
+    /**
+     * メッセージボディのバイト数を返す。
+     *
+     * @return マルチパートが指定されていればその長さ、ファイルが指定されていればファイルサイズ、
+     * そうでなければ送信するボディの長さ。ファイルを圧縮しながら送信する場合は長さが分からないため-1
+     */
+    long contentLength() {
+        if (mMultipartBody != null) {
+            return mMultipartBody.contentLength();
+        }
+        if (mFile != null) {
+            return mCompressed ? -1 : mFile.length();
+        }
+        return mEncodedBody.get().length;
+    }
+
+    /**
+     * 送信するメモリ上のメッセージボディを返す。圧縮する場合は最初に呼び出したスレッドで圧縮し、その結果を返す。
+     *
+     * @return メッセージボディ
+     */
+    byte[] encodedBody() {
+        return mEncodedBody.get();
+    }
+
+    /**
+     * 圧縮する場合にContent-Encodingヘッダーへ指定する値を返す。
+     *
+     * @return 圧縮方式、圧縮しない場合はnull
+     */
+    String contentEncoding() {
+        return mCompressed ? mContentEncoding.value() : null;
+    }
+
+    /**
+     * Accept-Encodingヘッダーが指定されていなければ、ContentCodingsに登録されたコーディングを通知する値を返す。
+     *
+     * @return Accept-Encodingヘッダーの値、指定済みの場合はnull
+     */
+    String acceptEncoding() {
+        for (String name : mHeaders.keySet()) {
+            if (SugarrayConstants.HeaderFields.ACCEPT_ENCODING.equalsIgnoreCase(name)) {
+                return null;
+            }
+        }
+        return ContentCodings.getInstance().acceptEncoding();
+    }
+
+    /**
+     * メッセージボディを読み出すストリームを開く。ファイルやマルチパートの内容はメモリに読み込まず、
+     * 圧縮する場合は読み出しながら圧縮する。
+     *
+     * @return InputStream
+     * @throws IOException ファイルが開けない場合
+     */
+    InputStream openBody() throws IOException {
+        if (mMultipartBody != null) {
+            return mMultipartBody.openStream();
+        }
+        if (mFile == null) {
+            return new ByteArrayInputStream(mEncodedBody.get());
+        }
+        InputStream in = new FileInputStream(mFile);
+        return mCompressed ? RequestCompression.compress(in, mContentEncoding) : in;
+    }
+
+    /**
+     * ファイルへの再開可能なダウンロードであればtrueを返す。
+     *
+     * @return 保存先のファイルが指定され、再開が有効な場合にtrue
+     */
+    boolean isResumableDownload() {
+        return mResumable && mDownloadFile != null;
+    }
+
+    /**
+     * ファイルへの分割ダウンロードであればtrueを返す。
+     *
+     * @return 保存先のファイルが指定され、分割数が2以上の場合にtrue
+     */
+    boolean isSegmentedDownload() {
+        return mSegments > 1 && mDownloadFile != null;
+    }
+
+    /**
+     * ヘッダーのみを差し替えたリクエストを生成する。
+     *
+     * @param headers 新しいヘッダー
+     * @return RequestOption
+     */
+    RequestOption withHeaders(Map<String, String> headers) {
+        return toBulider().headers(headers).bulid();
+    }
+
+    /**
+     * このリクエストと同じ設定を持つBuliderを生成する。
+     *
+     * @return Bulider
+     */
+    Bulider toBulider() {
+        Bulider bulider = new Bulider()
+                .url(mUrl)
+                .method(mMethod)
+                .headers(mHeaders)
+                .query(mQuery)
+                .body(mBody)
+                .file(mFile)
+                .multipartBody(mMultipartBody)
+                .downloadFile(mDownloadFile)
+                .bodyStreamListener(mBodyStreamListener)
+                .resumable(mResumable)
+                .segments(mSegments)
+                .requestMetricsListener(mRequestMetricsListener)
+                .progress(mProgressExecutor, mProgressMinBytes, mProgressInterval)
+                .compression(mContentEncoding, mCompressionThreshold)
+                .httpCache(mHttpCache)
+                .memoryCache(mMemoryCache)
+                .rangeCache(mRangeCache)
+                .staleWhileRevalidate(mStaleWhileRevalidate, mMaxStale, mCacheRefreshListener)
+                .cachePolicy(mCachePolicy)
+                .coalesce(mCoalesce)
+                .proxyhost(mProxyhost)
+                .proxyPort(mProxyPort)
+                .sslSocketFactory(mSSLSocketFactory)
+                .retryMax(mRetryMax)
+                .retryInterval(mRetryInterval)
+                .timeout(mTimeout)
+                .hostResolver(mHostResolver);
+        bulider.mEncodedBody = mEncodedBody;
+        return bulider;
+    }
+
+    /**
+     * クエリパラメーターを付与し、エンコードしたURLを生成する。
+     *
+     * @return URL
+     */
+    String makeUrl() {
+        StringBuilder queryBuilder = new StringBuilder();
+        Iterator<String> queryIterator = mQuery.keySet().iterator();
+        while (queryIterator.hasNext()) {
+            String key = queryIterator.next();
+            String value = mQuery.get(key);
+            queryBuilder.append(key + "=" + value);
+            if (queryIterator.hasNext()) {
+                queryBuilder.append("&");
+            }
+        }
+        String makeUrl = mUrl;
+        if (!queryBuilder.toString().isEmpty()) {
+            makeUrl += "?" + queryBuilder.toString();
+        }
+        return StringUtils.encodeURL(makeUrl);
     }
 
     public static class Bulider {
@@ -60,12 +296,36 @@ public class RequestOption {
         private Map<String, String> mQuery;
         private byte[] mBody;
         private File mFile;
+        private MultipartBody mMultipartBody;
+        private File mDownloadFile;
+        private Sugarray.BodyStreamListener mBodyStreamListener;
+        private boolean mResumable;
+        private int mSegments;
+        private Sugarray.RequestMetricsListener mRequestMetricsListener;
+        private Executor mProgressExecutor;
+        private long mProgressMinBytes = SugarrayConstants.DefaultProgressConfig.DEFAULT_MIN_BYTES;
+        private long mProgressInterval = SugarrayConstants.DefaultProgressConfig.DEFAULT_MIN_INTERVAL;
+        private SugarrayConstants.ContentEncoding mContentEncoding;
+        private int mCompressionThreshold = SugarrayConstants.DefaultCompressionConfig.DEFAULT_THRESHOLD;
+        private HttpCache mHttpCache;
+        private MemoryCache mMemoryCache;
+        private RangeCache mRangeCache;
+        private boolean mStaleWhileRevalidate;
+        private int mMaxStale;
+        private Sugarray.CacheRefreshListener mCacheRefreshListener;
+        private CachePolicy mCachePolicy;
+        private boolean mCoalesce;
         private String mProxyhost;
         private int mProxyPort;
         private SSLSocketFactory mSSLSocketFactory;
         private int mRetryMax;
         private int mRetryInterval;
         private int mTimeout;
+        private HostResolver mHostResolver;
+        /**
+         * toBulider()で引き継ぐ圧縮済みのメッセージボディ
+         */
+        private EncodedBody mEncodedBody;
 
         public Bulider url(String url) {
             mUrl = url;
@@ -97,6 +357,85 @@ public class RequestOption {
             return this;
         }
 
+        public Bulider multipartBody(MultipartBody multipartBody) {
+            mMultipartBody = multipartBody;
+            return this;
+        }
+
+        public Bulider downloadFile(File downloadFile) {
+            mDownloadFile = downloadFile;
+            return this;
+        }
+
+        public Bulider bodyStreamListener(Sugarray.BodyStreamListener bodyStreamListener) {
+            mBodyStreamListener = bodyStreamListener;
+            return this;
+        }
+
+        public Bulider resumable(boolean resumable) {
+            mResumable = resumable;
+            return this;
+        }
+
+        public Bulider segments(int segments) {
+            mSegments = segments;
+            return this;
+        }
+
+        public Bulider requestMetricsListener(
+                Sugarray.RequestMetricsListener requestMetricsListener) {
+            mRequestMetricsListener = requestMetricsListener;
+            return this;
+        }
+
+        public Bulider progress(Executor progressExecutor, long progressMinBytes,
+                                long progressInterval) {
+            mProgressExecutor = progressExecutor;
+            mProgressMinBytes = progressMinBytes;
+            mProgressInterval = progressInterval;
+            return this;
+        }
+
+        public Bulider compression(SugarrayConstants.ContentEncoding contentEncoding,
+                                   int threshold) {
+            mContentEncoding = contentEncoding;
+            mCompressionThreshold = threshold;
+            return this;
+        }
+
+        public Bulider httpCache(HttpCache httpCache) {
+            mHttpCache = httpCache;
+            return this;
+        }
+
+        public Bulider memoryCache(MemoryCache memoryCache) {
+            mMemoryCache = memoryCache;
+            return this;
+        }
+
+        public Bulider rangeCache(RangeCache rangeCache) {
+            mRangeCache = rangeCache;
+            return this;
+        }
+
+        public Bulider staleWhileRevalidate(boolean staleWhileRevalidate, int maxStale,
+                                            Sugarray.CacheRefreshListener cacheRefreshListener) {
+            mStaleWhileRevalidate = staleWhileRevalidate;
+            mMaxStale = maxStale;
+            mCacheRefreshListener = cacheRefreshListener;
+            return this;
+        }
+
+        public Bulider cachePolicy(CachePolicy cachePolicy) {
+            mCachePolicy = cachePolicy;
+            return this;
+        }
+
+        public Bulider coalesce(boolean coalesce) {
+            mCoalesce = coalesce;
+            return this;
+        }
+
         public Bulider proxyhost(String proxyhost) {
             mProxyhost = proxyhost;
             return this;
@@ -127,9 +466,43 @@ public class RequestOption {
             return this;
         }
 
+        public Bulider hostResolver(HostResolver hostResolver) {
+            mHostResolver = hostResolver;
+            return this;
+        }
+
         public RequestOption bulid() {
             return new RequestOption(this);
         }
 
     }
+
+    /**
+     * 送信するメモリ上のメッセージボディ。呼び出し元のスレッドで圧縮しないよう、最初に必要になった時に圧縮して保持する。
+     */
+    private static class EncodedBody {
+        private final byte[] mBody;
+        /**
+         * 圧縮方式、圧縮しない場合はnull
+         */
+        private final SugarrayConstants.ContentEncoding mContentEncoding;
+        private byte[] mEncoded;
+
+        EncodedBody(byte[] body, SugarrayConstants.ContentEncoding contentEncoding) {
+            mBody = body;
+            mContentEncoding = contentEncoding;
+        }
+
+        boolean matches(byte[] body, SugarrayConstants.ContentEncoding contentEncoding) {
+            return mBody == body && mContentEncoding == contentEncoding;
+        }
+
+        synchronized byte[] get() {
+            if (mEncoded == null) {
+                mEncoded = mContentEncoding != null
+                        ? RequestCompression.compress(mBody, mContentEncoding) : mBody;
+            }
+            return mEncoded;
+        }
+    }
 }
@@ -0,0 +1,143 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.Logger;
+
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * リクエストに指定されたHostResolverで名前解決してから接続するHTTP用のSocketFactory
+ * <p>
+ * SchemeRegistryはLayeredSocketFactoryを実装したファクトリをHTTPSとして扱うため、
+ * HTTPS用のファクトリはTLSを重ねるサブクラス(Secure)として分けている。
+ */
+class ResolvingSocketFactory implements SocketFactory {
+
+    private static final String TAG = ResolvingSocketFactory.class.getSimpleName();
+
+    /**
+     * HostResolverを格納するHttpParamsのキー
+     */
+    static final String HOST_RESOLVER = "net.ultramagnetic.sugarray.host-resolver";
+    /**
+     * javax.net.ssl.SSLSocketFactoryを格納するHttpParamsのキー
+     */
+    static final String SSL_SOCKET_FACTORY = "net.ultramagnetic.sugarray.ssl-socket-factory";
+
+    private static final X509HostnameVerifier HOSTNAME_VERIFIER = org.apache.http.conn.ssl.SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
+
+    ResolvingSocketFactory() {
+        ;
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return new Socket();
+    }
+
+    @Override
+    public Socket connectSocket(Socket sock, String host, int port,
+                                InetAddress localAddress, int localPort,
+                                HttpParams params) throws IOException {
+        if (host == null) {
+            throw new IllegalArgumentException(TAG + ": host is null.");
+        }
+        if (params == null) {
+            throw new IllegalArgumentException(TAG + ": params is null.");
+        }
+        Object resolver = params.getParameter(HOST_RESOLVER);
+        HostResolver hostResolver = resolver instanceof HostResolver
+                ? (HostResolver) resolver : HostResolver.SYSTEM;
+        int timeout = HttpConnectionParams.getConnectionTimeout(params);
+        IOException lastError = null;
+        for (InetAddress address : hostResolver.resolve(host)) {
+            if (sock == null || sock.isClosed()) {
+                sock = createSocket();
+            }
+            try {
+                if (localAddress != null || localPort > 0) {
+                    sock.bind(new InetSocketAddress(localAddress, Math.max(localPort, 0)));
+                }
+                sock.connect(new InetSocketAddress(address, port), timeout);
+                sock.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+                return onConnected(sock, host, port, params);
+            } catch (IOException e) {
+                Logger.d(TAG, "Connect failed: " + address + ":" + port);
+                lastError = e;
+                sock.close();
+            }
+        }
+        throw lastError != null ? lastError : new UnknownHostException(host);
+    }
+
+    /**
+     * TCPの接続が完了した際に呼び出される。
+     *
+     * @return 接続済みのソケット
+     * @throws IOException
+     */
+    Socket onConnected(Socket sock, String host, int port, HttpParams params)
+            throws IOException {
+        return sock;
+    }
+
+    @Override
+    public boolean isSecure(Socket sock) {
+        return false;
+    }
+
+    /**
+     * TCPの接続後にTLSを重ねるHTTPS用のSocketFactory
+     * <p>
+     * リクエストに指定されたSSLSocketFactoryをTlsSessionManagerでラップしてTLSを重ね、ホスト名を検証する。
+     */
+    static class Secure extends ResolvingSocketFactory implements LayeredSocketFactory {
+
+        @Override
+        Socket onConnected(Socket sock, String host, int port, HttpParams params)
+                throws IOException {
+            Object factory = params.getParameter(SSL_SOCKET_FACTORY);
+            return layer(factory instanceof SSLSocketFactory ? (SSLSocketFactory) factory
+                    : null, sock, host, port, true);
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException {
+            // プロキシのトンネル上にTLSを重ねる場合はリクエストのパラメータを参照できないため、デフォルトを利用する
+            return layer(null, socket, host, port, autoClose);
+        }
+
+        @Override
+        public boolean isSecure(Socket sock) {
+            return sock instanceof SSLSocket;
+        }
+
+        private static Socket layer(SSLSocketFactory sslSocketFactory, Socket socket,
+                                    String host, int port, boolean autoClose)
+                throws IOException {
+            SSLSocket sslSocket = (SSLSocket) TlsSessionManager.getInstance()
+                    .wrap(sslSocketFactory).createSocket(socket, host, port, autoClose);
+            try {
+                sslSocket.startHandshake();
+                HOSTNAME_VERIFIER.verify(host, sslSocket);
+            } catch (IOException e) {
+                sslSocket.close();
+                throw e;
+            }
+            return sslSocket;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.FileUtils;
+import net.ultramagnetic.sugarray.util.Logger;
+import net.ultramagnetic.sugarray.util.StringUtils;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 中断したダウンロードをRangeリクエストで再開するための、途中までのファイルと検証子の管理
+ * <p>
+ * 受信中のデータは保存先に".part"を付けたファイルに書き込み、URLとETag/Last-Modifiedを".part.info"に保存する。
+ * 再開時はRangeとIf-Rangeを送信し、サーバーが206を返せば追記、200を返せば先頭から書き直す。
+ * 完了すると保存先のファイル名に変更する。
+ */
+class ResumableDownload {
+
+    private static final String TAG = ResumableDownload.class.getSimpleName();
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String INFO_SUFFIX = ".part.info";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+
+    private ResumableDownload() {
+        ;
+    }
+
+    /**
+     * 途中までのファイルがあれば、続きから受信するリクエストに変換する。
+     *
+     * @param option 再開可能なダウンロードのリクエスト
+     * @return 送信するリクエスト
+     */
+    static RequestOption prepare(RequestOption option) {
+        Map<String, String> headers = new HashMap<String, String>(option.mHeaders);
+        // 圧縮されるとバイト範囲が意味を持たなくなるため、無圧縮で受信する
+        headers.put("Accept-Encoding", "identity");
+        File part = partFile(option.mDownloadFile);
+        String validator = readValidator(option);
+        if (part.length() > 0 && validator != null) {
+            headers.put("Range", "bytes=" + part.length() + "-");
+            headers.put("If-Range", validator);
+            Logger.d(TAG, "Resume download from " + part.length() + "byte: " + option.mUrl);
+        } else {
+            discard(option.mDownloadFile);
+        }
+        return option.withHeaders(headers);
+    }
+
+    /**
+     * 成功したレスポンスのメッセージボディを途中までのファイルに書き込み、完了すれば保存先に移動する。
+     * 書き込みに失敗した場合、途中までのファイルは次回の再開のために残す。
+     *
+     * @param httpResponse
+     * @param option
+     * @param progressUpdateListener
+     * @throws IOException
+     */
+    static void receive(HttpResponse httpResponse, RequestOption option,
+                        Sugarray.ProgressUpdateListener progressUpdateListener)
+            throws IOException {
+        File target = option.mDownloadFile;
+        File part = partFile(target);
+        long offset = 0;
+        if (httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT) {
+            offset = parseContentRangeStart(httpResponse.getFirstHeader("Content-Range"));
+            if (offset != part.length()) {
+                discard(target);
+                throw new ProtocolException("Unexpected Content-Range: "
+                        + httpResponse.getFirstHeader("Content-Range"));
+            }
+        } else {
+            discard(target);
+            writeInfo(target, option.mUrl, httpResponse);
+        }
+        HttpRestHandler.entityToFile(httpResponse.getEntity(), part, offset, false,
+                progressUpdateListener);
+        complete(target);
+    }
+
+    /**
+     * 416(Range Not Satisfiable)のレスポンスについて、途中までのファイルが既に全体の長さに達していれば完了させる。
+     * 完了しなかった場合、メッセージボディは読み込まずに残す。
+     *
+     * @param httpResponse
+     * @param option
+     * @return 完了した場合はtrue
+     * @throws IOException
+     */
+    static boolean completeIfSatisfied(HttpResponse httpResponse, RequestOption option)
+            throws IOException {
+        Header contentRange = httpResponse.getFirstHeader("Content-Range");
+        File part = partFile(option.mDownloadFile);
+        if (contentRange == null || part.length() == 0) {
+            return false;
+        }
+        String value = contentRange.getValue();
+        int slash = value.lastIndexOf('/');
+        try {
+            if (slash < 0 || Long.parseLong(value.substring(slash + 1).trim()) != part
+                    .length()) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (httpResponse.getEntity() != null) {
+            httpResponse.getEntity().consumeContent();
+        }
+        complete(option.mDownloadFile);
+        return true;
+    }
+
+    /**
+     * 途中までのファイルを保存先に移動する。
+     */
+    private static void complete(File target) throws IOException {
+        File part = partFile(target);
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Could not replace " + target);
+        }
+        if (!part.renameTo(target)) {
+            throw new IOException("Could not rename " + part + " to " + target);
+        }
+        infoFile(target).delete();
+    }
+
+    /**
+     * 途中までのファイルと検証子を削除する。
+     *
+     * @param target 保存先のファイル
+     */
+    static void discard(File target) {
+        partFile(target).delete();
+        infoFile(target).delete();
+    }
+
+    private static File partFile(File target) {
+        return new File(target.getPath() + PART_SUFFIX);
+    }
+
+    private static File infoFile(File target) {
+        return new File(target.getPath() + INFO_SUFFIX);
+    }
+
+    /**
+     * 保存済みの検証子を読み込む。URLが異なる場合はnullを返す。
+     */
+    private static String readValidator(RequestOption option) {
+        File info = infoFile(option.mDownloadFile);
+        if (!info.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(info);
+            properties.load(in);
+        } catch (IOException e) {
+            Logger.e(TAG, "Could not read " + info, e);
+            return null;
+        } finally {
+            FileUtils.closeQuietly(in);
+        }
+        if (!option.mUrl.equals(properties.getProperty(KEY_URL))) {
+            return null;
+        }
+        String etag = properties.getProperty(KEY_ETAG);
+        if (StringUtils.isNotEmpty(etag)) {
+            return etag;
+        }
+        String lastModified = properties.getProperty(KEY_LAST_MODIFIED);
+        return StringUtils.isNotEmpty(lastModified) ? lastModified : null;
+    }
+
+    /**
+     * レスポンスの検証子を保存する。If-Rangeには強いETagのみ利用できるため、弱いETagは保存しない。
+     * 検証子がない、またはメッセージボディが圧縮されている場合は再開できないため保存しない。
+     */
+    private static void writeInfo(File target, String url, HttpResponse httpResponse)
+            throws IOException {
+        Header etag = httpResponse.getFirstHeader("ETag");
+        Header lastModified = httpResponse.getFirstHeader("Last-Modified");
+        Header contentEncoding = httpResponse.getFirstHeader("Content-Encoding");
+        Properties properties = new Properties();
+        properties.setProperty(KEY_URL, url);
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            properties.setProperty(KEY_ETAG, etag.getValue());
+        }
+        if (lastModified != null) {
+            properties.setProperty(KEY_LAST_MODIFIED, lastModified.getValue());
+        }
+        if (properties.size() == 1 || (contentEncoding != null
+                && !"identity".equalsIgnoreCase(contentEncoding.getValue()))) {
+            return;
+        }
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(infoFile(target));
+            properties.store(out, null);
+        } finally {
+            FileUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Content-Range(bytes start-end/total)の開始位置を返す。
+     */
+    private static long parseContentRangeStart(Header contentRange) throws ProtocolException {
+        if (contentRange != null) {
+            String value = contentRange.getValue().trim();
+            int space = value.indexOf(' ');
+            int hyphen = value.indexOf('-');
+            if (space > 0 && hyphen > space) {
+                try {
+                    return Long.parseLong(value.substring(space + 1, hyphen).trim());
+                } catch (NumberFormatException e) {
+                    Logger.e(TAG, "Invalid Content-Range: " + value, e);
+                }
+            }
+        }
+        throw new ProtocolException("Invalid Content-Range: " + contentRange);
+    }
+}
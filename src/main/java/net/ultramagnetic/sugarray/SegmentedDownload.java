@@ -0,0 +1,340 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.error.SugarrayError;
+import net.ultramagnetic.sugarray.error.UnexpectedError;
+import net.ultramagnetic.sugarray.util.FileUtils;
+import net.ultramagnetic.sugarray.util.Logger;
+import net.ultramagnetic.sugarray.util.StringUtils;
+
+import org.apache.http.HttpStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ファイルへのダウンロードを複数の区間に分割し、並行して受信する処理
+ * <p>
+ * HEADリクエストでAccept-RangesとContent-Lengthを確認し、全体の長さで確保したファイルに
+ * 各区間のRangeリクエストの結果をそれぞれの位置へ書き込む。
+ * 区間は分割ダウンロード専用のスレッドプールで実行し、まだ開始されていない区間は呼び出し元のスレッドでも実行するため、
+ * プールのスレッドが全て埋まっていてもデッドロックしない。
+ * 呼び出し元がキャンセルされた場合や、区間の途中でファイルの更新が分かった場合は、残りを読み捨てずに全ての区間を中断する。
+ * ファイルが更新されていた場合は、分割せずに受信し直す。
+ */
+class SegmentedDownload {
+
+    private static final String TAG = SegmentedDownload.class.getSimpleName();
+
+    /**
+     * ファイルに書き込む際のバッファサイズ
+     */
+    private static final int BUFFER_SIZE = 1024 * 16;
+
+    /**
+     * 区間を実行するスレッドプール。全て埋まっている場合は受け付けず、呼び出し元のスレッドで実行させる。
+     */
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(0,
+            SugarrayConstants.DefaultSegmentConfig.DEFAULT_MAX_THREADS, 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }, new ThreadPoolExecutor.DiscardPolicy());
+
+    private SegmentedDownload() {
+        ;
+    }
+
+    /**
+     * 分割ダウンロードを実行する。分割できない場合はhttpHandlerでそのまま実行する。
+     *
+     * @param option                 分割ダウンロードのリクエスト
+     * @param httpHandler            各区間の通信を行うハンドラ
+     * @param progressUpdateListener 全区間を合計した進行状況のリスナー
+     * @return SugarrayResponse
+     * @throws SugarrayError
+     */
+    static SugarrayResponse perform(RequestOption option, HttpHandler httpHandler,
+                                    Sugarray.ProgressUpdateListener progressUpdateListener)
+            throws SugarrayError {
+        Map<String, String> headers = new HashMap<String, String>(option.mHeaders);
+        // 圧縮されるとバイト範囲が意味を持たなくなるため、無圧縮で受信する
+        headers.put("Accept-Encoding", "identity");
+        SugarrayResponse head;
+        try {
+            head = httpHandler.perform(option.toBulider()
+                    .method(SugarrayConstants.Method.HEAD)
+                    .headers(headers)
+                    .downloadFile(null)
+                    .bodyStreamListener(null)
+                    .resumable(false)
+                    .segments(0)
+                    .bulid(), null);
+        } catch (SugarrayError e) {
+            Logger.d(TAG, "HEAD request failed, download without segments: " + e.getMessage());
+            return performWithoutSegments(option, httpHandler, progressUpdateListener);
+        }
+        long totalBytes = parseLong(findHeader(head.mHeaders, "Content-Length"));
+        String validator = findHeader(head.mHeaders, "ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = findHeader(head.mHeaders, "Last-Modified");
+        }
+        int segments = (int) Math.min(Math.min(option.mSegments,
+                        SugarrayConstants.DefaultSegmentConfig.DEFAULT_MAX_SEGMENTS),
+                totalBytes / SugarrayConstants.DefaultSegmentConfig.DEFAULT_MIN_SEGMENT_SIZE);
+        if (!"bytes".equalsIgnoreCase(findHeader(head.mHeaders, "Accept-Ranges"))
+                || validator == null || segments < 2) {
+            // 区間毎に異なる版を受信しないよう、検証子がなければ分割しない
+            Logger.d(TAG, "Download without segments: " + option.mUrl);
+            return performWithoutSegments(option, httpHandler, progressUpdateListener);
+        }
+        headers.put("If-Range", validator);
+
+        File file = option.mDownloadFile;
+        RandomAccessFile randomAccessFile = null;
+        Transfer transfer = new Transfer(totalBytes, progressUpdateListener);
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+        boolean completed = false;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(totalBytes);
+            long segmentSize = totalBytes / segments;
+            for (int i = 0; i < segments; i++) {
+                long start = i * segmentSize;
+                long end = i == segments - 1 ? totalBytes - 1 : start + segmentSize - 1;
+                FutureTask<Void> task = new FutureTask<Void>(new Segment(option, headers,
+                        httpHandler, randomAccessFile.getChannel(), start, end, transfer));
+                tasks.add(task);
+                EXECUTOR.execute(task);
+            }
+            for (FutureTask<Void> task : tasks) {
+                // 既に他のスレッドで実行中または完了していれば何もしない
+                task.run();
+                task.get();
+            }
+            completed = true;
+        } catch (IOException e) {
+            throw new UnexpectedError("io error.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnexpectedError("Interrupted.", e);
+        } catch (ExecutionException e) {
+            if (!transfer.isChanged()) {
+                throw transfer.getError() != null ? transfer.getError() : new UnexpectedError(
+                        "Segment download failed.", e.getCause());
+            }
+        } finally {
+            if (!completed) {
+                // 実行中の区間に受信をやめさせ、開始していない区間は実行させない
+                transfer.fail(new UnexpectedError("Segment download was cancelled."));
+            }
+            for (FutureTask<Void> task : tasks) {
+                task.cancel(true);
+            }
+            FileUtils.closeQuietly(randomAccessFile);
+            if (!completed && file.exists() && !file.delete()) {
+                Logger.e(TAG, "Could not delete incomplete file: " + file);
+            }
+        }
+        if (!completed) {
+            Logger.d(TAG, "File was changed, download again without segments: "
+                    + option.mUrl);
+            return performWithoutSegments(option, httpHandler, progressUpdateListener);
+        }
+        return new SugarrayResponse(HttpStatus.SC_OK, file, head.mContentType,
+                head.mCharset.name(), head.mHeaders, false);
+    }
+
+    private static SugarrayResponse performWithoutSegments(RequestOption option,
+                                                           HttpHandler httpHandler,
+                                                           Sugarray.ProgressUpdateListener progressUpdateListener)
+            throws SugarrayError {
+        return httpHandler.perform(option.toBulider().segments(0).bulid(),
+                progressUpdateListener);
+    }
+
+    /**
+     * ヘッダー名の大文字と小文字を区別せずに値を返す。
+     */
+    private static String findHeader(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static long parseLong(String value) {
+        if (StringUtils.isEmpty(value)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 全区間で共有する状態。受信バイト数を合計してリスナーに通知し、いずれかの区間が失敗すれば他の区間を中断させる。
+     */
+    private static class Transfer {
+        private final long mTotalBytes;
+        private final Sugarray.ProgressUpdateListener mListener;
+        private long mProgressBytes;
+        private volatile SugarrayError mError;
+        private volatile boolean mChanged;
+
+        Transfer(long totalBytes, Sugarray.ProgressUpdateListener listener) {
+            mTotalBytes = totalBytes;
+            mListener = listener;
+        }
+
+        synchronized void add(long bytes) {
+            mProgressBytes += bytes;
+            if (mListener != null) {
+                mListener.onProgressUpdate(mTotalBytes, mProgressBytes);
+            }
+        }
+
+        synchronized void fail(SugarrayError error) {
+            if (mError == null) {
+                mError = error;
+            }
+        }
+
+        /**
+         * If-Rangeが一致せず、ファイルが更新されていたことを記録して全区間を中断させる。
+         */
+        void changed(SugarrayError error) {
+            mChanged = true;
+            fail(error);
+        }
+
+        boolean isFailed() {
+            return mError != null;
+        }
+
+        boolean isChanged() {
+            return mChanged;
+        }
+
+        SugarrayError getError() {
+            return mError;
+        }
+    }
+
+    /**
+     * 1つの区間を受信してファイルの該当位置に書き込む。
+     * 通信エラーの場合はリトライ回数の範囲で、受信済みの位置から続きを要求する。
+     */
+    private static class Segment implements Callable<Void>, Sugarray.BodyStreamListener {
+        private final RequestOption mOption;
+        private final Map<String, String> mHeaders;
+        private final HttpHandler mHttpHandler;
+        private final FileChannel mChannel;
+        private final long mEnd;
+        private final Transfer mTransfer;
+        private long mPosition;
+
+        Segment(RequestOption option, Map<String, String> headers, HttpHandler httpHandler,
+                FileChannel channel, long start, long end, Transfer transfer) {
+            mOption = option;
+            mHeaders = headers;
+            mHttpHandler = httpHandler;
+            mChannel = channel;
+            mPosition = start;
+            mEnd = end;
+            mTransfer = transfer;
+        }
+
+        @Override
+        public Void call() throws SugarrayError, InterruptedException {
+            int currentRetry = 0;
+            while (true) {
+                Map<String, String> headers = new HashMap<String, String>(mHeaders);
+                headers.put("Range", "bytes=" + mPosition + "-" + mEnd);
+                try {
+                    mHttpHandler.perform(mOption.toBulider()
+                            .method(SugarrayConstants.Method.GET)
+                            .headers(headers)
+                            .downloadFile(null)
+                            .bodyStreamListener(this)
+                            .resumable(false)
+                            .segments(0)
+                            .bulid(), null);
+                    return null;
+                } catch (SugarrayError e) {
+                    if (!(e instanceof UnexpectedError) || currentRetry >= mOption.mRetryMax
+                            || mTransfer.isFailed() || Thread.currentThread().isInterrupted()) {
+                        mTransfer.fail(e);
+                        throw e;
+                    }
+                    Logger.d(TAG, "Retry segment from " + mPosition + "byte: " + e.getMessage());
+                    Thread.sleep(mOption.mRetryInterval);
+                    currentRetry++;
+                }
+            }
+        }
+
+        @Override
+        public void onBodyStream(SugarrayResponse response, InputStream in) throws IOException {
+            String contentRange = findHeader(response.mHeaders, "Content-Range");
+            if (response.mStatusCode != HttpStatus.SC_PARTIAL_CONTENT || contentRange == null
+                    || !contentRange.trim().startsWith("bytes " + mPosition + "-")) {
+                // 200の場合はIf-Rangeが一致せず、ファイルが更新されている。リトライしても同じため全区間を中断する
+                String message = "Range request was not satisfied: " + response.mStatusCode
+                        + " " + contentRange;
+                mTransfer.changed(new UnexpectedError(message));
+                throw new IOException(message);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(BufferPool.getInstance().acquire(BUFFER_SIZE));
+            try {
+                receive(in, buffer);
+            } finally {
+                BufferPool.getInstance().release(buffer.array());
+            }
+        }
+
+        /**
+         * 割り込まれた際にストリームを閉じて残りを読み捨てないよう、Channels.newChannel()を使わずに直接読み出す。
+         */
+        private void receive(InputStream in, ByteBuffer buffer) throws IOException {
+            while (mPosition <= mEnd) {
+                if (mTransfer.isFailed() || Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Segment download was cancelled.");
+                }
+                int length = in.read(buffer.array(), 0,
+                        (int) Math.min(buffer.capacity(), mEnd - mPosition + 1));
+                if (length == -1) {
+                    throw new IOException("Unexpected end of segment at " + mPosition + "byte.");
+                }
+                buffer.limit(length);
+                while (buffer.hasRemaining()) {
+                    mPosition += mChannel.write(buffer, mPosition);
+                }
+                buffer.clear();
+                mTransfer.add(length);
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.error.SugarrayError;
+import net.ultramagnetic.sugarray.error.UnexpectedError;
+import net.ultramagnetic.sugarray.util.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 同時に実行される同一のGETリクエストを1つの通信にまとめるクラス
+ * <p>
+ * メソッド、クエリパラメーターを含むURL、リクエストヘッダー、ハンドラ、プロキシをキーとし、
+ * 同じキーの通信が実行中であれば新たに通信せず、その結果を待っている全ての呼び出し元に通知する。
+ * SSLSocketFactoryはキーに含めず、実行中の通信と同じインスタンスの場合のみ合流する。
+ * 通信はどの呼び出し元にも属さないスレッドで行うため、1つの呼び出し元がキャンセルしても他の呼び出し元には影響しない。
+ * 非同期の通信は、待っている全ての呼び出し元がキャンセルした場合のみキャンセルする。
+ * 呼び出し元がレスポンスを変更しても他に影響しないよう、2番目以降の呼び出し元には複製したレスポンスを渡す。
+ */
+final class SingleFlight {
+
+    private static final String TAG = SingleFlight.class.getSimpleName();
+
+    /**
+     * キー毎の実行中の通信
+     */
+    private static final Map<String, Flight> FLIGHTS = new HashMap<String, Flight>();
+
+    /**
+     * まとめた同期の通信を行うスレッド。呼び出し元のスレッドへの割り込みが通信に影響しないよう、呼び出し元とは別に持つ。
+     */
+    private static final ExecutorService EXECUTOR = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private SingleFlight() {
+    }
+
+    /**
+     * 1つの通信にまとめるためのキーを生成する。
+     *
+     * @param option      リクエスト
+     * @param httpHandler 通信を行うハンドラ
+     * @return キー、まとめられないリクエストの場合はnull
+     */
+    static String key(RequestOption option, HttpHandler httpHandler) {
+        if (!option.mCoalesce || (option.mMethod != SugarrayConstants.Method.GET
+                && option.mMethod != SugarrayConstants.Method.HEAD)
+                || option.mDownloadFile != null || option.mBodyStreamListener != null) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append(option.mMethod.name()).append(' ').append(option.makeUrl())
+                .append('\n').append(httpHandler.getClass().getName());
+        if (option.mProxyhost != null) {
+            builder.append('\n').append(option.mProxyhost).append(':').append(option.mProxyPort);
+        }
+        if (option.mHeaders != null) {
+            // フィールド名の大文字と小文字、指定した順序の違いは同じリクエストとして扱う
+            Map<String, String> headers = new TreeMap<String, String>();
+            for (Map.Entry<String, String> header : option.mHeaders.entrySet()) {
+                if (header.getKey() != null) {
+                    headers.put(header.getKey().toLowerCase(Locale.US), header.getValue());
+                }
+            }
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                builder.append('\n').append(header.getKey()).append(':')
+                        .append(header.getValue());
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 同じキーの通信が実行中であればその結果を待ち、なければ通信を開始してその結果を待つ。
+     *
+     * @param key                    key()で生成したキー
+     * @param option                 リクエスト
+     * @param httpHandler            通信を行うハンドラ
+     * @param progressUpdateListener 進行状況のリスナー
+     * @return HTTPレスポンス
+     * @throws SugarrayError 通信に失敗した場合、または待っている間に割り込まれた場合
+     */
+    static SugarrayResponse perform(String key, RequestOption option, HttpHandler httpHandler,
+                                    Sugarray.ProgressUpdateListener progressUpdateListener)
+            throws SugarrayError {
+        Flight flight;
+        Waiter waiter;
+        boolean leader = false;
+        synchronized (FLIGHTS) {
+            flight = FLIGHTS.get(key);
+            if (flight == null || flight.mSSLSocketFactory != option.mSSLSocketFactory) {
+                // SSLSocketFactoryが異なる通信には合流せず、実行中の通信もそのまま残す
+                boolean register = flight == null;
+                flight = new Flight(key, option.mSSLSocketFactory);
+                if (register) {
+                    FLIGHTS.put(key, flight);
+                }
+                leader = true;
+            }
+            waiter = flight.join(progressUpdateListener, null);
+        }
+        if (leader) {
+            flight.perform(option, httpHandler);
+        } else {
+            Logger.d(TAG, "Join in-flight request. " + option.mUrl);
+        }
+        return flight.await(waiter);
+    }
+
+    /**
+     * 同じキーの通信が実行中であればその結果を待ち、なければ非同期で通信する。
+     *
+     * @param key                    key()で生成したキー
+     * @param option                 リクエスト
+     * @param httpHandler            通信を行うハンドラ
+     * @param progressUpdateListener 進行状況のリスナー
+     * @param callback               通信結果を受け取るコールバック
+     * @return 結果を待つのをやめるためのハンドル
+     */
+    static AsyncHttpHandler.Call performAsync(String key, RequestOption option,
+                                              AsyncHttpHandler httpHandler,
+                                              Sugarray.ProgressUpdateListener progressUpdateListener,
+                                              AsyncHttpHandler.Callback callback) {
+        Flight flight;
+        Waiter waiter;
+        boolean leader = false;
+        synchronized (FLIGHTS) {
+            flight = FLIGHTS.get(key);
+            if (flight == null || flight.mSSLSocketFactory != option.mSSLSocketFactory) {
+                // SSLSocketFactoryが異なる通信には合流せず、実行中の通信もそのまま残す
+                boolean register = flight == null;
+                flight = new Flight(key, option.mSSLSocketFactory);
+                if (register) {
+                    FLIGHTS.put(key, flight);
+                }
+                leader = true;
+            }
+            waiter = flight.join(progressUpdateListener, callback);
+        }
+        if (leader) {
+            flight.performAsync(option, httpHandler);
+        } else {
+            Logger.d(TAG, "Join in-flight request. " + option.mUrl);
+        }
+        return waiter;
+    }
+
+    /**
+     * 通信の結果を待つ呼び出し元
+     */
+    private static class Waiter implements AsyncHttpHandler.Call {
+        final Flight mFlight;
+        final Sugarray.ProgressUpdateListener mProgressUpdateListener;
+        final AsyncHttpHandler.Callback mCallback;
+        /**
+         * この呼び出し元に渡すレスポンス
+         */
+        SugarrayResponse mResponse;
+
+        Waiter(Flight flight, Sugarray.ProgressUpdateListener progressUpdateListener,
+               AsyncHttpHandler.Callback callback) {
+            mFlight = flight;
+            mProgressUpdateListener = progressUpdateListener;
+            mCallback = callback;
+        }
+
+        /**
+         * 結果を待つのをやめ、コールバックにキャンセルしたことを通知する。他に待っている呼び出し元がいれば通信は続ける。
+         */
+        @Override
+        public void cancel() {
+            if (mFlight.leave(this) && mCallback != null) {
+                mCallback.onError(new UnexpectedError("Cancelled."));
+            }
+        }
+    }
+
+    /**
+     * 実行中の1つの通信。進行状況と結果を待っている全ての呼び出し元に通知する。
+     */
+    private static class Flight implements Sugarray.ProgressUpdateListener,
+            ProgressPhaseListener, AsyncHttpHandler.Callback {
+        final String mKey;
+        /**
+         * 通信に使うSSLSocketFactory、合流するリクエストと同一のインスタンスであること
+         */
+        final SSLSocketFactory mSSLSocketFactory;
+        final List<Waiter> mWaiters = new ArrayList<Waiter>();
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        AsyncHttpHandler.Call mCall;
+        boolean mDone;
+        boolean mCancelled;
+        SugarrayResponse mResponse;
+        SugarrayError mError;
+
+        Flight(String key, SSLSocketFactory sslSocketFactory) {
+            mKey = key;
+            mSSLSocketFactory = sslSocketFactory;
+        }
+
+        Waiter join(Sugarray.ProgressUpdateListener progressUpdateListener,
+                    AsyncHttpHandler.Callback callback) {
+            Waiter waiter = new Waiter(this, progressUpdateListener, callback);
+            synchronized (this) {
+                mWaiters.add(waiter);
+            }
+            return waiter;
+        }
+
+        /**
+         * @return 結果を通知する前に待つのをやめた場合はtrue
+         */
+        boolean leave(Waiter waiter) {
+            AsyncHttpHandler.Call call = null;
+            synchronized (FLIGHTS) {
+                synchronized (this) {
+                    if (mDone || !mWaiters.remove(waiter)) {
+                        return false;
+                    }
+                    if (!mWaiters.isEmpty()) {
+                        return true;
+                    }
+                    // 待っている呼び出し元がいなくなった通信には、以降のリクエストを合流させない
+                    if (FLIGHTS.get(mKey) == this) {
+                        FLIGHTS.remove(mKey);
+                    }
+                    mCancelled = true;
+                    call = mCall;
+                }
+            }
+            if (call != null) {
+                call.cancel();
+            }
+            return true;
+        }
+
+        /**
+         * 呼び出し元に属さないスレッドで同期の通信を行う。
+         */
+        void perform(final RequestOption option, final HttpHandler httpHandler) {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean completed = false;
+                    try {
+                        SugarrayResponse response = httpHandler.perform(option, Flight.this);
+                        completed = true;
+                        onResponse(response);
+                    } catch (SugarrayError e) {
+                        completed = true;
+                        onError(e);
+                    } finally {
+                        if (!completed) {
+                            // 想定外の例外でも、待っている呼び出し元を待たせ続けない
+                            onError(new UnexpectedError("Coalesced request failed. "
+                                    + option.mUrl));
+                        }
+                    }
+                }
+            });
+        }
+
+        void performAsync(RequestOption option, AsyncHttpHandler httpHandler) {
+            AsyncHttpHandler.Call call = httpHandler.performAsync(option, this, this);
+            boolean cancelled;
+            synchronized (this) {
+                mCall = call;
+                cancelled = mCancelled;
+            }
+            if (cancelled) {
+                call.cancel();
+            }
+        }
+
+        SugarrayResponse await(Waiter waiter) throws SugarrayError {
+            try {
+                mLatch.await();
+            } catch (InterruptedException e) {
+                leave(waiter);
+                Thread.currentThread().interrupt();
+                throw new UnexpectedError("Interrupted.", e);
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            return waiter.mResponse;
+        }
+
+        @Override
+        public void onProgressUpdate(long totalBytes, long progressBytes) {
+            for (Waiter waiter : waiters()) {
+                if (waiter.mProgressUpdateListener != null) {
+                    waiter.mProgressUpdateListener.onProgressUpdate(totalBytes, progressBytes);
+                }
+            }
+        }
+
+        @Override
+        public void onResponseStarted() {
+            for (Waiter waiter : waiters()) {
+                ProgressDispatcher.responseStarted(waiter.mProgressUpdateListener);
+            }
+        }
+
+        @Override
+        public void onResponse(SugarrayResponse response) {
+            for (Waiter waiter : complete(response, null)) {
+                if (waiter.mCallback != null) {
+                    waiter.mCallback.onResponse(waiter.mResponse);
+                }
+            }
+        }
+
+        @Override
+        public void onError(SugarrayError error) {
+            for (Waiter waiter : complete(null, error)) {
+                if (waiter.mCallback != null) {
+                    waiter.mCallback.onError(error);
+                }
+            }
+        }
+
+        private synchronized List<Waiter> waiters() {
+            return new ArrayList<Waiter>(mWaiters);
+        }
+
+        /**
+         * 結果を保持して呼び出し元毎のレスポンスを割り当て、待っている呼び出し元を返す。以降のリクエストは新たに通信する。
+         */
+        private List<Waiter> complete(SugarrayResponse response, SugarrayError error) {
+            List<Waiter> waiters;
+            synchronized (FLIGHTS) {
+                if (FLIGHTS.get(mKey) == this) {
+                    FLIGHTS.remove(mKey);
+                }
+                synchronized (this) {
+                    if (mDone) {
+                        return new ArrayList<Waiter>();
+                    }
+                    mDone = true;
+                    mResponse = response;
+                    mError = error;
+                    waiters = new ArrayList<Waiter>(mWaiters);
+                    for (int i = 0; response != null && i < waiters.size(); i++) {
+                        waiters.get(i).mResponse = i == 0 ? response : response.copy();
+                    }
+                }
+            }
+            mLatch.countDown();
+            return waiters;
+        }
+    }
+}
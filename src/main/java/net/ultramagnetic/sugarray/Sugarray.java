@@ -10,6 +10,8 @@ import net.ultramagnetic.sugarray.util.Logger;
 import net.ultramagnetic.sugarray.util.StringUtils;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
@@ -17,6 +19,7 @@ import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -50,6 +53,10 @@ public abstract class Sugarray {
      * ファイル
      */
     private File mFile;
+    /**
+     * マルチパートのメッセージボディ
+     */
+    private MultipartBody mMultipartBody;
     /**
      * プロキシホスト名
      */
@@ -74,6 +81,78 @@ public abstract class Sugarray {
      * タイムアウト時間(MS)
      */
     private int mTimeout = SugarrayConstants.DefaultRetryConfig.DEFAULT_TIMEOUT;
+    /**
+     * メッセージボディの圧縮方式
+     */
+    private SugarrayConstants.ContentEncoding mContentEncoding;
+    /**
+     * 圧縮するメッセージボディの最小バイト数
+     */
+    private int mCompressionThreshold = SugarrayConstants.DefaultCompressionConfig.DEFAULT_THRESHOLD;
+    /**
+     * レスポンスを保存するHTTPキャッシュ
+     */
+    private HttpCache mHttpCache;
+    /**
+     * レスポンスを保持するメモリキャッシュ
+     */
+    private MemoryCache mMemoryCache;
+    /**
+     * Rangeリクエストの部分的なレスポンスを保存するキャッシュ
+     */
+    private RangeCache mRangeCache;
+    /**
+     * 鮮度がなくなったキャッシュを先に返し、バックグラウンドで更新する
+     */
+    private boolean mStaleWhileRevalidate;
+    /**
+     * 鮮度がなくなってから先に返してよい経過時間(秒)
+     */
+    private int mMaxStale;
+    /**
+     * バックグラウンドで更新したレスポンスを受け取るリスナー
+     */
+    private CacheRefreshListener mCacheRefreshListener;
+    /**
+     * 保存したレスポンスの使い方
+     */
+    private CachePolicy mCachePolicy = CachePolicy.STANDARD;
+    /**
+     * 同時に実行される同一のGETリクエストを1つの通信にまとめる
+     */
+    private boolean mCoalesce;
+    /**
+     * 受信中のメッセージボディを処理するリスナー
+     */
+    private BodyStreamListener mBodyStreamListener;
+    /**
+     * 中断したダウンロードを再開する
+     */
+    private boolean mResumable;
+    /**
+     * ファイルへのダウンロードの分割数
+     */
+    private int mSegments;
+    /**
+     * 進行状況を通知するExecutor
+     */
+    private Executor mProgressExecutor;
+    /**
+     * 進行状況を通知する最小のバイト数の差
+     */
+    private long mProgressMinBytes = SugarrayConstants.DefaultProgressConfig.DEFAULT_MIN_BYTES;
+    /**
+     * 進行状況を通知する最小の間隔(MS)
+     */
+    private long mProgressInterval = SugarrayConstants.DefaultProgressConfig.DEFAULT_MIN_INTERVAL;
+    /**
+     * 計測結果のリスナー
+     */
+    private RequestMetricsListener mRequestMetricsListener;
+    /**
+     * ホスト名のリゾルバ
+     */
+    private HostResolver mHostResolver = CachingHostResolver.getDefault();
     /**
      * コンテキスト
      */
@@ -92,7 +171,10 @@ public abstract class Sugarray {
     public Sugarray setUrl(String url) {
         try {
             mUrl = url;
-            set(SugarrayConstants.HeaderFields.HOST, new URL(url).getHost());
+            String host = new URL(url).getHost();
+            set(SugarrayConstants.HeaderFields.HOST, host);
+            // リクエストを組み立てている間に名前解決を済ませておく
+            mHostResolver.prefetch(host);
         } catch (MalformedURLException e) {
             throw new IllegalArgumentException("url is minus:" + mUrl);
         }
@@ -386,11 +468,13 @@ public abstract class Sugarray {
      */
     public Sugarray send(byte[] body) {
         mBody = body;
+        mFile = null;
+        mMultipartBody = null;
         return this;
     }
 
     /**
-     * メッセージボディをセットする。
+     * メッセージボディをセットする。ファイルはメモリに読み込まず、送信時にストリームで読み出す。
      *
      * @param file メッセージボディのデータ(ファイル)
      * @return Sugarrayのインスタンス
@@ -399,10 +483,29 @@ public abstract class Sugarray {
         if (FileUtils.isNotFile(file)) {
             return this;
         }
-        mBody = FileUtils.readFileToBytes(file);
+        mFile = file;
+        mBody = null;
+        mMultipartBody = null;
         return this;
     }
 
+    /**
+     * マルチパートのメッセージボディをセットし、バウンダリを含むコンテンツタイプをヘッダーにセットする。
+     * 各パートは送信時にストリームで読み出し、ファイルの内容はメモリに読み込まない。
+     *
+     * @param multipartBody メッセージボディのデータ(マルチパート)
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray send(MultipartBody multipartBody) {
+        if (multipartBody == null) {
+            return this;
+        }
+        mMultipartBody = multipartBody;
+        mBody = null;
+        mFile = null;
+        return type(multipartBody.contentType());
+    }
+
     /**
      * プロキシをセットする。
      *
@@ -415,6 +518,7 @@ public abstract class Sugarray {
                 && (0 <= proxyPort && proxyPort <= 65535)) {
             mProxyhost = proxyhost;
             mProxyPort = proxyPort;
+            mHostResolver.prefetch(proxyhost);
         }
         return this;
     }
@@ -430,6 +534,242 @@ public abstract class Sugarray {
         return this;
     }
 
+    /**
+     * メッセージボディをメモリに読み込まず、受信しながらリスナーで処理する。
+     * 成功時にHttpResponseListenerに渡されるレスポンスのmBodyは空となる。
+     *
+     * @param bodyStreamListener 受信中のメッセージボディを処理するリスナー
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray stream(BodyStreamListener bodyStreamListener) {
+        mBodyStreamListener = bodyStreamListener;
+        return this;
+    }
+
+    /**
+     * ファイルへのダウンロードが中断した場合、次回は受信済みの位置から再開する。
+     * 受信中のデータは保存先に".part"を付けたファイルに書き込まれ、完了時に保存先へ移動する。
+     * 通信エラーの場合もリトライ回数の範囲で続きから再開する。
+     *
+     * @param resumable 再開する場合はtrue
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray resumable(boolean resumable) {
+        mResumable = resumable;
+        return this;
+    }
+
+    /**
+     * メッセージボディを指定した方式で圧縮し、Content-Encodingヘッダーを付けて送信する。
+     * 1KB未満のボディや、PNG、JPEG、GIFなど既に圧縮されている形式のボディは圧縮しない。
+     *
+     * @param contentEncoding 圧縮方式、nullの場合は圧縮しない
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray compress(SugarrayConstants.ContentEncoding contentEncoding) {
+        return compress(contentEncoding,
+                SugarrayConstants.DefaultCompressionConfig.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * メッセージボディが閾値以上の場合に、指定した方式で圧縮して送信する。
+     *
+     * @param contentEncoding 圧縮方式、nullの場合は圧縮しない
+     * @param threshold       圧縮するメッセージボディの最小バイト数
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray compress(SugarrayConstants.ContentEncoding contentEncoding, int threshold) {
+        mContentEncoding = contentEncoding;
+        mCompressionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * GETリクエストのレスポンスを保存するHTTPキャッシュをセットする。
+     * 鮮度が残っているレスポンスは通信せずに返し、そのレスポンスのmNotModifiedはtrueとなる。
+     * エントリーの一覧はバックグラウンドで読み込むため、end()の呼び出しを待たせない。
+     *
+     * @param httpCache HTTPキャッシュ、nullの場合はキャッシュしない
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray cache(HttpCache httpCache) {
+        if (httpCache != null) {
+            httpCache.preload();
+        }
+        mHttpCache = httpCache;
+        return this;
+    }
+
+    /**
+     * GETリクエストのレスポンスを保持するメモリキャッシュをセットする。HTTPキャッシュより先に探し、
+     * 鮮度が残っているレスポンスはワーカースレッドを経由せずに、end()を呼び出したスレッドでonSuccessに通知する。
+     *
+     * @param memoryCache メモリキャッシュ、nullの場合は保持しない
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray memoryCache(MemoryCache memoryCache) {
+        mMemoryCache = memoryCache;
+        return this;
+    }
+
+    /**
+     * Rangeヘッダーで1つの範囲を指定したGETリクエストの部分的なレスポンスを保存するキャッシュをセットする。
+     * 保存済みの範囲を再利用し、足りない範囲のみを受信する。メディアのシークなどで同じリソースの範囲を繰り返し要求する場合に使う。
+     *
+     * @param rangeCache 部分的なレスポンスのキャッシュ、nullの場合は保存しない
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray rangeCache(RangeCache rangeCache) {
+        mRangeCache = rangeCache;
+        return this;
+    }
+
+    /**
+     * 鮮度がなくなったキャッシュでも、レスポンスのstale-while-revalidateか指定した経過時間の範囲内であれば
+     * 先にHttpResponseListenerへ通知し、ランチャーのExecutorServiceでバックグラウンドに更新する。
+     *
+     * @param maxStale 鮮度がなくなってから先に返してよい経過時間(秒)、0の場合はレスポンスのstale-while-revalidateのみに従う
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray staleWhileRevalidate(int maxStale) {
+        return staleWhileRevalidate(maxStale, null);
+    }
+
+    /**
+     * 鮮度がなくなったキャッシュを先に返し、バックグラウンドで更新する。
+     * 更新したレスポンスが先に返したものと異なれば、CacheRefreshListenerに通知する。
+     *
+     * @param maxStale             鮮度がなくなってから先に返してよい経過時間(秒)
+     * @param cacheRefreshListener 更新したレスポンスを受け取るリスナー、nullの場合は通知しない
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray staleWhileRevalidate(int maxStale,
+                                         CacheRefreshListener cacheRefreshListener) {
+        if (maxStale < 0) {
+            throw new IllegalArgumentException("maxStale is minus:" + maxStale);
+        }
+        mStaleWhileRevalidate = true;
+        mMaxStale = maxStale;
+        mCacheRefreshListener = cacheRefreshListener;
+        return this;
+    }
+
+    /**
+     * HTTPキャッシュとメモリキャッシュに保存したレスポンスの使い方をセットする。デフォルトはCachePolicy.STANDARD。
+     * NETWORK_ONLYとCACHE_ONLY以外は、端末がネットワークに接続されていない場合に保存したレスポンスを返す。
+     *
+     * @param cachePolicy 保存したレスポンスの使い方
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray cachePolicy(CachePolicy cachePolicy) {
+        return cachePolicy(cachePolicy, mCacheRefreshListener);
+    }
+
+    /**
+     * HTTPキャッシュとメモリキャッシュに保存したレスポンスの使い方をセットする。
+     * CachePolicy.CACHE_THEN_NETWORKで更新したレスポンスが先に返したものと異なれば、CacheRefreshListenerに通知する。
+     *
+     * @param cachePolicy          保存したレスポンスの使い方
+     * @param cacheRefreshListener 更新したレスポンスを受け取るリスナー、nullの場合は通知しない
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray cachePolicy(CachePolicy cachePolicy,
+                                CacheRefreshListener cacheRefreshListener) {
+        if (cachePolicy == null) {
+            throw new IllegalArgumentException("cachePolicy is null.");
+        }
+        mCachePolicy = cachePolicy;
+        mCacheRefreshListener = cacheRefreshListener;
+        return this;
+    }
+
+    /**
+     * 同じメソッド、URL、リクエストヘッダーのGETまたはHEADリクエストが既に通信中であれば、新たに通信せずにその結果を受け取る。
+     * 1つの通信の結果を全てのHttpResponseListenerに通知し、1つのリクエストをキャンセルしても他のリクエストには影響しない。
+     * 2番目以降のリクエストには複製したレスポンスを渡す。デフォルトではまとめない。
+     *
+     * @param coalesce まとめる場合はtrue
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray coalesce(boolean coalesce) {
+        mCoalesce = coalesce;
+        return this;
+    }
+
+    /**
+     * ファイルへのダウンロードを複数の区間に分割し、それぞれ別のコネクションで並行して受信する。
+     * サーバーがRangeリクエストに対応していない場合や、ファイルが小さい場合は1つのコネクションで受信する。
+     *
+     * @param segments 分割数、1以下の場合は分割しない
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray segments(int segments) {
+        mSegments = segments;
+        return this;
+    }
+
+    /**
+     * 送信と受信の進行状況をProgressUpdateListenerに通知するExecutorをセットする。
+     * 進行状況は4KBかつ100ms以上進んだ場合と、全て処理し終えた場合のみ通知する。
+     *
+     * @param executor 通知を実行するExecutor(UIスレッドに投入するExecutorなど)、nullの場合は通信中のスレッドで通知する
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray progress(Executor executor) {
+        return progress(executor, SugarrayConstants.DefaultProgressConfig.DEFAULT_MIN_BYTES,
+                SugarrayConstants.DefaultProgressConfig.DEFAULT_MIN_INTERVAL);
+    }
+
+    /**
+     * 送信と受信の進行状況をProgressUpdateListenerに通知するExecutorと、通知を間引く条件をセットする。
+     *
+     * @param executor    通知を実行するExecutor、nullの場合は通信中のスレッドで通知する
+     * @param minBytes    前回の通知から進んだ最小のバイト数
+     * @param minInterval 前回の通知からの最小の間隔(MS)
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray progress(Executor executor, long minBytes, long minInterval) {
+        mProgressExecutor = executor;
+        mProgressMinBytes = minBytes;
+        mProgressInterval = minInterval;
+        return this;
+    }
+
+    /**
+     * HTTPリクエスト毎の計測結果(送信方法、送信したバイト数、ステータスコード、所要時間)を受け取るリスナーをセットする。
+     *
+     * @param requestMetricsListener 計測結果のリスナー
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray metrics(RequestMetricsListener requestMetricsListener) {
+        mRequestMetricsListener = requestMetricsListener;
+        return this;
+    }
+
+    /**
+     * ホスト名のリゾルバをセットする。
+     *
+     * @param hostResolver ホスト名のリゾルバ
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray resolver(HostResolver hostResolver) {
+        if (hostResolver == null) {
+            throw new IllegalArgumentException("hostResolver is null.");
+        }
+        mHostResolver = hostResolver;
+        // 先にセットされた接続先の名前解決を、リクエストに使うリゾルバでも始めておく
+        if (StringUtils.isNotEmpty(mProxyhost)) {
+            mHostResolver.prefetch(mProxyhost);
+        } else if (StringUtils.isNotEmpty(mUrl)) {
+            try {
+                mHostResolver.prefetch(new URL(mUrl).getHost());
+            } catch (MalformedURLException e) {
+                Logger.e(TAG, "Bad URL. " + mUrl, e);
+            }
+        }
+        return this;
+    }
+
     /**
      * HTTPリクエストを実行する。
      *
@@ -472,6 +812,49 @@ public abstract class Sugarray {
     public Sugarray end(HttpResponseListener httpResponseListener,
                         ProgressUpdateListener progressUpdateListener,
                         HttpHandler httpHandler) {
+        return end(null, httpResponseListener, progressUpdateListener, httpHandler);
+    }
+
+    /**
+     * HTTPリクエストを実行し、メッセージボディをファイルに保存する。
+     *
+     * @param downloadFile         保存先のファイル
+     * @param httpResponseListener HTTPレスポンスのリスナー
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray end(File downloadFile, HttpResponseListener httpResponseListener) {
+        return end(downloadFile, httpResponseListener, null);
+    }
+
+    /**
+     * HTTPリクエストを実行し、メッセージボディをファイルに保存する。
+     *
+     * @param downloadFile           保存先のファイル
+     * @param httpResponseListener   HTTPレスポンスのリスナー
+     * @param progressUpdateListener 進行状況のリスナー
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray end(File downloadFile, HttpResponseListener httpResponseListener,
+                        ProgressUpdateListener progressUpdateListener) {
+        if (downloadFile == null) {
+            throw new IllegalArgumentException("downloadFile is null.");
+        }
+        return end(downloadFile, httpResponseListener, progressUpdateListener, null);
+    }
+
+    /**
+     * HTTPリクエストを実行する。
+     * 成功したレスポンスのメッセージボディは保存先のファイルに書き込まれ、SugarrayResponse.mFileで参照できる。
+     *
+     * @param downloadFile           保存先のファイル、nullの場合はメモリに読み込む
+     * @param httpResponseListener   HTTPレスポンスのリスナー
+     * @param progressUpdateListener 進行状況のリスナー
+     * @param httpHandler            HTTP通信の実処理
+     * @return Sugarrayのインスタンス
+     */
+    public Sugarray end(File downloadFile, HttpResponseListener httpResponseListener,
+                        ProgressUpdateListener progressUpdateListener,
+                        HttpHandler httpHandler) {
         if (StringUtils.isEmpty(mUrl)) {
             throw new IllegalArgumentException("url is minus:" + mUrl);
         }
@@ -492,12 +875,27 @@ public abstract class Sugarray {
                 .query(mQuery)
                 .body(mBody)
                 .file(mFile)
+                .multipartBody(mMultipartBody)
+                .downloadFile(downloadFile)
+                .bodyStreamListener(mBodyStreamListener)
+                .resumable(mResumable)
+                .segments(mSegments)
+                .requestMetricsListener(mRequestMetricsListener)
+                .progress(mProgressExecutor, mProgressMinBytes, mProgressInterval)
+                .compression(mContentEncoding, mCompressionThreshold)
+                .httpCache(mHttpCache)
+                .memoryCache(mMemoryCache)
+                .rangeCache(mRangeCache)
+                .staleWhileRevalidate(mStaleWhileRevalidate, mMaxStale, mCacheRefreshListener)
+                .cachePolicy(mCachePolicy)
+                .coalesce(mCoalesce)
                 .proxyhost(mProxyhost)
                 .proxyPort(mProxyPort)
                 .sslSocketFactory(mSSLSocketFactory)
                 .retryMax(mRetryMax)
                 .retryInterval(mRetryInterval)
                 .timeout(mTimeout)
+                .hostResolver(mHostResolver)
                 .bulid();
 
         createLauncher()
@@ -616,4 +1014,84 @@ public abstract class Sugarray {
         public void onProgressUpdate(long totalBytes, long progressBytes);
     }
 
+    /**
+     * HTTPリクエストの計測結果を受け取るリスナー
+     */
+    public static interface RequestMetricsListener {
+        /**
+         * HTTPリクエストが完了した際に、HttpResponseListenerへの通知の前に呼び出される。
+         *
+         * @param metrics 計測結果
+         */
+        public void onRequestMetrics(RequestMetrics metrics);
+    }
+
+    /**
+     * stale-while-revalidateまたはCachePolicy.CACHE_THEN_NETWORKでバックグラウンドに更新したレスポンスを受け取るリスナー
+     */
+    public static interface CacheRefreshListener {
+        /**
+         * 更新したレスポンスが先に返したものと異なる場合に、ランチャーのスレッドで呼び出される。
+         *
+         * @param response 更新したレスポンス
+         */
+        public void onRefresh(SugarrayResponse response);
+    }
+
+    /**
+     * 受信中のメッセージボディをストリームとして処理するリスナー
+     * <p>
+     * レスポンスヘッダーの受信後にワーカースレッドで呼び出される。ストリームは呼び出しから戻った時点で閉じられ、
+     * コネクションはプールに返却される。ReadableByteChannelが必要な場合はjava.nio.channels.Channels.newChannelで変換できる。
+     */
+    public static interface BodyStreamListener {
+        /**
+         * @param response メッセージボディを含まないHTTPレスポンス
+         * @param body     受信しながら読み込むメッセージボディ
+         * @throws IOException 読み込みに失敗した場合
+         */
+        public void onBodyStream(SugarrayResponse response, InputStream body)
+                throws IOException;
+    }
+
+    /**
+     * 受信したメッセージボディを断片毎に受け取るリスナー
+     */
+    public static abstract class BodyChunkListener implements BodyStreamListener {
+
+        private static final int CHUNK_SIZE = 1024 * 8;
+
+        @Override
+        public final void onBodyStream(SugarrayResponse response, InputStream body)
+                throws IOException {
+            byte[] buffer = BufferPool.getInstance().acquire(CHUNK_SIZE);
+            try {
+                int length;
+                while ((length = body.read(buffer, 0, CHUNK_SIZE)) != -1) {
+                    onBodyChunk(buffer, 0, length);
+                }
+            } finally {
+                BufferPool.getInstance().release(buffer);
+            }
+            onBodyEnd();
+        }
+
+        /**
+         * メッセージボディの断片を受け取る。bufferは次の呼び出しで再利用される。
+         *
+         * @param buffer 受信したデータ
+         * @param offset 開始位置
+         * @param length バイト数
+         * @throws IOException
+         */
+        public abstract void onBodyChunk(byte[] buffer, int offset, int length)
+                throws IOException;
+
+        /**
+         * メッセージボディを最後まで受信した際に呼び出される。
+         */
+        public void onBodyEnd() {
+        }
+    }
+
 }
\ No newline at end of file
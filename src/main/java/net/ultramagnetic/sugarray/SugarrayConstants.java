@@ -23,6 +23,192 @@ public class SugarrayConstants {
         static final int DEFAULT_TIMEOUT = 1000 * 30;
     }
 
+    /**
+     * HttpRestClientHandlerが共有するコネクションプールのデフォルト設定を定義しています。
+     */
+    static class DefaultConnectionPoolConfig {
+        /**
+         * 全体の最大コネクション数
+         */
+        static final int DEFAULT_MAX_TOTAL = 20;
+        /**
+         * ルート毎の最大コネクション数
+         */
+        static final int DEFAULT_MAX_PER_ROUTE = 5;
+        /**
+         * アイドル状態のコネクションを保持する時間
+         */
+        static final long DEFAULT_IDLE_TIMEOUT = 1000 * 30;
+    }
+
+    /**
+     * ホスト名の解決結果をキャッシュするデフォルト設定を定義しています。
+     */
+    static class DefaultDnsConfig {
+        /**
+         * 保持する最大件数
+         */
+        static final int DEFAULT_MAX_ENTRIES = 64;
+        /**
+         * 解決結果の有効期間
+         */
+        static final long DEFAULT_TTL = 1000 * 60;
+        /**
+         * 解決失敗の有効期間
+         */
+        static final long DEFAULT_NEGATIVE_TTL = 1000 * 10;
+    }
+
+    /**
+     * TLSセッションを再利用するデフォルト設定を定義しています。
+     */
+    static class DefaultTlsSessionConfig {
+        /**
+         * 直前のセッションを記録するホスト名:ポート番号の最大数
+         */
+        static final int DEFAULT_MAX_SESSIONS = 64;
+    }
+
+    /**
+     * メッセージボディの送信のデフォルト設定を定義しています。
+     */
+    static class DefaultUploadConfig {
+        /**
+         * チャンク形式で送信する際のチャンクサイズ
+         */
+        static final int DEFAULT_CHUNK_SIZE = 1024 * 16;
+    }
+
+    /**
+     * メッセージボディの圧縮のデフォルト設定を定義しています。
+     */
+    static class DefaultCompressionConfig {
+        /**
+         * 圧縮するメッセージボディの最小バイト数
+         */
+        static final int DEFAULT_THRESHOLD = 1024;
+        /**
+         * 圧縮しながら送信する際のバッファサイズ
+         */
+        static final int DEFAULT_BUFFER_SIZE = 1024 * 8;
+    }
+
+    /**
+     * 進行状況の通知のデフォルト設定を定義しています。
+     */
+    static class DefaultProgressConfig {
+        /**
+         * 通知する最小のバイト数の差
+         */
+        static final long DEFAULT_MIN_BYTES = 1024 * 4;
+        /**
+         * 通知する最小の間隔(MS)
+         */
+        static final long DEFAULT_MIN_INTERVAL = 100;
+    }
+
+    /**
+     * レスポンスの復号のデフォルト設定を定義しています。
+     */
+    static class DefaultContentCodingConfig {
+        /**
+         * 種類毎にプールするInflaterの最大数
+         */
+        static final int DEFAULT_MAX_POOLED_INFLATERS = 4;
+        /**
+         * 復号する際の入力バッファサイズ
+         */
+        static final int DEFAULT_BUFFER_SIZE = 1024 * 8;
+    }
+
+    /**
+     * 再利用するバッファのデフォルト設定を定義しています。
+     */
+    static class DefaultBufferPoolConfig {
+        /**
+         * プールする配列の最小サイズ
+         */
+        static final int DEFAULT_MIN_BUFFER_SIZE = 1024 * 4;
+        /**
+         * プールする配列の最大サイズ
+         */
+        static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 64;
+        /**
+         * プールする配列の合計サイズの上限
+         */
+        static final int DEFAULT_MAX_POOL_SIZE = 1024 * 512;
+        /**
+         * Content-Lengthの長さで配列を確保するメッセージボディの最大サイズ、これより大きい場合は受信した分だけ確保する
+         */
+        static final int DEFAULT_MAX_PRESIZED_BODY = 1024 * 1024;
+    }
+
+    /**
+     * 分割ダウンロードのデフォルト設定を定義しています。
+     */
+    static class DefaultSegmentConfig {
+        /**
+         * 最大の分割数
+         */
+        static final int DEFAULT_MAX_SEGMENTS = 8;
+        /**
+         * 1区間の最小サイズ、これより小さくなる場合は分割数を減らす
+         */
+        static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+        /**
+         * 全ての分割ダウンロードで共有する、区間を受信するスレッド数の上限
+         */
+        static final int DEFAULT_MAX_THREADS = 8;
+    }
+
+    /**
+     * HTTPキャッシュのデフォルト設定を定義しています。
+     */
+    static class DefaultCacheConfig {
+        /**
+         * 保存するレスポンスの合計サイズの上限
+         */
+        static final long DEFAULT_MAX_SIZE = 1024 * 1024 * 10;
+        /**
+         * 有効期限がない場合に、Last-Modifiedからの経過時間のうち鮮度があるとみなす割合(%)
+         */
+        static final int DEFAULT_HEURISTIC_PERCENT = 10;
+        /**
+         * ジャーナルをスナップショットに書き出すレコード数(エントリー数の方が多ければエントリー数)
+         */
+        static final int DEFAULT_JOURNAL_COMPACT_THRESHOLD = 1000;
+    }
+
+    /**
+     * メモリキャッシュのデフォルト設定を定義しています。
+     */
+    static class DefaultMemoryCacheConfig {
+        /**
+         * 保持するメッセージボディの合計サイズの上限
+         */
+        static final long DEFAULT_MAX_SIZE = 1024 * 1024 * 4;
+        /**
+         * ロックを分ける区画の数
+         */
+        static final int DEFAULT_STRIPES = 8;
+        /**
+         * キーに含めるリクエストヘッダーのフィールド名
+         */
+        static final String[] DEFAULT_KEY_HEADERS = {
+                HeaderFields.ACCEPT, HeaderFields.ACCEPT_LANGUAGE, HeaderFields.AUTHORIZATION
+        };
+    }
+
+    /**
+     * 部分的なレスポンスのキャッシュのデフォルト設定を定義しています。
+     */
+    static class DefaultRangeCacheConfig {
+        /**
+         * 保存する範囲の合計サイズの上限
+         */
+        static final long DEFAULT_MAX_SIZE = 1024 * 1024 * 64;
+    }
+
     /**
      * HTTPリクエストヘッダーのフィールド名を定義しています。
      */
@@ -34,13 +220,31 @@ public class SugarrayConstants {
         static final String USER_AGENT = "User-Agent";
         static final String AUTHORIZATION = "Authorization";
         static final String CONTENT_LENGTH = "Content-Length";
+        static final String CONTENT_ENCODING = "Content-Encoding";
+        static final String TRANSFER_ENCODING = "Transfer-Encoding";
+        static final String ACCEPT_ENCODING = "Accept-Encoding";
+        static final String ACCEPT_LANGUAGE = "Accept-Language";
+        static final String CACHE_CONTROL = "Cache-Control";
+        static final String PRAGMA = "Pragma";
+        static final String EXPIRES = "Expires";
+        static final String DATE = "Date";
+        static final String AGE = "Age";
+        static final String LAST_MODIFIED = "Last-Modified";
+        static final String ETAG = "ETag";
+        static final String VARY = "Vary";
+        static final String IF_NONE_MATCH = "If-None-Match";
+        static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+        static final String RANGE = "Range";
+        static final String IF_RANGE = "If-Range";
+        static final String CONTENT_RANGE = "Content-Range";
+        static final String ACCEPT_RANGES = "Accept-Ranges";
     }
 
     /**
      * HTTPリクエストのメソッドを定義しています。
      */
     public static enum Method {
-        GET, POST, PUT, DELETE
+        GET, POST, PUT, DELETE, HEAD
     }
 
     /**
@@ -78,6 +282,32 @@ public class SugarrayConstants {
         }
     }
 
+    /**
+     * HTTPリクエストヘッダーのコンテンツエンコーディングの値を定義しています。
+     */
+    public static enum ContentEncoding {
+        GZIP("gzip"), DEFLATE("deflate");
+
+        private final String value;
+
+        private ContentEncoding(String value) {
+            this.value = value;
+        }
+
+        public String value() {
+            return value;
+        }
+
+        public static ContentEncoding fromString(String value) {
+            for (ContentEncoding contentEncoding : ContentEncoding.values()) {
+                if (contentEncoding.value().equalsIgnoreCase(value)) {
+                    return contentEncoding;
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * HTTPリクエストヘッダーのコネクションの値を定義しています。
      */
@@ -4,6 +4,8 @@ import android.content.Context;
 
 import net.ultramagnetic.sugarray.Sugarray.HttpResponseListener;
 import net.ultramagnetic.sugarray.Sugarray.ProgressUpdateListener;
+import net.ultramagnetic.sugarray.error.CacheMissError;
+import net.ultramagnetic.sugarray.error.ClientError;
 import net.ultramagnetic.sugarray.error.NetworkStateError;
 import net.ultramagnetic.sugarray.error.SugarrayError;
 import net.ultramagnetic.sugarray.util.Logger;
@@ -12,6 +14,7 @@ import net.ultramagnetic.sugarray.util.NetworkUtils.NetworkState;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * ExecutorService(スレッドプール)の生成処理を抽象化した、HTTPリクエストをバックグラウンド実行するランチャー
@@ -20,7 +23,14 @@ abstract class SugarrayLauncher {
 
     private static final String TAG = SugarrayLauncher.class.getSimpleName();
 
-    private Future<?> mFuture;
+    private volatile Future<?> mFuture;
+
+    private volatile AsyncHttpHandler.Call mCall;
+
+    /**
+     * キャンセルが要求されていればtrue。通信を開始する前に要求された場合も開始後にキャンセルする。
+     */
+    private volatile boolean mCancelled;
 
     protected SugarrayLauncher() {
     }
@@ -43,36 +53,86 @@ abstract class SugarrayLauncher {
         if (httpResponseListener == null) {
             throw new IllegalArgumentException("HttpResponseListener is null.");
         }
+        SugarrayResponse memoryResponse = lookupMemoryCache(option);
+        SugarrayResponse staleResponse = memoryResponse == null
+                ? lookupStaleMemoryCache(option) : null;
+        if (memoryResponse != null || staleResponse != null) {
+            // ワーカースレッドを経由せずに、呼び出し元のスレッドで通知する
+            try {
+                httpResponseListener.preStart();
+                httpResponseListener.onSuccess(memoryResponse != null ? memoryResponse
+                        : staleResponse);
+            } finally {
+                httpResponseListener.onFinish();
+            }
+            if (staleResponse != null) {
+                refresh(context, option, httpHandler, null);
+            }
+            return;
+        }
+        final ProgressDispatcher progressDispatcher = progressUpdateListener == null ? null
+                : new ProgressDispatcher(progressUpdateListener, option.mProgressExecutor,
+                option.mProgressMinBytes, option.mProgressInterval);
+        if (httpHandler instanceof AsyncHttpHandler
+                && ((AsyncHttpHandler) httpHandler).supports(option) && !usesRangeCache(option)) {
+            launchAsync(context, option, (AsyncHttpHandler) httpHandler,
+                    httpResponseListener, progressDispatcher);
+            return;
+        }
         mFuture = getExecutor().submit(new Runnable() {
             @Override
             public void run() {
+                long startTime = 0;
+                HttpCache.Lookup lookup = null;
                 try {
                     httpResponseListener.preStart();
-                    NetworkState networkState = NetworkUtils
-                            .checkNetworkEnable(context);
-                    switch (networkState) {
-                        case ENABLE_MOBILE:
-                            Logger.d(TAG,
-                                    "The device is connected to the mobile network.");
-                            break;
-                        case ENABLE_WIFI:
-                            Logger.d(TAG,
-                                    "The device is connected to the wifi network.");
-                            break;
-                        case ENABLE_UNKNOWN:
-                            Logger.d(TAG,
-                                    "The device is connected to the unknown network.");
-                            break;
-                        default:
-                            throw new NetworkStateError(networkState,
-                                    "The device is not connected to the network.");
+                    lookup = lookupCache(option);
+                    SugarrayResponse cachedResponse = cachedResponse(option, lookup);
+                    if (cachedResponse != null) {
+                        memorizeResponse(option, cachedResponse);
+                        httpResponseListener.onSuccess(cachedResponse);
+                        return;
+                    }
+                    SugarrayResponse staleResponse = staleResponse(option, lookup);
+                    if (staleResponse != null) {
+                        httpResponseListener.onSuccess(staleResponse);
+                        refresh(context, option, httpHandler, lookup);
+                        return;
+                    }
+                    checkCacheOnly(option);
+                    RequestOption request = lookup != null ? lookup.mRequest : option;
+                    checkNetworkState(context);
+                    startTime = System.currentTimeMillis();
+                    SugarrayResponse response;
+                    if (request.isSegmentedDownload()) {
+                        response = SegmentedDownload.perform(request, httpHandler,
+                                progressDispatcher);
+                    } else if (usesRangeCache(request)) {
+                        response = request.mRangeCache.perform(request, httpHandler,
+                                progressDispatcher);
+                    } else {
+                        String flightKey = SingleFlight.key(request, httpHandler);
+                        response = flightKey != null
+                                ? SingleFlight.perform(flightKey, request, httpHandler,
+                                progressDispatcher)
+                                : httpHandler.perform(request, progressDispatcher);
                     }
-                    SugarrayResponse response = httpHandler.perform(option,
-                            progressUpdateListener);
+                    response = cacheResponse(option, lookup, response, startTime);
+                    flushProgress(progressDispatcher);
+                    reportMetrics(option, response, startTime);
                     httpResponseListener.onSuccess(response);
                 } catch (SugarrayError e) {
                     Logger.e(TAG, "SugarrayError.", e);
-                    httpResponseListener.onError(e);
+                    if (startTime != 0) {
+                        flushProgress(progressDispatcher);
+                        reportMetrics(option, e.mResponse, startTime);
+                    }
+                    SugarrayResponse fallbackResponse = offlineFallback(option, lookup, e);
+                    if (fallbackResponse != null) {
+                        httpResponseListener.onSuccess(fallbackResponse);
+                    } else {
+                        httpResponseListener.onError(e);
+                    }
                 } finally {
                     httpResponseListener.onFinish();
                 }
@@ -80,6 +140,451 @@ abstract class SugarrayLauncher {
         });
     }
 
+    /**
+     * ワーカースレッドを占有せずにHTTPリクエストを実行します。通信結果はExecutorServiceのスレッドで通知します。
+     *
+     * @param option
+     * @param httpHandler
+     * @param httpResponseListener
+     * @param progressDispatcher
+     */
+    private void launchAsync(final Context context, final RequestOption option,
+                             final AsyncHttpHandler httpHandler,
+                             final HttpResponseListener httpResponseListener,
+                             final ProgressDispatcher progressDispatcher) {
+        mFuture = getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                HttpCache.Lookup lookup = null;
+                try {
+                    httpResponseListener.preStart();
+                    lookup = lookupCache(option);
+                    SugarrayResponse cachedResponse = cachedResponse(option, lookup);
+                    if (cachedResponse != null) {
+                        memorizeResponse(option, cachedResponse);
+                        try {
+                            httpResponseListener.onSuccess(cachedResponse);
+                        } finally {
+                            httpResponseListener.onFinish();
+                        }
+                        return;
+                    }
+                    SugarrayResponse staleResponse = staleResponse(option, lookup);
+                    if (staleResponse != null) {
+                        try {
+                            httpResponseListener.onSuccess(staleResponse);
+                        } finally {
+                            httpResponseListener.onFinish();
+                        }
+                        refresh(context, option, httpHandler, lookup);
+                        return;
+                    }
+                    checkCacheOnly(option);
+                    checkNetworkState(context);
+                } catch (SugarrayError e) {
+                    Logger.e(TAG, "SugarrayError.", e);
+                    try {
+                        SugarrayResponse fallbackResponse = offlineFallback(option, lookup, e);
+                        if (fallbackResponse != null) {
+                            httpResponseListener.onSuccess(fallbackResponse);
+                        } else {
+                            httpResponseListener.onError(e);
+                        }
+                    } finally {
+                        httpResponseListener.onFinish();
+                    }
+                    return;
+                }
+                final HttpCache.Lookup cacheLookup = lookup;
+                final long startTime = System.currentTimeMillis();
+                RequestOption request = lookup != null ? lookup.mRequest : option;
+                AsyncHttpHandler.Callback callback = new AsyncHttpHandler.Callback() {
+                    @Override
+                    public void onResponse(final SugarrayResponse networkResponse) {
+                        deliver(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    SugarrayResponse response = cacheResponse(option,
+                                            cacheLookup, networkResponse, startTime);
+                                    flushProgress(progressDispatcher);
+                                    reportMetrics(option, response, startTime);
+                                    httpResponseListener.onSuccess(response);
+                                } finally {
+                                    httpResponseListener.onFinish();
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onError(final SugarrayError error) {
+                        deliver(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    Logger.e(TAG, "SugarrayError.", error);
+                                    flushProgress(progressDispatcher);
+                                    reportMetrics(option, error.mResponse, startTime);
+                                    SugarrayResponse fallbackResponse = offlineFallback(
+                                            option, cacheLookup, error);
+                                    if (fallbackResponse != null) {
+                                        httpResponseListener.onSuccess(fallbackResponse);
+                                    } else {
+                                        httpResponseListener.onError(error);
+                                    }
+                                } finally {
+                                    httpResponseListener.onFinish();
+                                }
+                            }
+                        });
+                    }
+                };
+                String flightKey = SingleFlight.key(request, httpHandler);
+                AsyncHttpHandler.Call call = flightKey != null
+                        ? SingleFlight.performAsync(flightKey, request, httpHandler,
+                        progressDispatcher, callback)
+                        : httpHandler.performAsync(request, progressDispatcher, callback);
+                mCall = call;
+                if (mCancelled) {
+                    // 通信を開始している間にキャンセルが要求された
+                    call.cancel();
+                }
+            }
+        });
+    }
+
+    /**
+     * 通信結果をExecutorServiceのスレッドで通知します。
+     * ExecutorServiceが終了していて実行できない場合は、onFinishが届かなくならないよう呼び出し元のスレッドで通知します。
+     *
+     * @param task
+     */
+    private void deliver(Runnable task) {
+        try {
+            getExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            Logger.e(TAG, "ExecutorService rejected the result. Deliver it inline.", e);
+            task.run();
+        }
+    }
+
+    /**
+     * メモリキャッシュが指定されていれば、CachePolicyに従って通信せずに返すレスポンスを返します。
+     *
+     * @param option
+     * @return 保持したレスポンス、なければnull
+     */
+    private static SugarrayResponse lookupMemoryCache(RequestOption option) {
+        if (option.mMemoryCache == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        switch (option.mCachePolicy) {
+            case STANDARD:
+                return option.mMemoryCache.get(option, now);
+            case CACHE_ONLY:
+                return option.mMemoryCache.getStored(option, now, false);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * メモリキャッシュが指定されていれば、先に返してからバックグラウンドで更新するレスポンスを返します。
+     *
+     * @param option
+     * @return 保持したレスポンス、なければnull
+     */
+    private static SugarrayResponse lookupStaleMemoryCache(RequestOption option) {
+        if (option.mMemoryCache == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        switch (option.mCachePolicy) {
+            case STANDARD:
+                return option.mStaleWhileRevalidate
+                        ? option.mMemoryCache.getStale(option, now) : null;
+            case CACHE_THEN_NETWORK:
+                return option.mMemoryCache.getStored(option, now, false);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * HTTPキャッシュが指定されていれば、保存したレスポンスを探します。
+     *
+     * @param option
+     * @return 鮮度が残っているレスポンスか送信するリクエストを持つLookup、HTTPキャッシュが指定されていなければnull
+     */
+    private static HttpCache.Lookup lookupCache(RequestOption option) {
+        if (option.mHttpCache == null) {
+            return null;
+        }
+        if (option.mCachePolicy == CachePolicy.NETWORK_ONLY) {
+            // 保存したレスポンスは読み込まず、受信したレスポンスのみ保存する
+            return new HttpCache.Lookup(option, option, null, null, null);
+        }
+        return option.mHttpCache.lookup(option, System.currentTimeMillis());
+    }
+
+    /**
+     * CachePolicyに従って、HTTPキャッシュから通信せずに返すレスポンスを返します。
+     *
+     * @param option
+     * @param lookup 送信前に取得したLookup、HTTPキャッシュが指定されていなければnull
+     * @return 保存したレスポンス、なければnull
+     */
+    private static SugarrayResponse cachedResponse(RequestOption option,
+                                                   HttpCache.Lookup lookup) {
+        if (lookup == null) {
+            return null;
+        }
+        switch (option.mCachePolicy) {
+            case STANDARD:
+                return lookup.mCachedResponse;
+            case CACHE_ONLY:
+                return lookup.mEntry != null
+                        ? lookup.mEntry.toResponse(System.currentTimeMillis(), true) : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * CachePolicyに従って、HTTPキャッシュから先に返してからバックグラウンドで更新するレスポンスを返します。
+     *
+     * @param option
+     * @param lookup 送信前に取得したLookup、HTTPキャッシュが指定されていなければnull
+     * @return 保存したレスポンス、なければnull
+     */
+    private static SugarrayResponse staleResponse(RequestOption option,
+                                                  HttpCache.Lookup lookup) {
+        if (lookup == null) {
+            return null;
+        }
+        switch (option.mCachePolicy) {
+            case STANDARD:
+                return lookup.mStaleResponse;
+            case CACHE_THEN_NETWORK:
+                return lookup.mEntry != null
+                        ? lookup.mEntry.toResponse(System.currentTimeMillis(), true) : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 部分的なレスポンスのキャッシュを使うリクエストかどうかを判定します。
+     * 足りない範囲を順に受信するため、ワーカースレッドで同期的に通信します。
+     *
+     * @param option
+     * @return RangeCacheがセットされ、1つの範囲を指定したGETリクエストであればtrue
+     */
+    private static boolean usesRangeCache(RequestOption option) {
+        return option.mRangeCache != null && RangeCache.isCacheable(option);
+    }
+
+    /**
+     * CachePolicy.CACHE_ONLYで、返せるレスポンスが保存されていないことを通知します。
+     *
+     * @param option
+     * @throws CacheMissError CachePolicy.CACHE_ONLYの場合
+     */
+    private static void checkCacheOnly(RequestOption option) throws CacheMissError {
+        if (option.mCachePolicy == CachePolicy.CACHE_ONLY) {
+            throw new CacheMissError("The response is not cached. " + option.makeUrl());
+        }
+    }
+
+    /**
+     * 通信できなかった場合に、CachePolicyに従って鮮度に関わらず保存したレスポンスを返します。
+     * must-revalidateまたはno-cacheが指定されたレスポンスは返しません。
+     *
+     * @param option
+     * @param lookup 送信前に取得したLookup、HTTPキャッシュが指定されていなければnull
+     * @param error  通信できなかった原因
+     * @return mOfflineFallbackがtrueのレスポンス、返せるものがなければnull
+     */
+    private static SugarrayResponse offlineFallback(RequestOption option,
+                                                    HttpCache.Lookup lookup,
+                                                    SugarrayError error) {
+        switch (option.mCachePolicy) {
+            case STANDARD:
+            case CACHE_THEN_NETWORK:
+                if (!(error instanceof NetworkStateError)) {
+                    return null;
+                }
+                break;
+            case NETWORK_ELSE_STALE_CACHE:
+                // サーバーが返したクライアントエラーは、保存したレスポンスで置き換えない
+                if (error instanceof ClientError) {
+                    return null;
+                }
+                break;
+            default:
+                return null;
+        }
+        long now = System.currentTimeMillis();
+        if (option.mMemoryCache != null) {
+            SugarrayResponse response = option.mMemoryCache.getStored(option, now, true);
+            if (response != null) {
+                return response;
+            }
+        }
+        if (lookup != null && lookup.mEntry != null
+                && lookup.mEntry.isUsableOffline(CacheControl.parse(option.mHeaders))) {
+            Logger.d(TAG, "Offline fallback. " + lookup.mEntry.mUrl);
+            return lookup.mEntry.toResponse(now, true, true);
+        }
+        return null;
+    }
+
+    /**
+     * HTTPキャッシュとメモリキャッシュが指定されていれば、受信したレスポンスを保存します。
+     * 条件付きリクエストに304が返された場合は、保存したメッセージボディを持つレスポンスを返します。
+     *
+     * @param option
+     * @param lookup      送信前に取得したLookup、HTTPキャッシュが指定されていなければnull
+     * @param response    受信したレスポンス
+     * @param requestTime リクエストの開始時刻
+     * @return 呼び出し元に返すレスポンス
+     */
+    private static SugarrayResponse cacheResponse(RequestOption option, HttpCache.Lookup lookup,
+                                                  SugarrayResponse response, long requestTime) {
+        long responseTime = System.currentTimeMillis();
+        if (lookup != null) {
+            response = option.mHttpCache.put(lookup, response, requestTime, responseTime);
+        } else if (option.mMemoryCache != null) {
+            response = option.mMemoryCache.revalidated(option, response, requestTime,
+                    responseTime);
+        }
+        if (option.mMemoryCache != null) {
+            option.mMemoryCache.put(option, response, requestTime, responseTime);
+        }
+        return response;
+    }
+
+    /**
+     * メモリキャッシュが指定されていれば、HTTPキャッシュから読み込んだレスポンスを保持します。
+     *
+     * @param option
+     * @param response HTTPキャッシュから読み込んだレスポンス
+     */
+    private static void memorizeResponse(RequestOption option, SugarrayResponse response) {
+        if (option.mMemoryCache != null) {
+            long now = System.currentTimeMillis();
+            option.mMemoryCache.put(option, response, now, now);
+        }
+    }
+
+    /**
+     * stale-while-revalidateまたはCachePolicy.CACHE_THEN_NETWORKで先に返したレスポンスを、ExecutorServiceのスレッドで更新します。
+     * 更新したレスポンスが先に返したものと異なれば、CacheRefreshListenerに通知します。
+     * HTTPキャッシュを使わない場合は、メモリキャッシュに保持したレスポンスの検証子で条件付きリクエストを送信します。
+     *
+     * @param context
+     * @param option
+     * @param httpHandler
+     * @param cacheLookup 送信前に取得したLookup、未取得の場合はnull
+     */
+    private void refresh(final Context context, final RequestOption option,
+                         final HttpHandler httpHandler, final HttpCache.Lookup cacheLookup) {
+        try {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HttpCache.Lookup lookup = cacheLookup != null ? cacheLookup
+                                : lookupCache(option);
+                        SugarrayResponse response;
+                        if (option.mCachePolicy == CachePolicy.STANDARD && lookup != null
+                                && lookup.mCachedResponse != null) {
+                            memorizeResponse(option, lookup.mCachedResponse);
+                            response = lookup.mCachedResponse;
+                        } else {
+                            checkNetworkState(context);
+                            long startTime = System.currentTimeMillis();
+                            RequestOption request = lookup != null ? lookup.mRequest
+                                    : option.mMemoryCache != null
+                                    ? option.mMemoryCache.conditionalRequest(option) : option;
+                            response = httpHandler.perform(request, null);
+                            response = cacheResponse(option, lookup, response, startTime);
+                            reportMetrics(option, response, startTime);
+                        }
+                        if (option.mCacheRefreshListener != null && !response.mNotModified) {
+                            option.mCacheRefreshListener.onRefresh(response);
+                        }
+                    } catch (SugarrayError e) {
+                        Logger.e(TAG, "Could not refresh cache.", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Logger.e(TAG, "Could not refresh cache.", e);
+        }
+    }
+
+    /**
+     * 間引かれて通知されていない最新の進行状況を通知します。
+     *
+     * @param progressDispatcher
+     */
+    private static void flushProgress(ProgressDispatcher progressDispatcher) {
+        if (progressDispatcher != null) {
+            progressDispatcher.flush();
+        }
+    }
+
+    /**
+     * 計測結果のリスナーが指定されていれば、リクエストの計測結果を通知します。
+     *
+     * @param option
+     * @param response  受信したレスポンス、受信できなかった場合はnull
+     * @param startTime リクエストの開始時刻
+     */
+    private static void reportMetrics(RequestOption option, SugarrayResponse response,
+                                      long startTime) {
+        if (option.mRequestMetricsListener == null) {
+            return;
+        }
+        UploadStrategy uploadStrategy = UploadStrategy.select(option);
+        option.mRequestMetricsListener.onRequestMetrics(new RequestMetrics(option.makeUrl(),
+                option.mMethod, uploadStrategy,
+                uploadStrategy == UploadStrategy.NONE ? 0 : option.contentLength(),
+                response != null ? response.mStatusCode : -1,
+                System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * 端末のネットワーク状態を確認します。
+     *
+     * @param context
+     * @throws NetworkStateError ネットワークに接続されていない場合
+     */
+    private static void checkNetworkState(Context context) throws NetworkStateError {
+        NetworkState networkState = NetworkUtils
+                .checkNetworkEnable(context);
+        switch (networkState) {
+            case ENABLE_MOBILE:
+                Logger.d(TAG,
+                        "The device is connected to the mobile network.");
+                break;
+            case ENABLE_WIFI:
+                Logger.d(TAG,
+                        "The device is connected to the wifi network.");
+                break;
+            case ENABLE_UNKNOWN:
+                Logger.d(TAG,
+                        "The device is connected to the unknown network.");
+                break;
+            default:
+                throw new NetworkStateError(networkState,
+                        "The device is not connected to the network.");
+        }
+    }
+
     /**
      * キュー内の未実行タスクを全てキャンセルします。
      */
@@ -91,7 +596,15 @@ abstract class SugarrayLauncher {
      * 対象のタスクをキャンセルします。
      */
     public void cancel() {
-        mFuture.cancel(true);
+        mCancelled = true;
+        Future<?> future = mFuture;
+        if (future != null) {
+            future.cancel(true);
+        }
+        AsyncHttpHandler.Call call = mCall;
+        if (call != null) {
+            call.cancel();
+        }
     }
 
     /**
@@ -2,6 +2,7 @@ package net.ultramagnetic.sugarray;
 
 import net.ultramagnetic.sugarray.util.StringUtils;
 
+import java.io.File;
 import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
@@ -18,6 +19,10 @@ public class SugarrayResponse {
      * メッセージボディ
      */
     public final byte[] mBody;
+    /**
+     * メッセージボディを保存したファイル、ファイルに保存していなければnull
+     */
+    public final File mFile;
     /**
      * コンテンツタイプ
      */
@@ -34,6 +39,10 @@ public class SugarrayResponse {
      * レスポンスが更新されていればfalse
      */
     public final boolean mNotModified;
+    /**
+     * 通信できなかったために、鮮度に関わらず保存したレスポンスを返した場合はtrue
+     */
+    public final boolean mOfflineFallback;
     /**
      * メッセージボディをストリングに変換した際のキャッシュ
      */
@@ -49,16 +58,67 @@ public class SugarrayResponse {
      */
     public SugarrayResponse(int statusCode, byte[] body, String contentType,
                             String charsetName, Map<String, String> headers, boolean notModified) {
+        this(statusCode, body, null, contentType, charsetName, headers, notModified, false);
+    }
+
+    /**
+     * @param statusCode
+     * @param body
+     * @param contentType
+     * @param charsetName
+     * @param headers
+     * @param notModified
+     * @param offlineFallback
+     */
+    public SugarrayResponse(int statusCode, byte[] body, String contentType,
+                            String charsetName, Map<String, String> headers, boolean notModified,
+                            boolean offlineFallback) {
+        this(statusCode, body, null, contentType, charsetName, headers, notModified,
+                offlineFallback);
+    }
+
+    /**
+     * メッセージボディをファイルに保存したレスポンスを生成する。mBodyは空となる。
+     *
+     * @param statusCode
+     * @param file
+     * @param contentType
+     * @param charsetName
+     * @param headers
+     * @param notModified
+     */
+    public SugarrayResponse(int statusCode, File file, String contentType,
+                            String charsetName, Map<String, String> headers, boolean notModified) {
+        this(statusCode, null, file, contentType, charsetName, headers, notModified, false);
+    }
+
+    private SugarrayResponse(int statusCode, byte[] body, File file, String contentType,
+                             String charsetName, Map<String, String> headers,
+                             boolean notModified, boolean offlineFallback) {
         mStatusCode = statusCode;
         mBody = body != null ? body : new byte[0];
+        mFile = file;
         mContentType = contentType;
         mCharset = createCharset(charsetName);
         mHeaders = headers != null ? headers : new HashMap<String, String>();
         mNotModified = notModified;
+        mOfflineFallback = offlineFallback;
+    }
+
+    /**
+     * メッセージボディとヘッダーを複製したレスポンスを生成する。
+     * 1つのレスポンスを複数の呼び出し元に渡す場合に、呼び出し元の変更が他に影響しないよう使う。
+     *
+     * @return SugarrayResponse
+     */
+    SugarrayResponse copy() {
+        return new SugarrayResponse(mStatusCode, mBody.clone(), mFile, mContentType,
+                mCharset.name(), new HashMap<String, String>(mHeaders), mNotModified,
+                mOfflineFallback);
     }
 
     /**
-     * @return メッセージボディを文字列に変換したもの
+     * @return メッセージボディを文字列に変換したもの、ファイルに保存した場合は空文字
      */
     public String stringfyBody() {
         if (mBodyStringCache == null) {
@@ -0,0 +1,274 @@
+package net.ultramagnetic.sugarray;
+
+import net.ultramagnetic.sugarray.util.Logger;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 全てのハンドラで共有する、TLSセッションの再利用を管理するクラス
+ * <p>
+ * セッションはSSLContext毎のキャッシュに保持されるため、同じSSLSocketFactoryに対しては常に同じラッパーを返し、
+ * ソケットを接続先のホスト名とポート番号付きで生成することで再開(セッションIDまたはセッションチケット)を可能にする。
+ * ホスト名:ポート番号毎に直前のセッションを記録し、再開されたハンドシェイクと完全なハンドシェイクの回数を集計する。
+ * <p>
+ * SSLSocketFactoryが指定されていない場合はHttpsURLConnectionのデフォルトのSSLSocketFactoryをラップする。
+ * セッションキャッシュの上限や有効期間など、アプリケーションのSSLContextの設定は変更しない。
+ */
+public class TlsSessionManager {
+
+    private static final String TAG = TlsSessionManager.class.getSimpleName();
+
+    /**
+     * プロセスで唯一のインスタンス
+     */
+    private static TlsSessionManager sInstance;
+
+    /**
+     * SSLSocketFactory毎のラッパー
+     * <p>
+     * HttpsURLConnectionはSSLSocketFactoryのインスタンス毎にコネクションを再利用するため、ラッパーは強参照で保持し、
+     * ラップしたSSLSocketFactoryが不要になった時点で取り除く。
+     */
+    private final Map<SSLSocketFactory, SessionSSLSocketFactory> mFactories = new WeakHashMap<SSLSocketFactory, SessionSSLSocketFactory>();
+    /**
+     * ホスト名:ポート番号毎の直前のセッション(LRU)
+     */
+    private final Map<String, SessionRecord> mSessions;
+    /**
+     * 完全なハンドシェイクの回数
+     */
+    private final AtomicLong mFullHandshakeCount = new AtomicLong();
+    /**
+     * セッションを再開したハンドシェイクの回数
+     */
+    private final AtomicLong mResumedHandshakeCount = new AtomicLong();
+
+    private TlsSessionManager(final int maxSessions) {
+        mSessions = new LinkedHashMap<String, SessionRecord>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SessionRecord> eldest) {
+                return size() > maxSessions;
+            }
+        };
+    }
+
+    /**
+     * デフォルト設定のインスタンスを取得する。
+     *
+     * @return TlsSessionManagerのインスタンス
+     */
+    public static synchronized TlsSessionManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new TlsSessionManager(
+                    SugarrayConstants.DefaultTlsSessionConfig.DEFAULT_MAX_SESSIONS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * SSLSocketFactoryを、セッションを管理するSSLSocketFactoryでラップする。
+     * 同じSSLSocketFactoryに対しては同じインスタンスを返す。
+     *
+     * @param sslSocketFactory ラップするSSLSocketFactory、nullの場合はHttpsURLConnectionのデフォルト
+     * @return セッションを管理するSSLSocketFactory
+     */
+    public synchronized SSLSocketFactory wrap(SSLSocketFactory sslSocketFactory) {
+        if (sslSocketFactory == null) {
+            sslSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+        if (sslSocketFactory instanceof SessionSSLSocketFactory) {
+            return sslSocketFactory;
+        }
+        SessionSSLSocketFactory wrapped = mFactories.get(sslSocketFactory);
+        if (wrapped == null) {
+            wrapped = new SessionSSLSocketFactory(sslSocketFactory);
+            mFactories.put(sslSocketFactory, wrapped);
+        }
+        return wrapped;
+    }
+
+    /**
+     * ハンドシェイクの完了を記録する。SSLEngineのようにソケットを利用しない実装から呼び出す。
+     *
+     * @param session ハンドシェイクが完了したセッション
+     */
+    void onHandshakeCompleted(SSLSession session) {
+        String key = session.getPeerHost() + ":" + session.getPeerPort();
+        boolean resumed;
+        synchronized (this) {
+            SessionRecord previous = mSessions.get(key);
+            resumed = previous != null && previous.matches(session);
+            mSessions.put(key, new SessionRecord(session));
+        }
+        if (resumed) {
+            mResumedHandshakeCount.incrementAndGet();
+        } else {
+            mFullHandshakeCount.incrementAndGet();
+        }
+        Logger.d(TAG, (resumed ? "Resumed" : "Full") + " handshake: " + key
+                + " " + session.getProtocol());
+    }
+
+    /**
+     * TLSセッションの統計情報を返す。
+     *
+     * @return Stats
+     */
+    public Stats getStats() {
+        int sessions;
+        synchronized (this) {
+            sessions = mSessions.size();
+        }
+        return new Stats(sessions, mFullHandshakeCount.get(),
+                mResumedHandshakeCount.get());
+    }
+
+    /**
+     * 直前のセッションの識別情報
+     */
+    private static class SessionRecord {
+        final byte[] mId;
+        final long mCreationTime;
+
+        SessionRecord(SSLSession session) {
+            mId = session.getId();
+            mCreationTime = session.getCreationTime();
+        }
+
+        /**
+         * セッションが再開されたものであればtrueを返す。
+         * TLS1.3ではセッションIDが変わるため、元のセッションの生成時刻でも判定する。
+         */
+        boolean matches(SSLSession session) {
+            byte[] id = session.getId();
+            if (id != null && id.length > 0 && Arrays.equals(mId, id)) {
+                return true;
+            }
+            return session.getCreationTime() == mCreationTime;
+        }
+    }
+
+    /**
+     * 生成したソケットのハンドシェイクを記録するSSLSocketFactory
+     * <p>
+     * mFactoriesのキーが解放されるよう、ラップしたSSLSocketFactoryは弱参照で保持する。
+     * ラッパーはラップしたSSLSocketFactoryを指定したリクエストの処理中にのみ使われるため、その間に解放されることはない。
+     */
+    private class SessionSSLSocketFactory extends SSLSocketFactory
+            implements HandshakeCompletedListener {
+
+        private final WeakReference<SSLSocketFactory> mDelegate;
+
+        SessionSSLSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = new WeakReference<SSLSocketFactory>(delegate);
+        }
+
+        private SSLSocketFactory delegate() {
+            SSLSocketFactory delegate = mDelegate.get();
+            if (delegate == null) {
+                throw new IllegalStateException(TAG + ": SSLSocketFactory has been released.");
+            }
+            return delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate().getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate().getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return track(delegate().createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+                throws IOException {
+            return track(delegate().createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return track(delegate().createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost,
+                                   int localPort) throws IOException {
+            return track(delegate().createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return track(delegate().createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port,
+                                   InetAddress localAddress, int localPort) throws IOException {
+            return track(delegate().createSocket(address, port, localAddress, localPort));
+        }
+
+        @Override
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+            onHandshakeCompleted(event.getSession());
+        }
+
+        private Socket track(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket) socket).addHandshakeCompletedListener(this);
+            }
+            return socket;
+        }
+    }
+
+    /**
+     * TLSセッションの統計情報
+     */
+    public static class Stats {
+        /**
+         * 直前のセッションを記録しているホスト名:ポート番号の数
+         */
+        public final int mTrackedSessions;
+        /**
+         * 完全なハンドシェイクの回数
+         */
+        public final long mFullHandshakeCount;
+        /**
+         * セッションを再開したハンドシェイクの回数
+         */
+        public final long mResumedHandshakeCount;
+
+        Stats(int trackedSessions, long fullHandshakeCount, long resumedHandshakeCount) {
+            mTrackedSessions = trackedSessions;
+            mFullHandshakeCount = fullHandshakeCount;
+            mResumedHandshakeCount = resumedHandshakeCount;
+        }
+
+        @Override
+        public String toString() {
+            return "sessions=" + mTrackedSessions + ", full=" + mFullHandshakeCount
+                    + ", resumed=" + mResumedHandshakeCount;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package net.ultramagnetic.sugarray;
+
+/**
+ * リクエストのメッセージボディの送信方法
+ */
+public enum UploadStrategy {
+    /**
+     * メッセージボディを送信しない(GET、DELETE、HEAD)
+     */
+    NONE,
+    /**
+     * Content-Lengthを付けて固定長で送信する。プロキシやサーバーでバッファリングされにくい。
+     */
+    FIXED_LENGTH,
+    /**
+     * 長さが分からない、またはHttpURLConnectionで固定長を指定できない長さの場合にチャンク形式で送信する。
+     */
+    CHUNKED;
+
+    /**
+     * リクエストに適した送信方法を選択する。
+     *
+     * @param option
+     * @return UploadStrategy
+     */
+    static UploadStrategy select(RequestOption option) {
+        if (!option.hasBody()) {
+            return NONE;
+        }
+        long contentLength = option.contentLength();
+        // API 19未満のsetFixedLengthStreamingModeはintの長さしか指定できない
+        if (contentLength < 0 || contentLength > Integer.MAX_VALUE) {
+            return CHUNKED;
+        }
+        return FIXED_LENGTH;
+    }
+}
@@ -0,0 +1,12 @@
+package net.ultramagnetic.sugarray.error;
+
+/**
+ * CachePolicy.CACHE_ONLYで、返せるレスポンスが保存されていないことを示す例外クラス
+ */
+@SuppressWarnings("serial")
+public class CacheMissError extends SugarrayError {
+
+    public CacheMissError(String message) {
+        super(message);
+    }
+}
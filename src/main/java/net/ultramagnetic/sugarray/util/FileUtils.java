@@ -0,0 +1,80 @@
+package net.ultramagnetic.sugarray.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * ファイル操作系のユーティリティクラス
+ */
+public class FileUtils {
+
+    private static final String TAG = FileUtils.class.getSimpleName();
+
+    private FileUtils() {
+        ;
+    }
+
+    /**
+     * @param file ファイル
+     * @return 読み込み可能なファイルの場合にtrueを返す。
+     */
+    public static boolean isFile(File file) {
+        return file != null && file.isFile() && file.canRead();
+    }
+
+    /**
+     * @param file ファイル
+     * @return 読み込み可能なファイルでない場合にtrueを返す。
+     */
+    public static boolean isNotFile(File file) {
+        return !isFile(file);
+    }
+
+    /**
+     * ファイルの内容を全て読み込む。大きなファイルはヒープを圧迫するため、送信にはストリームを利用すること。
+     *
+     * @param file ファイル
+     * @return ファイルの内容、読み込めなかった場合は空の配列
+     */
+    public static byte[] readFileToBytes(File file) {
+        if (isNotFile(file)) {
+            return new byte[0];
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            Logger.e(TAG, "File read error: " + file, e);
+            return new byte[0];
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * 例外を記録してストリームを閉じる。
+     *
+     * @param closeable 閉じる対象、nullの場合は何もしない
+     */
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Logger.e(TAG, "Close error.", e);
+        }
+    }
+}